@@ -0,0 +1,101 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Cost of one LoadBalancer.getServer call for every built-in load balancer, with 2 to 500
+ * servers, from 1 and 4 threads. Servers have random open tunnel counts and weights, so that
+ * the balancers that look at them don't take shortcuts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LoadBalancerBenchmark {
+
+  // Number of distinct clients we cycle through, a power of two.
+  private static final int CLIENTS = 1024;
+
+  @Param({"RoundRobin", "LeastUsed", "UniformRandom", "PowerOfTwoChoices",
+          "WeightedRoundRobin", "Maglev"})
+  public String balancer;
+
+  @Param({"2", "10", "100", "500"})
+  public int servers;
+
+  private LoadBalancer loadBalancer;
+  private ConnectionContext[] contexts;
+
+  @State(Scope.Thread)
+  public static class ClientIndex {
+    int next = 0;
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    Random random = new Random(42);
+    ArrayList<Server> serverList = new ArrayList<Server>();
+    for (int i = 0; i < servers; i++) {
+      Server server = new Server(new HostPort("backend" + i, 14000));
+      server.configuredWeight = 1 + random.nextInt(10);
+      server.openTunnelCnt.set(random.nextInt(50));
+      serverList.add(server);
+    }
+    ServerScoreboard scoreboard = new ServerScoreboard(serverList);
+    loadBalancer = TcpProxyServer.createLoadBalancer(balancer, scoreboard, false);
+    scoreboard.refresh();
+
+    contexts = new ConnectionContext[CLIENTS];
+    for (int i = 0; i < CLIENTS; i++) {
+      contexts[i] = new ConnectionContext(null);
+      contexts[i].affinityKey = "10.0." + (i / 256) + "." + (i % 256);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Server getServer1Thread(ClientIndex index) {
+    return loadBalancer.getServer(contexts[index.next++ & (CLIENTS - 1)]);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Server getServer4Threads(ClientIndex index) {
+    return loadBalancer.getServer(contexts[index.next++ & (CLIENTS - 1)]);
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Cost of rendering the status pages, which the stats snapshot thread pays every second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ServerStatsBenchmark {
+
+  @Param({"2", "10", "100"})
+  public int servers;
+
+  private TcpProxyServer proxy;
+
+  @Setup
+  public void setUp() throws Exception {
+    Random random = new Random(42);
+    proxy = new TcpProxyServer("TransferAccelerator");
+    for (int i = 0; i < servers; i++) {
+      Server server = new Server(new HostPort("backend" + i, 14000));
+      // Give the counters and histograms something to show.
+      for (int j = 0; j < 1000; j++) {
+        server.incrementByteRateBy(random.nextInt(1 << 16));
+        server.recordConnectLatency(random.nextInt(10000000));
+        server.recordFirstByteLatency(random.nextInt(100000000));
+      }
+      proxy.getServerList().add(server);
+    }
+    ServerScoreboard scoreboard = new ServerScoreboard(proxy.getServerList());
+    proxy.setLoadBalancer(TcpProxyServer.createLoadBalancer("LeastUsed", scoreboard, false));
+  }
+
+  @Benchmark
+  public String getServerStatsHtml() {
+    return proxy.getServerStatsHtml();
+  }
+
+  @Benchmark
+  public String getMetricsPrometheus() {
+    return proxy.getMetrics().toPrometheus();
+  }
+}
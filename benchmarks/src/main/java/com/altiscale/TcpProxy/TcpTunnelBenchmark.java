@@ -0,0 +1,131 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Relay throughput of one TcpTunnel over loopback for several tunnel buffer sizes.
+ *
+ * The client streams data through the tunnel to an echo server, and a drain thread reads the
+ * echoed data back. Each invocation writes CHUNK bytes, and the socket buffers push back once
+ * the tunnel falls behind, so the score is 64 KB chunks relayed per second in each direction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TcpTunnelBenchmark {
+
+  // Bytes we send per invocation, 64 KB.
+  private static final int CHUNK = 1 << 16;
+
+  @Param({"1024", "8192", "65536"})
+  public int bufferSize;
+
+  private ServerSocket proxySocket;
+  private ServerSocket echoSocket;
+  private Socket client;
+  private TcpTunnel tunnel;
+  private byte[] sendBuffer;
+
+  // Copies everything from socket back to it, or to nowhere if echo is false.
+  private static void copy(Socket socket, boolean echo) {
+    try {
+      InputStream input = socket.getInputStream();
+      OutputStream output = socket.getOutputStream();
+      byte[] buffer = new byte[1 << 16];
+      int cnt;
+      while ((cnt = input.read(buffer)) >= 0) {
+        if (echo) {
+          output.write(buffer, 0, cnt);
+        }
+      }
+      socket.close();
+    } catch (IOException ioe) {
+      // Closed during tear down.
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    InetAddress loopback = InetAddress.getByName("127.0.0.1");
+    echoSocket = new ServerSocket(0, 1, loopback);
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          copy(echoSocket.accept(), true);
+        } catch (IOException ioe) {
+          // Closed during tear down.
+        }
+      }
+    }, "echoServer").start();
+
+    proxySocket = new ServerSocket(0, 1, loopback);
+    client = new Socket(loopback, proxySocket.getLocalPort());
+    Socket proxyClientSide = proxySocket.accept();
+    Socket proxyServerSide = new Socket(loopback, echoSocket.getLocalPort());
+
+    Server server = new Server(new HostPort("127.0.0.1", echoSocket.getLocalPort()));
+    tunnel = new TcpTunnel(proxyClientSide, proxyServerSide, server);
+    tunnel.setBufferSize(bufferSize);
+    tunnel.spawnTunnelThreads();
+
+    new Thread(new Runnable() {
+      public void run() {
+        copy(client, false);
+      }
+    }, "drain").start();
+    sendBuffer = new byte[CHUNK];
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    client.close();
+    tunnel.close();
+    proxySocket.close();
+    echoSocket.close();
+  }
+
+  @Benchmark
+  public void relayChunk() throws IOException {
+    client.getOutputStream().write(sendBuffer);
+  }
+}
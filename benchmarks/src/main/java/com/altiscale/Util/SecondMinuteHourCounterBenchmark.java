@@ -0,0 +1,69 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of SecondMinuteHourCounter.incrementBy, which every relayed chunk pays twice (tunnel and
+ * server byte rate), with one counter shared by 1, 4 and 16 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SecondMinuteHourCounterBenchmark {
+
+  private SecondMinuteHourCounter counter;
+
+  @Setup
+  public void setUp() {
+    counter = new SecondMinuteHourCounter("benchmark");
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void incrementBy1Thread() {
+    counter.incrementBy(8192);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void incrementBy4Threads() {
+    counter.incrementBy(8192);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void incrementBy16Threads() {
+    counter.incrementBy(8192);
+  }
+}
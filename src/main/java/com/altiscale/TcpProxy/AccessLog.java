@@ -0,0 +1,362 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.Metrics;
+
+/**
+ *  AccessLog writes one CSV line per finished tunnel: when it started, how long it was open,
+ *  client, server, bytes in each direction, why it closed and how long the connect to the
+ *  server took.
+ *
+ *  Relay threads put records into a ring buffer with a compare-and-set and never wait: if the
+ *  buffer is full the record is dropped and counted. A single writer thread drains the buffer,
+ *  so log4j and the disk never hold up a tunnel. Once the file reaches maxFileBytes we rotate
+ *  it like log4j's RollingFileAppender: FILE becomes FILE.1, FILE.1 becomes FILE.2 and so on,
+ *  keeping maxBackups old files.
+ */
+public class AccessLog {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final String HEADER =
+      "start_ms,duration_us,client,server,bytes_to_server,bytes_to_client,close_reason," +
+      "connect_us,id";
+
+  public static final int DEFAULT_CAPACITY = 64 * 1024;
+  public static final long DEFAULT_MAX_FILE_MB = 100;
+  public static final int DEFAULT_MAX_BACKUPS = 5;
+
+  // How long the writer sleeps when the buffer is empty. Records wait at most this long.
+  private static final long POLL_MS = 100;
+
+  // How long stop() waits for the writer to write what is buffered.
+  private static final long STOP_WAIT_MS = 5000;
+
+  /**
+   * What we log about one tunnel.
+   */
+  static class Record {
+    long id;
+    long startMillis;
+    long durationMicros;
+    String client;
+    String server;
+    long bytesToServer;
+    long bytesToClient;
+    String closeReason;
+    long connectMicros;
+  }
+
+  private final File file;
+  private final long maxFileBytes;
+  private final int maxBackups;
+
+  // Ring buffer. Slot seq & mask holds record seq until the writer takes it and clears it.
+  private final AtomicReferenceArray<Record> slots;
+  private final int mask;
+
+  // Next sequence number relay threads claim.
+  private final AtomicLong head;
+
+  // Next sequence number the writer takes. Only the writer moves it.
+  private final AtomicLong tail;
+
+  private volatile boolean logging;
+  private Thread writer;
+
+  // The open file and how long it is. Only the writer uses them once it started.
+  private Writer output;
+  private long fileBytes;
+
+  // Records we wrote and records we dropped because the buffer was full or the write failed.
+  public final AtomicLong writtenCnt;
+  public final AtomicLong droppedCnt;
+
+  // Times we rotated the file.
+  public final AtomicLong rotationCnt;
+
+  /*
+   *  @param file          File we append to.
+   *  @param capacity      Records the buffer holds, rounded up to a power of two.
+   *  @param maxFileBytes  Size at which we rotate the file.
+   *  @param maxBackups    Rotated files we keep, 0 to start the file over.
+   */
+  public AccessLog(File file, int capacity, long maxFileBytes, int maxBackups) {
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.maxBackups = maxBackups;
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    slots = new AtomicReferenceArray<Record>(size);
+    mask = size - 1;
+    head = new AtomicLong(0);
+    tail = new AtomicLong(0);
+    logging = false;
+    writtenCnt = new AtomicLong(0);
+    droppedCnt = new AtomicLong(0);
+    rotationCnt = new AtomicLong(0);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getCapacity() {
+    return slots.length();
+  }
+
+  // Records waiting for the writer.
+  public long getBufferedCnt() {
+    return head.get() - tail.get();
+  }
+
+  /*
+   *  Opens the file and starts the writer.
+   */
+  public synchronized void start() throws IOException {
+    assert null == writer;
+    open();
+    writer = new Thread(new Runnable() {
+      public void run() {
+        write();
+      }
+    }, "accessLog");
+    writer.setDaemon(true);
+    logging = true;
+    writer.start();
+    LOG.info("Logging finished tunnels to " + file);
+  }
+
+  /*
+   *  Stops the writer once it wrote what is buffered and closes the file.
+   */
+  public synchronized void stop() {
+    if (null == writer) {
+      return;
+    }
+    logging = false;
+    try {
+      writer.join(STOP_WAIT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer = null;
+  }
+
+  /*
+   *  Logs tunnel, which just closed. Never blocks.
+   *
+   *  @param durationNanos  How long the tunnel was open.
+   */
+  public void log(TcpTunnel tunnel, long durationNanos) {
+    Record record = new Record();
+    record.id = tunnel.getId();
+    record.startMillis = tunnel.getStartMillis();
+    record.durationMicros = durationNanos / 1000;
+    record.client = tunnel.getClientAddress();
+    record.server = tunnel.getServer().hostPort.toString();
+    record.bytesToServer = tunnel.getBytesToServer();
+    record.bytesToClient = tunnel.getBytesToClient();
+    record.closeReason = tunnel.getCloseReason();
+    record.connectMicros = tunnel.getConnectNanos() / 1000;
+    offer(record);
+  }
+
+  /*
+   *  Claims the next slot for record, unless the writer hasn't taken the record a full buffer
+   *  ago yet.
+   *
+   *  @return  False if we dropped record.
+   */
+  boolean offer(Record record) {
+    while (true) {
+      long seq = head.get();
+      if (seq - tail.get() >= slots.length()) {
+        droppedCnt.incrementAndGet();
+        return false;
+      }
+      if (head.compareAndSet(seq, seq + 1)) {
+        slots.set((int) seq & mask, record);
+        return true;
+      }
+    }
+  }
+
+  /*
+   *  Takes the next record, or returns null if there is none yet. A relay thread may have
+   *  claimed the slot but not filled it yet, then we get it on the next call.
+   */
+  Record poll() {
+    long seq = tail.get();
+    int slot = (int) seq & mask;
+    Record record = slots.get(slot);
+    if (null == record) {
+      return null;
+    }
+    slots.set(slot, null);
+    tail.lazySet(seq + 1);
+    return record;
+  }
+
+  private void open() throws IOException {
+    fileBytes = file.length();
+    output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                                                       "UTF-8"));
+    if (0 == fileBytes) {
+      try {
+        output.write(HEADER);
+        output.write('\n');
+        fileBytes += HEADER.length() + 1;
+      } catch (IOException ioe) {
+        output.close();
+        throw ioe;
+      }
+    }
+  }
+
+  // Renames FILE to FILE.1, FILE.1 to FILE.2 and so on, and drops the oldest.
+  private void rotate() {
+    if (maxBackups > 0) {
+      new File(file.getPath() + "." + maxBackups).delete();
+      for (int i = maxBackups - 1; i >= 1; i--) {
+        File older = new File(file.getPath() + "." + i);
+        if (older.exists()) {
+          older.renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+      }
+      if (!file.renameTo(new File(file.getPath() + ".1"))) {
+        LOG.warn("Could not rotate " + file + ", starting it over.");
+        file.delete();
+      }
+    } else {
+      file.delete();
+    }
+    rotationCnt.incrementAndGet();
+  }
+
+  private void write() {
+    StringBuilder line = new StringBuilder(256);
+    try {
+      while (true) {
+        Record record = poll();
+        if (null == record) {
+          output.flush();
+          if (!logging && 0 == getBufferedCnt()) {
+            break;
+          }
+          Thread.sleep(POLL_MS);
+          continue;
+        }
+        line.setLength(0);
+        format(record, line);
+        try {
+          output.write(line.toString());
+          writtenCnt.incrementAndGet();
+          // Addresses are ASCII, so characters are bytes.
+          fileBytes += line.length();
+          if (fileBytes >= maxFileBytes) {
+            output.close();
+            rotate();
+            open();
+          }
+        } catch (IOException ioe) {
+          droppedCnt.incrementAndGet();
+          LOG.error("Could not write access log " + file + ": " + ioe.getMessage());
+          output.close();
+          open();
+        }
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    } catch (IOException ioe) {
+      LOG.error("Stopped writing access log " + file + ": " + ioe.getMessage());
+    } finally {
+      try {
+        output.close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing " + file + ": " + ioe.getMessage());
+      }
+    }
+  }
+
+  // Appends record as a CSV line, see HEADER.
+  static void format(Record record, StringBuilder line) {
+    line.append(record.startMillis).append(',')
+        .append(record.durationMicros).append(',');
+    appendField(line, record.client);
+    line.append(',');
+    appendField(line, record.server);
+    line.append(',').append(record.bytesToServer)
+        .append(',').append(record.bytesToClient).append(',');
+    appendField(line, record.closeReason);
+    line.append(',').append(record.connectMicros)
+        .append(',').append(record.id).append('\n');
+  }
+
+  // Quotes value if it has a comma, quote or line break, like RFC 4180.
+  private static void appendField(StringBuilder line, String value) {
+    if (null == value) {
+      return;
+    }
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = ',' == c || '"' == c || '\n' == c || '\r' == c;
+    }
+    if (!quote) {
+      line.append(value);
+      return;
+    }
+    line.append('"').append(value.replace("\"", "\"\"")).append('"');
+  }
+
+  // Row of the access log on the /stats page.
+  void appendHtml(StringBuilder html) {
+    html.append("<tr><td>access log</td><td><table><tr>")
+        .append("<td>").append(writtenCnt.get()).append(" written</td>")
+        .append("<td>").append(droppedCnt.get()).append(" dropped</td>")
+        .append("<td>").append(getBufferedCnt()).append(" of ")
+        .append(getCapacity()).append(" buffered</td>")
+        .append("<td>").append(rotationCnt.get()).append(" rotations</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Written and dropped records and rotations, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "access_log_records_total",
+                    "Access log records, by whether we wrote or dropped them.",
+                    writtenCnt.get(), "result", "written");
+    metrics.counter(prefix + "access_log_records_total",
+                    "Access log records, by whether we wrote or dropped them.",
+                    droppedCnt.get(), "result", "dropped");
+    metrics.gauge(prefix + "access_log_buffered_records",
+                  "Access log records waiting for the writer.", getBufferedCnt());
+    metrics.counter(prefix + "access_log_rotations_total",
+                    "Times we rotated the access log.", rotationCnt.get());
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * AdminAccess decides who may use the actions on the status port that change what the proxy
+ * does, like adding servers or closing connections. The status port listens on all interfaces
+ * for /stats and /metrics, so by default these actions are only open to clients on the same
+ * machine. With a token, clients anywhere may use them if they send it as
+ * "Authorization: Bearer TOKEN".
+ */
+public class AdminAccess {
+  static final String BEARER = "Bearer ";
+
+  // Token remote clients have to send, null to allow loopback clients only.
+  private final byte[] token;
+
+  /*
+   *  @param token  Token remote clients have to send, or null to allow loopback clients only.
+   */
+  public AdminAccess(String token) {
+    this.token = null == token ? null : toBytes(token);
+  }
+
+  private static byte[] toBytes(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /*
+   *  @param remoteAddress  Address of the client.
+   *  @param authorization  Its Authorization header, or null.
+   */
+  boolean isAllowed(InetSocketAddress remoteAddress, String authorization) {
+    InetAddress address = null == remoteAddress ? null : remoteAddress.getAddress();
+    if (null != address && address.isLoopbackAddress()) {
+      return true;
+    }
+    if (null == token || null == authorization || !authorization.startsWith(BEARER)) {
+      return false;
+    }
+    // Takes the same time however much of the token is right.
+    return MessageDigest.isEqual(token, toBytes(authorization.substring(BEARER.length())));
+  }
+
+  public boolean isAllowed(HttpExchange exchange) {
+    return isAllowed(exchange.getRemoteAddress(),
+                     exchange.getRequestHeaders().getFirst("Authorization"));
+  }
+
+  // Error to send clients we turned down.
+  public String getDeniedJson() {
+    return "{\"error\":\"Admin actions need a client on this machine" +
+           (null == token ? "" : " or the admin token") + "\"}";
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.Metrics;
+import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.SlidingWindowHistogram;
+
+/**
+ * AdmissionControl caps the number of concurrent tunnels.
+ *
+ * A client that finds all maxTunnels slots taken waits in a queue of at most maxQueued clients,
+ * first come first served, for up to queueTimeoutMillis. Clients that find the queue full or
+ * time out in it are shed: the proxy closes them right away, or answers 503 in http mode,
+ * instead of letting them pile up threads and time out against busy servers.
+ *
+ * With maxTunnels 0 every client is admitted and nothing is counted but admissions.
+ */
+public class AdmissionControl {
+  // Why we shed a client.
+  static final String SHED_QUEUE_FULL = "queue_full";
+  static final String SHED_TIMEOUT = "timeout";
+  static final String SHED_NO_SERVER = "no_server";
+
+  // Defaults for the queue when --max_tunnels is set.
+  static final int DEFAULT_MAX_QUEUED = 128;
+  static final long DEFAULT_QUEUE_TIMEOUT_MS = 2000;
+
+  private final int maxTunnels;
+  private final int maxQueued;
+  private final long queueTimeoutMillis;
+
+  // One permit per tunnel we may still open. Fair, so the queue is served in order.
+  private final Semaphore permits;
+
+  // Clients waiting for a permit.
+  private final AtomicInteger queued;
+
+  final AtomicLong admittedCnt;
+  final AtomicLong queuedCnt;
+  final AtomicLong shedQueueFullCnt;
+  final AtomicLong shedTimeoutCnt;
+  final AtomicLong shedNoServerCnt;
+
+  // All shed clients, for rates on the stats page.
+  final SecondMinuteHourCounter shedCnt;
+
+  // How long admitted clients waited in the queue, in micros.
+  final SlidingWindowHistogram queueWaitHist;
+
+  /*
+   *  @param maxTunnels          Most tunnels open at once, 0 for no limit.
+   *  @param maxQueued           Most clients waiting for a tunnel, 0 to shed right away.
+   *  @param queueTimeoutMillis  How long a client waits before we shed it.
+   */
+  public AdmissionControl(int maxTunnels, int maxQueued, long queueTimeoutMillis) {
+    this.maxTunnels = maxTunnels;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.permits = new Semaphore(maxTunnels, true);
+    this.queued = new AtomicInteger(0);
+    this.admittedCnt = new AtomicLong(0);
+    this.queuedCnt = new AtomicLong(0);
+    this.shedQueueFullCnt = new AtomicLong(0);
+    this.shedTimeoutCnt = new AtomicLong(0);
+    this.shedNoServerCnt = new AtomicLong(0);
+    this.shedCnt = new SecondMinuteHourCounter("shedCnt");
+    this.queueWaitHist = SlidingWindowHistogram.lastMinute("queueWaitHist");
+  }
+
+  // AdmissionControl that admits everybody.
+  public AdmissionControl() {
+    this(0, 0, 0);
+  }
+
+  public boolean isLimited() {
+    return maxTunnels > 0;
+  }
+
+  public int getMaxTunnels() {
+    return maxTunnels;
+  }
+
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  // Tunnels currently holding a slot.
+  public int getActiveTunnels() {
+    return isLimited() ? maxTunnels - permits.availablePermits() : 0;
+  }
+
+  /*
+   *  @return  True if there is a free slot, which the caller must release(). Never waits.
+   */
+  public boolean tryAdmit() {
+    if (!isLimited()) {
+      admittedCnt.incrementAndGet();
+      return true;
+    }
+    // Don't barge in front of clients already waiting.
+    if (0 == queued.get() && permits.tryAcquire()) {
+      admittedCnt.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   *  Takes a place in the queue for a client tryAdmit() turned down.
+   *
+   *  @return  False if the queue is full, in which case we count the client as shed.
+   */
+  public boolean enqueue() {
+    while (true) {
+      int current = queued.get();
+      if (current >= maxQueued) {
+        shed(SHED_QUEUE_FULL);
+        return false;
+      }
+      if (queued.compareAndSet(current, current + 1)) {
+        queuedCnt.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /*
+   *  Waits for a slot for a client that enqueue() took. Gives up its place in the queue either
+   *  way.
+   *
+   *  @return  True if admitted, false if we shed the client because its deadline passed.
+   */
+  public boolean awaitAdmission() {
+    long start = System.nanoTime();
+    boolean admitted = false;
+    try {
+      admitted = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      queued.decrementAndGet();
+    }
+    if (!admitted) {
+      shed(SHED_TIMEOUT);
+      return false;
+    }
+    admittedCnt.incrementAndGet();
+    queueWaitHist.record((System.nanoTime() - start) / 1000);
+    return true;
+  }
+
+  /*
+   *  tryAdmit(), or wait in the queue if we can.
+   */
+  public boolean admit() {
+    return tryAdmit() || (enqueue() && awaitAdmission());
+  }
+
+  // Gives back the slot of an admitted client whose tunnel closed or never opened.
+  public void release() {
+    if (isLimited()) {
+      permits.release();
+    }
+  }
+
+  // Counts a shed client.
+  void shed(String reason) {
+    if (reason.equals(SHED_QUEUE_FULL)) {
+      shedQueueFullCnt.incrementAndGet();
+    } else if (reason.equals(SHED_TIMEOUT)) {
+      shedTimeoutCnt.incrementAndGet();
+    } else {
+      shedNoServerCnt.incrementAndGet();
+    }
+    shedCnt.increment();
+  }
+
+  // Rows of the admission limits and shed clients on the /stats page.
+  void appendHtml(StringBuilder html) {
+    if (isLimited()) {
+      html.append("<tr><td>admitted tunnels</td><td>").append(getActiveTunnels())
+          .append(" of ").append(getMaxTunnels()).append("</td></tr>\r\n");
+      html.append("<tr><td>admission queue</td><td>").append(getQueueDepth())
+          .append(" of ").append(getMaxQueued()).append("</td></tr>\r\n");
+    }
+    html.append("<tr><td>shed clients</td><td><table><tr>")
+        .append("<td>").append(shedCnt.getLastSecondCnt()).append(" /s</td>")
+        .append("<td>").append(shedCnt.getLastMinuteCnt()).append(" /m</td>")
+        .append("<td>").append(shedCnt.getLastHourCnt()).append(" /h</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Slots, queue and shed clients by reason, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.gauge(prefix + "admission_max_tunnels",
+                  "Most tunnels open at once, 0 if unlimited.", getMaxTunnels());
+    metrics.gauge(prefix + "admission_active_tunnels",
+                  "Tunnels holding an admission slot.", getActiveTunnels());
+    metrics.gauge(prefix + "admission_queue_depth",
+                  "Clients waiting for an admission slot.", getQueueDepth());
+    metrics.counter(prefix + "admitted_total", "Clients admitted.", admittedCnt.get());
+    metrics.counter(prefix + "admission_queued_total",
+                    "Clients that had to wait for an admission slot.", queuedCnt.get());
+    metrics.counter(prefix + "shed_total", "Clients turned away.",
+                    shedQueueFullCnt.get(), "reason", SHED_QUEUE_FULL);
+    metrics.counter(prefix + "shed_total", "Clients turned away.",
+                    shedTimeoutCnt.get(), "reason", SHED_TIMEOUT);
+    metrics.counter(prefix + "shed_total", "Clients turned away.",
+                    shedNoServerCnt.get(), "reason", SHED_NO_SERVER);
+    metrics.histogram(prefix + "admission_queue_wait_seconds",
+                      "Time admitted clients waited for a slot over the last minute.",
+                      queueWaitHist.getSnapshot(), 1e-6);
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.LogLinearHistogram;
+
+/**
+ * BufferAutoTuner sizes the socket buffers of servers with the auto SocketProfile to their
+ * bandwidth-delay product.
+ *
+ * Every TUNE_INTERVAL_MS it takes the median TCP handshake of the last minute as the round trip
+ * time and the fastest tunnel of the last second as the bandwidth one connection can get. The
+ * handshake leaves out TLS, which takes further round trips and CPU, but it includes the time
+ * the server takes to accept, so a busy server looks a bit further away than it is.
+ * New connections get buffers of twice their product, rounded up to a power of two and kept
+ * in [MIN_BUFFER_BYTES, MAX_BUFFER_BYTES]. A tunnel limited by its buffers moves about one
+ * buffer per round trip, so the doubling lets buffers grow until the link, not the buffer, is
+ * the limit.
+ *
+ * Servers behind a jumphost and on Unix domain sockets are left alone, see
+ * Server.canAutoTune(). Through a jumphost we only connect to the local end of the ssh tunnel,
+ * which says nothing about the network, and ssh's buffers rather than ours limit the transfer.
+ */
+public class BufferAutoTuner implements ServerScoreboard.Listener {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final int MIN_BUFFER_BYTES = 64 * 1024;
+  static final int MAX_BUFFER_BYTES = 16 * 1024 * 1024;
+  static final long TUNE_INTERVAL_MS = 1000;
+
+  private ServerScoreboard scoreboard;
+
+  private long lastTunedMillis;
+
+  public BufferAutoTuner(ServerScoreboard scoreboard) {
+    this.scoreboard = scoreboard;
+    this.lastTunedMillis = System.currentTimeMillis();
+    scoreboard.addListener(this);
+  }
+
+  /*
+   *  @param rttMicros           Round trip time.
+   *  @param bytesPerSecond      Throughput of one connection.
+   *
+   *  @return  Buffer size for that bandwidth-delay product.
+   */
+  static int bufferBytesFor(long rttMicros, long bytesPerSecond) {
+    double bdp = (double) bytesPerSecond * rttMicros / 1e6;
+    long target = MIN_BUFFER_BYTES;
+    while (target < 2 * bdp && target < MAX_BUFFER_BYTES) {
+      target *= 2;
+    }
+    return (int) target;
+  }
+
+  void tune(Server server) {
+    LogLinearHistogram.Snapshot connectLatency = server.tcpConnectLatencyHist.getSnapshot();
+    if (0 == connectLatency.getCount()) {
+      return;
+    }
+    long rttMicros = Math.max(1, connectLatency.getValueAtPercentile(50));
+    long maxTunnelRate = 0;
+    for (TcpTunnel tunnel : server.getTunnels()) {
+      maxTunnelRate = Math.max(maxTunnelRate, tunnel.getLastSecondByteRate());
+    }
+    int bufferBytes = bufferBytesFor(rttMicros, maxTunnelRate);
+    server.estimatedRttMicros = rttMicros;
+    server.estimatedBdpBytes = maxTunnelRate * rttMicros / 1000000;
+    if (bufferBytes != server.autoBufferBytes) {
+      LOG.debug("Socket buffers for " + server.hostPort + " now " + bufferBytes + " bytes, rtt " +
+                rttMicros + "us, fastest tunnel " + maxTunnelRate + " bytes/s");
+      server.autoBufferBytes = bufferBytes;
+    }
+  }
+
+  @Override
+  public void scoreboardRefreshed(ServerScoreboard scoreboard) {
+    long now = System.currentTimeMillis();
+    if (now - lastTunedMillis < TUNE_INTERVAL_MS) {
+      return;
+    }
+    lastTunedMillis = now;
+    for (int i = 0; i < scoreboard.size(); i++) {
+      Server server = scoreboard.getServer(i);
+      if (server.socketProfile.autoTune && server.canAutoTune()) {
+        tune(server);
+      }
+    }
+  }
+}
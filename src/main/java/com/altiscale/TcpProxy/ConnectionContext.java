@@ -0,0 +1,81 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpRequestHead;
+
+/**
+ * ConnectionContext is what we know about a client connection when we pick a server for it.
+ */
+public class ConnectionContext {
+  // Socket connected to our client.
+  public Socket clientSocket;
+
+  // Head of the first HTTP request on this connection when we run in http mode, null otherwise.
+  public HttpRequestHead httpRequest;
+
+  // Number of servers we already failed to connect this client to.
+  public int attempt;
+
+  // Key for affinity load balancers. Clients with the same key go to the same server.
+  public String affinityKey;
+
+  // Run once when the tunnel of this client closes, or null.
+  public Runnable onTunnelClosed;
+
+  // Records the tunnel of this client if it samples it, or null.
+  public TrafficCapture capture;
+
+  // Logs the tunnel of this client once it closed, or null.
+  public AccessLog accessLog;
+
+  /*
+   *  @param clientSocket  Socket connected to our client. The client address without the port
+   *                       is the default affinityKey.
+   */
+  public ConnectionContext(Socket clientSocket) {
+    this.clientSocket = clientSocket;
+    this.httpRequest = null;
+    this.attempt = 0;
+    this.onTunnelClosed = null;
+    this.capture = null;
+    this.accessLog = null;
+    this.affinityKey = null == clientSocket ? null : getClientAddress(clientSocket, false);
+  }
+
+  /*
+   *  Address of the client at the other end of socket. Clients on Unix domain sockets have no
+   *  address of their own, so they all show up as "unix:" and the path they connected to.
+   *
+   *  @param withPort  True to add the port of TCP clients.
+   */
+  public static String getClientAddress(Socket socket, boolean withPort) {
+    SocketAddress remote = socket.getRemoteSocketAddress();
+    if (remote instanceof InetSocketAddress && null != ((InetSocketAddress) remote).getAddress()) {
+      InetSocketAddress address = (InetSocketAddress) remote;
+      return address.getAddress().getHostAddress() + (withPort ? ":" + address.getPort() : "");
+    }
+    SocketAddress local = socket.getLocalSocketAddress();
+    return HostPort.UNIX_PREFIX +
+           (null == local || local instanceof InetSocketAddress ? "" : local.toString());
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.Metrics;
+import com.altiscale.Util.ServerStatus;
+
+/**
+ * ConnectionsHandler serves the live connection table on "/connections".
+ *
+ * GET /connections[?server=host:port] returns all open tunnels as JSON, busiest first.
+ * POST /connections/close?id=N closes one tunnel and POST /connections/close?server=host:port
+ * closes all tunnels to a server. Both return the number of tunnels closed, or 403 for
+ * clients AdminAccess turns down.
+ *
+ * Unlike the statistics pages this one reads live state, so it costs a walk over the open
+ * tunnels of every server.
+ */
+public class ConnectionsHandler implements HttpHandler {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final String PATH = "/connections";
+  public static final String CLOSE_PATH = PATH + "/close";
+
+  private TcpProxyServer proxy;
+
+  private AdminAccess adminAccess;
+
+  public ConnectionsHandler(TcpProxyServer proxy, AdminAccess adminAccess) {
+    this.proxy = proxy;
+    this.adminAccess = adminAccess;
+  }
+
+  public void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    HashMap<String, String> parameters =
+        HttpRequestHead.parseQuery(exchange.getRequestURI().getRawQuery());
+    String requestMethod = exchange.getRequestMethod();
+    if (path.equals(PATH) && requestMethod.equalsIgnoreCase("GET")) {
+      sendJson(exchange, 200, getConnectionsJson(parameters.get("server")));
+    } else if (path.equals(CLOSE_PATH) && requestMethod.equalsIgnoreCase("POST")) {
+      handleClose(exchange, parameters);
+    } else if (path.equals(PATH) || path.equals(CLOSE_PATH)) {
+      sendJson(exchange, 405, "{\"error\":\"Method not allowed\"}");
+    } else {
+      sendJson(exchange, 404, "{\"error\":\"Not found\"}");
+    }
+  }
+
+  private void handleClose(HttpExchange exchange, HashMap<String, String> parameters)
+      throws IOException {
+    if (!adminAccess.isAllowed(exchange)) {
+      LOG.warn("Refused to close connections on request from " + exchange.getRemoteAddress());
+      sendJson(exchange, 403, adminAccess.getDeniedJson());
+      return;
+    }
+    String id = parameters.get("id");
+    String serverName = parameters.get("server");
+    int closed = 0;
+    if (null != id) {
+      long tunnelId;
+      try {
+        tunnelId = Long.parseLong(id);
+      } catch (NumberFormatException nfe) {
+        sendJson(exchange, 400, "{\"error\":\"Bad id " + Metrics.escape(id) + "\"}");
+        return;
+      }
+      for (Server server : proxy.getServerList()) {
+        TcpTunnel tunnel = server.tunnels.get(tunnelId);
+        if (null != tunnel) {
+          tunnel.close();
+          closed++;
+        }
+      }
+      LOG.info("Closed connection " + id + " on request from " + exchange.getRemoteAddress());
+    } else if (null != serverName) {
+      Server server = findServer(serverName);
+      if (null == server) {
+        sendJson(exchange, 404,
+                 "{\"error\":\"Unknown server " + Metrics.escape(serverName) + "\"}");
+        return;
+      }
+      closed = server.closeAllTunnels();
+      LOG.info("Closed " + closed + " connections to " + serverName + " on request from " +
+               exchange.getRemoteAddress());
+    } else {
+      sendJson(exchange, 400, "{\"error\":\"Need id or server parameter\"}");
+      return;
+    }
+    sendJson(exchange, 200, "{\"closed\":" + closed + "}");
+  }
+
+  private Server findServer(String name) {
+    for (Server server : proxy.getServerList()) {
+      if (server.hostPort.toString().equals(name)) {
+        return server;
+      }
+    }
+    return null;
+  }
+
+  /*
+   *  @param serverName  Only list tunnels to this server, or all tunnels if null.
+   */
+  String getConnectionsJson(String serverName) {
+    long now = System.currentTimeMillis();
+    ArrayList<TcpTunnel> tunnels = new ArrayList<TcpTunnel>();
+    for (Server server : proxy.getServerList()) {
+      if (null == serverName || server.hostPort.toString().equals(serverName)) {
+        tunnels.addAll(server.getTunnels());
+      }
+    }
+
+    // Take rates once so that sorting sees a consistent value for each tunnel.
+    final HashMap<TcpTunnel, Long> rates = new HashMap<TcpTunnel, Long>();
+    for (TcpTunnel tunnel : tunnels) {
+      rates.put(tunnel, tunnel.getLastSecondByteRate());
+    }
+    Collections.sort(tunnels, new Comparator<TcpTunnel>() {
+      public int compare(TcpTunnel a, TcpTunnel b) {
+        return rates.get(b).compareTo(rates.get(a));
+      }
+    });
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"count\":").append(tunnels.size()).append(",\"connections\":[");
+    boolean first = true;
+    for (TcpTunnel tunnel : tunnels) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append("{\"id\":").append(tunnel.getId())
+          .append(",\"client\":\"").append(Metrics.escape(tunnel.getClientAddress()))
+          .append("\",\"server\":\"")
+          .append(Metrics.escape(tunnel.getServer().hostPort.toString()))
+          .append("\",\"age_ms\":").append(now - tunnel.getStartMillis())
+          .append(",\"bytes_to_server\":").append(tunnel.getBytesToServer())
+          .append(",\"bytes_to_client\":").append(tunnel.getBytesToClient())
+          .append(",\"bytes_per_second\":").append(rates.get(tunnel))
+          .append(",\"idle_ms\":").append(Math.max(0, now - tunnel.getLastActivityMillis()))
+          .append('}');
+    }
+    json.append("]}\n");
+    return json.toString();
+  }
+
+  private static void sendJson(HttpExchange exchange, int code, String json) throws IOException {
+    ServerStatus.sendResponse(exchange, code, "application/json", json.getBytes("UTF-8"));
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+/**
+ * LeastUsed sends clients to the server that transferred the fewest bytes in the last minute,
+ * skipping servers that are not healthy or had failures in the last second. Picks since the
+ * last scoreboard refresh count as bytes too, so clients arriving together spread over the
+ * least used servers instead of all going to one.
+ */
+public class LeastUsed implements LoadBalancer {
+  private ServerScoreboard scoreboard;
+
+  public LeastUsed(ServerScoreboard scoreboard) {
+    this.scoreboard = scoreboard;
+  }
+
+  @Override
+  public Server getServer(ConnectionContext context) {
+    int index = scoreboard.pickLeastUsed();
+
+    // All servers have failures in the last second so we return one at random.
+    if (index < 0) {
+      index = UniformRandom.threadRandom().nextInt(scoreboard.size());
+    }
+    return scoreboard.getServer(index);
+  }
+}
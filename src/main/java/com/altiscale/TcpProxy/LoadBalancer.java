@@ -0,0 +1,39 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+/**
+ * LoadBalancer picks the server for each new client connection.
+ *
+ * Implementations are called concurrently from all threads that set up tunnels, so getServer()
+ * must be thread-safe. It should also be cheap: no locks, no allocations and no scans over all
+ * servers. Anything expensive to compute belongs in a ServerScoreboard.Listener, which runs on
+ * the sampler thread after every scoreboard refresh.
+ *
+ * Besides the built-in balancers, --load_balancer accepts the name of any class implementing
+ * LoadBalancer with a public constructor that takes a ServerScoreboard.
+ */
+public interface LoadBalancer {
+  /*
+   *  @param context  What we know about the client we pick a server for, or null when there
+   *                  is no client, as in tests and benchmarks. Balancers that look at the
+   *                  client, like Maglev, must cope with null, and with null fields in it.
+   *
+   *  @return  Server the client should be tunneled to.
+   */
+  public Server getServer(ConnectionContext context);
+}
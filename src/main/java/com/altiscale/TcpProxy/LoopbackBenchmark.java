@@ -0,0 +1,492 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.LogLinearHistogram;
+import com.altiscale.Util.UnixSockets;
+
+/**
+ * LoopbackBenchmark sizes a proxy without a cluster. It starts local backend servers on
+ * loopback, puts the proxy in front of them and drives one of these client workloads through
+ * it:
+ *
+ *   small  Every client opens a connection, sends a short request, reads a short response and
+ *          closes, as fast as it can.
+ *   bulk   Every client opens one connection and downloads from the backend as fast as it can.
+ *   mixed  Every MIXED_BULK_EVERY-th client is a bulk client, the others are small clients.
+ *
+ * After the workload it opens idle connections to find out how many the proxy can hold open,
+ * and then reports throughput, connection rate, latency percentiles, threads and heap as one
+ * line of JSON on stdout.
+ *
+ * Clients, proxy and backends share one JVM, so thread count and heap include the clients and
+ * backends, and all of them compete for the same CPUs.
+ *
+ * With config.serverTls the backends speak TLS like a TransferAccelerator with --tls_listen
+ * would, so that we can compare the cost of TLS to servers with plain connections.
+ *
+ * With config.benchUnix clients, proxy and backends talk over Unix domain sockets in a
+ * temporary directory instead of loopback TCP, so that we can compare the two for co-located
+ * clients and for backends behind local ssh forwards.
+ */
+public class LoopbackBenchmark {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final String SMALL = "small";
+  public static final String BULK = "bulk";
+  public static final String MIXED = "mixed";
+  static final HashSet<String> WORKLOADS = new HashSet<String>();
+  static {
+    WORKLOADS.add(SMALL);
+    WORKLOADS.add(BULK);
+    WORKLOADS.add(MIXED);
+  }
+
+  // Request and response sizes of small clients.
+  static final int REQUEST_BYTES = 100;
+  static final int RESPONSE_BYTES = 1024;
+
+  // Bulk backends write this much at a time.
+  static final int CHUNK_BYTES = 64 * 1024;
+
+  // In the mixed workload every MIXED_BULK_EVERY-th client is a bulk client.
+  static final int MIXED_BULK_EVERY = 8;
+
+  // Response size a client asks for to get an endless stream.
+  private static final long STREAM = -1;
+
+  // How often we sample open connections, threads and heap.
+  private static final long SAMPLE_PERIOD_MS = 100;
+
+  // How long we wait for idle connections to show up as tunnels.
+  private static final long IDLE_WAIT_MS = 5000;
+
+  private ProxyConfiguration config;
+  private TcpProxyServer proxy;
+  private InetAddress loopback;
+  private ArrayList<ServerSocket> backends;
+
+  // Directory of the Unix domain sockets with config.benchUnix, else null.
+  private File socketDir;
+
+  private volatile boolean running;
+  private AtomicLong bytes;
+  private AtomicLong requests;
+  private AtomicLong errors;
+  private LogLinearHistogram latencyHist;
+
+  // Highest values we sampled during the workload.
+  private volatile int peakOpenConnections;
+  private volatile long peakHeapBytes;
+
+  /**
+   * Summary of one benchmark run.
+   */
+  public static class Result {
+    public String workload;
+    public int backends;
+    public int clients;
+    public double seconds;
+    public long bytes;
+    public long requests;
+    public long errors;
+    public double gbps;
+    public double requestsPerSecond;
+    public long p50LatencyMicros;
+    public long p99LatencyMicros;
+    public long p999LatencyMicros;
+    public int peakOpenConnections;
+    public int idleConnectionsRequested;
+    public int idleConnectionsOpened;
+    public int peakThreads;
+    public long peakHeapBytes;
+    public long maxHeapBytes;
+    public boolean unix;
+    public boolean tls;
+    public long tlsHandshakes;
+    public long tlsHandshakeMicros;
+    public double tlsResumedRatio;
+
+    public String toJson() {
+      return "{\"workload\":\"" + workload + "\"" +
+             ",\"backends\":" + backends +
+             ",\"clients\":" + clients +
+             ",\"seconds\":" + String.format("%.3f", seconds) +
+             ",\"bytes\":" + bytes +
+             ",\"gbps\":" + String.format("%.3f", gbps) +
+             ",\"requests\":" + requests +
+             ",\"requests_per_second\":" + String.format("%.1f", requestsPerSecond) +
+             ",\"errors\":" + errors +
+             ",\"latency_us\":{\"p50\":" + p50LatencyMicros + ",\"p99\":" + p99LatencyMicros +
+             ",\"p999\":" + p999LatencyMicros + "}" +
+             ",\"peak_open_connections\":" + peakOpenConnections +
+             ",\"idle_connections_requested\":" + idleConnectionsRequested +
+             ",\"idle_connections_opened\":" + idleConnectionsOpened +
+             ",\"peak_threads\":" + peakThreads +
+             ",\"peak_heap_bytes\":" + peakHeapBytes +
+             ",\"max_heap_bytes\":" + maxHeapBytes +
+             ",\"transport\":\"" + (unix ? "unix" : "tcp") + (tls ? "+tls" : "") + "\"" +
+             (tls ? ",\"tls_handshakes\":" + tlsHandshakes +
+                    ",\"tls_handshake_us\":" + tlsHandshakeMicros +
+                    ",\"tls_resumed_ratio\":" + String.format("%.3f", tlsResumedRatio)
+                  : "") + "}";
+    }
+  }
+
+  public LoopbackBenchmark(TcpProxyServer proxy, ProxyConfiguration config) {
+    this.proxy = proxy;
+    this.config = config;
+    this.backends = new ArrayList<ServerSocket>();
+    this.bytes = new AtomicLong(0);
+    this.requests = new AtomicLong(0);
+    this.errors = new AtomicLong(0);
+    this.latencyHist = new LogLinearHistogram();
+  }
+
+  /*
+   *  Starts backends, the proxy and the workload, then prints the summary on stdout.
+   *
+   *  @return  Exit code for main.
+   */
+  public static int runAndReport(TcpProxyServer proxy, ProxyConfiguration config) {
+    try {
+      Result result = new LoopbackBenchmark(proxy, config).run();
+      System.out.println(result.toJson());
+      return 0;
+    } catch (Exception e) {
+      LOG.error("Benchmark failed: " + e);
+      return 1;
+    }
+  }
+
+  public Result run() throws IOException, InterruptedException {
+    loopback = InetAddress.getByName("127.0.0.1");
+    if (config.benchUnix) {
+      socketDir = File.createTempFile("bench", ".sockets");
+      socketDir.delete();
+      if (!socketDir.mkdir()) {
+        throw new IOException("Could not create " + socketDir);
+      }
+      config.listeningPath = new File(socketDir, "proxy.sock").getPath();
+    }
+    startBackends();
+    proxy.init(config);
+    Thread listener = new Thread(new Runnable() {
+      public void run() {
+        proxy.runListeningLoop();
+      }
+    }, "benchProxy");
+    listener.setDaemon(true);
+    listener.start();
+
+    LOG.info("Running " + config.benchWorkload + " workload with " + config.benchClients +
+             " clients through " + backends.size() + " backends for " +
+             config.benchSeconds + " seconds.");
+    running = true;
+    ArrayList<Thread> clients = new ArrayList<Thread>();
+    for (int i = 0; i < config.benchClients; i++) {
+      final boolean bulk = config.benchWorkload.equals(BULK) ||
+          (config.benchWorkload.equals(MIXED) && i % MIXED_BULK_EVERY == 0);
+      Thread client = new Thread(new Runnable() {
+        public void run() {
+          if (bulk) {
+            runBulkClient();
+          } else {
+            runSmallClient();
+          }
+        }
+      }, "benchClient");
+      client.setDaemon(true);
+      clients.add(client);
+    }
+
+    long startNanos = System.nanoTime();
+    for (Thread client : clients) {
+      client.start();
+    }
+    long endMillis = System.currentTimeMillis() + config.benchSeconds * 1000L;
+    while (System.currentTimeMillis() < endMillis) {
+      sample();
+      Thread.sleep(SAMPLE_PERIOD_MS);
+    }
+    running = false;
+    long elapsedNanos = System.nanoTime() - startNanos;
+    for (Thread client : clients) {
+      client.join(IDLE_WAIT_MS);
+    }
+
+    Result result = new Result();
+    result.workload = config.benchWorkload;
+    result.backends = backends.size();
+    result.clients = config.benchClients;
+    result.seconds = elapsedNanos / 1e9;
+    result.bytes = bytes.get();
+    result.requests = requests.get();
+    result.errors = errors.get();
+    result.gbps = result.bytes * 8 / 1e9 / result.seconds;
+    result.requestsPerSecond = result.requests / result.seconds;
+    LogLinearHistogram.Snapshot latency = latencyHist.getSnapshot();
+    result.p50LatencyMicros = latency.getValueAtPercentile(50);
+    result.p99LatencyMicros = latency.getValueAtPercentile(99);
+    result.p999LatencyMicros = latency.getValueAtPercentile(99.9);
+
+    result.idleConnectionsRequested = config.benchIdleConnections;
+    result.idleConnectionsOpened = openIdleConnections(config.benchIdleConnections);
+
+    result.peakOpenConnections = peakOpenConnections;
+    result.peakThreads = ManagementFactory.getThreadMXBean().getPeakThreadCount();
+    result.peakHeapBytes = peakHeapBytes;
+    result.maxHeapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+    result.unix = config.benchUnix;
+    if (null != config.serverTls) {
+      result.tls = true;
+      result.tlsHandshakes = config.serverTls.clientHandshakeCnt.get();
+      result.tlsHandshakeMicros = config.serverTls.getMeanClientHandshakeMicros();
+      result.tlsResumedRatio = config.serverTls.getResumedRatio();
+    }
+
+    for (ServerSocket backend : backends) {
+      backend.close();
+    }
+    if (null != socketDir) {
+      // The proxy keeps listening until we exit, but nobody can find its socket anymore.
+      new File(config.listeningPath).delete();
+      socketDir.delete();
+    }
+    return result;
+  }
+
+  private int getOpenConnections() {
+    int open = 0;
+    for (Server server : proxy.getServerList()) {
+      open += server.openTunnelCnt.get();
+    }
+    return open;
+  }
+
+  private void sample() {
+    peakOpenConnections = Math.max(peakOpenConnections, getOpenConnections());
+    peakHeapBytes = Math.max(peakHeapBytes,
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+  }
+
+  /*
+   *  Starts config.benchBackends backends on free loopback ports, or on sockets in socketDir,
+   *  and adds them to the proxy configuration.
+   */
+  private void startBackends() throws IOException {
+    for (int i = 0; i < config.benchBackends; i++) {
+      final ServerSocket backend;
+      if (null == socketDir) {
+        backend = new ServerSocket(0, 1024, loopback);
+        config.serverHostPortList.add(new HostPort("127.0.0.1", backend.getLocalPort()));
+      } else {
+        String path = new File(socketDir, "backend" + i + ".sock").getPath();
+        backend = UnixSockets.get().createServerSocket(path, 1024);
+        config.serverHostPortList.add(HostPort.forPath(path));
+      }
+      backends.add(backend);
+      Thread acceptor = new Thread(new Runnable() {
+        public void run() {
+          while (!backend.isClosed()) {
+            try {
+              final Socket socket = null == config.serverTls
+                                    ? backend.accept()
+                                    : config.serverTls.wrapServer(backend.accept());
+              Thread handler = new Thread(new Runnable() {
+                public void run() {
+                  serveBackendConnection(socket);
+                }
+              }, "benchBackend");
+              handler.setDaemon(true);
+              handler.start();
+            } catch (IOException ioe) {
+              // Closed at the end of the benchmark.
+            }
+          }
+        }
+      }, "benchBackendAcceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+  }
+
+  /*
+   *  Backend protocol: the client sends the response size it wants (long, or STREAM for an
+   *  endless response) and its request size (int) followed by the request. The backend reads
+   *  the request, writes the response and closes. We don't rely on half-closed connections,
+   *  because a tunnel closes both directions once one of them ends.
+   */
+  private void serveBackendConnection(Socket socket) {
+    try {
+      DataInputStream input = new DataInputStream(socket.getInputStream());
+      DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+      long responseBytes = input.readLong();
+      byte[] request = new byte[input.readInt()];
+      input.readFully(request);
+      byte[] chunk = new byte[CHUNK_BYTES];
+      if (STREAM == responseBytes) {
+        while (true) {
+          output.write(chunk);
+        }
+      }
+      while (responseBytes > 0) {
+        int cnt = (int) Math.min(chunk.length, responseBytes);
+        output.write(chunk, 0, cnt);
+        responseBytes -= cnt;
+      }
+      output.flush();
+    } catch (IOException ioe) {
+      // Client went away, expected for bulk clients.
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.debug("IO exception while closing backend socket: " + e.getMessage());
+      }
+    }
+  }
+
+  private Socket connectToProxy() throws IOException {
+    if (null != socketDir) {
+      return UnixSockets.get().connect(config.listeningPath);
+    }
+    return new Socket(loopback, config.listeningPort);
+  }
+
+  private void runSmallClient() {
+    byte[] request = new byte[REQUEST_BYTES];
+    byte[] response = new byte[RESPONSE_BYTES];
+    while (running) {
+      long startNanos = System.nanoTime();
+      Socket socket = null;
+      try {
+        socket = connectToProxy();
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeLong(RESPONSE_BYTES);
+        output.writeInt(REQUEST_BYTES);
+        output.write(request);
+        output.flush();
+        new DataInputStream(socket.getInputStream()).readFully(response);
+        latencyHist.record((System.nanoTime() - startNanos) / 1000);
+        requests.incrementAndGet();
+        bytes.addAndGet(12 + REQUEST_BYTES + RESPONSE_BYTES);
+      } catch (IOException ioe) {
+        errors.incrementAndGet();
+      } finally {
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  private void runBulkClient() {
+    byte[] buffer = new byte[CHUNK_BYTES];
+    while (running) {
+      Socket socket = null;
+      try {
+        long startNanos = System.nanoTime();
+        socket = connectToProxy();
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeLong(STREAM);
+        output.writeInt(0);
+        output.flush();
+        InputStream input = socket.getInputStream();
+        boolean firstRead = true;
+        int cnt;
+        while (running && (cnt = input.read(buffer)) >= 0) {
+          if (firstRead) {
+            // Time to first byte, so that bulk clients also show up in the latency.
+            latencyHist.record((System.nanoTime() - startNanos) / 1000);
+            requests.incrementAndGet();
+            firstRead = false;
+          }
+          bytes.addAndGet(cnt);
+        }
+      } catch (IOException ioe) {
+        errors.incrementAndGet();
+      } finally {
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  /*
+   *  Opens up to count idle connections through the proxy and waits until it tunnels them.
+   *
+   *  @return  Number of idle connections the proxy held open at the same time.
+   */
+  private int openIdleConnections(int count) throws InterruptedException {
+    if (count <= 0) {
+      return 0;
+    }
+    // Let tunnels of the workload finish first.
+    long drainDeadline = System.currentTimeMillis() + IDLE_WAIT_MS;
+    while (getOpenConnections() > 0 && System.currentTimeMillis() < drainDeadline) {
+      Thread.sleep(SAMPLE_PERIOD_MS);
+    }
+    int baseline = getOpenConnections();
+    ArrayList<Socket> sockets = new ArrayList<Socket>();
+    try {
+      for (int i = 0; i < count; i++) {
+        sockets.add(connectToProxy());
+      }
+    } catch (IOException ioe) {
+      LOG.info("Could only open " + sockets.size() + " idle connections: " + ioe.getMessage());
+    }
+    int opened = 0;
+    long deadline = System.currentTimeMillis() + IDLE_WAIT_MS;
+    while (System.currentTimeMillis() < deadline) {
+      opened = Math.max(opened, getOpenConnections() - baseline);
+      if (opened >= sockets.size()) {
+        break;
+      }
+      Thread.sleep(SAMPLE_PERIOD_MS);
+    }
+    sample();
+    for (Socket socket : sockets) {
+      closeQuietly(socket);
+    }
+    return Math.min(opened, sockets.size());
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if (null != socket) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.debug("IO exception while closing client socket: " + e.getMessage());
+      }
+    }
+  }
+}
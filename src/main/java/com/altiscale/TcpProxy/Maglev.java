@@ -0,0 +1,58 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.MaglevTable;
+
+/**
+ * Maglev sends clients with the same affinity key to the same server, using a Maglev
+ * consistent-hash table over the servers. Picks are O(1) and adding or removing a server only
+ * moves about 1/N of the keys.
+ *
+ * When we could not connect to the server for a key, retries hash the key together with the
+ * attempt number so that they go to other servers.
+ *
+ * Without a context or an affinity key there is nothing to keep together, so those picks hash
+ * a counter instead and spread over all servers.
+ */
+public class Maglev implements LoadBalancer {
+  private MaglevTable<Server> table;
+
+  // Picks without an affinity key so far.
+  private final AtomicLong unkeyedCnt = new AtomicLong(0);
+
+  public Maglev(ServerScoreboard scoreboard) {
+    ArrayList<Server> servers = new ArrayList<Server>();
+    ArrayList<String> names = new ArrayList<String>();
+    for (int i = 0; i < scoreboard.size(); i++) {
+      servers.add(scoreboard.getServer(i));
+      names.add(scoreboard.getServer(i).hostPort.toString());
+    }
+    table = new MaglevTable<Server>(servers, names);
+  }
+
+  @Override
+  public Server getServer(ConnectionContext context) {
+    if (null == context || null == context.affinityKey) {
+      return table.getByHash(MaglevTable.mix(unkeyedCnt.incrementAndGet()));
+    }
+    return table.get(context.affinityKey, context.attempt);
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * MembershipFile is the desired server membership read from a --servers_file, for example:
+ *
+ *   # Comments start with #.
+ *   load_balancer=WeightedRoundRobin
+ *   replica1:14000 weight=3
+ *   replica2:14000 weight=1 profile=bulk
+ *   replica3:14000 drain
+ *
+ * Every other line is one server as host:port, optionally followed by weight=N, profile=NAME
+ * and drain. The load_balancer line is optional.
+ */
+public class MembershipFile {
+
+  public static class Entry {
+    public HostPort hostPort;
+
+    // Static weight, or null if the line didn't give one.
+    public Integer weight;
+
+    // SocketProfile name, or null if the line didn't give one.
+    public String profile;
+
+    public boolean drain;
+  }
+
+  // Load balancer name, or null if the file doesn't set one.
+  public String loadBalancer;
+
+  public ArrayList<Entry> entries;
+
+  public MembershipFile() {
+    loadBalancer = null;
+    entries = new ArrayList<Entry>();
+  }
+
+  // True if any entry sets a weight, in which case WeightedRoundRobin uses static weights.
+  public boolean hasWeights() {
+    for (Entry entry : entries) {
+      if (null != entry.weight) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static MembershipFile read(File file) throws IOException {
+    FileReader reader = new FileReader(file);
+    try {
+      return parse(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /*
+   *  @throws IOException  If the file can't be read or has a bad line, with its line number.
+   */
+  public static MembershipFile parse(Reader reader) throws IOException {
+    MembershipFile membership = new MembershipFile();
+    BufferedReader lines = new BufferedReader(reader);
+    ProxyConfiguration parser = new ProxyConfiguration();
+    String line;
+    int lineNumber = 0;
+    while (null != (line = lines.readLine())) {
+      lineNumber++;
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      line = line.trim();
+      if (line.length() == 0) {
+        continue;
+      }
+      try {
+        if (line.startsWith("load_balancer=")) {
+          membership.loadBalancer = line.substring("load_balancer=".length()).trim();
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        Entry entry = new Entry();
+        entry.hostPort = parser.parseServerString(fields[0]);
+        if (-1 == entry.hostPort.port) {
+          throw new IllegalArgumentException("No port specified for server " + fields[0]);
+        }
+        for (int i = 1; i < fields.length; i++) {
+          if (fields[i].startsWith("weight=")) {
+            entry.weight = Integer.parseInt(fields[i].substring("weight=".length()));
+            if (entry.weight < 1) {
+              throw new IllegalArgumentException("Weight must be positive: " + fields[i]);
+            }
+          } else if (fields[i].startsWith("profile=")) {
+            entry.profile = fields[i].substring("profile=".length());
+            SocketProfile.forName(entry.profile);
+          } else if (fields[i].equals("drain")) {
+            entry.drain = true;
+          } else {
+            throw new IllegalArgumentException("Unknown field " + fields[i]);
+          }
+        }
+        for (Entry other : membership.entries) {
+          if (other.hostPort.toString().equals(entry.hostPort.toString())) {
+            throw new IllegalArgumentException("Duplicate server " + entry.hostPort);
+          }
+        }
+        membership.entries.add(entry);
+      } catch (URISyntaxException e) {
+        throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+      } catch (IllegalArgumentException e) {
+        // Also catches NumberFormatException.
+        throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+      }
+    }
+    return membership;
+  }
+}
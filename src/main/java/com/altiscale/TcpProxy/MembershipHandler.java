@@ -0,0 +1,195 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.Metrics;
+import com.altiscale.Util.ServerStatus;
+
+/**
+ * MembershipHandler serves the server admin API on "/servers".
+ *
+ *   GET  /servers                                       Servers, their state and weights.
+ *   POST /servers/add?server=host:port[&weight=N][&profile=NAME]
+ *   POST /servers/remove?server=host:port[&close=true]  close=true also closes its tunnels.
+ *   POST /servers/drain?server=host:port
+ *   POST /servers/undrain?server=host:port
+ *   POST /servers/weight?server=host:port&weight=N
+ *   POST /servers/load_balancer?name=NAME
+ *
+ * POSTs return the new membership like GET. Bad parameters get 400, unknown servers 404 and
+ * changes that would leave no routable server 409. POSTs from clients AdminAccess turns down
+ * get 403.
+ */
+public class MembershipHandler implements HttpHandler {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final String PATH = "/servers";
+
+  private TcpProxyServer proxy;
+
+  private ServerMembership membership;
+
+  private AdminAccess adminAccess;
+
+  public MembershipHandler(TcpProxyServer proxy, ServerMembership membership,
+                           AdminAccess adminAccess) {
+    this.proxy = proxy;
+    this.membership = membership;
+    this.adminAccess = adminAccess;
+  }
+
+  public void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    HashMap<String, String> parameters =
+        HttpRequestHead.parseQuery(exchange.getRequestURI().getRawQuery());
+    String requestMethod = exchange.getRequestMethod();
+    if (path.equals(PATH)) {
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        sendJson(exchange, 200, getMembershipJson());
+      } else {
+        sendJson(exchange, 405, "{\"error\":\"Method not allowed\"}");
+      }
+      return;
+    }
+    if (!path.startsWith(PATH + "/")) {
+      sendJson(exchange, 404, "{\"error\":\"Not found\"}");
+      return;
+    }
+    if (!requestMethod.equalsIgnoreCase("POST")) {
+      sendJson(exchange, 405, "{\"error\":\"Method not allowed\"}");
+      return;
+    }
+    if (!adminAccess.isAllowed(exchange)) {
+      LOG.warn("Refused membership change " + path + " from " + exchange.getRemoteAddress());
+      sendJson(exchange, 403, adminAccess.getDeniedJson());
+      return;
+    }
+    String action = path.substring(PATH.length() + 1);
+    try {
+      if (!apply(action, parameters)) {
+        sendJson(exchange, 404, "{\"error\":\"Not found\"}");
+        return;
+      }
+      LOG.info("Membership change " + action + " " + parameters + " on request from " +
+               exchange.getRemoteAddress());
+      sendJson(exchange, 200, getMembershipJson());
+    } catch (IllegalStateException e) {
+      sendJson(exchange, 409, errorJson(e));
+    } catch (IllegalArgumentException e) {
+      // Also catches NumberFormatException.
+      int code = null != e.getMessage() && e.getMessage().startsWith("Unknown server") ? 404
+                                                                                         : 400;
+      sendJson(exchange, code, errorJson(e));
+    } catch (URISyntaxException e) {
+      sendJson(exchange, 400, errorJson(e));
+    } catch (Exception e) {
+      LOG.error("Membership change " + action + " failed: " + e);
+      sendJson(exchange, 500, errorJson(e));
+    }
+  }
+
+  private static String errorJson(Exception e) {
+    return "{\"error\":\"" + Metrics.escape(String.valueOf(e.getMessage())) + "\"}";
+  }
+
+  private static String getRequired(HashMap<String, String> parameters, String name) {
+    String value = parameters.get(name);
+    if (null == value || value.length() == 0) {
+      throw new IllegalArgumentException("Need " + name + " parameter");
+    }
+    return value;
+  }
+
+  /*
+   *  @return  False if there is no such action.
+   */
+  boolean apply(String action, HashMap<String, String> parameters) throws Exception {
+    if (action.equals("add")) {
+      String server = getRequired(parameters, "server");
+      HostPort hostPort = new ProxyConfiguration().parseServerString(server);
+      if (-1 == hostPort.port) {
+        throw new IllegalArgumentException("No port specified for server " + server);
+      }
+      Integer weight = null;
+      if (parameters.containsKey("weight")) {
+        weight = Integer.parseInt(parameters.get("weight"));
+        if (weight < 1) {
+          throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+      }
+      membership.addServer(hostPort, weight, parameters.get("profile"));
+    } else if (action.equals("remove")) {
+      membership.removeServer(getRequired(parameters, "server"),
+                              "true".equals(parameters.get("close")));
+    } else if (action.equals("drain")) {
+      membership.setDraining(getRequired(parameters, "server"), true);
+    } else if (action.equals("undrain")) {
+      membership.setDraining(getRequired(parameters, "server"), false);
+    } else if (action.equals("weight")) {
+      membership.setWeight(getRequired(parameters, "server"),
+                           Integer.parseInt(getRequired(parameters, "weight")));
+    } else if (action.equals("load_balancer")) {
+      membership.setLoadBalancer(getRequired(parameters, "name"));
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  String getMembershipJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"load_balancer\":\"")
+        .append(Metrics.escape(membership.getLoadBalancerName()))
+        .append("\",\"learn_weights\":").append(membership.getLearnWeights())
+        .append(",\"servers\":[");
+    boolean first = true;
+    for (Server server : proxy.getServerList()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append("{\"server\":\"").append(Metrics.escape(server.hostPort.toString()));
+      if (null != server.dnsName) {
+        json.append("\",\"dns_name\":\"").append(Metrics.escape(server.dnsName.toString()));
+      }
+      json.append("\",\"state\":\"").append(server.getState())
+          .append("\",\"weight\":").append(server.configuredWeight)
+          .append(",\"effective_weight\":").append(server.effectiveWeight)
+          .append(",\"profile\":\"").append(server.socketProfile.name)
+          .append("\",\"open_connections\":").append(server.openTunnelCnt.get())
+          .append('}');
+    }
+    json.append("]}\n");
+    return json.toString();
+  }
+
+  private static void sendJson(HttpExchange exchange, int code, String json) throws IOException {
+    ServerStatus.sendResponse(exchange, code, "application/json", json.getBytes("UTF-8"));
+  }
+}
@@ -0,0 +1,516 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URLDecoder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.Metrics;
+
+/**
+ * MultipartUpload speeds up large WebHDFS CREATE requests in http mode by writing the file in
+ * parts through several servers at once, instead of through the one tunnel of the client.
+ *
+ * We read the body of the client into part files of partBytes in spillDir. Each finished part
+ * is written as a temporary file next to the target, ".NAME.UPLOADID.partN", through a server
+ * the load balancer picks for that part. A part whose server fails goes to another one. The
+ * parts of all uploads are written by one pool of at most writers threads, and at most
+ * parallelism parts of one upload are on disk or being written, so a slow cluster holds up the
+ * client instead of filling spillDir, and many clients don't start a thread each per part.
+ * Once all parts are written we CONCAT them into the first one and RENAME that to the target,
+ * with renameoptions=OVERWRITE if the client asked to overwrite it, so the target is never
+ * missing in between. Only then do we answer the client, with 201 Created.
+ *
+ * If anything fails we delete the parts and answer with the first error a server sent, or with
+ * a 502, so the client either gets the whole file or an error, never part of the file under
+ * its name.
+ *
+ * Servers must take the data in the CREATE request itself, as HttpFS does with data=true, and
+ * must CONCAT files of partBytes, so partBytes should be a multiple of the block size.
+ */
+public class MultipartUpload {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final long DEFAULT_PART_MB = 128;
+  static final int DEFAULT_PARALLELISM = 4;
+  static final int DEFAULT_WRITERS = 16;
+
+  // Seconds an idle part writer waits for more parts before it ends.
+  private static final int WRITER_IDLE_SECONDS = 60;
+
+  private static final int RETRY_MAX = 3;
+
+  // Largest server response we read.
+  private static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+  private final File spillDir;
+  private final long partBytes;
+  private final int parallelism;
+
+  // Writes the parts of all uploads.
+  final ThreadPoolExecutor writers;
+
+  private final AtomicLong nextUploadId;
+
+  final AtomicLong uploadCnt;
+  final AtomicLong failedUploadCnt;
+  final AtomicLong partCnt;
+  final AtomicLong retriedPartCnt;
+  final AtomicLong uploadedBytesCnt;
+
+  // One upload of a client.
+  private class Upload {
+    final ConnectionContext context;
+    final LoadBalancer balancer;
+    final String id;
+
+    // Raw request path of the target, like /webhdfs/v1/user/wile/file.
+    final String targetPath;
+
+    // Parameters of the client we pass on to part CREATEs, and those that say who we are.
+    final String createParameters;
+    final String userParameters;
+
+    // One permit for each part that may be on disk or being written.
+    final Semaphore partSlots;
+
+    // Parts we read completely so far.
+    volatile int readPartCnt;
+
+    // Set once on the first failure, with the response of the server that failed if it sent
+    // an error.
+    volatile boolean failed;
+    volatile byte[] failure;
+
+    Upload(LoadBalancer balancer, ConnectionContext context) throws IOException {
+      this.context = context;
+      this.balancer = balancer;
+      this.id = Long.toHexString(System.currentTimeMillis()) + "-" +
+                nextUploadId.incrementAndGet();
+      this.targetPath = WebHdfsContentCache.getRawPath(context.httpRequest);
+      StringBuilder create = new StringBuilder();
+      StringBuilder user = new StringBuilder();
+      String uri = context.httpRequest.uri;
+      for (String parameter : uri.substring(uri.indexOf('?') + 1).split("&")) {
+        int equals = parameter.indexOf('=');
+        String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals),
+                                        "UTF-8");
+        if (name.equals("user.name") || name.equals("doas") || name.equals("delegation")) {
+          user.append('&').append(parameter);
+        }
+        if (!name.equals("op") && !name.equals("overwrite") && !name.equals("data") &&
+            !name.equals("noredirect") && parameter.length() > 0) {
+          create.append('&').append(parameter);
+        }
+      }
+      this.createParameters = create.toString();
+      this.userParameters = user.toString();
+      this.partSlots = new Semaphore(parallelism);
+      this.readPartCnt = 0;
+      this.failed = false;
+      this.failure = null;
+    }
+
+    File getSpillFile(int index) {
+      return new File(spillDir, "upload-" + id + "-" + index);
+    }
+
+    String getPartPath(int index) {
+      int slash = targetPath.lastIndexOf('/');
+      return targetPath.substring(0, slash + 1) + "." + targetPath.substring(slash + 1) + "." +
+             id + ".part" + index;
+    }
+
+    synchronized void fail(byte[] response) {
+      if (!failed) {
+        failure = response;
+        failed = true;
+      }
+    }
+
+    // Has a part writer write part index, and frees its slot when done.
+    void submitPart(final int index) {
+      writers.execute(new Runnable() {
+        public void run() {
+          File file = getSpillFile(index);
+          try {
+            if (!failed) {
+              writePart(Upload.this, index, file);
+            }
+          } finally {
+            file.delete();
+            partSlots.release();
+          }
+        }
+      });
+    }
+
+    // Waits until all submitted parts are written.
+    void awaitParts() {
+      partSlots.acquireUninterruptibly(parallelism);
+      partSlots.release(parallelism);
+    }
+  }
+
+  /*
+   *  @param spillDir     Directory for parts we read from clients.
+   *  @param partBytes    Size of the parts.
+   *  @param parallelism  Parts of one upload we write at the same time.
+   *  @param writers      Parts of all uploads we write at the same time.
+   */
+  public MultipartUpload(File spillDir, long partBytes, int parallelism, int writers)
+      throws IOException {
+    this.spillDir = spillDir;
+    this.partBytes = partBytes;
+    this.parallelism = parallelism;
+    this.writers = new ThreadPoolExecutor(writers, writers, WRITER_IDLE_SECONDS,
+                                          TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "uploadPart");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.writers.allowCoreThreadTimeOut(true);
+    this.nextUploadId = new AtomicLong(0);
+    this.uploadCnt = new AtomicLong(0);
+    this.failedUploadCnt = new AtomicLong(0);
+    this.partCnt = new AtomicLong(0);
+    this.retriedPartCnt = new AtomicLong(0);
+    this.uploadedBytesCnt = new AtomicLong(0);
+    if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+      throw new IOException("Could not create upload spill directory " + spillDir);
+    }
+  }
+
+  /*
+   *  True for CREATE requests with a body larger than one part that we can replay.
+   */
+  public boolean isCandidate(HttpRequestHead request) {
+    String contentLength = request.getHeader("Content-Length");
+    if (!request.method.equals("PUT") || !"CREATE".equals(WebHdfsCache.getOp(request)) ||
+        null == contentLength || null != request.getHeader("Transfer-Encoding") ||
+        null != request.getHeader("Authorization") ||
+        // CONCAT takes a comma-separated list of parts.
+        WebHdfsContentCache.getRawPath(request).indexOf(',') >= 0) {
+      return false;
+    }
+    try {
+      return Long.parseLong(contentLength.trim()) > partBytes;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /*
+   *  Reads the body of the client, writes it to the target of its CREATE request in parts
+   *  through servers of balancer, and answers the client. Closes the client and runs
+   *  context.onTunnelClosed when done.
+   */
+  public void upload(LoadBalancer balancer, ConnectionContext context) {
+    uploadCnt.incrementAndGet();
+    HttpRequestHead request = context.httpRequest;
+    Upload upload = null;
+    try {
+      upload = new Upload(balancer, context);
+      try {
+        if ("100-continue".equalsIgnoreCase(request.getHeader("Expect"))) {
+          context.clientSocket.getOutputStream().write(
+              "HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+        }
+        InputStream body = new SequenceInputStream(
+            new ByteArrayInputStream(request.rawBytes, request.headLength,
+                                     request.rawLength - request.headLength),
+            context.clientSocket.getInputStream());
+        readParts(upload, body, Long.parseLong(request.getHeader("Content-Length").trim()));
+      } catch (IOException ioe) {
+        LOG.info("IO exception while reading upload from client: " + ioe.getMessage());
+        upload.fail(null);
+      } finally {
+        upload.awaitParts();
+      }
+      if (!upload.failed) {
+        finish(upload);
+      }
+    } catch (IOException ioe) {
+      LOG.error("IO exception while setting up upload: " + ioe.getMessage());
+    } catch (InterruptedException e) {
+      if (null != upload) {
+        upload.fail(null);
+      }
+    }
+
+    byte[] response;
+    if (null != upload && !upload.failed) {
+      String host = request.getHeader("Host");
+      response = ("HTTP/1.1 201 Created\r\n" +
+                  (null == host ? "" : "Location: http://" + host + upload.targetPath + "\r\n") +
+                  "Content-Type: application/json\r\nContent-Length: 0\r\n" +
+                  "Connection: close\r\n\r\n").getBytes();
+    } else {
+      failedUploadCnt.incrementAndGet();
+      if (null != upload) {
+        // The part we were reading when we failed has a spill file too.
+        upload.getSpillFile(upload.readPartCnt).delete();
+        for (int i = 0; i < upload.readPartCnt; i++) {
+          upload.getSpillFile(i).delete();
+          call(upload, "DELETE", upload.getPartPath(i), "op=DELETE");
+        }
+      }
+      response = null != upload && null != upload.failure
+                 ? upload.failure
+                 : getErrorResponse(502, "IOException", "Upload through the proxy failed.");
+    }
+    try {
+      context.clientSocket.getOutputStream().write(response);
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while answering upload: " + ioe.getMessage());
+    }
+    try {
+      context.clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
+    }
+    context.onTunnelClosed.run();
+  }
+
+  /*
+   *  Reads length bytes of body into part files and hands them to the writers. Waits for a
+   *  free slot of the upload before each part.
+   */
+  private void readParts(Upload upload, InputStream body, long length)
+      throws IOException, InterruptedException {
+    byte[] buffer = new byte[64 * 1024];
+    for (long left = length; left > 0 && !upload.failed; upload.readPartCnt++) {
+      upload.partSlots.acquire();
+      boolean submitted = false;
+      try {
+        int index = upload.readPartCnt;
+        long partLeft = Math.min(partBytes, left);
+        left -= partLeft;
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(
+            upload.getSpillFile(index)));
+        try {
+          while (partLeft > 0) {
+            int cnt = body.read(buffer, 0, (int) Math.min(buffer.length, partLeft));
+            if (cnt < 0) {
+              throw new IOException("Client closed the connection " + (left + partLeft) +
+                                    " bytes before the end of the upload.");
+            }
+            output.write(buffer, 0, cnt);
+            partLeft -= cnt;
+          }
+        } finally {
+          output.close();
+        }
+        upload.submitPart(index);
+        submitted = true;
+      } finally {
+        if (!submitted) {
+          upload.partSlots.release();
+        }
+      }
+    }
+  }
+
+  private byte[] getPartRequest(Upload upload, int index, long length) throws IOException {
+    String host = upload.context.httpRequest.getHeader("Host");
+    return ("PUT " + upload.getPartPath(index) + "?op=CREATE&overwrite=true&data=true" +
+            upload.createParameters + " HTTP/1.1\r\n" +
+            (null == host ? "" : "Host: " + host + "\r\n") +
+            "Content-Type: application/octet-stream\r\nContent-Length: " + length + "\r\n" +
+            "Connection: close\r\n\r\n").getBytes("ISO-8859-1");
+  }
+
+  // Picks a server for the attempt-th try of part index, or of a whole-upload call for -1.
+  private Server getServer(Upload upload, int index, int attempt) {
+    ConnectionContext context = new ConnectionContext(null);
+    context.httpRequest = upload.context.httpRequest;
+    context.attempt = attempt;
+    // Spread the parts over the servers, also with affinity load balancers.
+    context.affinityKey = upload.context.affinityKey + (index < 0 ? "" : "#" + index);
+    return upload.balancer.getServer(context);
+  }
+
+  /*
+   *  Writes one part, trying other servers if one fails. Fails the upload if no server takes
+   *  the part or one answers with a client error.
+   */
+  private void writePart(Upload upload, int index, File file) {
+    for (int attempt = 0; attempt < RETRY_MAX && !upload.failed; attempt++) {
+      if (attempt > 0) {
+        retriedPartCnt.incrementAndGet();
+      }
+      Server server = getServer(upload, index, attempt);
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      try {
+        InputStream data = new BufferedInputStream(new FileInputStream(file));
+        try {
+          if (server.fetch(getPartRequest(upload, index, file.length()), data, attempt, null,
+                           response, MAX_RESPONSE_BYTES)) {
+            int status = WebHdfsCache.getStatus(response.toByteArray());
+            if (200 == status || 201 == status) {
+              partCnt.incrementAndGet();
+              uploadedBytesCnt.addAndGet(file.length());
+              return;
+            }
+            if (status >= 400 && status < 500) {
+              // Another server won't think differently about permissions or quotas.
+              upload.fail(response.toByteArray());
+              return;
+            }
+            LOG.error("Server " + server.hostPort + " failed part " + index + " of upload " +
+                      upload.id + " with status " + status);
+          }
+        } finally {
+          data.close();
+        }
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + server.hostPort);
+        server.incrementFailedConn();
+      }
+    }
+    upload.fail(null);
+  }
+
+  /*
+   *  Sends a request without body about path, as the user of the upload.
+   *
+   *  @return  The whole response, or null if we got none. Only requests we could not send
+   *           anywhere are tried on another server, the others might have been done.
+   */
+  private byte[] call(Upload upload, String method, String path, String query) {
+    String host = upload.context.httpRequest.getHeader("Host");
+    for (int attempt = 0; attempt < RETRY_MAX; attempt++) {
+      Server server = getServer(upload, -1, attempt);
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      try {
+        byte[] request = (method + " " + path + "?" + query + upload.userParameters +
+                          " HTTP/1.1\r\n" + (null == host ? "" : "Host: " + host + "\r\n") +
+                          "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                         .getBytes("ISO-8859-1");
+        return server.fetch(request, attempt, null, response, MAX_RESPONSE_BYTES)
+               ? response.toByteArray() : null;
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + server.hostPort);
+        server.incrementFailedConn();
+      }
+    }
+    return null;
+  }
+
+  // HDFS path of a raw WebHDFS request path.
+  private static String getHdfsPath(String path) {
+    return path.substring(WebHdfsCache.WEBHDFS_PREFIX.length());
+  }
+
+  /*
+   *  Puts the written parts together under the target name. Fails the upload if that doesn't
+   *  work.
+   */
+  private void finish(Upload upload) throws IOException {
+    String first = upload.getPartPath(0);
+    if (upload.readPartCnt > 1) {
+      StringBuilder sources = new StringBuilder();
+      for (int i = 1; i < upload.readPartCnt; i++) {
+        sources.append(i > 1 ? "," : "").append(getHdfsPath(upload.getPartPath(i)));
+      }
+      byte[] response = call(upload, "POST", first, "op=CONCAT&sources=" + sources);
+      if (null == response || 200 != WebHdfsCache.getStatus(response)) {
+        upload.fail(response);
+        return;
+      }
+    }
+    boolean overwrite =
+        "true".equalsIgnoreCase(upload.context.httpRequest.getQueryParameter("overwrite"));
+    // With renameoptions WebHDFS answers 200 without a body on success and an error otherwise.
+    // Without them it answers {"boolean":false} if the target exists.
+    byte[] response = call(upload, "PUT", first,
+                           "op=RENAME&destination=" + getHdfsPath(upload.targetPath) +
+                           (overwrite ? "&renameoptions=OVERWRITE" : ""));
+    if (null == response || 200 != WebHdfsCache.getStatus(response)) {
+      upload.fail(response);
+    } else if (!overwrite &&
+               !new String(response, "UTF-8").replace(" ", "").contains("\"boolean\":true")) {
+      upload.fail(getErrorResponse(403, "FileAlreadyExistsException",
+                                   getHdfsPath(upload.targetPath) + " already exists."));
+    }
+  }
+
+  // Error response in the format of WebHDFS.
+  static byte[] getErrorResponse(int status, String exception, String message) {
+    String body = "{\"RemoteException\":{\"exception\":\"" + exception + "\",\"message\":\"" +
+                  message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}}";
+    return ("HTTP/1.1 " + status + " " + (403 == status ? "Forbidden" : "Bad Gateway") + "\r\n" +
+            "Content-Type: application/json\r\nContent-Length: " + body.length() + "\r\n" +
+            "Connection: close\r\n\r\n" + body).getBytes();
+  }
+
+  public long getPartBytes() {
+    return partBytes;
+  }
+
+  // Row of the uploads on the /stats page.
+  void appendHtml(StringBuilder html) {
+    html.append("<tr><td>multipart uploads</td><td><table><tr>")
+        .append("<td>").append(uploadCnt.get()).append(" uploads</td>")
+        .append("<td>").append(failedUploadCnt.get()).append(" failed</td>")
+        .append("<td>").append(partCnt.get()).append(" parts</td>")
+        .append("<td>").append(retriedPartCnt.get()).append(" retries</td>")
+        .append("<td>").append(uploadedBytesCnt.get()).append(" bytes</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Upload, part and byte counts, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    long failedUploads = failedUploadCnt.get();
+    metrics.counter(prefix + "multipart_uploads_total",
+                    "Large CREATE requests written in parts.",
+                    uploadCnt.get() - failedUploads, "result", "ok");
+    metrics.counter(prefix + "multipart_uploads_total",
+                    "Large CREATE requests written in parts.", failedUploads, "result", "failed");
+    metrics.counter(prefix + "multipart_upload_parts_total",
+                    "Parts of multipart uploads written.", partCnt.get());
+    metrics.counter(prefix + "multipart_upload_part_retries_total",
+                    "Parts of multipart uploads tried again on another server.",
+                    retriedPartCnt.get());
+    metrics.counter(prefix + "multipart_upload_bytes_total",
+                    "Bytes of multipart uploads written.", uploadedBytesCnt.get());
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.Random;
+
+/**
+ * PowerOfTwoChoices picks two distinct servers at random and uses the one with the lower cost,
+ * where cost is the peak EWMA latency of the server times its open tunnels plus one. We add a
+ * nanosecond to the latency so that servers without samples yet still compare by their open
+ * tunnels. A server that is not healthy only wins if the other one isn't healthy either.
+ *
+ * Both signals follow every connection, so unlike LeastUsed we don't keep sending new clients
+ * to the same server until a minute-long window catches up. Each pick is O(1) and lock-free.
+ */
+public class PowerOfTwoChoices implements LoadBalancer {
+  private ServerScoreboard scoreboard;
+
+  // Random to use instead of the per-thread one, for repeatable simulations. Null otherwise.
+  private Random random;
+
+  public PowerOfTwoChoices(ServerScoreboard scoreboard) {
+    this(scoreboard, null);
+  }
+
+  public PowerOfTwoChoices(ServerScoreboard scoreboard, Random random) {
+    this.scoreboard = scoreboard;
+    this.random = random;
+  }
+
+  // Time used to decay latencies. Overridden in simulations that run on a virtual clock.
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+
+  double cost(int index, long now) {
+    return (scoreboard.getLatencyNanos(index, now) + 1.0) *
+           (scoreboard.getOpenTunnels(index) + 1);
+  }
+
+  @Override
+  public Server getServer(ConnectionContext context) {
+    int size = scoreboard.size();
+    if (size == 1) {
+      return scoreboard.getServer(0);
+    }
+    Random rnd = null != random ? random : UniformRandom.threadRandom();
+    int first = rnd.nextInt(size);
+    int second = rnd.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    if (scoreboard.isHealthy(first) != scoreboard.isHealthy(second)) {
+      return scoreboard.getServer(scoreboard.isHealthy(first) ? first : second);
+    }
+    long now = nanoTime();
+    return scoreboard.getServer(cost(first, now) <= cost(second, now) ? first : second);
+  }
+}
@@ -15,44 +15,233 @@
 */
 package com.altiscale.TcpProxy;
 
+import org.apache.log4j.Logger;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Level;
+
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
+import com.altiscale.Util.DnsCache;
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.TlsTransport;
+import com.altiscale.Util.UnixSockets;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
 
 /**
  *  Utility class which is dealing with the configuration parameters
- *  of the proxy server.
+ *  of the proxy server, and with reading them from the command line.
  *
  */
 public class ProxyConfiguration {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
   // Port where our clients will connect to.
   static final int defaultListeningPort = 14000;
   public int listeningPort;
 
+  // Unix domain socket our clients connect to instead of listeningPort, null for TCP.
+  public String listeningPath;
+
+  // transfer-accelerator uses by default ports in the range 48139 - 48160
+  private static final int START_PORT_RANGE = 48139;
+  private static final int MAX_NUM_SERVERS = 22;
+
   // Port where we export web-based status.
   static final int defaultStatusPort = 48138;
   int statusPort;
 
+  // Token clients off this machine must send for admin actions on the status port, null if
+  // only clients on this machine may use them.
+  String adminToken;
+
   String loadBalancerString;
 
   // List of all our servers.
   ArrayList<HostPort> serverHostPortList;
 
+  // Optional static weights for WeightedRoundRobin, in the same order as serverHostPortList.
+  // Empty if weights should be learned.
+  ArrayList<Integer> serverWeightList;
+
+  // File we read servers from and watch for membership changes, null if we don't.
+  File serversFile;
+
+  // True if our clients talk HTTP/1.x and we look at their requests.
+  boolean httpMode;
+
+  // What the Maglev load balancer hashes: the client address, the user.name query parameter,
+  // or a request header ("header:" followed by the header name).
+  static final String AFFINITY_CLIENT_ADDRESS = "client_address";
+  static final String AFFINITY_USER_NAME = "user.name";
+  static final String AFFINITY_HEADER_PREFIX = "header:";
+  String affinityKey;
+
+  // SocketProfile names for the listener and for the servers. serverProfileList is empty for
+  // the default profile, has one entry for all servers, or one per server.
+  String listenerProfile;
+  ArrayList<String> serverProfileList;
+
+  // Admission control, see AdmissionControl. maxTunnels 0 means no limit. acceptBacklog 0
+  // keeps the backlog of the listener profile.
+  int maxTunnels;
+  int acceptBacklog;
+  int admissionQueue;
+  long admissionTimeoutMs;
+
+  // Threads that read the requests of http mode clients and set up their tunnels.
+  int httpSetupThreads;
+
+  // Tunnel timeouts, see TunnelReaper. 0 switches a check off.
+  long idleTimeoutMs;
+  long clientIdleTimeoutMs;
+  long serverIdleTimeoutMs;
+  long minBytesPerSecond;
+  long minRateWindowMs;
+
+  // How long open tunnels get to finish on shutdown and after their server is removed.
+  long drainTimeoutMs;
+
+  // WebHDFS metadata cache in http mode, see WebHdfsCache. webHdfsCacheBytes 0 switches it off.
+  long webHdfsCacheBytes;
+  HashMap<String, Long> webHdfsCacheTtls;
+  long webHdfsCacheNegativeTtlMs;
+
+  // WebHDFS OPEN content cache on disk in http mode, see WebHdfsContentCache. Null
+  // contentCacheDir switches it off.
+  File contentCacheDir;
+  long contentCacheBytes;
+
+  // Multipart WebHDFS uploads in http mode, see MultipartUpload. uploadPartBytes 0 switches
+  // them off.
+  long uploadPartBytes;
+  File uploadSpillDir;
+  int uploadParallelism;
+  int uploadWriters;
+
+  // Read-ahead of sequential WebHDFS range reads in http mode, see ReadAhead. readAheadBytes 0
+  // switches it off.
+  long readAheadBytes;
+  int readAheadDepth;
+
+  // Loopback benchmark settings, see LoopbackBenchmark. benchWorkload is null unless we run
+  // the benchmark instead of a normal proxy.
+  String benchWorkload;
+  int benchBackends;
+  int benchClients;
+  int benchSeconds;
+  int benchIdleConnections;
+  boolean benchUnix;
+
+  // File we capture a sample of tunnels to, see TrafficCapture. Null if we don't capture.
+  File captureFile;
+  double captureSampleRate;
+  boolean capturePayload;
+  long captureMaxFileBytes;
+
+  // File we log finished tunnels to, see AccessLog. Null if we don't.
+  File accessLogFile;
+  long accessLogMaxFileBytes;
+  int accessLogMaxBackups;
+
+  // Capture we replay against replayTarget instead of running a proxy, see TrafficReplay. Null
+  // unless we replay.
+  File replayFile;
+  HostPort replayTarget;
+  double replaySpeed;
+
+  // How long we use addresses of server names, see DnsCache. 0 resolves them on every
+  // connect. With expandDns a name becomes one server per address.
+  long dnsTtlMs;
+  boolean expandDns;
+
   // JumpHost to use for establishing ssh tunnels to the server. Null if we don't want it.
   public JumpHost jumphost;
 
+  // TLS to the servers, which are then TransferAccelerators with listenerTls. An alternative to
+  // jumphost. Null if we connect in the clear.
+  public TlsTransport serverTls;
+
+  // TLS for the clients we accept. Null if they connect in the clear.
+  public TlsTransport listenerTls;
+
   public ProxyConfiguration() {
     listeningPort = defaultListeningPort;
+    listeningPath = null;
     statusPort = defaultStatusPort;
+    adminToken = null;
     loadBalancerString = "RoundRobin";  // default value
     serverHostPortList = new ArrayList<HostPort>();
+    serverWeightList = new ArrayList<Integer>();
+    serversFile = null;
+    httpMode = false;
+    affinityKey = AFFINITY_CLIENT_ADDRESS;
+    listenerProfile = SocketProfile.DEFAULT;
+    serverProfileList = new ArrayList<String>();
+    maxTunnels = 0;
+    acceptBacklog = 0;
+    admissionQueue = AdmissionControl.DEFAULT_MAX_QUEUED;
+    admissionTimeoutMs = AdmissionControl.DEFAULT_QUEUE_TIMEOUT_MS;
+    httpSetupThreads = TcpProxyServer.DEFAULT_HTTP_SETUP_THREADS;
+    idleTimeoutMs = 0;
+    clientIdleTimeoutMs = 0;
+    serverIdleTimeoutMs = 0;
+    minBytesPerSecond = 0;
+    minRateWindowMs = TunnelReaper.DEFAULT_MIN_RATE_WINDOW_MS;
+    drainTimeoutMs = TcpProxyServer.DEFAULT_DRAIN_TIMEOUT_MS;
+    webHdfsCacheBytes = 0;
+    webHdfsCacheTtls = WebHdfsCache.parseTtls(WebHdfsCache.DEFAULT_TTLS);
+    webHdfsCacheNegativeTtlMs = WebHdfsCache.DEFAULT_NEGATIVE_TTL_MS;
+    contentCacheDir = null;
+    contentCacheBytes = WebHdfsContentCache.DEFAULT_MAX_MB * 1024 * 1024;
+    uploadPartBytes = 0;
+    uploadSpillDir = new File(System.getProperty("java.io.tmpdir"));
+    uploadParallelism = MultipartUpload.DEFAULT_PARALLELISM;
+    uploadWriters = MultipartUpload.DEFAULT_WRITERS;
+    readAheadBytes = 0;
+    readAheadDepth = ReadAhead.DEFAULT_DEPTH;
+    benchWorkload = null;
+    benchBackends = 4;
+    benchClients = 32;
+    benchSeconds = 10;
+    benchIdleConnections = 500;
+    benchUnix = false;
+    captureFile = null;
+    captureSampleRate = TrafficCapture.DEFAULT_SAMPLE_RATE;
+    capturePayload = false;
+    captureMaxFileBytes = TrafficCapture.DEFAULT_MAX_FILE_MB * 1024 * 1024;
+    accessLogFile = null;
+    accessLogMaxFileBytes = AccessLog.DEFAULT_MAX_FILE_MB * 1024 * 1024;
+    accessLogMaxBackups = AccessLog.DEFAULT_MAX_BACKUPS;
+    replayFile = null;
+    replayTarget = null;
+    replaySpeed = TrafficReplay.DEFAULT_SPEED;
+    dnsTtlMs = DnsCache.DEFAULT_TTL_MS;
+    expandDns = false;
     jumphost = null;
+    serverTls = null;
+    listenerTls = null;
   }
 
   public HostPort parseServerString(String server) throws URISyntaxException {
+    if (server.startsWith(HostPort.UNIX_PREFIX)) {
+      String path = server.substring(HostPort.UNIX_PREFIX.length());
+      if (path.length() == 0) {
+        throw new URISyntaxException(server, "Unix domain socket must have a path.");
+      }
+      return HostPort.forPath(path);
+    }
     URI uri = new URI("my://" + server);
     String host = uri.getHost();
     int port = uri.getPort();
@@ -65,9 +254,1368 @@ public class ProxyConfiguration {
 
   public void parseServerStringAndAdd(String server) throws URISyntaxException {
     HostPort hostPort = parseServerString(server);
-    if (hostPort.port == -1) {
+    if (!hostPort.isPath() && hostPort.port == -1) {
       throw new URISyntaxException(server, "No port specified for server in server list.");
     }
     serverHostPortList.add(hostPort);
   }
+
+  public static Options getCommandLineOptions() {
+    Options options = new Options();
+
+    options.addOption("v", "verbose", false, "Verbose logging.");
+
+    options.addOption("V", "version", false, "Print version number.");
+
+    options.addOption(OptionBuilder.withLongOpt("port")
+                                   .withDescription("Listening port for proxy clients. " +
+                                       "Default listening port is " +
+                                       ProxyConfiguration.defaultListeningPort + ".")
+                                   .withArgName("PORT")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create('p'));
+
+    options.addOption(OptionBuilder.withLongOpt("listen_path")
+        .withArgName("PATH")
+        .withDescription("Listen for proxy clients on a Unix domain socket at PATH instead of " +
+            "the listening port. Needs Java 16 or newer.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("webstatus_port")
+                                   .withDescription("Port for proxy status in html format: " +
+                                       "http://localhost:" +
+                                       ProxyConfiguration.defaultStatusPort + "/stats")
+                                   .withArgName("STATUS_PORT")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create('w'));
+
+    options.addOption(OptionBuilder.withLongOpt("admin_token")
+                                   .withArgName("TOKEN")
+                                   .withDescription("Lets clients on other machines change " +
+                                       "servers on the status port if they send " +
+                                       "\"Authorization: Bearer TOKEN\". Without it only " +
+                                       "clients on this machine can. The same goes for closing " +
+                                       "connections.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("servers")
+                                   .withArgName("HOST1:PORT1> <HOST2:PORT2")
+                                   .withDescription("Server/servers for the proxy to connect to" +
+                                                    " in host:port format, or unix:PATH for a" +
+                                                    " Unix domain socket.")
+                                   .hasArgs()
+                                   .withValueSeparator(' ')
+                                   .create('s'));
+
+    options.addOption(OptionBuilder.withLongOpt("num_servers")
+                                   .withArgName("NUM_SERVERS")
+                                   .withDescription("Number of servers to instatntiate.")
+                                   .hasArgs()
+                                   .create('n'));
+
+    options.addOption(OptionBuilder.withLongOpt("servers_file")
+                                   .withArgName("PATH")
+                                   .withDescription("File with one host:port [weight=N] " +
+                                                    "[profile=NAME] [drain] line per server " +
+                                                    "and an optional load_balancer=NAME line. " +
+                                                    "Replaces --servers, and the proxy applies " +
+                                                    "changes to the file while it runs.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("dns_ttl_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("How long we use the addresses of server " +
+                                                    "names before we look them up again in " +
+                                                    "the background. 0 looks them up on every " +
+                                                    "connect. Default is " +
+                                                    DnsCache.DEFAULT_TTL_MS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("expand_dns")
+                                   .withDescription("Make one server per address of a server " +
+                                                    "name and follow changes of the addresses.")
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("max_tunnels")
+                                   .withArgName("NUM")
+                                   .withDescription("Most tunnels open at once. Clients over " +
+                                                    "the limit wait in the admission queue or " +
+                                                    "get shed. Default is no limit.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("admission_queue")
+                                   .withArgName("NUM")
+                                   .withDescription("Most clients waiting for a tunnel with " +
+                                                    "max_tunnels. Default is " +
+                                                    AdmissionControl.DEFAULT_MAX_QUEUED + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("admission_timeout_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("How long a client waits in the admission " +
+                                                    "queue before it gets shed. Default is " +
+                                                    AdmissionControl.DEFAULT_QUEUE_TIMEOUT_MS +
+                                                    ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("http_setup_threads")
+                                   .withArgName("NUM")
+                                   .withDescription("Most http mode clients whose request we " +
+                                                    "read or answer ourselves at once. " +
+                                                    "Default is " +
+                                                    TcpProxyServer.DEFAULT_HTTP_SETUP_THREADS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("accept_backlog")
+                                   .withArgName("NUM")
+                                   .withDescription("Accept backlog of the listening port. " +
+                                                    "Default comes from listener_profile.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("idle_timeout_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("Close tunnels with no data in either " +
+                                                    "direction for this long. Default is never.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("client_idle_timeout_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("Close tunnels whose client sent nothing " +
+                                                    "for this long. Default is never.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("server_idle_timeout_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("Close tunnels whose server sent nothing " +
+                                                    "for this long. Default is never.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("min_bytes_per_second")
+                                   .withArgName("BYTES")
+                                   .withDescription("Close tunnels that relay less than this " +
+                                                    "over min_rate_window_ms. Default is never.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("min_rate_window_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("Window for min_bytes_per_second. " +
+                                                    "Default is " +
+                                                    TunnelReaper.DEFAULT_MIN_RATE_WINDOW_MS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("drain_timeout_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("How long open connections get to finish " +
+                                                    "on shutdown and after their server is " +
+                                                    "removed before we close them. Default is " +
+                                                    TcpProxyServer.DEFAULT_DRAIN_TIMEOUT_MS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("load_balancer")
+                                   .withArgName("LOAD_BALANCER")
+                                   .withDescription("Load balancing algorithm. Options: " +
+                                                    "RoundRobin, LeastUsed, UniformRandom, " +
+                                                    "PowerOfTwoChoices, WeightedRoundRobin, " +
+                                                    "Maglev, or the name of a class " +
+                                                    "implementing LoadBalancer.")
+                                   .hasArg()
+                                   .create('b'));
+
+    options.addOption(OptionBuilder.withLongOpt("server_weights")
+                                   .withArgName("WEIGHT1> <WEIGHT2")
+                                   .withDescription("Static weights for WeightedRoundRobin, " +
+                                                    "one positive integer per server in the " +
+                                                    "same order. Without it WeightedRoundRobin " +
+                                                    "learns weights from measured throughput.")
+                                   .hasArgs()
+                                   .withValueSeparator(' ')
+                                   .create('W'));
+
+    options.addOption(OptionBuilder.withLongOpt("listener_profile")
+                                   .withArgName("PROFILE")
+                                   .withDescription("Socket options for the listening port " +
+                                                    "and accepted clients: default, latency " +
+                                                    "or bulk. Default is default.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("server_profiles")
+                                   .withArgName("PROFILE1> <PROFILE2")
+                                   .withDescription("Socket options for connections to " +
+                                                    "servers: default, latency, bulk or auto " +
+                                                    "(buffers sized to the measured " +
+                                                    "bandwidth-delay product, not with a " +
+                                                    "jumphost). Either one profile for all " +
+                                                    "servers or one per server in the same " +
+                                                    "order.")
+                                   .hasArgs()
+                                   .withValueSeparator(' ')
+                                   .create());
+
+    options.addOption("H", "http_mode", false,
+        "Clients talk HTTP/1.x. The proxy reads the first request of every connection " +
+        "before it picks a server.");
+
+    options.addOption(OptionBuilder.withLongOpt("webhdfs_cache_mb")
+                                   .withArgName("MB")
+                                   .withDescription("Cache WebHDFS metadata responses in up to " +
+                                                    "this much memory. Needs --http_mode. " +
+                                                    "Default is no cache.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("webhdfs_cache_ttls")
+                                   .withArgName("OP=MILLIS,...")
+                                   .withDescription("WebHDFS operations to cache and for how " +
+                                                    "long. Default is " +
+                                                    WebHdfsCache.DEFAULT_TTLS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("webhdfs_cache_negative_ttl_ms")
+                                   .withArgName("MILLIS")
+                                   .withDescription("How long to cache 404s, 0 to not cache " +
+                                                    "them. Default is " +
+                                                    WebHdfsCache.DEFAULT_NEGATIVE_TTL_MS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("content_cache_dir")
+                                   .withArgName("DIR")
+                                   .withDescription("Keep files read with WebHDFS OPEN in this " +
+                                                    "directory and serve them from there while " +
+                                                    "they don't change. Needs --http_mode " +
+                                                    "and servers that answer OPEN with the " +
+                                                    "data, like HttpFS or datanodes, not a " +
+                                                    "namenode's redirect. Default is no " +
+                                                    "cache.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("content_cache_mb")
+                                   .withArgName("MB")
+                                   .withDescription("Disk space for --content_cache_dir. " +
+                                                    "Default is " +
+                                                    WebHdfsContentCache.DEFAULT_MAX_MB + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("upload_part_mb")
+                                   .withArgName("MB")
+                                   .withDescription("Write WebHDFS CREATE requests larger than " +
+                                                    "this in parts of this size through " +
+                                                    "several servers at once. Needs " +
+                                                    "--http_mode and servers that take the " +
+                                                    "data with the CREATE, like HttpFS. " +
+                                                    "Default is off, " +
+                                                    MultipartUpload.DEFAULT_PART_MB +
+                                                    " is a good start.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("upload_spill_dir")
+                                   .withArgName("DIR")
+                                   .withDescription("Where parts of uploads wait to be " +
+                                                    "written. Default is java.io.tmpdir.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("upload_parallelism")
+                                   .withArgName("NUM")
+                                   .withDescription("Parts of one upload written at the same " +
+                                                    "time. Default is " +
+                                                    MultipartUpload.DEFAULT_PARALLELISM + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("upload_writers")
+                                   .withArgName("NUM")
+                                   .withDescription("Parts of all uploads written at the same " +
+                                                    "time. Default is " +
+                                                    MultipartUpload.DEFAULT_WRITERS + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("read_ahead_mb")
+                                   .withArgName("MB")
+                                   .withDescription("Fetch the next ranges of clients that " +
+                                                    "read files as a sequence of WebHDFS OPEN " +
+                                                    "requests with offset and length, using up " +
+                                                    "to this much memory. Needs --http_mode " +
+                                                    "and HttpFS or datanodes as servers, a " +
+                                                    "namenode redirects OPEN. Default is no " +
+                                                    "read-ahead.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("read_ahead_ranges")
+                                   .withArgName("NUM")
+                                   .withDescription("How many ranges to fetch ahead of a " +
+                                                    "client. Default is " +
+                                                    ReadAhead.DEFAULT_DEPTH + ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("affinity_key")
+                                   .withArgName("KEY")
+                                   .withDescription("Key for the Maglev load balancer: " +
+                                                    ProxyConfiguration.AFFINITY_CLIENT_ADDRESS +
+                                                    " (default), " +
+                                                    ProxyConfiguration.AFFINITY_USER_NAME +
+                                                    " or " +
+                                                    ProxyConfiguration.AFFINITY_HEADER_PREFIX +
+                                                    "<NAME>. The last two need --http_mode.")
+                                   .hasArg()
+                                   .create('a'));
+
+    options.addOption(OptionBuilder.withLongOpt("ssh_binary")
+        .withArgName("SSH_BINARY")
+        .withDescription("Optional path to use as ssh command. Default is ssh.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("jumphost_user")
+        .withArgName("USER")
+        .withDescription("Username for ssh to jumphost.")
+        .hasArg()
+        .create('u'));
+
+    options.addOption(OptionBuilder.withLongOpt("jumphost_credentials")
+        .withArgName("FILENAME")
+        .withDescription("Filename for optional ssh credentials (ssh -i option).")
+        .hasArg()
+        .create('i'));
+
+    options.addOption("C", "jumphost_compression", false, "Enable compression in ssh tunnels.");
+
+    options.addOption(OptionBuilder.withLongOpt("jumphost_ciphers")
+        .withArgName("CIPHER_SPEC")
+        .withDescription("Select ciphers for ssh tunnel encryption (ssh -c option).")
+        .hasArg()
+        .create('c'));
+
+    options.addOption(OptionBuilder.withLongOpt("jumphost")
+        .withArgName("JUMPHOST:JH_PORT")
+        .withDescription("Connect to servers via ssh tunnel to jumphost in jumphost:port format. " +
+            "You still need to specify servers and their ports using --servers.")
+        .hasArg()
+        .create('j'));
+
+    options.addOption(OptionBuilder.withLongOpt("jumphost_server")
+        .withArgName("JHSERVER:JHS_PORT")
+        .withDescription("Jumphost server behind the firewall to connect all servers using: " +
+            "SSH_BINARY -i ~/.ssh/id_rsa -n -N -L PORT:JHSERVER:JHS_PORT -l USER " +
+            "-p JH_PORT JUMPHOST")
+        .hasArg()
+        .create('y'));
+
+    options.addOption("o", "openInterfaces", false,
+        "Open all interfaces for ssh tunnel using \\* as bind_address: " +
+        "SSH_BINARY \\*:PORT:JHSERVER:JHS_PORT");
+
+    options.addOption(OptionBuilder.withLongOpt("tls_servers")
+        .withDescription("Connect to servers with TLS instead of ssh tunnels. The servers are " +
+            "TransferAccelerators with --tls_listen in front of the real servers.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tls_listen")
+        .withDescription("Accept clients with TLS, for example a TransferAccelerator with " +
+            "--tls_servers. Needs --tls_keystore.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tls_keystore")
+        .withArgName("PATH")
+        .withDescription("Keystore with our TLS key and certificate.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tls_keystore_password")
+        .withArgName("PASSWORD")
+        .withDescription("Password of --tls_keystore and of the key in it.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tls_truststore")
+        .withArgName("PATH")
+        .withDescription("Keystore with the TLS certificates we trust. With --tls_listen only " +
+            "clients with a certificate from it are accepted. Default is the JVM's CAs.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tls_truststore_password")
+        .withArgName("PASSWORD")
+        .withDescription("Password of --tls_truststore.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tls_ciphers")
+        .withArgName("CIPHERS")
+        .withDescription("Comma separated TLS cipher suites, best first. Default is " +
+            TlsTransport.DEFAULT_CIPHERS + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("bench")
+        .withArgName("WORKLOAD")
+        .withDescription("Benchmark the proxy on loopback instead of serving clients: start " +
+            "local backends, drive a workload through the proxy and print a JSON summary. " +
+            "Workloads: small (short request/response connections), bulk (long downloads) " +
+            "or mixed. Replaces --servers and --num_servers.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("bench_backends")
+        .withArgName("NUM")
+        .withDescription("Number of local backends for --bench. Default is 4.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("bench_clients")
+        .withArgName("NUM")
+        .withDescription("Number of concurrent clients for --bench. Default is 32.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("bench_seconds")
+        .withArgName("SECONDS")
+        .withDescription("How long --bench drives its workload. Default is 10.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("bench_idle_connections")
+        .withArgName("NUM")
+        .withDescription("Idle connections --bench opens after the workload to test how many " +
+            "the proxy can hold open. Default is 500, 0 skips the test.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("bench_unix")
+        .withDescription("Connect the clients, the proxy and the backends of --bench with Unix " +
+            "domain sockets instead of loopback TCP. Needs Java 16 or newer.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("capture_file")
+        .withArgName("PATH")
+        .withDescription("Record when a sample of tunnels opened, relayed and closed to PATH, " +
+            "for --replay. Appends if PATH exists.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("capture_sample_rate")
+        .withArgName("RATE")
+        .withDescription("Fraction of tunnels --capture_file records, above 0 and up to 1. " +
+            "Default is " + TrafficCapture.DEFAULT_SAMPLE_RATE + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("capture_payload")
+        .withDescription("Also record the bytes captured tunnels relay, not only their sizes.")
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("capture_max_mb")
+        .withArgName("MB")
+        .withDescription("Stop capturing once --capture_file grew by MB megabytes. Default is " +
+            TrafficCapture.DEFAULT_MAX_FILE_MB + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("access_log")
+        .withArgName("PATH")
+        .withDescription("Append a CSV line per finished tunnel to PATH: start, duration, " +
+            "client, server, bytes each way, close reason and connect latency.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("access_log_max_mb")
+        .withArgName("MB")
+        .withDescription("Rotate --access_log once it reaches MB megabytes. Default is " +
+            AccessLog.DEFAULT_MAX_FILE_MB + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("access_log_files")
+        .withArgName("NUM")
+        .withDescription("Rotated --access_log files we keep as PATH.1 to PATH.NUM. Default " +
+            "is " + AccessLog.DEFAULT_MAX_BACKUPS + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("replay")
+        .withArgName("PATH")
+        .withDescription("Replay a capture of --capture_file against a proxy instead of " +
+            "serving clients and print a JSON summary.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("replay_target")
+        .withArgName("HOST:PORT")
+        .withDescription("Proxy --replay connects to, host:port or unix:PATH. Default is " +
+            "localhost and --port.")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("replay_speed")
+        .withArgName("FACTOR")
+        .withDescription("Replay FACTOR times as fast as captured, 0 for as fast as possible. " +
+            "Default is " + TrafficReplay.DEFAULT_SPEED + ".")
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("help").create('h'));
+
+    return options;
+  }
+
+  public static void printHelp(Options options) {
+    String header = "Connects clients to multiple replicas of the same server." +
+                    "It can also setup multiple ssh tunnels via jumphost to a single server" +
+                    "Listens on <PORT> and forwards " +
+                    "incomming connections to " +
+                    "<HOST1:PORT1> <HOST2:PORT2> ...\n\n";
+    String footer = "";
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp("TransferAccelerator", header, options, footer, true);
+  }
+
+  static ProxyConfiguration assembleConfigFromCommandLine(Options options, String[] args) {
+    CommandLine commandLine = null;
+    try {
+      commandLine = new GnuParser().parse(options, args);
+    } catch (org.apache.commons.cli.ParseException e) {
+      LOG.info("Parsing exception" + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("h")) {
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("version")) {
+      LOG.info("Transfer Accelerator Version " +  TcpProxyServer.getProxyVersion());
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("verbose") ) {
+      LogManager.getRootLogger().setLevel(Level.DEBUG);
+    }
+
+    ProxyConfiguration conf = new ProxyConfiguration();
+
+    if (commandLine.hasOption("port")) {
+      conf.listeningPort = Integer.parseInt(commandLine.getOptionValue("port"));
+    }
+
+    if (commandLine.hasOption("listen_path")) {
+      if (!UnixSockets.get().isSupported()) {
+        LOG.error("You need Java 16 or newer if you specify listen_path.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.listeningPath = commandLine.getOptionValue("listen_path");
+    }
+
+    if (commandLine.hasOption("webstatus_port")) {
+      conf.statusPort =  Integer.parseInt(commandLine.getOptionValue("webstatus_port"));
+    }
+
+    if (commandLine.hasOption("admin_token")) {
+      conf.adminToken = commandLine.getOptionValue("admin_token");
+      if (conf.adminToken.length() == 0) {
+        LOG.error("admin_token can't be empty.");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe add jumphost.
+    HostPort jumphostSshd = null;
+    if (commandLine.hasOption("jumphost")) {
+      String jumphostString = commandLine.getOptionValue("jumphost");
+      try {
+        jumphostSshd = conf.parseServerString(jumphostString);
+      } catch (URISyntaxException e) {
+        LOG.error("Server path parsing exception for jumphost: " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Add jumphostServer if we have a jumphost.
+    HostPort jumphostServer = null;
+    if (commandLine.hasOption("jumphost_server")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify jumphost_server.");
+        printHelp(options);
+        System.exit(1);
+      }
+      String jumphostServerString = commandLine.getOptionValue("jumphost_server");
+      try {
+        jumphostServer = conf.parseServerString(jumphostServerString);
+        if (jumphostServer.port == -1) {
+          throw new URISyntaxException(jumphostServerString,
+                                       "Jumphost server parameter missing port.");
+        }
+      } catch (URISyntaxException e) {
+        LOG.error("Server path parsing exception for jumphost_server:" + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe add jumphostUser if we have a jumphost.
+    String jumphostUser = null;
+    if (commandLine.hasOption("jumphost_user")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify jumphost_user.");
+        printHelp(options);
+        System.exit(1);
+      }
+      jumphostUser = commandLine.getOptionValue("jumphost_user");
+    }
+
+    // Maybe add jumphostCredentials if we have a jumphost.
+    String jumphostCredentials = null;
+    if (commandLine.hasOption("jumphost_credentials")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify jumphost_credentials.");
+        printHelp(options);
+        System.exit(1);
+      }
+      jumphostCredentials = commandLine.getOptionValue("jumphost_credentials");
+    }
+
+    // Maybe set jumphostCompression if we have a jumphost.
+    boolean jumphostCompression = false;
+    if (commandLine.hasOption("jumphost_compression")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify jumphost_compression.");
+        printHelp(options);
+        System.exit(1);
+      }
+      jumphostCompression = true;
+    }
+
+    // Maybe add jumphostCiphers if we have a jumphost.
+    String jumphostCiphers = null;
+    if (commandLine.hasOption("jumphost_ciphers")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify jumphost_ciphers.");
+        printHelp(options);
+        System.exit(1);
+      }
+      jumphostCiphers = commandLine.getOptionValue("jumphost_ciphers");
+    }
+
+    // Maybe add sshBinary if we have a jumphost.
+    String sshBinary = null;
+    if (commandLine.hasOption("ssh_binary")) {
+      if (!commandLine.hasOption("jumphost")) {
+        LOG.error("You need to specify jumphost if you specify ssh_binary.");
+        printHelp(options);
+        System.exit(1);
+      }
+      sshBinary = commandLine.getOptionValue("ssh_binary");
+    }
+    boolean openInterfaces = false;
+    if (commandLine.hasOption("openInterfaces")) {
+      openInterfaces = true;
+    }
+
+    // Add jumphost to the config.
+    if (null != jumphostSshd && null != jumphostServer) {
+      conf.jumphost = new JumpHost(jumphostSshd, jumphostServer,
+                                   jumphostUser, jumphostCredentials,
+                                   jumphostCompression, jumphostCiphers,
+                                   sshBinary,
+                                   openInterfaces);
+    }
+
+    // Maybe set up TLS to servers or for clients.
+    String[] tlsOptions = {"tls_keystore", "tls_keystore_password", "tls_truststore",
+                           "tls_truststore_password", "tls_ciphers"};
+    for (String tlsOption : tlsOptions) {
+      if (commandLine.hasOption(tlsOption) && !commandLine.hasOption("tls_servers") &&
+          !commandLine.hasOption("tls_listen")) {
+        LOG.error("You need to specify tls_servers or tls_listen if you specify " + tlsOption +
+                  ".");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (commandLine.hasOption("tls_servers") && null != conf.jumphost) {
+      LOG.error("You can't specify jumphost together with tls_servers.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (commandLine.hasOption("tls_listen") && !commandLine.hasOption("tls_keystore")) {
+      LOG.error("You need to specify tls_keystore if you specify tls_listen.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (commandLine.hasOption("tls_servers") || commandLine.hasOption("tls_listen")) {
+      TlsTransport tls = null;
+      TlsTransport.enableSessionTickets();
+      try {
+        tls = new TlsTransport(commandLine.getOptionValue("tls_keystore"),
+                               commandLine.getOptionValue("tls_keystore_password"),
+                               commandLine.getOptionValue("tls_truststore"),
+                               commandLine.getOptionValue("tls_truststore_password"),
+                               commandLine.getOptionValue("tls_ciphers"));
+      } catch (Exception e) {
+        // Bad keystores, passwords and ciphers.
+        LOG.error("TLS setup exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("tls_servers")) {
+        conf.serverTls = tls;
+      }
+      if (commandLine.hasOption("tls_listen")) {
+        conf.listenerTls = tls;
+      }
+    }
+
+    // Maybe capture tunnels.
+    String[] captureOptions = {"capture_sample_rate", "capture_payload", "capture_max_mb"};
+    for (String captureOption : captureOptions) {
+      if (commandLine.hasOption(captureOption) && !commandLine.hasOption("capture_file")) {
+        LOG.error("You need to specify capture_file if you specify " + captureOption + ".");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (commandLine.hasOption("capture_file")) {
+      conf.captureFile = new File(commandLine.getOptionValue("capture_file"));
+      conf.capturePayload = commandLine.hasOption("capture_payload");
+      try {
+        if (commandLine.hasOption("capture_sample_rate")) {
+          conf.captureSampleRate =
+              Double.parseDouble(commandLine.getOptionValue("capture_sample_rate"));
+          if (conf.captureSampleRate <= 0 || conf.captureSampleRate > 1) {
+            throw new NumberFormatException("capture_sample_rate must be above 0 and up to 1.");
+          }
+        }
+        if (commandLine.hasOption("capture_max_mb")) {
+          long maxMb = Long.parseLong(commandLine.getOptionValue("capture_max_mb"));
+          if (maxMb < 1) {
+            throw new NumberFormatException("capture_max_mb must be positive.");
+          }
+          conf.captureMaxFileBytes = maxMb * 1024 * 1024;
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("capture parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe log finished tunnels.
+    String[] accessLogOptions = {"access_log_max_mb", "access_log_files"};
+    for (String accessLogOption : accessLogOptions) {
+      if (commandLine.hasOption(accessLogOption) && !commandLine.hasOption("access_log")) {
+        LOG.error("You need to specify access_log if you specify " + accessLogOption + ".");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (commandLine.hasOption("access_log")) {
+      conf.accessLogFile = new File(commandLine.getOptionValue("access_log"));
+      try {
+        if (commandLine.hasOption("access_log_max_mb")) {
+          long maxMb = Long.parseLong(commandLine.getOptionValue("access_log_max_mb"));
+          if (maxMb < 1) {
+            throw new NumberFormatException("access_log_max_mb must be positive.");
+          }
+          conf.accessLogMaxFileBytes = maxMb * 1024 * 1024;
+        }
+        if (commandLine.hasOption("access_log_files")) {
+          conf.accessLogMaxBackups =
+              Integer.parseInt(commandLine.getOptionValue("access_log_files"));
+          if (conf.accessLogMaxBackups < 0) {
+            throw new NumberFormatException("access_log_files can't be negative.");
+          }
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("access_log parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe replay a capture, which needs no servers.
+    String[] replayOptions = {"replay_target", "replay_speed"};
+    for (String replayOption : replayOptions) {
+      if (commandLine.hasOption(replayOption) && !commandLine.hasOption("replay")) {
+        LOG.error("You need to specify replay if you specify " + replayOption + ".");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (commandLine.hasOption("replay")) {
+      if (commandLine.hasOption("bench") || commandLine.hasOption("capture_file")) {
+        LOG.error("You can't specify bench or capture_file together with replay.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("num_servers") || commandLine.hasOption("servers") ||
+          commandLine.hasOption("servers_file")) {
+        LOG.error("You can't specify num_servers, servers or servers_file together with " +
+                  "replay.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.replayFile = new File(commandLine.getOptionValue("replay"));
+      try {
+        if (commandLine.hasOption("replay_target")) {
+          conf.replayTarget = conf.parseServerString(commandLine.getOptionValue("replay_target"));
+          if (!conf.replayTarget.isPath() && -1 == conf.replayTarget.port) {
+            throw new URISyntaxException(commandLine.getOptionValue("replay_target"),
+                                         "No port specified for replay target.");
+          }
+        } else {
+          conf.replayTarget = new HostPort("localhost", conf.listeningPort);
+        }
+        if (commandLine.hasOption("replay_speed")) {
+          conf.replaySpeed = Double.parseDouble(commandLine.getOptionValue("replay_speed"));
+          if (conf.replaySpeed < 0) {
+            throw new NumberFormatException("replay_speed can't be negative.");
+          }
+        }
+      } catch (URISyntaxException e) {
+        LOG.error("replay_target parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      } catch (NumberFormatException e) {
+        LOG.error("replay parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe run the loopback benchmark, which brings its own servers.
+    if (commandLine.hasOption("bench")) {
+      conf.benchWorkload = commandLine.getOptionValue("bench");
+      if (!LoopbackBenchmark.WORKLOADS.contains(conf.benchWorkload)) {
+        LOG.error("Bad bench value.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("num_servers") || commandLine.hasOption("servers") ||
+          commandLine.hasOption("servers_file")) {
+        LOG.error("You can't specify num_servers, servers or servers_file together with " +
+                  "bench.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (null != conf.listenerTls) {
+        LOG.error("You can't specify tls_listen together with bench.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (null != conf.listeningPath) {
+        LOG.error("You can't specify listen_path together with bench, use bench_unix.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("bench_unix")) {
+        if (!UnixSockets.get().isSupported()) {
+          LOG.error("You need Java 16 or newer if you specify bench_unix.");
+          printHelp(options);
+          System.exit(1);
+        }
+        conf.benchUnix = true;
+      }
+      try {
+        if (commandLine.hasOption("bench_backends")) {
+          conf.benchBackends = Integer.parseInt(commandLine.getOptionValue("bench_backends"));
+        }
+        if (commandLine.hasOption("bench_clients")) {
+          conf.benchClients = Integer.parseInt(commandLine.getOptionValue("bench_clients"));
+        }
+        if (commandLine.hasOption("bench_seconds")) {
+          conf.benchSeconds = Integer.parseInt(commandLine.getOptionValue("bench_seconds"));
+        }
+        if (commandLine.hasOption("bench_idle_connections")) {
+          conf.benchIdleConnections =
+              Integer.parseInt(commandLine.getOptionValue("bench_idle_connections"));
+        }
+        if (conf.benchBackends < 1 || conf.benchClients < 1 || conf.benchSeconds < 1) {
+          throw new NumberFormatException("bench_backends, bench_clients and bench_seconds " +
+                                          "must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("bench parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    } else if (!commandLine.hasOption("replay") && !commandLine.hasOption("num_servers") &&
+               !commandLine.hasOption("servers") && !commandLine.hasOption("servers_file")) {
+      LOG.error("You need to specify one of the num_servers, servers or servers_file flags.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    int serverFlagCnt = (commandLine.hasOption("num_servers") ? 1 : 0) +
+                        (commandLine.hasOption("servers") ? 1 : 0) +
+                        (commandLine.hasOption("servers_file") ? 1 : 0);
+    if (serverFlagCnt > 1) {
+      LOG.error("You need to specify one of the num_servers, servers or servers_file flags, " +
+                "not more.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (commandLine.hasOption("servers_file") &&
+        (commandLine.hasOption("server_weights") || commandLine.hasOption("server_profiles"))) {
+      LOG.error("Set weights and profiles in the servers_file instead of server_weights and " +
+                "server_profiles.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Add servers.
+    if (commandLine.hasOption("num_servers")) {
+      try {
+        int num_servers = Integer.parseInt(commandLine.getOptionValue("num_servers"));
+        if (num_servers > MAX_NUM_SERVERS ) {
+          throw new Exception("Please specify -servers.");
+        }
+        for (int i = 0; i < num_servers; i++) {
+          conf.parseServerStringAndAdd("localhost:" + (START_PORT_RANGE + i));
+        }
+      } catch (Exception e) {
+        LOG.error("num_servers parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("servers")) {
+      String[] servers = commandLine.getOptionValues("servers");
+      try {
+        for (String server : servers) {
+          conf.parseServerStringAndAdd(server);
+        }
+      } catch (URISyntaxException e) {
+        LOG.error("Server path parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe set load balancer. A load_balancer line in the servers_file overrides it.
+    if (commandLine.hasOption("load_balancer")) {
+      conf.loadBalancerString = commandLine.getOptionValue("load_balancer");
+      if (!TcpProxyServer.LOAD_BALANCERS.contains(conf.loadBalancerString)) {
+        try {
+          Class.forName(conf.loadBalancerString).asSubclass(LoadBalancer.class);
+        } catch (Exception e) {
+          LOG.error("Bad load_balancer value.");
+          printHelp(options);
+          System.exit(1);
+        }
+      }
+    }
+
+    if (commandLine.hasOption("http_mode")) {
+      conf.httpMode = true;
+    }
+
+    // Maybe set affinity key.
+    if (commandLine.hasOption("affinity_key")) {
+      conf.affinityKey = commandLine.getOptionValue("affinity_key");
+      boolean isHttpKey = conf.affinityKey.equals(ProxyConfiguration.AFFINITY_USER_NAME) ||
+          conf.affinityKey.startsWith(ProxyConfiguration.AFFINITY_HEADER_PREFIX);
+      if (!isHttpKey && !conf.affinityKey.equals(ProxyConfiguration.AFFINITY_CLIENT_ADDRESS)) {
+        LOG.error("Bad affinity_key value.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (isHttpKey && !conf.httpMode) {
+        LOG.error("You need to specify http_mode if you specify affinity_key " +
+                  conf.affinityKey + ".");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe set up the WebHDFS cache.
+    try {
+      if (commandLine.hasOption("webhdfs_cache_mb")) {
+        conf.webHdfsCacheBytes =
+            Long.parseLong(commandLine.getOptionValue("webhdfs_cache_mb")) * 1024 * 1024;
+        if (conf.webHdfsCacheBytes < 1) {
+          throw new IllegalArgumentException("webhdfs_cache_mb must be positive.");
+        }
+      }
+      if (commandLine.hasOption("webhdfs_cache_ttls")) {
+        conf.webHdfsCacheTtls =
+            WebHdfsCache.parseTtls(commandLine.getOptionValue("webhdfs_cache_ttls"));
+      }
+      if (commandLine.hasOption("webhdfs_cache_negative_ttl_ms")) {
+        conf.webHdfsCacheNegativeTtlMs =
+            Long.parseLong(commandLine.getOptionValue("webhdfs_cache_negative_ttl_ms"));
+        if (conf.webHdfsCacheNegativeTtlMs < 0) {
+          throw new IllegalArgumentException("webhdfs_cache_negative_ttl_ms can't be negative.");
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Also catches NumberFormatException.
+      LOG.error("WebHDFS cache parsing exception " + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
+    if (conf.webHdfsCacheBytes > 0 && !conf.httpMode) {
+      LOG.error("You need to specify http_mode if you specify webhdfs_cache_mb.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (!commandLine.hasOption("webhdfs_cache_mb") &&
+        (commandLine.hasOption("webhdfs_cache_ttls") ||
+         commandLine.hasOption("webhdfs_cache_negative_ttl_ms"))) {
+      LOG.error("You need to specify webhdfs_cache_mb if you specify webhdfs_cache_ttls or " +
+                "webhdfs_cache_negative_ttl_ms.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Maybe set up the content cache.
+    if (commandLine.hasOption("content_cache_dir")) {
+      conf.contentCacheDir = new File(commandLine.getOptionValue("content_cache_dir"));
+    }
+    if (commandLine.hasOption("content_cache_mb")) {
+      try {
+        conf.contentCacheBytes =
+            Long.parseLong(commandLine.getOptionValue("content_cache_mb")) * 1024 * 1024;
+        if (conf.contentCacheBytes < 1) {
+          throw new IllegalArgumentException("content_cache_mb must be positive.");
+        }
+      } catch (IllegalArgumentException e) {
+        // Also catches NumberFormatException.
+        LOG.error("Content cache parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (null != conf.contentCacheDir && !conf.httpMode) {
+      LOG.error("You need to specify http_mode if you specify content_cache_dir.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (null == conf.contentCacheDir && commandLine.hasOption("content_cache_mb")) {
+      LOG.error("You need to specify content_cache_dir if you specify content_cache_mb.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Maybe set up read-ahead.
+    try {
+      if (commandLine.hasOption("read_ahead_mb")) {
+        conf.readAheadBytes =
+            Long.parseLong(commandLine.getOptionValue("read_ahead_mb")) * 1024 * 1024;
+        if (conf.readAheadBytes < 1) {
+          throw new IllegalArgumentException("read_ahead_mb must be positive.");
+        }
+      }
+      if (commandLine.hasOption("read_ahead_ranges")) {
+        conf.readAheadDepth = Integer.parseInt(commandLine.getOptionValue("read_ahead_ranges"));
+        if (conf.readAheadDepth < 1) {
+          throw new IllegalArgumentException("read_ahead_ranges must be positive.");
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Also catches NumberFormatException.
+      LOG.error("Read-ahead parsing exception " + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
+    if (conf.readAheadBytes > 0 && !conf.httpMode) {
+      LOG.error("You need to specify http_mode if you specify read_ahead_mb.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (0 == conf.readAheadBytes && commandLine.hasOption("read_ahead_ranges")) {
+      LOG.error("You need to specify read_ahead_mb if you specify read_ahead_ranges.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Maybe set up multipart uploads.
+    try {
+      if (commandLine.hasOption("upload_part_mb")) {
+        conf.uploadPartBytes =
+            Long.parseLong(commandLine.getOptionValue("upload_part_mb")) * 1024 * 1024;
+        if (conf.uploadPartBytes < 1) {
+          throw new IllegalArgumentException("upload_part_mb must be positive.");
+        }
+      }
+      if (commandLine.hasOption("upload_parallelism")) {
+        conf.uploadParallelism =
+            Integer.parseInt(commandLine.getOptionValue("upload_parallelism"));
+        if (conf.uploadParallelism < 1) {
+          throw new IllegalArgumentException("upload_parallelism must be positive.");
+        }
+      }
+      if (commandLine.hasOption("upload_writers")) {
+        conf.uploadWriters = Integer.parseInt(commandLine.getOptionValue("upload_writers"));
+        if (conf.uploadWriters < 1) {
+          throw new IllegalArgumentException("upload_writers must be positive.");
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Also catches NumberFormatException.
+      LOG.error("Multipart upload parsing exception " + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
+    if (commandLine.hasOption("upload_spill_dir")) {
+      conf.uploadSpillDir = new File(commandLine.getOptionValue("upload_spill_dir"));
+    }
+    if (conf.uploadPartBytes > 0 && !conf.httpMode) {
+      LOG.error("You need to specify http_mode if you specify upload_part_mb.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (0 == conf.uploadPartBytes &&
+        (commandLine.hasOption("upload_spill_dir") ||
+         commandLine.hasOption("upload_parallelism") ||
+         commandLine.hasOption("upload_writers"))) {
+      LOG.error("You need to specify upload_part_mb if you specify upload_spill_dir, " +
+                "upload_parallelism or upload_writers.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Maybe set socket profiles.
+    if (commandLine.hasOption("listener_profile")) {
+      conf.listenerProfile = commandLine.getOptionValue("listener_profile");
+      if (!SocketProfile.exists(conf.listenerProfile) ||
+          conf.listenerProfile.equals(SocketProfile.AUTO)) {
+        LOG.error("Bad listener_profile value.");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (commandLine.hasOption("server_profiles")) {
+      String[] profiles = commandLine.getOptionValues("server_profiles");
+      if (profiles.length != 1 && profiles.length != conf.serverHostPortList.size()) {
+        LOG.error("You need to specify one server profile, or one per server.");
+        printHelp(options);
+        System.exit(1);
+      }
+      for (String profile : profiles) {
+        if (!SocketProfile.exists(profile)) {
+          LOG.error("Bad server_profiles value " + profile + ".");
+          printHelp(options);
+          System.exit(1);
+        }
+        if (profile.equals(SocketProfile.AUTO) && null != conf.jumphost) {
+          LOG.error("You can't use the auto server profile with a jumphost, we can't measure " +
+                    "the round trip through the ssh tunnel.");
+          printHelp(options);
+          System.exit(1);
+        }
+        conf.serverProfileList.add(profile);
+      }
+    }
+
+    // Maybe set up admission control.
+    try {
+      if (commandLine.hasOption("max_tunnels")) {
+        conf.maxTunnels = Integer.parseInt(commandLine.getOptionValue("max_tunnels"));
+        if (conf.maxTunnels < 1) {
+          throw new NumberFormatException("max_tunnels must be positive.");
+        }
+      }
+      if (commandLine.hasOption("admission_queue")) {
+        conf.admissionQueue = Integer.parseInt(commandLine.getOptionValue("admission_queue"));
+        if (conf.admissionQueue < 0) {
+          throw new NumberFormatException("admission_queue can't be negative.");
+        }
+      }
+      if (commandLine.hasOption("admission_timeout_ms")) {
+        conf.admissionTimeoutMs =
+            Long.parseLong(commandLine.getOptionValue("admission_timeout_ms"));
+        if (conf.admissionTimeoutMs < 0) {
+          throw new NumberFormatException("admission_timeout_ms can't be negative.");
+        }
+      }
+      if (commandLine.hasOption("http_setup_threads")) {
+        conf.httpSetupThreads =
+            Integer.parseInt(commandLine.getOptionValue("http_setup_threads"));
+        if (conf.httpSetupThreads < 1) {
+          throw new NumberFormatException("http_setup_threads must be positive.");
+        }
+      }
+      if (commandLine.hasOption("accept_backlog")) {
+        conf.acceptBacklog = Integer.parseInt(commandLine.getOptionValue("accept_backlog"));
+        if (conf.acceptBacklog < 1) {
+          throw new NumberFormatException("accept_backlog must be positive.");
+        }
+      }
+    } catch (NumberFormatException e) {
+      LOG.error("Admission control parsing exception " + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
+    if ((commandLine.hasOption("admission_queue") ||
+         commandLine.hasOption("admission_timeout_ms")) && 0 == conf.maxTunnels) {
+      LOG.error("You need to specify max_tunnels if you specify admission_queue or " +
+                "admission_timeout_ms.");
+      printHelp(options);
+      System.exit(1);
+    }
+    if (commandLine.hasOption("http_setup_threads") && !conf.httpMode) {
+      LOG.error("You need to specify http_mode if you specify http_setup_threads.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Maybe set tunnel timeouts.
+    try {
+      if (commandLine.hasOption("idle_timeout_ms")) {
+        conf.idleTimeoutMs = Long.parseLong(commandLine.getOptionValue("idle_timeout_ms"));
+      }
+      if (commandLine.hasOption("client_idle_timeout_ms")) {
+        conf.clientIdleTimeoutMs =
+            Long.parseLong(commandLine.getOptionValue("client_idle_timeout_ms"));
+      }
+      if (commandLine.hasOption("server_idle_timeout_ms")) {
+        conf.serverIdleTimeoutMs =
+            Long.parseLong(commandLine.getOptionValue("server_idle_timeout_ms"));
+      }
+      if (commandLine.hasOption("min_bytes_per_second")) {
+        conf.minBytesPerSecond =
+            Long.parseLong(commandLine.getOptionValue("min_bytes_per_second"));
+      }
+      if (commandLine.hasOption("min_rate_window_ms")) {
+        conf.minRateWindowMs = Long.parseLong(commandLine.getOptionValue("min_rate_window_ms"));
+        if (conf.minRateWindowMs < 1) {
+          throw new NumberFormatException("min_rate_window_ms must be positive.");
+        }
+      }
+      if (conf.idleTimeoutMs < 0 || conf.clientIdleTimeoutMs < 0 ||
+          conf.serverIdleTimeoutMs < 0 || conf.minBytesPerSecond < 0) {
+        throw new NumberFormatException("Timeouts and min_bytes_per_second can't be negative.");
+      }
+    } catch (NumberFormatException e) {
+      LOG.error("Tunnel timeout parsing exception " + e.getMessage());
+      printHelp(options);
+      System.exit(1);
+    }
+
+    // Maybe set the drain timeout.
+    if (commandLine.hasOption("drain_timeout_ms")) {
+      try {
+        conf.drainTimeoutMs = Long.parseLong(commandLine.getOptionValue("drain_timeout_ms"));
+        if (conf.drainTimeoutMs < 0) {
+          throw new NumberFormatException("drain_timeout_ms can't be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("Drain timeout parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe change how we resolve server names.
+    if (commandLine.hasOption("dns_ttl_ms")) {
+      try {
+        conf.dnsTtlMs = Long.parseLong(commandLine.getOptionValue("dns_ttl_ms"));
+        if (conf.dnsTtlMs < 0) {
+          throw new NumberFormatException("dns_ttl_ms can't be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("DNS TTL parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (commandLine.hasOption("expand_dns")) {
+      if (0 == conf.dnsTtlMs) {
+        LOG.error("You need a dns_ttl_ms above 0 if you specify expand_dns.");
+        printHelp(options);
+        System.exit(1);
+      }
+      if (null != conf.jumphost) {
+        LOG.error("You can't specify jumphost together with expand_dns.");
+        printHelp(options);
+        System.exit(1);
+      }
+      conf.expandDns = true;
+    }
+
+    // Maybe read servers, weights and profiles from a file.
+    if (commandLine.hasOption("servers_file")) {
+      conf.serversFile = new File(commandLine.getOptionValue("servers_file"));
+      try {
+        MembershipFile file = MembershipFile.read(conf.serversFile);
+        if (file.entries.isEmpty()) {
+          throw new IOException("No servers in file.");
+        }
+        if (null != file.loadBalancer) {
+          ServerMembership.checkLoadBalancerName(file.loadBalancer);
+          conf.loadBalancerString = file.loadBalancer;
+        }
+        for (MembershipFile.Entry entry : file.entries) {
+          conf.serverHostPortList.add(entry.hostPort);
+          if (file.hasWeights()) {
+            conf.serverWeightList.add(null == entry.weight ? 1 : entry.weight);
+          }
+          conf.serverProfileList.add(null == entry.profile ? SocketProfile.DEFAULT
+                                                           : entry.profile);
+        }
+      } catch (IOException ioe) {
+        LOG.error("servers_file parsing exception " + ioe.getMessage());
+        printHelp(options);
+        System.exit(1);
+      } catch (IllegalArgumentException e) {
+        LOG.error("servers_file parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe set static server weights.
+    if (commandLine.hasOption("server_weights")) {
+      String[] weights = commandLine.getOptionValues("server_weights");
+      if (weights.length != conf.serverHostPortList.size()) {
+        LOG.error("You need to specify one weight per server.");
+        printHelp(options);
+        System.exit(1);
+      }
+      try {
+        for (String weight : weights) {
+          int value = Integer.parseInt(weight);
+          if (value < 1) {
+            throw new NumberFormatException("Weight must be positive: " + weight);
+          }
+          conf.serverWeightList.add(value);
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("server_weights parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    return conf;
+  }
 }
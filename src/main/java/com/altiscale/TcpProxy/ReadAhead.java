@@ -0,0 +1,469 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.Metrics;
+
+/**
+ * ReadAhead serves clients that read a file as a sequence of OPEN requests with offset and
+ * length, one range after the other, by fetching the next ranges before they ask for them.
+ *
+ * A stream is a path read with the same parameters apart from offset and length. Once a stream
+ * asks for the range right after its previous one sequentialThreshold times in a row, we fetch
+ * the next depth ranges of the same length through servers the load balancer picks, so
+ * balancers that prefer idle servers spread them out. Requests for a fetched range are answered
+ * from memory, waiting for the fetch if it is still running.
+ *
+ * Fetched ranges take at most maxBytes. Ranges nobody asked for within TTL_MS are dropped and
+ * count as waste, as do ranges dropped because a write to their path came in. We only fetch
+ * ranges for requests without an Authorization or Cookie header, and a range is only served
+ * for the parameters, and so the user, it was fetched with.
+ *
+ * Only servers that answer OPEN with the data themselves, like HttpFS or a datanode, can be
+ * read ahead. A namenode answers with a 307 redirect to a datanode, which the client follows
+ * without us. Once a fetch got a redirect we stop reading ahead.
+ */
+public class ReadAhead {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final int DEFAULT_DEPTH = 4;
+  static final int SEQUENTIAL_THRESHOLD = 2;
+
+  // How long fetched ranges wait for their request.
+  static final long TTL_MS = 10000;
+
+  // Streams we remember.
+  private static final int MAX_STREAMS = 1024;
+
+  // Threads that fetch ranges.
+  private static final int FETCHER_CNT = 4;
+
+  private static final int RETRY_MAX = 3;
+
+  // Room for the response head on top of the range.
+  private static final int MAX_HEAD_BYTES = 64 * 1024;
+
+  // What we know about one stream.
+  private static class Stream {
+    // Where the next range starts if the stream stays sequential.
+    long nextOffset;
+    int sequentialCnt;
+
+    // End of the ranges we fetched or are fetching.
+    long fetchedUntil;
+
+    Stream() {
+      this.nextOffset = -1;
+      this.sequentialCnt = 0;
+      this.fetchedUntil = 0;
+    }
+  }
+
+  // One range we fetch ahead.
+  private static class Range {
+    final String key;
+    final String path;
+    final byte[] request;
+    final HttpRequestHead clientRequest;
+    final LoadBalancer balancer;
+    final String affinityKey;
+    final long length;
+    final long createdMillis;
+    final CountDownLatch done;
+
+    // Whole 200 response once fetched, null until then or if the fetch failed.
+    volatile byte[] response;
+
+    Range(String key, String path, byte[] request, HttpRequestHead clientRequest,
+          LoadBalancer balancer, String affinityKey, long length) {
+      this.key = key;
+      this.path = path;
+      this.request = request;
+      this.clientRequest = clientRequest;
+      this.balancer = balancer;
+      this.affinityKey = affinityKey;
+      this.length = length;
+      this.createdMillis = System.currentTimeMillis();
+      this.done = new CountDownLatch(1);
+      this.response = null;
+    }
+
+    // Bytes this range takes of the budget.
+    long getBytes() {
+      return 0 == done.getCount() && null != response ? response.length
+                                                      : length + MAX_HEAD_BYTES;
+    }
+  }
+
+  private final long maxBytes;
+  private final int depth;
+
+  // Guarded by this, like ranges and bytes.
+  private final LinkedHashMap<String, Stream> streams;
+
+  // By range key, oldest first.
+  private final LinkedHashMap<String, Range> ranges;
+  private long bytes;
+
+  private final LinkedBlockingQueue<Range> toFetch;
+  private final Thread[] fetchers;
+
+  // True once a server answered a fetch with a redirect.
+  private volatile boolean redirected;
+
+  final AtomicLong rangeReadCnt;
+  final AtomicLong hitCnt;
+  final AtomicLong fetchedCnt;
+  final AtomicLong fetchedBytesCnt;
+  final AtomicLong wastedCnt;
+  final AtomicLong wastedBytesCnt;
+
+  /*
+   *  @param maxBytes  Memory budget for ranges we fetched ahead.
+   *  @param depth     How many ranges we fetch ahead of a stream.
+   */
+  public ReadAhead(long maxBytes, int depth) {
+    this.maxBytes = maxBytes;
+    this.depth = depth;
+    this.streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+        return size() > MAX_STREAMS;
+      }
+    };
+    this.ranges = new LinkedHashMap<String, Range>();
+    this.bytes = 0;
+    this.toFetch = new LinkedBlockingQueue<Range>();
+    this.fetchers = new Thread[FETCHER_CNT];
+    this.redirected = false;
+    this.rangeReadCnt = new AtomicLong(0);
+    this.hitCnt = new AtomicLong(0);
+    this.fetchedCnt = new AtomicLong(0);
+    this.fetchedBytesCnt = new AtomicLong(0);
+    this.wastedCnt = new AtomicLong(0);
+    this.wastedBytesCnt = new AtomicLong(0);
+  }
+
+  public void start() {
+    for (int i = 0; i < fetchers.length; i++) {
+      fetchers[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              fetch(toFetch.take());
+            }
+          } catch (InterruptedException e) {
+            // Stopped.
+          }
+        }
+      }, "readAhead");
+      fetchers[i].setDaemon(true);
+      fetchers[i].start();
+    }
+  }
+
+  public void stop() {
+    for (int i = 0; i < fetchers.length; i++) {
+      if (null != fetchers[i]) {
+        fetchers[i].interrupt();
+      }
+    }
+  }
+
+  private static long getLongParameter(HttpRequestHead request, String name) {
+    try {
+      String value = request.getQueryParameter(name);
+      return null == value ? -1 : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /*
+   *  True for OPEN requests with an offset and a length. Requests with an Authorization or
+   *  Cookie header are not, because their user is not in the stream key.
+   */
+  public boolean isRangeRead(HttpRequestHead request) {
+    return request.method.equals("GET") && "OPEN".equals(WebHdfsCache.getOp(request)) &&
+           getLongParameter(request, "offset") >= 0 && getLongParameter(request, "length") > 0 &&
+           null == request.getHeader("Authorization") && null == request.getHeader("Cookie");
+  }
+
+  /*
+   *  Key of the stream of a range read: raw path and query without offset and length.
+   */
+  static String getStreamKey(HttpRequestHead request) {
+    int question = request.uri.indexOf('?');
+    StringBuilder key = new StringBuilder(request.uri.substring(0, question));
+    char separator = '?';
+    for (String parameter : request.uri.substring(question + 1).split("&")) {
+      if (!parameter.startsWith("offset=") && !parameter.startsWith("length=")) {
+        key.append(separator).append(parameter);
+        separator = '&';
+      }
+    }
+    return key.toString();
+  }
+
+  private static String getRangeKey(String streamKey, long offset, long length) {
+    return streamKey + " " + offset + "+" + length;
+  }
+
+  /*
+   *  Head of the request for another range of the same stream, asking the server to close.
+   */
+  static byte[] getRangeRequest(HttpRequestHead request, String streamKey, long offset,
+                                long length) throws IOException {
+    String head = new String(request.getHeadWithConnectionClose(), "ISO-8859-1");
+    String uri = streamKey + (streamKey.indexOf('?') < 0 ? '?' : '&') + "offset=" + offset +
+                 "&length=" + length;
+    return (request.method + " " + uri + " " + request.version +
+            head.substring(head.indexOf("\r\n"))).getBytes("ISO-8859-1");
+  }
+
+  /*
+   *  Notes a range read of the client, fetches ranges ahead if its stream is sequential, and
+   *  answers it if we fetched its range already. Closes the client then.
+   *
+   *  @return  False if we don't have the range, so the caller has to get it from a server.
+   */
+  public boolean serve(ConnectionContext context, LoadBalancer balancer) {
+    HttpRequestHead request = context.httpRequest;
+    rangeReadCnt.incrementAndGet();
+    String streamKey = getStreamKey(request);
+    long offset = getLongParameter(request, "offset");
+    long length = getLongParameter(request, "length");
+    Range range;
+    synchronized (this) {
+      dropExpired();
+      range = ranges.remove(getRangeKey(streamKey, offset, length));
+      if (null != range) {
+        bytes -= range.getBytes();
+      }
+      Stream stream = streams.get(streamKey);
+      if (null == stream || stream.nextOffset != offset) {
+        stream = new Stream();
+        streams.put(streamKey, stream);
+      }
+      stream.sequentialCnt++;
+      stream.nextOffset = offset + length;
+      if (stream.sequentialCnt >= SEQUENTIAL_THRESHOLD && !redirected) {
+        fetchAhead(stream, streamKey, request, balancer, context.affinityKey, length);
+      }
+    }
+    if (null == range) {
+      return false;
+    }
+
+    try {
+      range.done.await(Server.FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    if (null == range.response) {
+      return false;
+    }
+    hitCnt.incrementAndGet();
+    try {
+      context.clientSocket.getOutputStream().write(range.response);
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while sending range we read ahead: " + ioe.getMessage());
+    }
+    try {
+      context.clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
+    }
+    return true;
+  }
+
+  // Queues the next ranges of a sequential stream that fit into the budget. Holds this.
+  private void fetchAhead(Stream stream, String streamKey, HttpRequestHead request,
+                          LoadBalancer balancer, String affinityKey, long length) {
+    long from = Math.max(stream.fetchedUntil, stream.nextOffset);
+    long until = stream.nextOffset + depth * length;
+    String path = WebHdfsCache.normalize(request.path);
+    for (; from < until && bytes + length + MAX_HEAD_BYTES <= maxBytes; from += length) {
+      try {
+        Range range = new Range(getRangeKey(streamKey, from, length), path,
+                                getRangeRequest(request, streamKey, from, length), request,
+                                balancer, affinityKey + "#" + from, length);
+        ranges.put(range.key, range);
+        bytes += range.getBytes();
+        toFetch.add(range);
+      } catch (IOException ioe) {
+        LOG.error("Could not build read-ahead request: " + ioe.getMessage());
+        break;
+      }
+    }
+    stream.fetchedUntil = from;
+  }
+
+  private void fetch(Range range) {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    for (int attempt = 0; attempt < RETRY_MAX; attempt++) {
+      ConnectionContext context = new ConnectionContext(null);
+      context.httpRequest = range.clientRequest;
+      context.attempt = attempt;
+      context.affinityKey = range.affinityKey;
+      Server server = range.balancer.getServer(context);
+      try {
+        boolean complete = server.fetch(range.request, attempt, null, response,
+                                        range.length + MAX_HEAD_BYTES);
+        int status = WebHdfsCache.getStatus(response.toByteArray());
+        if (complete && 200 == status) {
+          range.response = response.toByteArray();
+        } else if (307 == status && !redirected) {
+          redirected = true;
+          LOG.warn("Server " + server.hostPort + " redirects OPEN, which read-ahead can't " +
+                   "follow. Stopped reading ahead; point the proxy at HttpFS or datanodes.");
+        }
+        break;
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + server.hostPort);
+        server.incrementFailedConn();
+      }
+    }
+    synchronized (this) {
+      boolean buffered = ranges.get(range.key) == range;
+      if (buffered) {
+        bytes -= range.length + MAX_HEAD_BYTES;
+      }
+      range.done.countDown();
+      if (buffered) {
+        bytes += range.getBytes();
+      }
+    }
+    fetchedCnt.incrementAndGet();
+    if (null != range.response) {
+      fetchedBytesCnt.addAndGet(range.response.length);
+    }
+  }
+
+  private void drop(Iterator<Range> iterator, Range range) {
+    iterator.remove();
+    bytes -= range.getBytes();
+    wastedCnt.incrementAndGet();
+    if (null != range.response) {
+      wastedBytesCnt.addAndGet(range.response.length);
+    }
+  }
+
+  // Drops fetched ranges nobody asked for in time. Holds this.
+  private void dropExpired() {
+    long expired = System.currentTimeMillis() - TTL_MS;
+    Iterator<Range> oldestFirst = ranges.values().iterator();
+    while (oldestFirst.hasNext()) {
+      Range range = oldestFirst.next();
+      if (range.createdMillis > expired) {
+        break;
+      }
+      if (0 == range.done.getCount()) {
+        drop(oldestFirst, range);
+      }
+    }
+  }
+
+  /*
+   *  Drops ranges and streams of path and the paths below it, for a write to path.
+   */
+  public synchronized void invalidate(String path) {
+    String normalized = WebHdfsCache.normalize(path);
+    Iterator<Range> iterator = ranges.values().iterator();
+    while (iterator.hasNext()) {
+      Range range = iterator.next();
+      if (WebHdfsCache.isRelated(range.path, normalized)) {
+        drop(iterator, range);
+      }
+    }
+    // Streams are keyed on raw paths, forget them all rather than decode each.
+    streams.clear();
+  }
+
+  public synchronized int getRangeCnt() {
+    return ranges.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  // True if we stopped reading ahead because a server redirects OPEN.
+  public boolean isRedirected() {
+    return redirected;
+  }
+
+  // Share of range reads we answered from ranges we read ahead.
+  public double getHitRatio() {
+    long reads = rangeReadCnt.get();
+    return 0 == reads ? 0 : (double) hitCnt.get() / reads;
+  }
+
+  // Share of the bytes we read ahead that nobody asked for.
+  public double getWasteRatio() {
+    long fetched = fetchedBytesCnt.get();
+    return 0 == fetched ? 0 : (double) wastedBytesCnt.get() / fetched;
+  }
+
+  // Row of the read-ahead on the /stats page.
+  void appendHtml(StringBuilder html) {
+    html.append("<tr><td>read-ahead</td><td><table><tr>")
+        .append("<td>").append(String.format("%.1f", 100 * getHitRatio()))
+        .append("% hits</td>")
+        .append("<td>").append(String.format("%.1f", 100 * getWasteRatio()))
+        .append("% wasted</td>")
+        .append("<td>").append(hitCnt.get()).append(" of ")
+        .append(rangeReadCnt.get()).append(" range reads</td>")
+        .append("<td>").append(getRangeCnt()).append(" ranges</td>")
+        .append("<td>").append(getBytes()).append(" of ")
+        .append(getMaxBytes()).append(" bytes</td>")
+        .append(isRedirected() ? "<td>stopped, server redirects OPEN</td>" : "")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Hits, fetched and wasted bytes, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "read_ahead_range_reads_total",
+                    "WebHDFS range reads, and how many we answered from read-ahead.",
+                    hitCnt.get(), "result", "hit");
+    metrics.counter(prefix + "read_ahead_range_reads_total",
+                    "WebHDFS range reads, and how many we answered from read-ahead.",
+                    rangeReadCnt.get() - hitCnt.get(), "result", "miss");
+    metrics.counter(prefix + "read_ahead_fetched_bytes_total",
+                    "Bytes of ranges we read ahead.", fetchedBytesCnt.get());
+    metrics.counter(prefix + "read_ahead_wasted_bytes_total",
+                    "Bytes of ranges we read ahead that nobody asked for.", wastedBytesCnt.get());
+    metrics.gauge(prefix + "read_ahead_bytes", "Bytes of ranges we hold.", getBytes());
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RoundRobin sends clients to servers in turn.
+ */
+public class RoundRobin implements LoadBalancer {
+  private ServerScoreboard scoreboard;
+
+  private AtomicInteger nextServerId;
+
+  public RoundRobin(ServerScoreboard scoreboard) {
+    this.scoreboard = scoreboard;
+    this.nextServerId = new AtomicInteger(0);
+  }
+
+  @Override
+  public Server getServer(ConnectionContext context) {
+    // Mask the sign bit so that we keep going round after the counter overflows.
+    int id = (nextServerId.incrementAndGet() & Integer.MAX_VALUE) % scoreboard.size();
+    return scoreboard.getServer(id);
+  }
+}
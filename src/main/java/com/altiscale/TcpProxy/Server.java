@@ -18,12 +18,26 @@ package com.altiscale.TcpProxy;
 
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.altiscale.Util.DnsCache;
 import com.altiscale.Util.ExecLoop;
+import com.altiscale.Util.FlightEvents;
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.PeakEwma;
 import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.SlidingWindowHistogram;
+import com.altiscale.Util.TlsTransport;
+import com.altiscale.Util.UnixSockets;
 
 /**
  *  Server class holds host:port of where we expect TcpTunnel's servers to run and
@@ -49,6 +63,83 @@ public class Server {
   SecondMinuteHourCounter closedCnt;
   SecondMinuteHourCounter byteRateCnt;
 
+  // Distributions over the last minute. Times are in microseconds.
+  SlidingWindowHistogram connectLatencyHist;
+  SlidingWindowHistogram firstByteLatencyHist;
+  SlidingWindowHistogram tunnelDurationHist;
+  SlidingWindowHistogram tunnelBytesHist;
+
+  // TCP handshakes alone, without TLS, so about one round trip to the server. Empty for Unix
+  // domain sockets.
+  SlidingWindowHistogram tcpConnectLatencyHist;
+
+  // Number of tunnels currently open through this server.
+  AtomicInteger openTunnelCnt;
+
+  // Tunnels currently open through this server, by id.
+  ConcurrentHashMap<Long, TcpTunnel> tunnels;
+
+  // Peak EWMA of connect and first-byte latencies in nanoseconds.
+  PeakEwma latencyEwma;
+
+  // Weight from the config, and the weight WeightedRoundRobin currently uses for this server.
+  int configuredWeight;
+  volatile int effectiveWeight;
+
+  // Weight WeightedRoundRobin learned for this server, 0 before it learned one. It outlives
+  // the balancer, which membership changes replace.
+  volatile int learnedWeight;
+
+  // The WeightedRoundRobin that sets effectiveWeight, the one created last for this server.
+  volatile WeightedRoundRobin weightOwner;
+
+  // Membership state. Draining servers get no new tunnels. Removed servers get no new tunnels
+  // either and leave the server list once their last tunnel closes.
+  static final String STATE_ACTIVE = "active";
+  static final String STATE_DRAINING = "draining";
+  static final String STATE_REMOVING = "removing";
+  volatile boolean draining;
+  volatile boolean removed;
+
+  // When the server was removed. Tunnels still open a drain timeout later get closed.
+  volatile long removedMillis;
+
+  // Socket options for connections to this server.
+  SocketProfile socketProfile;
+
+  // If set, we talk TLS to the server, which is then a TransferAccelerator with --tls_listen
+  // in front of the real server. An alternative to a jumphost.
+  TlsTransport tls;
+
+  // Resolves hostPort.host without waiting for DNS on every connect, null to resolve it every
+  // time.
+  DnsCache dnsCache;
+
+  // Name and port this server's address came from if we made one server per address of a
+  // name, else null.
+  HostPort dnsName;
+
+  // Buffer size BufferAutoTuner chose, used if socketProfile.autoTune is set, and the round
+  // trip time and bandwidth-delay product it chose it from.
+  volatile int autoBufferBytes;
+  volatile long estimatedRttMicros;
+  volatile long estimatedBdpBytes;
+
+  // Options the OS gave our last connection to this server, null before the first one.
+  volatile String effectiveSocketOptions;
+
+  // Latency samples older than this weigh less than 1/e in latencyEwma.
+  static final long LATENCY_DECAY_NANOS = 10L * 1000 * 1000 * 1000;
+
+  // How long we wait for a new connection to the server to be accepted.
+  static final int CONNECT_TIMEOUT_MS = 10000;
+
+  // How long fetch() waits for the server to send more of its response.
+  static final int FETCH_TIMEOUT_MS = 60000;
+
+  // Latency we record for a failed connection attempt.
+  static final long FAILED_CONN_PENALTY_NANOS = 1000L * 1000 * 1000;
+
   /*
    *  @param hostPort        host:port of the server-side for our tcp tunnels.
    */
@@ -79,6 +170,114 @@ public class Server {
     openedCnt = new SecondMinuteHourCounter("openedCnt " + hostPort.toString());
     closedCnt = new SecondMinuteHourCounter("closedCnt " + hostPort.toString());
     byteRateCnt = new SecondMinuteHourCounter("byteRateCnt " + hostPort.toString());
+    connectLatencyHist = SlidingWindowHistogram.lastMinute("connectLatency " + hostPort);
+    firstByteLatencyHist = SlidingWindowHistogram.lastMinute("firstByteLatency " + hostPort);
+    tunnelDurationHist = SlidingWindowHistogram.lastMinute("tunnelDuration " + hostPort);
+    tunnelBytesHist = SlidingWindowHistogram.lastMinute("tunnelBytes " + hostPort);
+    tcpConnectLatencyHist = SlidingWindowHistogram.lastMinute("tcpConnectLatency " + hostPort);
+    openTunnelCnt = new AtomicInteger(0);
+    tunnels = new ConcurrentHashMap<Long, TcpTunnel>();
+    latencyEwma = new PeakEwma(LATENCY_DECAY_NANOS, System.nanoTime());
+    configuredWeight = 1;
+    effectiveWeight = 1;
+    learnedWeight = 0;
+    weightOwner = null;
+    draining = false;
+    removed = false;
+    removedMillis = 0;
+    socketProfile = SocketProfile.forName(SocketProfile.DEFAULT);
+    tls = null;
+    dnsCache = null;
+    dnsName = null;
+    autoBufferBytes = BufferAutoTuner.MIN_BUFFER_BYTES;
+    estimatedRttMicros = 0;
+    estimatedBdpBytes = 0;
+    effectiveSocketOptions = null;
+  }
+
+  public String getState() {
+    if (removed) {
+      return STATE_REMOVING;
+    }
+    return draining ? STATE_DRAINING : STATE_ACTIVE;
+  }
+
+  // True if load balancers may pick this server for new tunnels.
+  public boolean isRoutable() {
+    return !removed && !draining;
+  }
+
+  // Marks the server removed, keeping the time it was first removed.
+  void markRemoved() {
+    if (!removed) {
+      removedMillis = System.currentTimeMillis();
+      removed = true;
+    }
+  }
+
+  public void setSocketProfile(SocketProfile profile) {
+    socketProfile = profile;
+  }
+
+  public SocketProfile getSocketProfile() {
+    return socketProfile;
+  }
+
+  public void setTlsTransport(TlsTransport tls) {
+    this.tls = tls;
+  }
+
+  public void setDnsCache(DnsCache dnsCache) {
+    this.dnsCache = dnsCache;
+  }
+
+  private InetSocketAddress getAddress() throws IOException {
+    if (null == dnsCache) {
+      return new InetSocketAddress(hostPort.host, hostPort.port);
+    }
+    return new InetSocketAddress(dnsCache.resolveFirst(hostPort.host), hostPort.port);
+  }
+
+  /*
+   *  Opens a new connection to the server, to its Unix domain socket if hostPort is a path, and
+   *  with TLS if we have a TlsTransport. A failed TLS handshake fails the connect, so that the
+   *  caller tries another server, and so does a server that doesn't accept within
+   *  CONNECT_TIMEOUT_MS.
+   */
+  private Socket connect() throws IOException {
+    Socket serverSocket;
+    if (hostPort.isPath()) {
+      serverSocket = UnixSockets.get().connect(hostPort.path);
+    } else {
+      serverSocket = new Socket();
+    }
+    try {
+      socketProfile.apply(serverSocket, getSocketBufferBytes());
+      if (!hostPort.isPath()) {
+        InetSocketAddress address = getAddress();
+        long startNanos = System.nanoTime();
+        serverSocket.connect(address, CONNECT_TIMEOUT_MS);
+        tcpConnectLatencyHist.record((System.nanoTime() - startNanos) / 1000);
+      }
+    } catch (IOException ioe) {
+      serverSocket.close();
+      throw ioe;
+    }
+    return null == tls ? serverSocket : tls.wrapClient(serverSocket, hostPort);
+  }
+
+  // Send and receive buffer size for new connections, 0 for the OS default.
+  public int getSocketBufferBytes() {
+    return socketProfile.autoTune && canAutoTune() ? autoBufferBytes : socketProfile.bufferBytes;
+  }
+
+  /*
+   *  False if our TCP handshakes tell nothing about the round trip to the server: through a
+   *  jumphost we connect to the local end of an ssh tunnel, and Unix domain sockets have no
+   *  round trip. Our buffers don't limit those links either.
+   */
+  public boolean canAutoTune() {
+    return null == jumphost && !hostPort.isPath();
   }
 
   public String sshJumphostCommand() {
@@ -104,14 +303,25 @@ public class Server {
     // Accept key automatically
     sshTunnelCmd += " -o StrictHostKeyChecking=no";
 
+    if (hostPort.isPath()) {
+      // Replace the socket file a killed ssh left behind, or the forward would fail.
+      sshTunnelCmd += " -o StreamLocalBindUnlink=yes";
+    }
+
     // Start in foreground, but not interactive.
     sshTunnelCmd += " -n -N -L ";
 
-    // Open all network interfaces.
-    if (jumphost.openInterfaces)
-      sshTunnelCmd += "*:";
+    if (hostPort.isPath()) {
+      // A Unix domain socket is only reachable from this machine, whatever openInterfaces says.
+      sshTunnelCmd += hostPort.path;
+    } else {
+      // Open all network interfaces.
+      if (jumphost.openInterfaces)
+        sshTunnelCmd += "*:";
+      sshTunnelCmd += hostPort.port;
+    }
 
-    sshTunnelCmd += hostPort.port + ":" + jumphost.server.host + ":" + jumphost.server.port;
+    sshTunnelCmd += ":" + jumphost.server.host + ":" + jumphost.server.port;
 
     if (null != jumphost.user) {
       sshTunnelCmd += " -l " + jumphost.user;
@@ -133,6 +343,34 @@ public class Server {
 
   public void incrementFailedConn() {
     failedCnt.increment();
+    latencyEwma.observe(FAILED_CONN_PENALTY_NANOS, System.nanoTime());
+  }
+
+  public void recordConnectLatency(long latencyNanos) {
+    latencyEwma.observe(latencyNanos, System.nanoTime());
+    connectLatencyHist.record(latencyNanos / 1000);
+  }
+
+  public void recordFirstByteLatency(long latencyNanos) {
+    latencyEwma.observe(latencyNanos, System.nanoTime());
+    firstByteLatencyHist.record(latencyNanos / 1000);
+  }
+
+  public void tunnelOpened(TcpTunnel tunnel) {
+    tunnels.put(tunnel.getId(), tunnel);
+    openTunnelCnt.incrementAndGet();
+  }
+
+  /*
+   *  @param tunnel         Tunnel that closed.
+   *  @param durationNanos  How long the tunnel was open.
+   *  @param bytes          Bytes transferred in both directions.
+   */
+  public void tunnelClosed(TcpTunnel tunnel, long durationNanos, long bytes) {
+    tunnels.remove(tunnel.getId());
+    openTunnelCnt.decrementAndGet();
+    tunnelDurationHist.record(durationNanos / 1000);
+    tunnelBytesHist.record(bytes);
   }
 
   public void incrementOpenedConn() {
@@ -147,25 +385,196 @@ public class Server {
     byteRateCnt.incrementBy(amount);
   }
 
+  public Collection<TcpTunnel> getTunnels() {
+    return tunnels.values();
+  }
+
+  /*
+   *  Closes all tunnels open through this server.
+   *
+   *  @return  Number of tunnels we closed, not counting ones closed before.
+   */
+  public int closeAllTunnels() {
+    int closed = 0;
+    for (TcpTunnel tunnel : tunnels.values()) {
+      if (tunnel.close()) {
+        closed++;
+      }
+    }
+    return closed;
+  }
+
   public boolean isHealthy() {
     if (null == sshProcess) return true;
     return sshProcess.isRunning();
   }
 
   public void establishTunnel(Socket clientSocket) throws java.io.IOException {
+    establishTunnel(new ConnectionContext(clientSocket));
+  }
+
+  /*
+   *  Connects to the server and starts tunneling the client to it. If we already read the start
+   *  of an HTTP request from the client, we send it to the server first.
+   *
+   *  @return  The running tunnel.
+   */
+  public TcpTunnel establishTunnel(ConnectionContext context) throws java.io.IOException {
+    Socket clientSocket = context.clientSocket;
     requestCnt.increment();
-    Socket serverSocket = new Socket(hostPort.host, hostPort.port);
-    LOG.debug("Setting tunnel between [" +
-        clientSocket.getInetAddress().getHostAddress() + ":" +
-        clientSocket.getPort() + "] and server [" +
-        hostPort + "]");
-    TcpTunnel tunnel = new TcpTunnel(clientSocket, serverSocket, this);
+    long connectStart = System.nanoTime();
+    Socket serverSocket = null;
+    try {
+      serverSocket = connect();
+    } catch (java.io.IOException ioe) {
+      FlightEvents.get().backendConnect(hostPort, context.attempt,
+                                        System.nanoTime() - connectStart, ioe.toString());
+      throw ioe;
+    }
+    long connectNanos = System.nanoTime() - connectStart;
+    recordConnectLatency(connectNanos);
+    FlightEvents.get().backendConnect(hostPort, context.attempt, connectNanos, null);
+    effectiveSocketOptions = SocketProfile.describe(serverSocket);
+    TcpTunnel tunnel = null;
+    if (null == context.httpRequest) {
+      tunnel = new TcpTunnel(clientSocket, serverSocket, this);
+    } else {
+      tunnel = new TcpTunnel(clientSocket, serverSocket, this,
+                             context.httpRequest.rawBytes, context.httpRequest.rawLength);
+    }
+
+    tunnel.setBufferSize(socketProfile.tunnelBufferBytes);
+    tunnel.setCloseListener(context.onTunnelClosed);
+    if (null != context.capture) {
+      tunnel.setCapture(context.capture);
+    }
+    tunnel.setConnectNanos(connectNanos);
+    tunnel.setAccessLog(context.accessLog);
 
     // Create threads that will handle this tunnel.
     tunnel.spawnTunnelThreads();
+    return tunnel;
   }
   
+  /*
+   *  Sends the HTTP request of the client, which must not have a body, to the server on a
+   *  connection of its own and copies the response to the client until the server closes the
+   *  connection. We keep a copy of the response for WebHdfsCache.
+   *
+   *  @param context       The client and its request.
+   *  @param maxKeepBytes  Longest response we keep a copy of.
+   *
+   *  @return  The whole response, or null if it was longer than maxKeepBytes or the transfer
+   *           failed once we were connected.
+   *  @throws IOException  If we could not connect, so the caller can try another server.
+   */
+  public byte[] fetch(ConnectionContext context, long maxKeepBytes) throws IOException {
+    ByteArrayOutputStream kept = new ByteArrayOutputStream();
+    boolean complete = fetch(context.httpRequest.getHeadWithConnectionClose(), context.attempt,
+                             context.clientSocket.getOutputStream(), kept, maxKeepBytes);
+    return complete ? kept.toByteArray() : null;
+  }
+
+  /*
+   *  Sends request, which has no body, to the server on a connection of its own and copies the
+   *  response to client and to copy until the server closes the connection.
+   */
+  public boolean fetch(byte[] request, int attempt, OutputStream client, OutputStream copy,
+                       long maxCopyBytes) throws IOException {
+    return fetch(request, null, attempt, client, copy, maxCopyBytes);
+  }
+
+  /*
+   *  Sends request to the server on a connection of its own and copies the response to client
+   *  and to copy until the server closes the connection.
+   *
+   *  @param request       Request head, or the whole request if it has no body. It should ask
+   *                       the server to close the connection.
+   *  @param requestBody   Body we send after request, or null.
+   *  @param attempt       Number of servers we already tried for this request.
+   *  @param client        Where the response goes, or null.
+   *  @param copy          Where a copy of the response goes, or null. If it fails or would get
+   *                       more than maxCopyBytes we stop copying but keep serving client.
+   *  @param maxCopyBytes  Most bytes we write to copy.
+   *
+   *  @return  True if we got the whole response and, with a copy, copied all of it.
+   *  @throws IOException  If we could not connect, so the caller can try another server.
+   */
+  public boolean fetch(byte[] request, InputStream requestBody, int attempt,
+                       OutputStream client, OutputStream copy, long maxCopyBytes)
+      throws IOException {
+    requestCnt.increment();
+    long connectStart = System.nanoTime();
+    Socket serverSocket = null;
+    try {
+      serverSocket = connect();
+    } catch (IOException ioe) {
+      FlightEvents.get().backendConnect(hostPort, attempt, System.nanoTime() - connectStart,
+                                        ioe.toString());
+      throw ioe;
+    }
+    long connectNanos = System.nanoTime() - connectStart;
+    recordConnectLatency(connectNanos);
+    FlightEvents.get().backendConnect(hostPort, attempt, connectNanos, null);
+
+    boolean copied = true;
+    long sentBytes = 0;
+    long bytes = 0;
+    try {
+      serverSocket.setSoTimeout(FETCH_TIMEOUT_MS);
+      serverSocket.getOutputStream().write(request);
+      byte[] buffer = new byte[socketProfile.tunnelBufferBytes];
+      int cnt;
+      if (null != requestBody) {
+        while ((cnt = requestBody.read(buffer)) >= 0) {
+          serverSocket.getOutputStream().write(buffer, 0, cnt);
+          sentBytes += cnt;
+        }
+      }
+      long requestSentNanos = System.nanoTime();
+      InputStream input = serverSocket.getInputStream();
+      while ((cnt = input.read(buffer)) >= 0) {
+        if (0 == bytes) {
+          recordFirstByteLatency(System.nanoTime() - requestSentNanos);
+        }
+        if (null != client) {
+          client.write(buffer, 0, cnt);
+        }
+        bytes += cnt;
+        if (null != copy && copied) {
+          try {
+            if (bytes > maxCopyBytes) {
+              copied = false;
+            } else {
+              copy.write(buffer, 0, cnt);
+            }
+          } catch (IOException ioe) {
+            LOG.debug("IO exception while copying response: " + ioe.getMessage());
+            copied = false;
+          }
+        }
+      }
+      if (null != client) {
+        client.flush();
+      }
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while fetching from server [" + hostPort + "]: " +
+                ioe.getMessage());
+      return false;
+    } finally {
+      incrementByteRateBy(sentBytes + bytes);
+      try {
+        serverSocket.close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing server socket: " + ioe.getMessage());
+      }
+    }
+    return copied;
+  }
+
   void close() {
-    sshProcess.stop();
+    if (null != sshProcess) {
+      sshProcess.stop();
+    }
   }
 }
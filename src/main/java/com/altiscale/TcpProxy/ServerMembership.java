@@ -0,0 +1,805 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.DnsCache;
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.Metrics;
+import com.altiscale.Util.TlsTransport;
+
+/**
+ * ServerMembership changes the servers and the load balancer of a running proxy.
+ *
+ * Every change builds a new ServerScoreboard over the routable servers and a new LoadBalancer
+ * on top of it, then publishes both to the proxy at once, so the accept loop always sees a
+ * consistent pair and never waits for us. Changes are serialized on this object.
+ *
+ * Draining and removed servers are left off the scoreboard, so they get no new tunnels, but
+ * stay in the server list while their tunnels finish. Removed servers leave the list and get
+ * closed once their last tunnel is gone, which we check after every scoreboard refresh.
+ * Tunnels of a removed server that are still open after the drain timeout get closed.
+ *
+ * With DNS expansion a server name becomes one server per address of the name, so that
+ * replicas behind one name are balanced one by one. A watcher adds and removes servers as the
+ * addresses of the names change. Draining, weights and removal by name apply to all servers
+ * of the name.
+ */
+public class ServerMembership implements ServerScoreboard.Listener {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How often we look at the --servers_file for changes.
+  static final long WATCH_PERIOD_MS = 2000;
+
+  private TcpProxyServer proxy;
+
+  // Used to reach servers we add at runtime, null if we connect directly.
+  private JumpHost jumphost;
+
+  // Used to talk TLS to servers we add at runtime, null if we connect in the clear.
+  private TlsTransport tls;
+
+  // Resolves the names of servers we add at runtime, null if they resolve on every connect.
+  private DnsCache dnsCache;
+
+  // Whether a name becomes one server per address.
+  private boolean expandDns;
+
+  private Thread resolverThread;
+
+  private String loadBalancerName;
+
+  // Whether WeightedRoundRobin learns its weights. Setting a weight switches it off.
+  private boolean learnWeights;
+
+  private ServerScoreboard scoreboard;
+
+  private Thread watcherThread;
+
+  // How long tunnels of a removed server may take to finish before we close them.
+  private volatile long drainTimeoutMillis;
+
+  // Tunnels we closed because their server was removed and they outlived the drain timeout.
+  final AtomicLong drainTimeoutClosedCnt;
+
+  /*
+   *  @param proxy         Proxy whose servers we manage, with its initial server list.
+   *  @param jumphost      JumpHost for servers we add later, or null.
+   *  @param learnWeights  Whether WeightedRoundRobin should learn its weights.
+   */
+  public ServerMembership(TcpProxyServer proxy, JumpHost jumphost, String loadBalancerName,
+                          boolean learnWeights) {
+    this.proxy = proxy;
+    this.jumphost = jumphost;
+    this.tls = null;
+    this.dnsCache = null;
+    this.expandDns = false;
+    this.loadBalancerName = loadBalancerName;
+    this.learnWeights = learnWeights;
+    this.scoreboard = null;
+    this.drainTimeoutMillis = TcpProxyServer.DEFAULT_DRAIN_TIMEOUT_MS;
+    this.drainTimeoutClosedCnt = new AtomicLong(0);
+  }
+
+  /*
+   *  @param drainTimeoutMillis  How long tunnels of a removed server may take to finish before
+   *                             we close them. 0 closes them right away.
+   */
+  public void setDrainTimeout(long drainTimeoutMillis) {
+    this.drainTimeoutMillis = drainTimeoutMillis;
+  }
+
+  public void setTlsTransport(TlsTransport tls) {
+    this.tls = tls;
+  }
+
+  /*
+   *  @param dnsCache   Resolves names of servers we add at runtime, or null.
+   *  @param expandDns  Whether a name becomes one server per address. Needs a dnsCache.
+   */
+  public synchronized void setDnsCache(DnsCache dnsCache, boolean expandDns) {
+    assert null != dnsCache || !expandDns;
+    this.dnsCache = dnsCache;
+    this.expandDns = expandDns;
+  }
+
+  // Host for address that parseServerString takes back, with brackets for IPv6.
+  static String toHost(InetAddress address) {
+    return address instanceof Inet6Address ? "[" + address.getHostAddress() + "]"
+                                           : address.getHostAddress();
+  }
+
+  /*
+   *  @return  One host:port for each address of hostPort.host, in the order the resolver gave
+   *           them.
+   *  @throws UnknownHostException  If we can't resolve hostPort.host.
+   */
+  static ArrayList<HostPort> expand(DnsCache dnsCache, HostPort hostPort)
+      throws UnknownHostException {
+    ArrayList<HostPort> expanded = new ArrayList<HostPort>();
+    ArrayList<String> names = new ArrayList<String>();
+    for (InetAddress address : dnsCache.resolve(hostPort.host)) {
+      HostPort addressHostPort = new HostPort(toHost(address), hostPort.port);
+      if (!names.contains(addressHostPort.toString())) {
+        names.add(addressHostPort.toString());
+        expanded.add(addressHostPort);
+      }
+    }
+    return expanded;
+  }
+
+  // Like expand() if we expand names, else just hostPort. Socket paths have no names to expand.
+  private ArrayList<HostPort> expandIfWanted(HostPort hostPort) throws UnknownHostException {
+    boolean expand;
+    synchronized (this) {
+      expand = expandDns && !hostPort.isPath();
+    }
+    if (expand) {
+      return expand(dnsCache, hostPort);
+    }
+    ArrayList<HostPort> hostPorts = new ArrayList<HostPort>();
+    hostPorts.add(hostPort);
+    return hostPorts;
+  }
+
+  /*
+   *  Publishes the initial scoreboard and load balancer.
+   */
+  public void start() throws Exception {
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      oldScoreboard = swap(proxy.getServerList(), loadBalancerName);
+    }
+    stopSampler(oldScoreboard);
+  }
+
+  public synchronized String getLoadBalancerName() {
+    return loadBalancerName;
+  }
+
+  public synchronized boolean getLearnWeights() {
+    return learnWeights;
+  }
+
+  /**
+   * Membership state of a server before a change, so we can put it back if the change fails.
+   */
+  private static class SavedState {
+    final Server server;
+    final boolean removed;
+    final long removedMillis;
+    final boolean draining;
+    final int configuredWeight;
+    final SocketProfile socketProfile;
+
+    SavedState(Server server) {
+      this.server = server;
+      removed = server.removed;
+      removedMillis = server.removedMillis;
+      draining = server.draining;
+      configuredWeight = server.configuredWeight;
+      socketProfile = server.getSocketProfile();
+    }
+
+    static ArrayList<SavedState> save(ArrayList<Server> servers) {
+      ArrayList<SavedState> saved = new ArrayList<SavedState>();
+      for (Server server : servers) {
+        saved.add(new SavedState(server));
+      }
+      return saved;
+    }
+
+    static void restore(ArrayList<SavedState> saved) {
+      for (SavedState state : saved) {
+        state.server.removedMillis = state.removedMillis;
+        state.server.removed = state.removed;
+        state.server.draining = state.draining;
+        state.server.configuredWeight = state.configuredWeight;
+        state.server.setSocketProfile(state.socketProfile);
+      }
+    }
+  }
+
+  // Server called name (host:port) in the current server list, or null.
+  static Server findServer(ArrayList<Server> servers, String name) {
+    for (Server server : servers) {
+      if (server.hostPort.toString().equals(name)) {
+        return server;
+      }
+    }
+    return null;
+  }
+
+  /*
+   *  @return  The server called name (host:port), or the servers of the name we expanded into
+   *           one server per address.
+   */
+  private ArrayList<Server> getServers(String name) {
+    ArrayList<Server> servers = new ArrayList<Server>();
+    for (Server server : proxy.getServerList()) {
+      if (server.hostPort.toString().equals(name) ||
+          (null != server.dnsName && server.dnsName.toString().equals(name))) {
+        servers.add(server);
+      }
+    }
+    if (servers.isEmpty()) {
+      throw new IllegalArgumentException("Unknown server " + name);
+    }
+    return servers;
+  }
+
+  /*
+   *  Builds a scoreboard and load balancer for the routable servers in servers and publishes
+   *  them together with servers. Must hold the lock on this.
+   *
+   *  @return  The previous scoreboard, whose sampler the caller stops once it has released
+   *           the lock. Its sampler thread may be waiting for the lock in scoreboardRefreshed.
+   *  @throws IllegalStateException  If no server would be routable.
+   *  @throws Exception              If we can't create the load balancer.
+   */
+  private ServerScoreboard swap(ArrayList<Server> servers, String newLoadBalancerName)
+      throws Exception {
+    ArrayList<Server> routable = new ArrayList<Server>();
+    boolean autoTune = false;
+    for (Server server : servers) {
+      if (server.isRoutable()) {
+        routable.add(server);
+        autoTune |= server.socketProfile.autoTune;
+      }
+    }
+    if (routable.isEmpty()) {
+      throw new IllegalStateException("No routable server would be left");
+    }
+    ServerScoreboard newScoreboard = new ServerScoreboard(routable);
+    LoadBalancer newLoadBalancer =
+        TcpProxyServer.createLoadBalancer(newLoadBalancerName, newScoreboard, learnWeights);
+    if (autoTune) {
+      new BufferAutoTuner(newScoreboard);
+    }
+    newScoreboard.addListener(this);
+    proxy.publishRouting(new ArrayList<Server>(servers), newLoadBalancer);
+    newScoreboard.startSampler(ServerScoreboard.SAMPLE_PERIOD_MS);
+
+    ServerScoreboard oldScoreboard = scoreboard;
+    scoreboard = newScoreboard;
+    loadBalancerName = newLoadBalancerName;
+    LOG.info("Routing to " + routable.size() + " of " + servers.size() + " servers with " +
+             newLoadBalancerName);
+    return oldScoreboard;
+  }
+
+  private static void stopSampler(ServerScoreboard oldScoreboard) {
+    if (null != oldScoreboard) {
+      oldScoreboard.stopSampler();
+    }
+  }
+
+  /*
+   *  @param dnsName  Name hostPort is an address of, or null.
+   */
+  private Server createServer(HostPort hostPort, HostPort dnsName) {
+    if (null == jumphost) {
+      Server server = new Server(hostPort);
+      server.setTlsTransport(tls);
+      server.setDnsCache(dnsCache);
+      server.dnsName = dnsName;
+      return server;
+    }
+    Server server = new Server(hostPort, jumphost);
+    server.startJumphostThread();
+    return server;
+  }
+
+  /*
+   *  Adds a server, or brings back a server that is draining or being removed.
+   *
+   *  @param weight   Static weight, or null to keep the current one.
+   *  @param profile  SocketProfile name, or null to keep the current one.
+   */
+  public void addServer(HostPort hostPort, Integer weight, String profile) throws Exception {
+    SocketProfile socketProfile = null == profile ? null : SocketProfile.forName(profile);
+    ArrayList<HostPort> hostPorts = expandIfWanted(hostPort);
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      ArrayList<Server> servers = new ArrayList<Server>(proxy.getServerList());
+      ArrayList<SavedState> saved = SavedState.save(servers);
+      boolean oldLearnWeights = learnWeights;
+      ArrayList<Server> created = new ArrayList<Server>();
+      for (HostPort addressHostPort : hostPorts) {
+        Server server = findServer(servers, addressHostPort.toString());
+        if (null == server) {
+          server = createServer(addressHostPort,
+                                expandDns && !hostPort.isPath() ? hostPort : null);
+          servers.add(server);
+          created.add(server);
+        }
+        server.removed = false;
+        server.draining = false;
+        if (null != weight) {
+          server.configuredWeight = weight;
+          learnWeights = false;
+        }
+        if (null != socketProfile) {
+          server.setSocketProfile(socketProfile);
+        }
+      }
+      try {
+        oldScoreboard = swap(servers, loadBalancerName);
+      } catch (Exception e) {
+        SavedState.restore(saved);
+        learnWeights = oldLearnWeights;
+        for (Server server : created) {
+          server.close();
+        }
+        throw e;
+      }
+    }
+    stopSampler(oldScoreboard);
+    LOG.info("Added server " + hostPort);
+  }
+
+  /*
+   *  Stops routing to the server and drops it once its tunnels are gone.
+   *
+   *  @param closeTunnels  If true we close its open tunnels instead of letting them finish.
+   */
+  public void removeServer(String name, boolean closeTunnels) throws Exception {
+    ArrayList<Server> servers;
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      servers = getServers(name);
+      ArrayList<SavedState> saved = SavedState.save(servers);
+      for (Server server : servers) {
+        server.markRemoved();
+      }
+      try {
+        oldScoreboard = swap(proxy.getServerList(), loadBalancerName);
+      } catch (Exception e) {
+        SavedState.restore(saved);
+        throw e;
+      }
+    }
+    stopSampler(oldScoreboard);
+    for (Server server : servers) {
+      LOG.info("Removing server " + server.hostPort + " with " + server.openTunnelCnt.get() +
+               " open connections");
+    }
+    if (closeTunnels) {
+      for (Server server : servers) {
+        server.closeAllTunnels();
+      }
+    } else {
+      closeOverdueTunnels();
+    }
+    reapRemovedServers();
+  }
+
+  public void setDraining(String name, boolean draining) throws Exception {
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      ArrayList<Server> servers = getServers(name);
+      for (Server server : servers) {
+        if (server.removed) {
+          throw new IllegalStateException("Server " + server.hostPort + " is being removed");
+        }
+      }
+      boolean[] wasDraining = new boolean[servers.size()];
+      for (int i = 0; i < servers.size(); i++) {
+        wasDraining[i] = servers.get(i).draining;
+        servers.get(i).draining = draining;
+      }
+      try {
+        oldScoreboard = swap(proxy.getServerList(), loadBalancerName);
+      } catch (Exception e) {
+        for (int i = 0; i < servers.size(); i++) {
+          servers.get(i).draining = wasDraining[i];
+        }
+        throw e;
+      }
+    }
+    stopSampler(oldScoreboard);
+    LOG.info((draining ? "Draining" : "Undraining") + " server " + name);
+  }
+
+  /*
+   *  Sets a static weight. From now on WeightedRoundRobin uses static weights for all servers.
+   */
+  public void setWeight(String name, int weight) throws Exception {
+    if (weight < 1) {
+      throw new IllegalArgumentException("Weight must be positive: " + weight);
+    }
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      ArrayList<Server> servers = getServers(name);
+      ArrayList<SavedState> saved = SavedState.save(servers);
+      boolean oldLearnWeights = learnWeights;
+      for (Server server : servers) {
+        server.configuredWeight = weight;
+      }
+      learnWeights = false;
+      try {
+        oldScoreboard = swap(proxy.getServerList(), loadBalancerName);
+      } catch (Exception e) {
+        SavedState.restore(saved);
+        learnWeights = oldLearnWeights;
+        throw e;
+      }
+    }
+    stopSampler(oldScoreboard);
+    LOG.info("Weight of server " + name + " set to " + weight);
+  }
+
+  // @throws IllegalArgumentException  If name is neither a built-in nor a LoadBalancer class
+  //                                   with a public constructor that takes a ServerScoreboard.
+  static void checkLoadBalancerName(String name) {
+    if (!TcpProxyServer.LOAD_BALANCERS.contains(name)) {
+      try {
+        Class.forName(name).asSubclass(LoadBalancer.class).getConstructor(ServerScoreboard.class);
+      } catch (ClassNotFoundException e) {
+        throw new IllegalArgumentException("Unknown load balancer " + name);
+      } catch (ClassCastException e) {
+        throw new IllegalArgumentException(name + " is not a LoadBalancer");
+      } catch (NoSuchMethodException e) {
+        throw new IllegalArgumentException(name + " has no public constructor that takes a " +
+                                           "ServerScoreboard");
+      }
+    }
+  }
+
+  public void setLoadBalancer(String name) throws Exception {
+    checkLoadBalancerName(name);
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      oldScoreboard = swap(proxy.getServerList(), name);
+    }
+    stopSampler(oldScoreboard);
+    LOG.info("Load balancer set to " + name);
+  }
+
+  /*
+   *  Makes the membership match a --servers_file. Servers missing from the file get removed.
+   */
+  public void apply(MembershipFile file) throws Exception {
+    if (null != file.loadBalancer) {
+      checkLoadBalancerName(file.loadBalancer);
+    }
+    boolean anyRoutable = false;
+    for (MembershipFile.Entry entry : file.entries) {
+      anyRoutable |= !entry.drain;
+    }
+    if (!anyRoutable) {
+      throw new IllegalStateException("No routable server would be left");
+    }
+    // Profiles of each entry, so that an unknown one fails before we change anything.
+    HashMap<MembershipFile.Entry, SocketProfile> profiles =
+        new HashMap<MembershipFile.Entry, SocketProfile>();
+    for (MembershipFile.Entry entry : file.entries) {
+      profiles.put(entry, SocketProfile.forName(
+          null == entry.profile ? SocketProfile.DEFAULT : entry.profile));
+    }
+    // Addresses of each entry, looked up before we take the lock.
+    ArrayList<ArrayList<HostPort>> entryHostPorts = new ArrayList<ArrayList<HostPort>>();
+    for (MembershipFile.Entry entry : file.entries) {
+      entryHostPorts.add(expandIfWanted(entry.hostPort));
+    }
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      ArrayList<Server> servers = new ArrayList<Server>(proxy.getServerList());
+      // Nothing changes unless swap() succeeds, so we save what we touch.
+      ArrayList<SavedState> saved = SavedState.save(servers);
+      boolean oldLearnWeights = learnWeights;
+      ArrayList<Server> created = new ArrayList<Server>();
+      HashMap<String, MembershipFile.Entry> wanted = new HashMap<String, MembershipFile.Entry>();
+      for (int i = 0; i < file.entries.size(); i++) {
+        for (HostPort hostPort : entryHostPorts.get(i)) {
+          wanted.put(hostPort.toString(), file.entries.get(i));
+        }
+      }
+      for (Server server : servers) {
+        if (!wanted.containsKey(server.hostPort.toString())) {
+          server.markRemoved();
+        }
+      }
+      for (int i = 0; i < file.entries.size(); i++) {
+        MembershipFile.Entry entry = file.entries.get(i);
+        for (HostPort hostPort : entryHostPorts.get(i)) {
+          Server server = findServer(servers, hostPort.toString());
+          if (null == server) {
+            server = createServer(hostPort,
+                                  expandDns && !hostPort.isPath() ? entry.hostPort : null);
+            servers.add(server);
+            created.add(server);
+          }
+          server.removed = false;
+          server.draining = entry.drain;
+          server.configuredWeight = null == entry.weight ? 1 : entry.weight;
+          server.setSocketProfile(profiles.get(entry));
+        }
+      }
+      learnWeights = !file.hasWeights();
+      try {
+        oldScoreboard = swap(servers,
+                             null == file.loadBalancer ? loadBalancerName : file.loadBalancer);
+      } catch (Exception e) {
+        SavedState.restore(saved);
+        learnWeights = oldLearnWeights;
+        for (Server server : created) {
+          server.close();
+        }
+        throw e;
+      }
+    }
+    stopSampler(oldScoreboard);
+    closeOverdueTunnels();
+    reapRemovedServers();
+  }
+
+  /*
+   *  Adds a server for each new address of the names we expanded and removes the servers of
+   *  addresses that are gone. New servers take weight, profile and draining from another
+   *  server of their name. Names we can't resolve stay as they are.
+   */
+  public void refreshExpandedServers() throws Exception {
+    // Names we expanded that still have servers, and their current addresses.
+    HashMap<String, HostPort> names = new HashMap<String, HostPort>();
+    for (Server server : proxy.getServerList()) {
+      if (null != server.dnsName && !server.removed) {
+        names.put(server.dnsName.toString(), server.dnsName);
+      }
+    }
+    HashMap<String, ArrayList<HostPort>> resolved = new HashMap<String, ArrayList<HostPort>>();
+    for (HostPort name : names.values()) {
+      try {
+        resolved.put(name.toString(), expand(dnsCache, name));
+      } catch (UnknownHostException uhe) {
+        LOG.warn("Could not resolve " + name + ", keeping its servers: " + uhe.getMessage());
+      }
+    }
+
+    ServerScoreboard oldScoreboard;
+    synchronized (this) {
+      ArrayList<Server> servers = new ArrayList<Server>(proxy.getServerList());
+      ArrayList<Server> created = new ArrayList<Server>();
+      ArrayList<Server> removed = new ArrayList<Server>();
+      ArrayList<Server> revived = new ArrayList<Server>();
+      for (String name : resolved.keySet()) {
+        HashMap<String, HostPort> wanted = new HashMap<String, HostPort>();
+        for (HostPort hostPort : resolved.get(name)) {
+          wanted.put(hostPort.toString(), hostPort);
+        }
+        Server template = null;
+        for (Server server : servers) {
+          if (null != server.dnsName && server.dnsName.toString().equals(name) &&
+              !server.removed) {
+            template = server;
+            if (!wanted.containsKey(server.hostPort.toString())) {
+              server.markRemoved();
+              removed.add(server);
+            }
+          }
+        }
+        if (null == template) {
+          // Removed by name meanwhile.
+          continue;
+        }
+        for (HostPort hostPort : wanted.values()) {
+          Server server = findServer(servers, hostPort.toString());
+          if (null == server) {
+            server = createServer(hostPort, template.dnsName);
+            servers.add(server);
+            created.add(server);
+          } else if (server.removed && !removed.contains(server)) {
+            server.removed = false;
+            revived.add(server);
+          } else {
+            continue;
+          }
+          server.draining = template.draining;
+          server.configuredWeight = template.configuredWeight;
+          server.setSocketProfile(template.getSocketProfile());
+        }
+      }
+      if (created.isEmpty() && removed.isEmpty() && revived.isEmpty()) {
+        return;
+      }
+      try {
+        oldScoreboard = swap(servers, loadBalancerName);
+      } catch (Exception e) {
+        for (Server server : removed) {
+          server.removed = false;
+        }
+        for (Server server : revived) {
+          server.markRemoved();
+        }
+        for (Server server : created) {
+          server.close();
+        }
+        throw e;
+      }
+      for (Server server : created) {
+        LOG.info("Added server " + server.hostPort + " for " + server.dnsName);
+      }
+      for (Server server : removed) {
+        LOG.info("Removing server " + server.hostPort + ", no longer an address of " +
+                 server.dnsName);
+      }
+    }
+    stopSampler(oldScoreboard);
+    closeOverdueTunnels();
+    reapRemovedServers();
+  }
+
+  /*
+   *  Closes the tunnels of servers removed longer than the drain timeout ago.
+   */
+  void closeOverdueTunnels() {
+    long now = System.currentTimeMillis();
+    for (Server server : proxy.getServerList()) {
+      if (server.removed && 0 != server.openTunnelCnt.get() &&
+          now - server.removedMillis >= drainTimeoutMillis) {
+        int closed = server.closeAllTunnels();
+        if (closed > 0) {
+          drainTimeoutClosedCnt.addAndGet(closed);
+          LOG.warn("Closed " + closed + " connections to removed server " + server.hostPort +
+                   " after drain timeout of " + drainTimeoutMillis + " ms");
+        }
+      }
+    }
+  }
+
+  /*
+   *  Drops removed servers without open tunnels from the server list and closes them.
+   */
+  void reapRemovedServers() {
+    ArrayList<Server> reaped = new ArrayList<Server>();
+    synchronized (this) {
+      ArrayList<Server> servers = new ArrayList<Server>();
+      for (Server server : proxy.getServerList()) {
+        if (server.removed && 0 == server.openTunnelCnt.get()) {
+          reaped.add(server);
+        } else {
+          servers.add(server);
+        }
+      }
+      if (reaped.isEmpty()) {
+        return;
+      }
+      // Removed servers aren't on the scoreboard, so it stays as it is.
+      proxy.publishServerList(servers);
+    }
+    for (Server server : reaped) {
+      LOG.info("Removed server " + server.hostPort);
+      server.close();
+    }
+  }
+
+  @Override
+  public void scoreboardRefreshed(ServerScoreboard refreshed) {
+    // Cheap check without the lock, we run 10 times a second.
+    for (Server server : proxy.getServerList()) {
+      if (server.removed) {
+        closeOverdueTunnels();
+        break;
+      }
+    }
+    for (Server server : proxy.getServerList()) {
+      if (server.removed && 0 == server.openTunnelCnt.get()) {
+        reapRemovedServers();
+        return;
+      }
+    }
+  }
+
+  /*
+   *  Starts a daemon thread that applies file whenever it changes. Errors in the file are
+   *  logged and leave the membership as it was.
+   */
+  public synchronized void startWatching(final File file, final long periodMillis) {
+    assert null == watcherThread;
+    watcherThread = new Thread(new Runnable() {
+      public void run() {
+        long lastModified = file.lastModified();
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(periodMillis);
+          } catch (InterruptedException ie) {
+            break;
+          }
+          long modified = file.lastModified();
+          if (modified == lastModified) {
+            continue;
+          }
+          lastModified = modified;
+          try {
+            apply(MembershipFile.read(file));
+            LOG.info("Applied server membership from " + file);
+          } catch (IOException ioe) {
+            LOG.error("Could not read " + file + ": " + ioe.getMessage());
+          } catch (Exception e) {
+            LOG.error("Could not apply " + file + ": " + e.getMessage());
+          }
+        }
+      }
+    }, "serversFileWatcher");
+    watcherThread.setDaemon(true);
+    watcherThread.start();
+  }
+
+  /*
+   *  Starts a daemon thread that follows the addresses of the names we expanded.
+   */
+  public synchronized void startResolving(final long periodMillis) {
+    assert null == resolverThread && expandDns;
+    resolverThread = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(periodMillis);
+          } catch (InterruptedException ie) {
+            break;
+          }
+          try {
+            refreshExpandedServers();
+          } catch (Exception e) {
+            LOG.error("Could not apply new server addresses: " + e.getMessage());
+          }
+        }
+      }
+    }, "dnsWatcher");
+    resolverThread.setDaemon(true);
+    resolverThread.start();
+  }
+
+  public synchronized void stopWatching() {
+    if (null != watcherThread) {
+      watcherThread.interrupt();
+      watcherThread = null;
+    }
+    if (null != resolverThread) {
+      resolverThread.interrupt();
+      resolverThread = null;
+    }
+  }
+
+  // Row of the tunnels closed at the drain timeout on the /stats page, once there are any.
+  void appendHtml(StringBuilder html) {
+    if (0 == drainTimeoutClosedCnt.get()) {
+      return;
+    }
+    html.append("<tr><td>closed at drain timeout</td><td>")
+        .append(drainTimeoutClosedCnt.get()).append("</td></tr>\r\n");
+  }
+
+  // Tunnels closed at the drain timeout, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "drain_timeout_closed_connections_total",
+                    "Tunnels of removed servers closed because they outlived the drain " +
+                    "timeout.", drainTimeoutClosedCnt.get());
+  }
+}
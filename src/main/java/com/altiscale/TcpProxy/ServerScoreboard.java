@@ -0,0 +1,280 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ServerScoreboard is what load balancers read to compare servers without taking any locks.
+ *
+ * Open tunnels and latencies are kept up to date by the tunnels themselves and read directly.
+ * Byte rates, failures and health come from SecondMinuteHourCounters and ExecLoops, which are
+ * synchronized, so a sampler thread copies them into an AtomicLongArray every SAMPLE_PERIOD_MS
+ * and the load balancers only ever read the copies.
+ *
+ * Sampled byte counts only show a new tunnel once it moved data, so a balancer that picked the
+ * least used server of the last sample would send everyone arriving before the next sample to
+ * the same server. pickLeastUsed() instead charges every pick to its server right away, see
+ * LeastUsedPlan.
+ */
+public class ServerScoreboard {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How often the sampler thread refreshes the scoreboard.
+  public static final long SAMPLE_PERIOD_MS = 100;
+
+  // Sampled values, FIELDS consecutive slots per server.
+  private static final int BYTES_LAST_SECOND = 0;
+  private static final int BYTES_LAST_MINUTE = 1;
+  private static final int FAILED_LAST_SECOND = 2;
+  private static final int HEALTHY = 3;
+  private static final int FIELDS = 4;
+
+  /**
+   * Listener is called on the sampler thread after every refresh.
+   */
+  public interface Listener {
+    public void scoreboardRefreshed(ServerScoreboard scoreboard);
+  }
+
+  private final Server[] servers;
+
+  private final AtomicLongArray samples;
+
+  /**
+   * LeastUsedPlan spreads the picks between two samples over the healthy servers without
+   * failures in the last second, as if each pick added cost bytes to its server: the least used
+   * server takes picks until it has caught up with the next one, then both take turns until
+   * they caught up with the third, and so on. Once all are level, picks go round robin.
+   */
+  static class LeastUsedPlan {
+    // Eligible servers, least used first.
+    final int[] order;
+
+    // Picks after which the first k + 1 servers of order take turns.
+    final long[] levelPicks;
+
+    // Picks since the sample.
+    final AtomicLong pickCnt;
+
+    /*
+     *  @param order  Eligible servers, least used first.
+     *  @param bytes  Their bytes in the last minute, in the same order.
+     *  @param cost   Bytes we charge a server for one pick.
+     */
+    LeastUsedPlan(int[] order, long[] bytes, long cost) {
+      this.order = order;
+      this.levelPicks = new long[order.length];
+      for (int k = 1; k < order.length; k++) {
+        // Picks that bring the first k servers up to server k.
+        long picks = 0;
+        for (int j = 0; j < k; j++) {
+          picks += (bytes[k] - bytes[j] + cost - 1) / cost;
+        }
+        levelPicks[k] = picks;
+      }
+      this.pickCnt = new AtomicLong(0);
+    }
+
+    // Index of the server for the next pick, -1 if no server is eligible.
+    int pick() {
+      if (0 == order.length) {
+        return -1;
+      }
+      long pick = pickCnt.getAndIncrement();
+      // Servers take turns once their level is reached, levelPicks[0] is 0.
+      int levels = 1;
+      int high = levelPicks.length;
+      while (levels < high) {
+        int middle = (levels + high) >>> 1;
+        if (levelPicks[middle] <= pick) {
+          levels = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return order[(int) ((pick - levelPicks[levels - 1]) % levels)];
+    }
+  }
+
+  // Index of the healthy server without failures in the last second that transferred the
+  // fewest bytes in the last minute, or -1 if there is no such server.
+  private volatile int leastUsedIndex;
+
+  private volatile LeastUsedPlan leastUsedPlan;
+
+  private final CopyOnWriteArrayList<Listener> listeners;
+
+  private Thread samplerThread;
+
+  /*
+   *  @param servers  Servers on the scoreboard. The scoreboard keeps its own copy of the list.
+   */
+  public ServerScoreboard(List<Server> servers) {
+    assert servers.size() > 0;
+    this.servers = servers.toArray(new Server[servers.size()]);
+    this.samples = new AtomicLongArray(this.servers.length * FIELDS);
+    this.listeners = new CopyOnWriteArrayList<Listener>();
+    this.leastUsedIndex = -1;
+    refresh();
+  }
+
+  public int size() {
+    return servers.length;
+  }
+
+  public Server getServer(int index) {
+    return servers[index];
+  }
+
+  public int getOpenTunnels(int index) {
+    return servers[index].openTunnelCnt.get();
+  }
+
+  public double getLatencyNanos(int index, long nowNanos) {
+    return servers[index].latencyEwma.get(nowNanos);
+  }
+
+  public long getBytesLastSecond(int index) {
+    return samples.get(index * FIELDS + BYTES_LAST_SECOND);
+  }
+
+  public long getBytesLastMinute(int index) {
+    return samples.get(index * FIELDS + BYTES_LAST_MINUTE);
+  }
+
+  public long getFailedLastSecond(int index) {
+    return samples.get(index * FIELDS + FAILED_LAST_SECOND);
+  }
+
+  public boolean isHealthy(int index) {
+    return samples.get(index * FIELDS + HEALTHY) != 0;
+  }
+
+  public int getLeastUsedIndex() {
+    return leastUsedIndex;
+  }
+
+  /*
+   *  Picks the least used server, counting the picks since the last sample as used. Lock-free
+   *  and allocation-free.
+   *
+   *  @return  Index of the server, or -1 if no server is healthy and without failures.
+   */
+  public int pickLeastUsed() {
+    return leastUsedPlan.pick();
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /*
+   *  Samples all servers and notifies listeners. Called by the sampler thread, or directly in
+   *  tests and simulations.
+   */
+  public synchronized void refresh() {
+    int leastUsed = -1;
+    long leastUsedByteRate = Long.MAX_VALUE;
+    long[] eligible = new long[servers.length];
+    int eligibleCnt = 0;
+    long eligibleBytes = 0;
+    long openedLastMinute = 0;
+    for (int i = 0; i < servers.length; i++) {
+      Server server = servers[i];
+      long bytesLastMinute = server.byteRateCnt.getLastMinuteCnt();
+      long failedLastSecond = server.failedCnt.getLastSecondCnt();
+      boolean healthy = server.isHealthy();
+      samples.lazySet(i * FIELDS + BYTES_LAST_SECOND, server.byteRateCnt.getLastSecondCnt());
+      samples.lazySet(i * FIELDS + BYTES_LAST_MINUTE, bytesLastMinute);
+      samples.lazySet(i * FIELDS + FAILED_LAST_SECOND, failedLastSecond);
+      samples.set(i * FIELDS + HEALTHY, healthy ? 1 : 0);
+      if (healthy && failedLastSecond == 0) {
+        if (bytesLastMinute < leastUsedByteRate) {
+          leastUsedByteRate = bytesLastMinute;
+          leastUsed = i;
+        }
+        // Usage in the high bits and index in the low ones, so that sorting sorts by usage.
+        eligible[eligibleCnt++] = bytesLastMinute * servers.length + i;
+        eligibleBytes += bytesLastMinute;
+        openedLastMinute += server.openedCnt.getLastMinuteCnt();
+      }
+    }
+    leastUsedIndex = leastUsed;
+    leastUsedPlan = createLeastUsedPlan(eligible, eligibleCnt, eligibleBytes, openedLastMinute);
+    for (Listener listener : listeners) {
+      listener.scoreboardRefreshed(this);
+    }
+  }
+
+  /*
+   *  A pick costs what a tunnel moved on average in the last minute. Without tunnels it costs
+   *  the average usage of a server.
+   */
+  private LeastUsedPlan createLeastUsedPlan(long[] eligible, int eligibleCnt, long eligibleBytes,
+                                            long openedLastMinute) {
+    Arrays.sort(eligible, 0, eligibleCnt);
+    int[] order = new int[eligibleCnt];
+    long[] bytes = new long[eligibleCnt];
+    for (int k = 0; k < eligibleCnt; k++) {
+      order[k] = (int) (eligible[k] % servers.length);
+      bytes[k] = eligible[k] / servers.length;
+    }
+    long cost = 0 < openedLastMinute ? eligibleBytes / openedLastMinute
+                                     : eligibleBytes / Math.max(1, eligibleCnt);
+    return new LeastUsedPlan(order, bytes, Math.max(1, cost));
+  }
+
+  /*
+   *  Starts a daemon thread that refreshes the scoreboard every periodMillis until stopSampler().
+   */
+  public synchronized void startSampler(final long periodMillis) {
+    assert null == samplerThread;
+    samplerThread = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(periodMillis);
+          } catch (InterruptedException ie) {
+            break;
+          }
+          try {
+            refresh();
+          } catch (RuntimeException e) {
+            LOG.error("Exception while refreshing server scoreboard: " + e.getMessage());
+          }
+        }
+      }
+    }, "scoreboardSampler");
+    samplerThread.setDaemon(true);
+    samplerThread.start();
+  }
+
+  public synchronized void stopSampler() {
+    if (null != samplerThread) {
+      samplerThread.interrupt();
+      samplerThread = null;
+    }
+  }
+}
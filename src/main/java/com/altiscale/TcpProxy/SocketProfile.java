@@ -0,0 +1,176 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+
+import com.altiscale.Util.UnixSockets;
+
+/**
+ * SocketProfile is a named set of socket options for the listening socket or for the sockets
+ * to one Server.
+ *
+ *   default  Leaves everything to the OS, like TransferAccelerator always did.
+ *   latency  TCP_NODELAY, keepalive, modest buffers and a long accept backlog, for many small
+ *            requests.
+ *   bulk     Keepalive, large socket buffers and large relay buffers, for long transfers over
+ *            links with a high bandwidth-delay product.
+ *   auto     Like bulk, but BufferAutoTuner sizes the socket buffers of each server to its
+ *            measured bandwidth-delay product. Servers behind a jumphost or on Unix domain
+ *            sockets keep the starting size.
+ *
+ * A buffer size of 0 means we keep the OS default.
+ */
+public class SocketProfile {
+  public static final String DEFAULT = "default";
+  public static final String LATENCY = "latency";
+  public static final String BULK = "bulk";
+  public static final String AUTO = "auto";
+
+  // Accept backlog Java uses when we don't give one.
+  static final int DEFAULT_BACKLOG = 50;
+
+  static final LinkedHashMap<String, SocketProfile> PROFILES =
+      new LinkedHashMap<String, SocketProfile>();
+  static {
+    PROFILES.put(DEFAULT, new SocketProfile(DEFAULT, false, false, 0, DEFAULT_BACKLOG,
+                                            TcpTunnel.DEFAULT_BUFFER_SIZE, false));
+    PROFILES.put(LATENCY, new SocketProfile(LATENCY, true, true, 64 * 1024, 1024,
+                                            TcpTunnel.DEFAULT_BUFFER_SIZE, false));
+    PROFILES.put(BULK, new SocketProfile(BULK, false, true, 4 * 1024 * 1024, 1024,
+                                         64 * 1024, false));
+    PROFILES.put(AUTO, new SocketProfile(AUTO, false, true, BufferAutoTuner.MIN_BUFFER_BYTES,
+                                         1024, 64 * 1024, true));
+  }
+
+  public final String name;
+  public final boolean tcpNoDelay;
+  public final boolean keepAlive;
+
+  // Send and receive buffer size, or the starting size if autoTune is set.
+  public final int bufferBytes;
+
+  // Accept backlog, only used for listening sockets.
+  public final int backlog;
+
+  // Size of the buffer TcpTunnel copies through.
+  public final int tunnelBufferBytes;
+
+  // True if BufferAutoTuner sizes the socket buffers.
+  public final boolean autoTune;
+
+  SocketProfile(String name, boolean tcpNoDelay, boolean keepAlive, int bufferBytes,
+                int backlog, int tunnelBufferBytes, boolean autoTune) {
+    this.name = name;
+    this.tcpNoDelay = tcpNoDelay;
+    this.keepAlive = keepAlive;
+    this.bufferBytes = bufferBytes;
+    this.backlog = backlog;
+    this.tunnelBufferBytes = tunnelBufferBytes;
+    this.autoTune = autoTune;
+  }
+
+  public static boolean exists(String name) {
+    return PROFILES.containsKey(name);
+  }
+
+  /*
+   *  @return  Profile called name.
+   *  @throws  IllegalArgumentException if there is no such profile.
+   */
+  public static SocketProfile forName(String name) {
+    SocketProfile profile = PROFILES.get(name);
+    if (null == profile) {
+      throw new IllegalArgumentException("Unknown socket profile " + name + ", options: " +
+                                         PROFILES.keySet());
+    }
+    return profile;
+  }
+
+  /*
+   *  Creates a listening socket. The receive buffer is set before bind, so that sockets we
+   *  accept start with it and can negotiate a large enough window scale.
+   *
+   *  @param acceptBacklog  Accept backlog instead of ours, 0 to keep ours.
+   */
+  public ServerSocket createServerSocket(int port, int acceptBacklog) throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    if (bufferBytes > 0) {
+      serverSocket.setReceiveBufferSize(bufferBytes);
+    }
+    serverSocket.bind(new InetSocketAddress(port), acceptBacklog > 0 ? acceptBacklog : backlog);
+    return serverSocket;
+  }
+
+  /*
+   *  Creates a listening Unix domain socket at path, see UnixSockets.
+   *
+   *  @param acceptBacklog  Accept backlog instead of ours, 0 to keep ours.
+   */
+  public ServerSocket createServerSocket(String path, int acceptBacklog) throws IOException {
+    ServerSocket serverSocket =
+        UnixSockets.get().createServerSocket(path, acceptBacklog > 0 ? acceptBacklog : backlog);
+    if (bufferBytes > 0) {
+      serverSocket.setReceiveBufferSize(bufferBytes);
+    }
+    return serverSocket;
+  }
+
+  public ServerSocket createServerSocket(int port) throws IOException {
+    return createServerSocket(port, 0);
+  }
+
+  /*
+   *  Sets our options on a socket. Receive buffers have to be set before connect to affect the
+   *  window scale, so call it on unconnected sockets where we can.
+   *
+   *  @param bufferBytes  Send and receive buffer size, 0 keeps the OS default.
+   */
+  public void apply(Socket socket, int bufferBytes) throws SocketException {
+    if (tcpNoDelay) {
+      socket.setTcpNoDelay(true);
+    }
+    if (keepAlive) {
+      socket.setKeepAlive(true);
+    }
+    if (bufferBytes > 0) {
+      socket.setSendBufferSize(bufferBytes);
+      socket.setReceiveBufferSize(bufferBytes);
+    }
+  }
+
+  public void apply(Socket socket) throws SocketException {
+    apply(socket, bufferBytes);
+  }
+
+  /*
+   *  @return  Options the OS actually gave socket, which can differ from what we asked for.
+   */
+  public static String describe(Socket socket) {
+    try {
+      return "nodelay=" + socket.getTcpNoDelay() + " keepalive=" + socket.getKeepAlive() +
+             " sndbuf=" + socket.getSendBufferSize() + " rcvbuf=" + socket.getReceiveBufferSize();
+    } catch (SocketException e) {
+      return "unknown (" + e.getMessage() + ")";
+    }
+  }
+}
@@ -22,24 +22,31 @@ import org.apache.log4j.Level;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Properties;
-import java.util.Random;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.altiscale.Util.FlightEvents;
+import com.altiscale.Util.DnsCache;
 import com.altiscale.Util.HostPort;
-import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.TlsTransport;
+import com.altiscale.Util.LogLinearHistogram;
+import com.altiscale.Util.Metrics;
 import com.altiscale.Util.ServerStatus;
 import com.altiscale.Util.ServerWithStats;
+import com.altiscale.Util.SlidingWindowHistogram;
 
-import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.GnuParser;
-import org.apache.commons.cli.HelpFormatter;
-import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 
 class ShutdownCleanup extends Thread {
@@ -52,7 +59,7 @@ class ShutdownCleanup extends Thread {
 
   public void run() {
     LOG.info("Stopping proxy on shutdown cleanup.");
-    proxy.stop();
+    proxy.shutdown();
   }
 }
 
@@ -68,93 +75,104 @@ class ShutdownCleanup extends Thread {
  **/
 public class TcpProxyServer implements ServerWithStats {
 
-  protected interface LoadBalancer {
-    public Server getServer();
-  }
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+  // Config for this proxy.
+  private ProxyConfiguration config;
 
-  protected class RoundRobin implements LoadBalancer {
-    private ArrayList<Server> servers;
+  // Port number where we want to listen for our clients.
+  private int tcpProxyPort;
 
-    private int nextServerId = 0;
+  // This is our ServerSocket running on tcpProxyPort.
+  private ServerSocket tcpProxyService;
 
-    public RoundRobin(ArrayList<Server> servers) {
-      this.servers = servers;
-    }
+  // Socket options of the listening socket and of the client sockets we accept.
+  private SocketProfile listenerProfile;
 
-    @Override
-    public Server getServer() {
-      nextServerId = (nextServerId + 1) % servers.size();
-      return servers.get(nextServerId);
-    }
-  }
+  // Options the OS gave the listening socket.
+  private String listenerOptions;
 
-  protected class UniformRandom implements LoadBalancer {
-     private ArrayList<Server> servers;
+  // Caps concurrent tunnels and sheds clients we can't serve in time.
+  private AdmissionControl admission;
 
-     public UniformRandom(ArrayList<Server> servers) {
-       this.servers = servers;
-     }
+  // Reads the requests of http mode clients and sets up their tunnels, null in tcp mode.
+  private ThreadPoolExecutor httpSetupExecutor;
 
-     @Override
-     public Server getServer() {
-       return servers.get(
-           new Random(System.currentTimeMillis()).nextInt(servers.size()));
-     }
-  }
+  // Closes idle and slow tunnels.
+  private TunnelReaper reaper;
 
-  protected class LeastUsed implements LoadBalancer {
-    private ArrayList<Server> servers;
+  // Answers repeated WebHDFS metadata requests in http mode, null if we don't cache.
+  private WebHdfsCache webHdfsCache;
 
-    public LeastUsed(ArrayList<Server> servers) {
-      this.servers = servers;
-    }
+  // Answers WebHDFS OPEN requests for files we have on disk in http mode, null if we don't.
+  private WebHdfsContentCache contentCache;
 
-    @Override
-    public Server getServer() {
-      Server leastUsedServer = null;
-      long leastUsedByteRate = Long.MAX_VALUE;
-      for (Server server : servers) {
-        if (server.failedCnt.getLastSecondCnt() == 0 &&
-            server.byteRateCnt.getLastMinuteCnt() < leastUsedByteRate) {
-          leastUsedByteRate = server.byteRateCnt.getLastMinuteCnt();
-          leastUsedServer = server;
-        }
-      }
+  // Writes large WebHDFS CREATE requests in parts through several servers, null if we don't.
+  private MultipartUpload multipartUpload;
 
-      // All servers have failures in the last second so we return one at random.
-      if (leastUsedServer == null) {
-         leastUsedServer = new UniformRandom(servers).getServer();
-      }
+  // Fetches the next ranges of sequential WebHDFS range reads, null if we don't.
+  private ReadAhead readAhead;
 
-      return leastUsedServer;
-    }
-  }
+  // Resolves server names, null if we resolve them on every connect.
+  private DnsCache dnsCache;
 
-  // log4j logger.
-  private static Logger LOG = Logger.getLogger("TransferAccelerator");
-  // Config for this proxy.
-  private ProxyConfiguration config;
+  // Records a sample of tunnels for TrafficReplay, null if we don't capture.
+  private TrafficCapture capture;
 
-  // Port number where we want to listen for our clients.
-  private int tcpProxyPort;
+  // Logs finished tunnels, null if we don't.
+  private AccessLog accessLog;
 
-  // This is our ServerSocket running on tcpProxyPort.
-  private ServerSocket tcpProxyService;
+  // Clients we accepted that don't have a tunnel yet, reading their request or waiting for
+  // admission. drain() waits for them as well.
+  private AtomicInteger clientSetupCnt;
+
+  // Set once we stop accepting clients on shutdown.
+  private volatile boolean draining;
 
   // List of all servers we can use to tunnel our client trafic. We choose from this list
   // based on our load-balancing algorithm, and if we cannot connect we retry using next
-  // server until we establish the tunnel.
-  private ArrayList<Server> serverList;
+  // server until we establish the tunnel. Once init is done ServerMembership replaces the
+  // whole list on every change and never modifies a published one.
+  private volatile ArrayList<Server> serverList;
+
+  // Picks servers from a ServerScoreboard of the routable servers. ServerMembership swaps in
+  // a new load balancer with its own scoreboard on every change, so one read of this field
+  // gives a consistent pair.
+  private volatile LoadBalancer loadBalancer;
 
-  private LoadBalancer loadBalancer;
+  // Adds, removes, drains and reweights servers at runtime.
+  private ServerMembership membership;
+
+  // Names of the built-in load balancers. --load_balancer also accepts class names.
+  static final HashSet<String> LOAD_BALANCERS = new HashSet<String>(
+      Arrays.asList("RoundRobin", "LeastUsed", "UniformRandom", "PowerOfTwoChoices",
+                    "WeightedRoundRobin", "Maglev"));
 
   private String name;
 
   private String version;
 
-  // transfer-accelerator uses by default ports in the range 48139 - 48160
-  private static final int START_PORT_RANGE = 48139;
-  private static final int MAX_NUM_SERVERS = 22;
+  // Limits for reading the first HTTP request of a client in http mode. The whole head has to
+  // arrive within the timeout.
+  private static final int HTTP_HEAD_TIMEOUT_MS = 10000;
+  private static final int HTTP_HEAD_MAX_BYTES = 64 * 1024;
+
+  // Threads that set up http mode clients, and clients that may wait for one. Clients beyond
+  // that get shed even without --max_tunnels.
+  static final int DEFAULT_HTTP_SETUP_THREADS = 256;
+  private static final int HTTP_SETUP_QUEUE_SIZE = 1024;
+  private static final int HTTP_SETUP_IDLE_SECONDS = 60;
+
+  // How long open tunnels get to finish on shutdown and after their server is removed.
+  static final long DEFAULT_DRAIN_TIMEOUT_MS = 30000;
+
+  // How often drain() checks whether the tunnels are gone.
+  private static final long DRAIN_POLL_MS = 100;
+
+  // What http mode clients get when we shed them.
+  private static final byte[] SERVICE_UNAVAILABLE =
+      ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n" +
+       "Connection: close\r\n\r\n").getBytes();
 
   @Override
   public void setVersion(String version) {
@@ -173,78 +191,329 @@ public class TcpProxyServer implements ServerWithStats {
     long lastHourByteRate = 0;
     long openedConnections = 0;
     long closedConnections = 0;
-    for (Server server : serverList) {
+
+    // Membership changes replace serverList, so we render from one version of it.
+    ArrayList<Server> servers = serverList;
+
+    // One pass over the servers, reading each counter once.
+    StringBuilder byteRateRows = new StringBuilder();
+    StringBuilder failedRows = new StringBuilder();
+    StringBuilder weightRows = new StringBuilder();
+    StringBuilder stateRows = new StringBuilder();
+    for (Server server : servers) {
+      long serverLastSecond = server.byteRateCnt.getLastSecondCnt();
+      long serverLastMinute = server.byteRateCnt.getLastMinuteCnt();
+      long serverLastHour = server.byteRateCnt.getLastHourCnt();
       openedConnections += server.openedCnt.getTotalCnt();
       closedConnections += server.closedCnt.getTotalCnt();
-      lastSecondByteRate += server.byteRateCnt.getLastSecondCnt();
-      lastMinuteByteRate += server.byteRateCnt.getLastMinuteCnt();
-      lastHourByteRate += server.byteRateCnt.getLastHourCnt();
+      lastSecondByteRate += serverLastSecond;
+      lastMinuteByteRate += serverLastMinute;
+      lastHourByteRate += serverLastHour;
+
+      byteRateRows.append("<tr><td><b>").append(server.hostPort).append("</b> byte rate </td>")
+                  .append("<td><table><tr>")
+                  .append("<td>").append(serverLastSecond).append(" B/s</td>")
+                  .append("<td>").append(serverLastMinute).append(" B/min</td>")
+                  .append("<td>").append(serverLastHour).append(" B/h</td>")
+                  .append("</tr></table></td></tr>\r\n");
+
+      failedRows.append("<tr><td><b>").append(server.hostPort).append("</b>")
+                .append(" failed connections </td>")
+                .append("<td><table><tr>")
+                .append("<td>").append(server.failedCnt.getLastSecondCnt()).append(" /s</td>")
+                .append("<td>").append(server.failedCnt.getLastMinuteCnt()).append(" /min</td>")
+                .append("<td>").append(server.failedCnt.getLastHourCnt()).append(" /h</td>")
+                .append("</tr></table></td></tr>\r\n");
+
+      if (!server.getState().equals(Server.STATE_ACTIVE)) {
+        stateRows.append("<tr><td><b>").append(server.hostPort).append("</b>")
+                 .append(" state </td><td>").append(server.getState())
+                 .append("</td></tr>\r\n");
+      }
+
+      if (loadBalancer instanceof WeightedRoundRobin) {
+        weightRows.append("<tr><td><b>").append(server.hostPort).append("</b>")
+                  .append(" weight </td><td>").append(server.effectiveWeight)
+                  .append("</td></tr>\r\n");
+      }
     }
 
-    String htmlServerStats = "";
-    htmlServerStats += "HTTP/1.0 200 OK\r\n";
-    htmlServerStats += "\r\n";
-    htmlServerStats += "<head><meta http-equiv=\"refresh\" content=\"5\" /></head>\r\n";
-    htmlServerStats += "<style> table, th, td { padding: 3px; border: 1px solid black;" +
-                       " border-collapse: collapse; text-align: right;} </style>\r\n";
-    htmlServerStats += "<TITLE>" + getServerName() + " Status</TITLE>\r\n";
+    StringBuilder html = new StringBuilder(8192);
+    html.append("HTTP/1.0 200 OK\r\n");
+    html.append("\r\n");
+    html.append("<head><meta http-equiv=\"refresh\" content=\"5\" /></head>\r\n");
+    html.append("<style> table, th, td { padding: 3px; border: 1px solid black;" +
+                " border-collapse: collapse; text-align: right;} </style>\r\n");
+    html.append("<TITLE>").append(getServerName()).append(" Status</TITLE>\r\n");
+
+    html.append("<b>").append(getServerName()).append("</b> - ")
+        .append(null == config.listeningPath ? "" + tcpProxyPort : config.listeningPath)
+        .append("<br/><br/><br/>\r\n");
+
+    html.append("<table>\r\n");
+    html.append("<tr><td><b>counters</b></td><td><b>values</b></td></tr>\r\n");
+
+    html.append("<tr><td>Open connections</td><td>")
+        .append(openedConnections - closedConnections).append("</td></tr>\r\n");
+
+    html.append("<tr><td><b>server</b> byte rate</td><td>")
+        .append("<table><tr>")
+        .append("<td>").append(lastSecondByteRate).append(" B/s</td>")
+        .append("<td>").append(lastMinuteByteRate).append(" B/min</td>")
+        .append("<td>").append(lastHourByteRate).append(" B/h</td>")
+        .append("</tr></table></td></tr>\r\n");
+
+    html.append(byteRateRows).append(failedRows).append(weightRows).append(stateRows);
+
+    html.append("<tr><td>opened connections</td><td>").append(openedConnections)
+        .append("</td></tr>\r\n");
+    html.append("<tr><td>closed connections</td><td>").append(closedConnections)
+        .append("</td></tr>\r\n");
+    admission.appendHtml(html);
+    reaper.appendHtml(html);
+    if (null != webHdfsCache) {
+      webHdfsCache.appendHtml(html);
+    }
+    if (null != contentCache) {
+      contentCache.appendHtml(html);
+    }
+    if (null != multipartUpload) {
+      multipartUpload.appendHtml(html);
+    }
+    if (null != readAhead) {
+      readAhead.appendHtml(html);
+    }
+    TlsTransport tls = getTlsTransport();
+    if (null != tls) {
+      tls.appendHtml(html);
+    }
+    if (null != dnsCache) {
+      dnsCache.appendHtml(html);
+    }
+    if (null != capture) {
+      capture.appendHtml(html);
+    }
+    if (null != accessLog) {
+      accessLog.appendHtml(html);
+    }
+    if (null != membership) {
+      membership.appendHtml(html);
+    }
+    html.append("</table><br/>\r\n");
 
-    htmlServerStats += "<b>" + getServerName() + "</b> - " + tcpProxyPort + "<br/><br/><br/>\r\n";
+    appendHistogramsHtml(html, servers);
+    appendSocketTuningHtml(html, servers);
 
-    htmlServerStats += "<table>\r\n";
-    htmlServerStats += "<tr><td><b>counters</b></td><td><b>values</b></td></tr>\r\n";
+    html.append("Healthy servers ").append(getHealthyServerCnt(servers)).append(" out of ")
+        .append(servers.size());
 
-    htmlServerStats += "<tr><td>Open connections</td><td>" +
-                       (openedConnections - closedConnections) +
-                       "</td></tr>\r\n";
+    return html.toString();
+  }
 
-    htmlServerStats += "<tr><td><b>server</b> byte rate</td><td>" +
-                       "<table><tr>" +
-                       "<td>" + lastSecondByteRate + " B/s</td>" +
-                       "<td>" + lastMinuteByteRate + " B/min</td>" +
-                       "<td>" + lastHourByteRate + " B/h</td>" +
-                       "</tr></table>";
+  // The TlsTransport to servers or for clients, which is the same one if we have both.
+  private TlsTransport getTlsTransport() {
+    if (null == config) {
+      return null;
+    }
+    return null != config.serverTls ? config.serverTls : config.listenerTls;
+  }
 
-    for (Server server : serverList) {
-      htmlServerStats += "<tr><td><b>" + server.hostPort.toString() + "</b> byte rate </td><td>" +
-                         "<table><tr>" +
-                         "<td>" + server.byteRateCnt.getLastSecondCnt() + " B/s</td>" +
-                         "<td>" + server.byteRateCnt.getLastMinuteCnt() + " B/min</td>" +
-                         "<td>" + server.byteRateCnt.getLastHourCnt() + " B/h</td>" +
-                         "</tr></table>" +
-                         "</td></tr>\r\n";
+  // Effective socket options of the listener and of the last connection to each server.
+  private void appendSocketTuningHtml(StringBuilder html, ArrayList<Server> servers) {
+    html.append("<table>\r\n");
+    html.append("<tr><td><b>socket tuning</b></td><td><b>profile</b></td>")
+        .append("<td><b>effective options</b></td><td><b>rtt</b></td><td><b>bdp</b></td>")
+        .append("</tr>\r\n");
+    if (null != listenerProfile) {
+      html.append("<tr><td>listener</td><td>").append(listenerProfile.name).append("</td><td>")
+          .append(listenerOptions).append("</td><td></td><td></td></tr>\r\n");
     }
+    for (Server server : servers) {
+      String options = server.effectiveSocketOptions;
+      html.append("<tr><td><b>").append(server.hostPort).append("</b></td><td>")
+          .append(server.socketProfile.name).append("</td><td>")
+          .append(null == options ? "no connection yet" : options).append("</td>");
+      if (server.socketProfile.autoTune && server.canAutoTune()) {
+        html.append("<td>").append(server.estimatedRttMicros).append(" us</td><td>")
+            .append(server.estimatedBdpBytes).append(" B</td>");
+      } else {
+        html.append("<td></td><td></td>");
+      }
+      html.append("</tr>\r\n");
+    }
+    html.append("</table><br/>\r\n");
+  }
 
-    for (Server server : serverList) {
-      htmlServerStats += "<tr><td><b>" + server.hostPort.toString() + "</b>" +
-                         " failed connections </td>" +
-                         "<td><table><tr>" +
-                         "<td>" + server.failedCnt.getLastSecondCnt() + " /s</td>" +
-                         "<td>" + server.failedCnt.getLastMinuteCnt() + " /min</td>" +
-                         "<td>" + server.failedCnt.getLastHourCnt() + " /h</td>" +
-                         "</tr></table>" +
-                         "</td></tr>\r\n";
+  static final String METRIC_PREFIX = "transfer_accelerator_";
+
+  // Metrics of the same name are grouped into one family no matter in which order we add them.
+  @Override
+  public Metrics getMetrics() {
+    ArrayList<Server> servers = serverList;
+    Metrics metrics = new Metrics();
+    metrics.gauge(METRIC_PREFIX + "info", "Version of the proxy.", 1,
+                  "version", "" + version, "port", "" + tcpProxyPort);
+    metrics.gauge(METRIC_PREFIX + "healthy_servers", "Number of healthy servers.",
+                  getHealthyServerCnt(servers));
+    metrics.gauge(METRIC_PREFIX + "servers", "Number of servers.", servers.size());
+    metrics.gauge(METRIC_PREFIX + "draining",
+                  "1 once the proxy stopped accepting clients to shut down.", draining ? 1 : 0);
+
+    admission.addMetrics(metrics, METRIC_PREFIX);
+    reaper.addMetrics(metrics, METRIC_PREFIX);
+    if (null != webHdfsCache) {
+      webHdfsCache.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != contentCache) {
+      contentCache.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != multipartUpload) {
+      multipartUpload.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != readAhead) {
+      readAhead.addMetrics(metrics, METRIC_PREFIX);
+    }
+    TlsTransport tls = getTlsTransport();
+    if (null != tls) {
+      tls.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != dnsCache) {
+      dnsCache.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != capture) {
+      capture.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != accessLog) {
+      accessLog.addMetrics(metrics, METRIC_PREFIX);
+    }
+    if (null != membership) {
+      membership.addMetrics(metrics, METRIC_PREFIX);
+    }
+
+    for (Server server : servers) {
+      String name = server.hostPort.toString();
+      metrics.counter(METRIC_PREFIX + "requests_total",
+                      "Connection attempts to the server.",
+                      server.requestCnt.getTotalCnt(), "server", name);
+      metrics.counter(METRIC_PREFIX + "failed_connections_total",
+                      "Failed connection attempts to the server.",
+                      server.failedCnt.getTotalCnt(), "server", name);
+      metrics.counter(METRIC_PREFIX + "opened_connections_total",
+                      "Opened connections, one per tunnel direction.",
+                      server.openedCnt.getTotalCnt(), "server", name);
+      metrics.counter(METRIC_PREFIX + "closed_connections_total",
+                      "Closed connections, one per tunnel direction.",
+                      server.closedCnt.getTotalCnt(), "server", name);
+      metrics.counter(METRIC_PREFIX + "bytes_total",
+                      "Bytes tunneled through the server in both directions.",
+                      server.byteRateCnt.getTotalCnt(), "server", name);
+      metrics.gauge(METRIC_PREFIX + "bytes_last_second",
+                    "Bytes tunneled through the server in the last second.",
+                    server.byteRateCnt.getLastSecondCnt(), "server", name);
+      metrics.gauge(METRIC_PREFIX + "bytes_last_minute",
+                    "Bytes tunneled through the server in the last minute.",
+                    server.byteRateCnt.getLastMinuteCnt(), "server", name);
+      metrics.gauge(METRIC_PREFIX + "open_tunnels",
+                    "Tunnels currently open through the server.",
+                    server.openTunnelCnt.get(), "server", name);
+      metrics.gauge(METRIC_PREFIX + "latency_ewma_seconds",
+                    "Peak EWMA of connect and first byte latency.",
+                    server.latencyEwma.get(System.nanoTime()) / 1e9, "server", name);
+      metrics.gauge(METRIC_PREFIX + "weight",
+                    "Effective weight of the server in WeightedRoundRobin.",
+                    server.effectiveWeight, "server", name);
+      metrics.gauge(METRIC_PREFIX + "healthy",
+                    "1 if the server is healthy, 0 otherwise.",
+                    server.isHealthy() ? 1 : 0, "server", name);
+      metrics.gauge(METRIC_PREFIX + "routable",
+                    "1 if the load balancer can pick the server, 0 if it is draining or " +
+                    "being removed.",
+                    server.getState().equals(Server.STATE_ACTIVE) ? 1 : 0, "server", name);
+      metrics.histogram(METRIC_PREFIX + "connect_latency_seconds",
+                        "Backend connect latency over the last minute.",
+                        server.connectLatencyHist.getSnapshot(), 1e-6, "server", name);
+      metrics.histogram(METRIC_PREFIX + "first_byte_latency_seconds",
+                        "Time to first byte from the server over the last minute.",
+                        server.firstByteLatencyHist.getSnapshot(), 1e-6, "server", name);
+      metrics.histogram(METRIC_PREFIX + "connection_duration_seconds",
+                        "Duration of connections closed in the last minute.",
+                        server.tunnelDurationHist.getSnapshot(), 1e-6, "server", name);
+      metrics.histogram(METRIC_PREFIX + "connection_bytes",
+                        "Bytes per connection closed in the last minute.",
+                        server.tunnelBytesHist.getSnapshot(), 1, "server", name);
+    }
+    return metrics;
+  }
+
+  // Percentiles we show for histograms.
+  static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private static String formatMicros(long micros) {
+    return (micros / 1000) + "." + String.valueOf(1000 + micros % 1000).substring(1) + " ms";
+  }
+
+  private void appendHistogramHtmlRow(StringBuilder html, String name,
+                                      LogLinearHistogram.Snapshot snapshot, boolean isTime) {
+    html.append("<tr><td>").append(name).append("</td><td>").append(snapshot.getCount())
+        .append("</td>");
+    for (double percentile : PERCENTILES) {
+      long value = snapshot.getValueAtPercentile(percentile);
+      html.append("<td>").append(isTime ? formatMicros(value) : value + " B").append("</td>");
     }
+    html.append("</tr>\r\n");
+  }
 
-    htmlServerStats += "<tr><td>opened connections</td><td>" + openedConnections +
-                       "</td></tr>\r\n";
-    htmlServerStats += "<tr><td>closed connections</td><td>" + closedConnections +
-                       "</td></tr>\r\n";
-    htmlServerStats += "</table>\r\n";
+  private void appendHistogramHtmlRows(StringBuilder html, String metric,
+                                       ArrayList<Server> servers,
+                                       SlidingWindowHistogram[] histograms, boolean isTime) {
+    StringBuilder rows = new StringBuilder();
+    LogLinearHistogram.Snapshot total = new LogLinearHistogram.Snapshot();
+    for (int i = 0; i < histograms.length; i++) {
+      LogLinearHistogram.Snapshot snapshot = histograms[i].getSnapshot();
+      total.add(snapshot);
+      appendHistogramHtmlRow(rows, "<b>" + servers.get(i).hostPort + "</b> " + metric,
+                             snapshot, isTime);
+    }
+    appendHistogramHtmlRow(html, "<b>server</b> " + metric, total, isTime);
+    html.append(rows);
+  }
 
-    htmlServerStats += "Healthy servers " + getHealthyServerCnt() + " out of " + serverList.size();
+  private void appendHistogramsHtml(StringBuilder html, ArrayList<Server> servers) {
+    int size = servers.size();
+    SlidingWindowHistogram[] connect = new SlidingWindowHistogram[size];
+    SlidingWindowHistogram[] firstByte = new SlidingWindowHistogram[size];
+    SlidingWindowHistogram[] duration = new SlidingWindowHistogram[size];
+    SlidingWindowHistogram[] bytes = new SlidingWindowHistogram[size];
+    for (int i = 0; i < size; i++) {
+      connect[i] = servers.get(i).connectLatencyHist;
+      firstByte[i] = servers.get(i).firstByteLatencyHist;
+      duration[i] = servers.get(i).tunnelDurationHist;
+      bytes[i] = servers.get(i).tunnelBytesHist;
+    }
 
-    return htmlServerStats;
+    html.append("<table>\r\n");
+    html.append("<tr><td><b>last minute</b></td><td><b>count</b></td>");
+    for (String percentileName : PERCENTILE_NAMES) {
+      html.append("<td><b>").append(percentileName).append("</b></td>");
+    }
+    html.append("</tr>\r\n");
+    appendHistogramHtmlRows(html, "connect latency", servers, connect, true);
+    appendHistogramHtmlRows(html, "time to first byte", servers, firstByte, true);
+    appendHistogramHtmlRows(html, "connection duration", servers, duration, true);
+    appendHistogramHtmlRows(html, "bytes per connection", servers, bytes, false);
+    html.append("</table><br/>\r\n");
   }
 
   @Override
   public boolean isHealthy() {
-    return 0 != getHealthyServerCnt();
+    // Report unhealthy while draining so load balancers in front of us move on.
+    return !draining && 0 != getHealthyServerCnt(serverList);
   }
 
-  private int getHealthyServerCnt() {
+  private static int getHealthyServerCnt(ArrayList<Server> servers) {
     int healthyCnt = 0;
-    for (Server server : serverList) {
+    for (Server server : servers) {
       if (server.isHealthy()) {
         healthyCnt++;
       }
@@ -255,394 +524,709 @@ public class TcpProxyServer implements ServerWithStats {
   public TcpProxyServer(String name) {
     this.name = name;
     serverList = new ArrayList<Server>();
+    admission = new AdmissionControl();
+    httpSetupExecutor = null;
+    reaper = new TunnelReaper(0, 0, 0, 0, TunnelReaper.DEFAULT_MIN_RATE_WINDOW_MS);
+    clientSetupCnt = new AtomicInteger(0);
+    draining = false;
+    webHdfsCache = null;
+    contentCache = null;
+    multipartUpload = null;
+    readAhead = null;
+    dnsCache = null;
   }
 
   public void init(ProxyConfiguration conf) {
     config = conf;
 
-    // Launch ServerStats thread.
-    new Thread(new ServerStatus(this, config.statusPort)).start();
+    if (config.dnsTtlMs > 0 && null == config.jumphost) {
+      dnsCache = new DnsCache(config.dnsTtlMs);
+      dnsCache.start();
+    }
+
+    if (null != config.captureFile) {
+      capture = new TrafficCapture(config.captureFile, config.captureSampleRate,
+                                   config.capturePayload,
+                                   TrafficCapture.DEFAULT_MAX_QUEUED_BYTES,
+                                   config.captureMaxFileBytes);
+      try {
+        capture.start();
+      } catch (IOException ioe) {
+        LOG.error("Could not open capture file " + config.captureFile + ": " + ioe.getMessage());
+        System.exit(1);
+      }
+    }
+
+    if (null != config.accessLogFile) {
+      accessLog = new AccessLog(config.accessLogFile, AccessLog.DEFAULT_CAPACITY,
+                                config.accessLogMaxFileBytes, config.accessLogMaxBackups);
+      try {
+        accessLog.start();
+      } catch (IOException ioe) {
+        LOG.error("Could not open access log " + config.accessLogFile + ": " +
+                  ioe.getMessage());
+        System.exit(1);
+      }
+    }
 
     // Initialize servers and optional ssh tunnels via jumphost.
-    for (HostPort serverHostPort : config.serverHostPortList) {
-      Server server = null;
-      if (null == config.jumphost) {
-        server = new Server(serverHostPort);
-      } else {
-        server = new Server(serverHostPort, config.jumphost);
+    for (int i = 0; i < config.serverHostPortList.size(); i++) {
+      HostPort serverHostPort = config.serverHostPortList.get(i);
+      ArrayList<Server> servers = new ArrayList<Server>();
+      if (null != config.jumphost) {
+        Server server = new Server(serverHostPort, config.jumphost);
         server.startJumphostThread();
+        servers.add(server);
+      } else if (config.expandDns && !serverHostPort.isPath()) {
+        // One server per address of the name.
+        try {
+          for (HostPort addressHostPort : ServerMembership.expand(dnsCache, serverHostPort)) {
+            Server server = new Server(addressHostPort);
+            server.dnsName = serverHostPort;
+            servers.add(server);
+          }
+        } catch (UnknownHostException uhe) {
+          LOG.error("Could not resolve server " + serverHostPort + ": " + uhe.getMessage());
+          System.exit(1);
+        }
+      } else {
+        servers.add(new Server(serverHostPort));
+      }
+      for (Server server : servers) {
+        if (null == config.jumphost) {
+          server.setTlsTransport(config.serverTls);
+          server.setDnsCache(dnsCache);
+        }
+        if (!config.serverWeightList.isEmpty()) {
+          server.configuredWeight = config.serverWeightList.get(i);
+        }
+        if (config.serverProfileList.size() == 1) {
+          server.setSocketProfile(SocketProfile.forName(config.serverProfileList.get(0)));
+        } else if (!config.serverProfileList.isEmpty()) {
+          server.setSocketProfile(SocketProfile.forName(config.serverProfileList.get(i)));
+        }
+        serverList.add(server);
+      }
+    }
+
+    if (config.maxTunnels > 0) {
+      admission = new AdmissionControl(config.maxTunnels, config.admissionQueue,
+                                       config.admissionTimeoutMs);
+    }
+    if (config.httpMode) {
+      httpSetupExecutor = new ThreadPoolExecutor(
+          config.httpSetupThreads, config.httpSetupThreads, HTTP_SETUP_IDLE_SECONDS,
+          TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(HTTP_SETUP_QUEUE_SIZE),
+          new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "httpSetup");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      httpSetupExecutor.allowCoreThreadTimeOut(true);
+    }
+    reaper = new TunnelReaper(config.idleTimeoutMs, config.clientIdleTimeoutMs,
+                              config.serverIdleTimeoutMs, config.minBytesPerSecond,
+                              config.minRateWindowMs);
+    if (reaper.isEnabled()) {
+      reaper.start();
+    }
+    if (config.webHdfsCacheBytes > 0) {
+      webHdfsCache = new WebHdfsCache(config.webHdfsCacheTtls, config.webHdfsCacheNegativeTtlMs,
+                                      config.webHdfsCacheBytes);
+    }
+    if (null != config.contentCacheDir) {
+      try {
+        contentCache = new WebHdfsContentCache(config.contentCacheDir, config.contentCacheBytes);
+      } catch (IOException ioe) {
+        LOG.error("Could not open content cache in " + config.contentCacheDir + ": " +
+                  ioe.getMessage());
+        System.exit(1);
+      }
+    }
+    if (config.readAheadBytes > 0) {
+      readAhead = new ReadAhead(config.readAheadBytes, config.readAheadDepth);
+      readAhead.start();
+    }
+    if (config.uploadPartBytes > 0) {
+      try {
+        multipartUpload = new MultipartUpload(config.uploadSpillDir, config.uploadPartBytes,
+                                              config.uploadParallelism, config.uploadWriters);
+      } catch (IOException ioe) {
+        LOG.error(ioe.getMessage());
+        System.exit(1);
       }
-      assert null != server;
-      serverList.add(server);
     }
 
-    // Open our listening port.
+    // Open our listening port, or our Unix domain socket.
     tcpProxyPort = config.listeningPort;
     try {
-      tcpProxyService = new ServerSocket(tcpProxyPort);
-      LOG.info("Listening for incoming clients on port " + tcpProxyPort);
+      listenerProfile = SocketProfile.forName(config.listenerProfile);
+      if (null == config.listeningPath) {
+        tcpProxyService = listenerProfile.createServerSocket(tcpProxyPort, config.acceptBacklog);
+      } else {
+        tcpProxyService = listenerProfile.createServerSocket(config.listeningPath,
+                                                             config.acceptBacklog);
+      }
+      listenerOptions = "backlog=" + (config.acceptBacklog > 0 ? config.acceptBacklog
+                                                               : listenerProfile.backlog) +
+                        " rcvbuf=" + tcpProxyService.getReceiveBufferSize();
+      LOG.info("Listening for incoming clients on " + getListenAddress());
     } catch (IOException ioe) {
-      LOG.error("IO exception while establishing proxy service on port " + tcpProxyPort);
+      LOG.error("IO exception while establishing proxy service on " + getListenAddress() + ": " +
+                ioe.getMessage());
       System.exit(1);
     }
 
     // Set load balancer.
-    if (config.loadBalancerString.equals("LeastUsed")) {
-      loadBalancer = new LeastUsed(getServerList());
-    } else if (config.loadBalancerString.equals("UniformRandom")) {
-      loadBalancer = new UniformRandom(getServerList());
-    } else {
-      loadBalancer = new RoundRobin(getServerList());
-    }
-    setLoadBalancer(loadBalancer);
-  }
-
-  public ArrayList<Server> getServerList() {
-    return serverList;
-  }
-
-  public void setupTunnel(Socket clientSocket) {
-    final int RETRY_MAX = 3;
-    for (int i = 0; i < RETRY_MAX; i++) {
-      Server server = loadBalancer.getServer();
-      try {
-        server.establishTunnel(clientSocket);
-        break;
-      } catch (IOException ioe) {
-        LOG.error("Error while connecting to server " +
-                  server.hostPort);
-        server.incrementFailedConn();
+    membership = new ServerMembership(this, config.jumphost, config.loadBalancerString,
+                                      config.serverWeightList.isEmpty());
+    membership.setTlsTransport(config.serverTls);
+    membership.setDnsCache(dnsCache, config.expandDns);
+    membership.setDrainTimeout(config.drainTimeoutMs);
+    try {
+      membership.start();
+      if (null != config.serversFile) {
+        // Servers are already there, this only sets their drain flags.
+        membership.apply(MembershipFile.read(config.serversFile));
+        membership.startWatching(config.serversFile, ServerMembership.WATCH_PERIOD_MS);
+      }
+      if (config.expandDns) {
+        membership.startResolving(dnsCache.getTtlMillis());
       }
+    } catch (Exception e) {
+      LOG.error("Could not create load balancer " + config.loadBalancerString + ": " + e);
+      System.exit(1);
     }
-  }
 
-  public void runListeningLoop() {
-    while (!tcpProxyService.isClosed()) {
-      try {
-        Socket clientSocket = null;
-        clientSocket = tcpProxyService.accept();
-        if (null != clientSocket) {
-          setupTunnel(clientSocket);
+    // Launch ServerStats thread once everything it reports on is set up.
+    FlightEvents.get().addPeriodicSampler(new Runnable() {
+      public void run() {
+        for (Server server : serverList) {
+          FlightEvents.get().serverThroughput(server.hostPort,
+                                              server.byteRateCnt.getLastSecondCnt(),
+                                              server.openTunnelCnt.get(),
+                                              server.failedCnt.getLastSecondCnt(),
+                                              server.isHealthy());
         }
-      } catch (IOException ioe) {
-        LOG.error("IOException while accepting connection: " + ioe.getMessage());
       }
-    }
+    });
+
+    AdminAccess adminAccess = new AdminAccess(config.adminToken);
+    ServerStatus serverStatus = new ServerStatus(this, config.statusPort);
+    serverStatus.addContext(ConnectionsHandler.PATH, new ConnectionsHandler(this, adminAccess));
+    serverStatus.addContext(MembershipHandler.PATH,
+                            new MembershipHandler(this, membership, adminAccess));
+    new Thread(serverStatus).start();
   }
 
-  public void stop() {
-    for (Server server: serverList) {
-      server.close();
+  /*
+   *  @param name          Name of a built-in load balancer, or name of a class implementing
+   *                       LoadBalancer with a public constructor taking a ServerScoreboard.
+   *  @param scoreboard    Servers to balance.
+   *  @param learnWeights  Whether WeightedRoundRobin should learn its weights.
+   */
+  static LoadBalancer createLoadBalancer(String name, ServerScoreboard scoreboard,
+                                         boolean learnWeights) throws Exception {
+    if (name.equals("LeastUsed")) {
+      return new LeastUsed(scoreboard);
+    } else if (name.equals("UniformRandom")) {
+      return new UniformRandom(scoreboard);
+    } else if (name.equals("PowerOfTwoChoices")) {
+      return new PowerOfTwoChoices(scoreboard);
+    } else if (name.equals("Maglev")) {
+      return new Maglev(scoreboard);
+    } else if (name.equals("WeightedRoundRobin")) {
+      return new WeightedRoundRobin(scoreboard, learnWeights);
+    } else if (name.equals("RoundRobin")) {
+      return new RoundRobin(scoreboard);
     }
+    Class<? extends LoadBalancer> loadBalancerClass =
+        Class.forName(name).asSubclass(LoadBalancer.class);
+    return loadBalancerClass.getConstructor(ServerScoreboard.class).newInstance(scoreboard);
   }
 
-  @Override
-  public String getServerName() {
-    return name;
+  public ArrayList<Server> getServerList() {
+    return serverList;
   }
 
-  public static Options getCommandLineOptions() {
-    Options options = new Options();
-
-    options.addOption("v", "verbose", false, "Verbose logging.");
-
-    options.addOption("V", "version", false, "Print version number.");
-
-    options.addOption(OptionBuilder.withLongOpt("port")
-                                   .withDescription("Listening port for proxy clients. " +
-                                       "Default listening port is " +
-                                       ProxyConfiguration.defaultListeningPort + ".")
-                                   .withArgName("PORT")
-                                   .withType(Number.class)
-                                   .hasArg()
-                                   .create('p'));
-
-    options.addOption(OptionBuilder.withLongOpt("webstatus_port")
-                                   .withDescription("Port for proxy status in html format: " +
-                                       "http://localhost:" +
-                                       ProxyConfiguration.defaultStatusPort + "/stats")
-                                   .withArgName("STATUS_PORT")
-                                   .withType(Number.class)
-                                   .hasArg()
-                                   .create('w'));
-
-    options.addOption(OptionBuilder.withLongOpt("servers")
-                                   .withArgName("HOST1:PORT1> <HOST2:PORT2")
-                                   .withDescription("Server/servers for the proxy to connect to" +
-                                                    " in host:port format.")
-                                   .hasArgs()
-                                   .withValueSeparator(' ')
-                                   .create('s'));
-
-    options.addOption(OptionBuilder.withLongOpt("num_servers")
-                                   .withArgName("NUM_SERVERS")
-                                   .withDescription("Number of servers to instatntiate.")
-                                   .hasArgs()
-                                   .create('n'));
-
-    options.addOption(OptionBuilder.withLongOpt("load_balancer")
-                                   .withArgName("LOAD_BALANCER")
-                                   .withDescription("Load balancing algorithm. Options: " +
-                                                    "RoundRobin, LeastUsed, UniformRandom.")
-                                   .hasArg()
-                                   .create('b'));
-
-    options.addOption(OptionBuilder.withLongOpt("ssh_binary")
-        .withArgName("SSH_BINARY")
-        .withDescription("Optional path to use as ssh command. Default is ssh.")
-        .hasArg()
-        .create());
-
-    options.addOption(OptionBuilder.withLongOpt("jumphost_user")
-        .withArgName("USER")
-        .withDescription("Username for ssh to jumphost.")
-        .hasArg()
-        .create('u'));
-
-    options.addOption(OptionBuilder.withLongOpt("jumphost_credentials")
-        .withArgName("FILENAME")
-        .withDescription("Filename for optional ssh credentials (ssh -i option).")
-        .hasArg()
-        .create('i'));
-
-    options.addOption("C", "jumphost_compression", false, "Enable compression in ssh tunnels.");
-
-    options.addOption(OptionBuilder.withLongOpt("jumphost_ciphers")
-        .withArgName("CIPHER_SPEC")
-        .withDescription("Select ciphers for ssh tunnel encryption (ssh -c option).")
-        .hasArg()
-        .create('c'));
-
-    options.addOption(OptionBuilder.withLongOpt("jumphost")
-        .withArgName("JUMPHOST:JH_PORT")
-        .withDescription("Connect to servers via ssh tunnel to jumphost in jumphost:port format. " +
-            "You still need to specify servers and their ports using --servers.")
-        .hasArg()
-        .create('j'));
-
-    options.addOption(OptionBuilder.withLongOpt("jumphost_server")
-        .withArgName("JHSERVER:JHS_PORT")
-        .withDescription("Jumphost server behind the firewall to connect all servers using: " +
-            "SSH_BINARY -i ~/.ssh/id_rsa -n -N -L PORT:JHSERVER:JHS_PORT -l USER " +
-            "-p JH_PORT JUMPHOST")
-        .hasArg()
-        .create('y'));
-
-    options.addOption("o", "openInterfaces", false,
-        "Open all interfaces for ssh tunnel using \\* as bind_address: " +
-        "SSH_BINARY \\*:PORT:JHSERVER:JHS_PORT");
-
-    options.addOption(OptionBuilder.withLongOpt("help").create('h'));
-
-    return options;
+  LoadBalancer getLoadBalancer() {
+    return loadBalancer;
   }
 
-  public void setLoadBalancer(LoadBalancer loadBalancer) {
-    this.loadBalancer = loadBalancer;
+  public ServerMembership getMembership() {
+    return membership;
   }
 
-  public static void printHelp(Options options) {
-    String header = "Connects clients to multiple replicas of the same server." +
-                    "It can also setup multiple ssh tunnels via jumphost to a single server" +
-                    "Listens on <PORT> and forwards " +
-                    "incomming connections to " +
-                    "<HOST1:PORT1> <HOST2:PORT2> ...\n\n";
-    String footer = "";
-    HelpFormatter formatter = new HelpFormatter();
-    formatter.printHelp("TransferAccelerator", header, options, footer, true);
+  /*
+   *  Publishes a new server list and load balancer. The load balancer goes last, so a tunnel
+   *  that picks one of its servers finds that server in the list as well.
+   */
+  void publishRouting(ArrayList<Server> servers, LoadBalancer newLoadBalancer) {
+    serverList = servers;
+    loadBalancer = newLoadBalancer;
   }
 
-  private static ProxyConfiguration assembleConfigFromCommandLine(Options options, String[] args) {
-    CommandLine commandLine = null;
-    try {
-      commandLine = new GnuParser().parse(options, args);
-    } catch (org.apache.commons.cli.ParseException e) {
-      LOG.info("Parsing exception" + e.getMessage());
-      printHelp(options);
-      System.exit(1);
-    }
-
-    if (commandLine.hasOption("h")) {
-      printHelp(options);
-      System.exit(1);
-    }
+  void publishServerList(ArrayList<Server> servers) {
+    serverList = servers;
+  }
 
-    if (commandLine.hasOption("version")) {
-      LOG.info("Transfer Accelerator Version " +  getProxyVersion());
-      System.exit(1);
+  /*
+   *  Picks the affinity key for the client from the first HTTP request if we are configured to
+   *  do so and we have one. Otherwise we keep the client address.
+   */
+  void setAffinityKey(ConnectionContext context) {
+    HttpRequestHead request = context.httpRequest;
+    String key = null;
+    if (null == request) {
+      return;
+    } else if (config.affinityKey.equals(ProxyConfiguration.AFFINITY_USER_NAME)) {
+      key = request.getQueryParameter("user.name");
+    } else if (config.affinityKey.startsWith(ProxyConfiguration.AFFINITY_HEADER_PREFIX)) {
+      key = request.getHeader(
+          config.affinityKey.substring(ProxyConfiguration.AFFINITY_HEADER_PREFIX.length()));
     }
-
-    if (commandLine.hasOption("verbose") ) {
-      LogManager.getRootLogger().setLevel(Level.DEBUG);
+    if (null != key) {
+      context.affinityKey = key;
     }
+  }
 
-    ProxyConfiguration conf = new ProxyConfiguration();
+  public AdmissionControl getAdmissionControl() {
+    return admission;
+  }
 
-    if (commandLine.hasOption("port")) {
-      conf.listeningPort = Integer.parseInt(commandLine.getOptionValue("port"));
+  /*
+   *  Turns away a client that AdmissionControl shed or that we couldn't connect to any server.
+   *  In http mode it gets a 503 so it knows to retry later, otherwise we just close the
+   *  connection, which at least fails it fast.
+   */
+  void shedClient(Socket clientSocket) {
+    LOG.debug("Shedding client " + clientSocket.getRemoteSocketAddress());
+    try {
+      if (null != config && config.httpMode) {
+        clientSocket.getOutputStream().write(SERVICE_UNAVAILABLE);
+      }
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while sending 503 to client: " + ioe.getMessage());
     }
-
-    if (commandLine.hasOption("webstatus_port")) {
-      conf.statusPort =  Integer.parseInt(commandLine.getOptionValue("webstatus_port"));
+    try {
+      clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
     }
+  }
 
-    // Maybe add jumphost.
-    HostPort jumphostSshd = null;
-    if (commandLine.hasOption("jumphost")) {
-      String jumphostString = commandLine.getOptionValue("jumphost");
+  public void setupTunnel(Socket clientSocket) {
+    setupTunnel(clientSocket, false);
+  }
+
+  /*
+   *  @param admitted  True if the client already has an admission slot.
+   */
+  private void setupTunnel(Socket clientSocket, boolean admitted) {
+    ConnectionContext context = new ConnectionContext(clientSocket);
+    context.capture = capture;
+    context.accessLog = accessLog;
+    if (null != listenerProfile) {
       try {
-        jumphostSshd = conf.parseServerString(jumphostString);
-      } catch (URISyntaxException e) {
-        LOG.error("Server path parsing exception for jumphost: " + e.getMessage());
-        printHelp(options);
-        System.exit(1);
+        listenerProfile.apply(clientSocket);
+      } catch (IOException ioe) {
+        LOG.debug("Could not set socket options on client socket: " + ioe.getMessage());
       }
     }
-
-    // Add jumphostServer if we have a jumphost.
-    HostPort jumphostServer = null;
-    if (commandLine.hasOption("jumphost_server")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_server.");
-        printHelp(options);
-        System.exit(1);
-      }
-      String jumphostServerString = commandLine.getOptionValue("jumphost_server");
+    if (null != config && config.httpMode) {
       try {
-        jumphostServer = conf.parseServerString(jumphostServerString);
-        if (jumphostServer.port == -1) {
-          throw new URISyntaxException(jumphostServerString,
-                                       "Jumphost server parameter missing port.");
+        context.httpRequest = HttpRequestHead.read(clientSocket, HTTP_HEAD_MAX_BYTES,
+                                                   HTTP_HEAD_TIMEOUT_MS);
+      } catch (IOException ioe) {
+        LOG.error("Could not read HTTP request from client: " + ioe.getMessage());
+        try {
+          clientSocket.close();
+        } catch (IOException e) {
+          LOG.debug("IO exception while closing client socket: " + e.getMessage());
         }
-      } catch (URISyntaxException e) {
-        LOG.error("Server path parsing exception for jumphost_server:" + e.getMessage());
-        printHelp(options);
-        System.exit(1);
+        if (admitted) {
+          admission.release();
+        }
+        return;
       }
+      setAffinityKey(context);
     }
 
-    // Maybe add jumphostUser if we have a jumphost.
-    String jumphostUser = null;
-    if (commandLine.hasOption("jumphost_user")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_user.");
-        printHelp(options);
-        System.exit(1);
+    // Cache hits need neither a slot nor a server. Writes invalidate the cache when they come
+    // in and again once they are done, which also keeps reads that overlap them out of it.
+    String cacheKey = null;
+    long cacheGeneration = 0;
+    HttpRequestHead mutatingRequest = null;
+    if (null != webHdfsCache && null != context.httpRequest) {
+      if (webHdfsCache.isMutating(context.httpRequest)) {
+        mutatingRequest = context.httpRequest;
+        webHdfsCache.invalidate(mutatingRequest);
+      } else if (webHdfsCache.isCacheable(context.httpRequest)) {
+        cacheKey = webHdfsCache.getKey(context.httpRequest);
+        if (sendCachedResponse(clientSocket, cacheKey)) {
+          if (admitted) {
+            admission.release();
+          }
+          return;
+        }
+        cacheGeneration = webHdfsCache.getGeneration();
       }
-      jumphostUser = commandLine.getOptionValue("jumphost_user");
     }
-
-    // Maybe add jumphostCredentials if we have a jumphost.
-    String jumphostCredentials = null;
-    if (commandLine.hasOption("jumphost_credentials")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_credentials.");
-        printHelp(options);
-        System.exit(1);
+    // So do ranges we read ahead.
+    boolean rangeRead = false;
+    if (null != readAhead && null != context.httpRequest) {
+      if (null != WebHdfsCache.getOp(context.httpRequest) &&
+          WebHdfsCache.MUTATING_OPS.contains(WebHdfsCache.getOp(context.httpRequest))) {
+        readAhead.invalidate(context.httpRequest.path);
+      } else if (readAhead.isRangeRead(context.httpRequest)) {
+        rangeRead = true;
+        if (readAhead.serve(context, loadBalancer)) {
+          if (admitted) {
+            admission.release();
+          }
+          return;
+        }
       }
-      jumphostCredentials = commandLine.getOptionValue("jumphost_credentials");
     }
 
-    // Maybe set jumphostCompression if we have a jumphost.
-    boolean jumphostCompression = false;
-    if (commandLine.hasOption("jumphost_compression")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_compression.");
-        printHelp(options);
-        System.exit(1);
-      }
-      jumphostCompression = true;
+    if (!admitted && !admission.admit()) {
+      shedClient(clientSocket);
+      return;
     }
+    final AdmissionControl tunnelAdmission = admission;
+    final WebHdfsCache invalidatedCache = webHdfsCache;
+    final HttpRequestHead invalidatingRequest = mutatingRequest;
+    context.onTunnelClosed = new Runnable() {
+      public void run() {
+        tunnelAdmission.release();
+        if (null != invalidatingRequest) {
+          invalidatedCache.invalidate(invalidatingRequest);
+        }
+      }
+    };
 
-    // Maybe add jumphostCiphers if we have a jumphost.
-    String jumphostCiphers = null;
-    if (commandLine.hasOption("jumphost_ciphers")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify jumphost_ciphers.");
-        printHelp(options);
-        System.exit(1);
+    boolean cacheContent = null != contentCache && null != context.httpRequest &&
+                           WebHdfsContentCache.isCacheable(context.httpRequest);
+
+    final int RETRY_MAX = 3;
+    // Stick to one load balancer for all retries even if membership changes meanwhile.
+    LoadBalancer balancer = loadBalancer;
+    if (null != multipartUpload && null != context.httpRequest &&
+        multipartUpload.isCandidate(context.httpRequest)) {
+      multipartUpload.upload(balancer, context);
+      return;
+    }
+    for (int i = 0; i < RETRY_MAX; i++) {
+      context.attempt = i;
+      long decisionStart = System.nanoTime();
+      Server server = pickRoutableServer(balancer, context);
+      if (null == server) {
+        continue;
+      }
+      FlightEvents.get().loadBalancerDecision(balancer.getClass().getSimpleName(),
+                                              server.hostPort, i, context.affinityKey,
+                                              System.nanoTime() - decisionStart);
+      try {
+        if (null != cacheKey) {
+          fetchIntoCache(server, context, cacheKey, cacheGeneration);
+        } else if (cacheContent && contentCache.canCache(server)) {
+          serveContent(server, context);
+        } else if (rangeRead) {
+          fetchRange(server, context);
+        } else {
+          reaper.watch(server.establishTunnel(context));
+        }
+        return;
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " +
+                  server.hostPort);
+        server.incrementFailedConn();
       }
-      jumphostCiphers = commandLine.getOptionValue("jumphost_ciphers");
     }
+    tunnelAdmission.release();
+    admission.shed(AdmissionControl.SHED_NO_SERVER);
+    shedClient(clientSocket);
+  }
 
-    // Maybe add sshBinary if we have a jumphost.
-    String sshBinary = null;
-    if (commandLine.hasOption("ssh_binary")) {
-      if (!commandLine.hasOption("jumphost")) {
-        LOG.error("You need to specify jumphost if you specify ssh_binary.");
-        printHelp(options);
-        System.exit(1);
-      }
-      sshBinary = commandLine.getOptionValue("ssh_binary");
+  /*
+   *  Picks a server for context with balancer. If membership changed since we took balancer
+   *  and the server it picked was removed or drained meanwhile, picks again with the current
+   *  load balancer.
+   *
+   *  @return  The server, or null if that one is not routable either.
+   */
+  Server pickRoutableServer(LoadBalancer balancer, ConnectionContext context) {
+    Server server = balancer.getServer(context);
+    if (!server.isRoutable()) {
+      server = loadBalancer.getServer(context);
+    }
+    return server.isRoutable() ? server : null;
+  }
+
+  /*
+   *  Answers the client from the WebHDFS cache and closes the connection.
+   *
+   *  @return  False if we have no fresh response for key.
+   */
+  private boolean sendCachedResponse(Socket clientSocket, String key) {
+    byte[] response = webHdfsCache.get(key);
+    if (null == response) {
+      return false;
+    }
+    try {
+      clientSocket.getOutputStream().write(response);
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while sending cached response: " + ioe.getMessage());
     }
-    boolean openInterfaces = false;
-    if (commandLine.hasOption("openInterfaces")) {
-      openInterfaces = true;
+    try {
+      clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
     }
+    return true;
+  }
 
-    // Add jumphost to the config.
-    if (null != jumphostSshd && null != jumphostServer) {
-      conf.jumphost = new JumpHost(jumphostSshd, jumphostServer,
-                                   jumphostUser, jumphostCredentials,
-                                   jumphostCompression, jumphostCiphers,
-                                   sshBinary,
-                                   openInterfaces);
+  /*
+   *  Sends a cacheable request to server, copies the response to the client and keeps it in the
+   *  WebHDFS cache. Closes the client and runs context.onTunnelClosed when done.
+   *
+   *  @throws IOException  If we could not connect to server. The client is still open then.
+   */
+  private void fetchIntoCache(Server server, ConnectionContext context, String key,
+                              long generation) throws IOException {
+    byte[] response = server.fetch(context, webHdfsCache.getMaxEntryBytes());
+    if (null != response) {
+      webHdfsCache.put(key, context.httpRequest, response, generation);
+    }
+    try {
+      context.clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
     }
+    context.onTunnelClosed.run();
+  }
 
-    if (!commandLine.hasOption("num_servers") && !commandLine.hasOption("servers")) {
-      LOG.error("You need to specify one of the num_servers or servers flags.");
-      printHelp(options);
-      System.exit(1);
+  /*
+   *  Answers an OPEN request from the content cache or through server and keeps a copy. Closes
+   *  the client and runs context.onTunnelClosed when done.
+   *
+   *  @throws IOException  If we could not connect to server. The client is still open then.
+   */
+  private void serveContent(Server server, ConnectionContext context) throws IOException {
+    contentCache.serve(server, context);
+    try {
+      context.clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
     }
+    context.onTunnelClosed.run();
+  }
 
-    if (commandLine.hasOption("num_servers") && commandLine.hasOption("servers")) {
-      LOG.error("You need to specify one of the num_servers or servers flags, not both.");
-      printHelp(options);
-      System.exit(1);
+  /*
+   *  Sends a range read to server on a connection of its own and copies the response to the
+   *  client, so that we see the next range read of the client too. Closes the client and runs
+   *  context.onTunnelClosed when done.
+   *
+   *  @throws IOException  If we could not connect to server. The client is still open then.
+   */
+  private void fetchRange(Server server, ConnectionContext context) throws IOException {
+    server.fetch(context.httpRequest.getHeadWithConnectionClose(), context.attempt,
+                 context.clientSocket.getOutputStream(), null, 0);
+    try {
+      context.clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing client socket: " + ioe.getMessage());
     }
+    context.onTunnelClosed.run();
+  }
 
-    // Add servers.
-    if (commandLine.hasOption("num_servers")) {
+  public void runListeningLoop() {
+    while (!tcpProxyService.isClosed()) {
       try {
-        int num_servers = Integer.parseInt(commandLine.getOptionValue("num_servers"));
-        if (num_servers > TcpProxyServer.MAX_NUM_SERVERS ) {
-          throw new Exception("Please specify -servers.");
+        Socket clientSocket = null;
+        clientSocket = tcpProxyService.accept();
+        if (null != clientSocket && null != config.listenerTls) {
+          try {
+            clientSocket = config.listenerTls.wrapServer(clientSocket);
+          } catch (IOException ioe) {
+            clientSocket.close();
+            throw ioe;
+          }
         }
-        for (int i = 0; i < num_servers; i++) {
-          conf.parseServerStringAndAdd("localhost:" + (TcpProxyServer.START_PORT_RANGE + i));
+        if (null != clientSocket) {
+          clientSetupCnt.incrementAndGet();
+          // Clients get a slot before we read their request, so that setup threads are
+          // bounded by the admission limits. Cache hits give their slot back right away.
+          if (admission.tryAdmit()) {
+            if (null != httpSetupExecutor) {
+              // Reading the request can take a while, don't hold up the accept loop.
+              final Socket httpClientSocket = clientSocket;
+              try {
+                httpSetupExecutor.execute(new Runnable() {
+                  public void run() {
+                    try {
+                      setupTunnel(httpClientSocket, true);
+                    } finally {
+                      clientSetupCnt.decrementAndGet();
+                    }
+                  }
+                });
+              } catch (RejectedExecutionException e) {
+                // All setup threads are busy and their queue is full.
+                admission.release();
+                admission.shed(AdmissionControl.SHED_QUEUE_FULL);
+                shedClient(clientSocket);
+                clientSetupCnt.decrementAndGet();
+              }
+            } else {
+              try {
+                setupTunnel(clientSocket, true);
+              } finally {
+                clientSetupCnt.decrementAndGet();
+              }
+            }
+          } else if (admission.enqueue()) {
+            // Wait for a slot without holding up the accept loop.
+            final Socket queuedClientSocket = clientSocket;
+            new Thread(new Runnable() {
+              public void run() {
+                try {
+                  if (admission.awaitAdmission()) {
+                    setupTunnel(queuedClientSocket, true);
+                  } else {
+                    shedClient(queuedClientSocket);
+                  }
+                } finally {
+                  clientSetupCnt.decrementAndGet();
+                }
+              }
+            }, "admissionQueue").start();
+          } else {
+            shedClient(clientSocket);
+            clientSetupCnt.decrementAndGet();
+          }
         }
-      } catch (Exception e) {
-        LOG.error("num_servers parsing exception " + e.getMessage());
-        printHelp(options);
-        System.exit(1);
+      } catch (IOException ioe) {
+        if (draining) {
+          break;
+        }
+        LOG.error("IOException while accepting connection: " + ioe.getMessage());
       }
     }
+  }
+
+  public void stop() {
+    if (null != membership) {
+      membership.stopWatching();
+    }
+    reaper.stop();
+    if (null != httpSetupExecutor) {
+      httpSetupExecutor.shutdown();
+    }
+    if (null != readAhead) {
+      readAhead.stop();
+    }
+    if (null != dnsCache) {
+      dnsCache.stop();
+    }
+    if (null != capture) {
+      capture.stop();
+    }
+    if (null != accessLog) {
+      accessLog.stop();
+    }
+    for (Server server: serverList) {
+      server.close();
+    }
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  // Open tunnels plus clients still getting one.
+  int getPendingTunnelCnt() {
+    int pending = clientSetupCnt.get();
+    for (Server server : serverList) {
+      pending += server.openTunnelCnt.get();
+    }
+    return pending;
+  }
 
-    if (commandLine.hasOption("servers")) {
-      String[] servers = commandLine.getOptionValues("servers");
+  /*
+   *  Stops accepting clients and waits for the open tunnels to finish. Servers only get their
+   *  draining flag: with all of them draining there is nothing to build a new load balancer
+   *  over, and clients we already accepted still get a tunnel through the current one.
+   *
+   *  @param timeoutMillis  How long we wait before closing the tunnels still open.
+   *
+   *  @return  Number of tunnels we closed because they were still open at the deadline.
+   */
+  public int drain(long timeoutMillis) {
+    draining = true;
+    if (null != membership) {
+      membership.stopWatching();
+    }
+    if (null != tcpProxyService) {
       try {
-        for (String server : servers) {
-          conf.parseServerStringAndAdd(server);
-        }
-      } catch (URISyntaxException e) {
-        LOG.error("Server path parsing exception " + e.getMessage());
-        printHelp(options);
-        System.exit(1);
+        tcpProxyService.close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing listening socket: " + ioe.getMessage());
       }
     }
+    for (Server server : serverList) {
+      server.draining = true;
+    }
+    LOG.info("Draining " + getPendingTunnelCnt() + " connections for up to " + timeoutMillis +
+             " ms.");
 
-    // Maybe set load balancer.
-    if (commandLine.hasOption("load_balancer")) {
-      HashSet<String> loadBalancers = new HashSet<String>(
-          Arrays.asList("RoundRobin", "LeastUsed", "UniformRandom"));
-      conf.loadBalancerString = commandLine.getOptionValue("load_balancer");
-      if (!loadBalancers.contains(conf.loadBalancerString)) {
-        LOG.error("Bad load_balancer value.");
-        printHelp(options);
-        System.exit(1);
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (0 != getPendingTunnelCnt() && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(DRAIN_POLL_MS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
       }
     }
-    return conf;
+
+    int closed = 0;
+    for (Server server : serverList) {
+      closed += server.closeAllTunnels();
+    }
+    if (0 != closed) {
+      LOG.warn("Closed " + closed + " connections still open after the drain timeout.");
+    } else {
+      LOG.info("All connections drained.");
+    }
+    return closed;
+  }
+
+  /*
+   *  Drains, then stops. Called on shutdown.
+   */
+  public void shutdown() {
+    if (null != config) {
+      drain(config.drainTimeoutMs);
+    }
+    stop();
+  }
+
+  @Override
+  public String getServerName() {
+    return name;
+  }
+
+  // Where our clients connect to, for log messages.
+  private String getListenAddress() {
+    return null == config.listeningPath ? "port " + tcpProxyPort
+                                        : "Unix domain socket " + config.listeningPath;
+  }
+
+  public void setLoadBalancer(LoadBalancer loadBalancer) {
+    this.loadBalancer = loadBalancer;
   }
 
   public static String getProxyVersion() {
@@ -676,17 +1260,24 @@ public class TcpProxyServer implements ServerWithStats {
     LOG.info("Version " + proxy.getVersion());
 
     // Create the options.
-    Options options = getCommandLineOptions();
+    Options options = ProxyConfiguration.getCommandLineOptions();
 
     LogManager.getRootLogger().setLevel(Level.INFO);
 
-    ProxyConfiguration config = assembleConfigFromCommandLine(options, args);
+    ProxyConfiguration config = ProxyConfiguration.assembleConfigFromCommandLine(options, args);
+
+    if (null != config.benchWorkload) {
+      System.exit(LoopbackBenchmark.runAndReport(proxy, config));
+    }
+    if (null != config.replayFile) {
+      System.exit(TrafficReplay.runAndReport(config));
+    }
 
     proxy.init(config);
 
     if (proxy.getServerList().size() < 1) {
       LOG.error("No server specified.");
-      printHelp(options);
+      ProxyConfiguration.printHelp(options);
       System.exit(1);
     }
 
@@ -24,7 +24,12 @@ import java.io.DataOutputStream;
 import java.lang.Thread;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.altiscale.Util.FlightEvents;
 import com.altiscale.Util.SecondMinuteHourCounter;
 import com.altiscale.TcpProxy.Server;
 
@@ -57,6 +62,58 @@ public class TcpTunnel {
 
   private Server server;
 
+  // Size of the buffer each direction copies data through.
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+
+  // Why a tunnel closed, see getCloseReason. TunnelReaper passes its own reasons to close().
+  public static final String CLOSED_BY_CLIENT = "client";
+  public static final String CLOSED_BY_SERVER = "server";
+  public static final String CLOSED_ON_ERROR = "error";
+  public static final String CLOSED_BY_PROXY = "proxy";
+
+  // Source of unique tunnel ids.
+  private static final AtomicLong nextId = new AtomicLong(0);
+
+  // Unique id of this tunnel, used to find it in the connection table.
+  private long id;
+
+  // Client host:port, kept as a string so it stays available after the socket is closed.
+  private String clientAddress;
+
+  // Wall clock time when we created the tunnel.
+  private long startMillis;
+
+  // Size of the buffer of each direction, see setBufferSize.
+  private int bufferSize;
+
+  // Number of directions still running. Whichever finishes last reports the tunnel as closed.
+  private AtomicInteger runningDirections;
+
+  // Run when the tunnel closed, or null.
+  private Runnable closeListener;
+
+  // Set by the first close(), so we close the sockets once.
+  private AtomicBoolean closeCalled;
+
+  // Time when we created the tunnel, for its duration.
+  private long startNanos;
+
+  // Time when we forwarded the first client byte to the server, or 0 if we did not yet. We use
+  // it to measure how long the server takes to send back its first byte.
+  private volatile long firstRequestByteNanos;
+
+  // Records what we relay, or null if we don't capture this tunnel. See setCapture.
+  private TrafficCapture.Tunnel captured;
+
+  // Logs the tunnel once it closed, or null.
+  private AccessLog accessLog;
+
+  // How long we took to connect to the server, 0 if we don't know.
+  private long connectNanos;
+
+  // Why the tunnel closed, set by whatever ended it first. Null while it is open.
+  private AtomicReference<String> closeReason;
+
   // We are just a proxy. We create two pipes, proxy all data and whoever closes the
   // connection first our job is to simply close the other end as well.
   protected class OneDirectionTunnel implements Runnable {
@@ -70,6 +127,16 @@ public class TcpTunnel {
 
     private Server proxyServer;
 
+    // Bytes written to the destination. Only this direction's thread writes it.
+    private volatile long bytesTransferred;
+
+    // Wall clock time of the last data we relayed.
+    private volatile long lastActivityMillis;
+
+    // Data we already read from the source and have to write before anything else.
+    private byte[] initialData;
+    private int initialLength;
+
     /**
      *  OneDirectionalTunnel is responsible for reading on its source socket and writing
      *  all data to its destination socket. It is blocking, so it runs in its own thread.
@@ -88,6 +155,15 @@ public class TcpTunnel {
       destinationSocket = destination;
       byteRateCnt = new SecondMinuteHourCounter(name + " byteRateCnt");
       this.proxyServer = proxyServer;
+      bytesTransferred = 0;
+      lastActivityMillis = System.currentTimeMillis();
+      initialData = null;
+      initialLength = 0;
+    }
+
+    public void setInitialData(byte[] data, int length) {
+      initialData = data;
+      initialLength = length;
     }
 
     /*
@@ -115,19 +191,50 @@ public class TcpTunnel {
         output = new DataOutputStream(destinationSocket.getOutputStream());
       } catch (IOException ioe) {
         LOG.error("Could not open input or output stream.");
+        closeReason.compareAndSet(null, CLOSED_ON_ERROR);
+        // Close the sockets so that the other direction finishes too.
+        try {
+          closeConnection();
+        } catch (IOException e) {
+          LOG.debug("IO exception while closing sockets: " + e.getMessage());
+        }
+        directionFinished();
         return;
       }
       proxyServer.incrementOpenedConn();
       int cnt = 0;
-      byte[] buffer = new byte[1024 * 8];  // 8KB buffer.
+      boolean isFirstRead = true;
+      byte[] buffer = new byte[bufferSize];
       try {
+        if (null != initialData && initialLength > 0) {
+          recordFirstByte();
+          isFirstRead = false;
+          output.write(initialData, 0, initialLength);
+          if (null != captured) {
+            captured.data(true, initialData, 0, initialLength);
+          }
+          bytesTransferred += initialLength;
+          byteRateCnt.incrementBy(initialLength);
+          proxyServer.incrementByteRateBy(initialLength);
+          output.flush();
+          initialData = null;
+        }
         do {
 
           // Read some data.
           cnt = input.read(buffer);
 
           if (cnt > 0) {
+            if (isFirstRead) {
+              recordFirstByte();
+              isFirstRead = false;
+            }
             output.write(buffer, 0, cnt);
+            if (null != captured) {
+              captured.data(this == clientServer, buffer, 0, cnt);
+            }
+            bytesTransferred += cnt;
+            lastActivityMillis = System.currentTimeMillis();
 
             // NOTE: if this becomes expensive, we can increment counter and flush less often.
             byteRateCnt.incrementBy(cnt);
@@ -135,7 +242,10 @@ public class TcpTunnel {
             output.flush();
           }
         } while (cnt >= 0);
+        closeReason.compareAndSet(null, this == clientServer ? CLOSED_BY_CLIENT
+                                                             : CLOSED_BY_SERVER);
       } catch (IOException ioe) {
+        closeReason.compareAndSet(null, CLOSED_ON_ERROR);
         LOG.debug("Closing socket after IO exception while reading: " + ioe.getMessage());
       }
       // Either the input stream is closed or we got an exception. Either way, close the
@@ -147,10 +257,37 @@ public class TcpTunnel {
         LOG.error("IO exception while closing sockets in thread [" + threadName +
             "]: " + ioe.getMessage());
       }
+      directionFinished();
+    }
 
-      LOG.debug(byteRateCnt.toString());
+    // Time-to-first-byte is the time between the first byte we forward to the server and the
+    // first byte we get back from it. Servers that talk first (no request yet) are not measured.
+    private void recordFirstByte() {
+      if (this == clientServer) {
+        firstRequestByteNanos = System.nanoTime();
+      } else if (0 != firstRequestByteNanos) {
+        proxyServer.recordFirstByteLatency(System.nanoTime() - firstRequestByteNanos);
+      }
+    }
 
-      LOG.debug("Exiting thread [" + threadName + "]");
+    private void directionFinished() {
+      if (0 == runningDirections.decrementAndGet()) {
+        long durationNanos = System.nanoTime() - startNanos;
+        proxyServer.tunnelClosed(TcpTunnel.this, durationNanos,
+                                 clientServer.bytesTransferred + serverClient.bytesTransferred);
+        FlightEvents.get().tunnelClosed(id, proxyServer.hostPort, clientAddress,
+                                        clientServer.bytesTransferred,
+                                        serverClient.bytesTransferred, durationNanos);
+        if (null != captured) {
+          captured.close(clientServer.bytesTransferred, serverClient.bytesTransferred);
+        }
+        if (null != accessLog) {
+          accessLog.log(TcpTunnel.this, durationNanos);
+        }
+        if (null != closeListener) {
+          closeListener.run();
+        }
+      }
     }
 
     public void closeConnection() throws IOException {
@@ -173,10 +310,84 @@ public class TcpTunnel {
                    Server proxyServer) {
     clientSocket = client;
     serverSocket = server;
+    this.server = proxyServer;
+    runningDirections = new AtomicInteger(2);
+    startNanos = System.nanoTime();
+    firstRequestByteNanos = 0;
+    id = nextId.incrementAndGet();
+    clientAddress = ConnectionContext.getClientAddress(client, true);
+    startMillis = System.currentTimeMillis();
+    bufferSize = DEFAULT_BUFFER_SIZE;
+    closeListener = null;
+    captured = null;
+    accessLog = null;
+    connectNanos = 0;
+    closeReason = new AtomicReference<String>(null);
+    closeCalled = new AtomicBoolean(false);
 
     // Create two one-directional tunnels to connect both pipes.
     clientServer = new OneDirectionTunnel(clientSocket, serverSocket, "clientServer", proxyServer);
     serverClient = new OneDirectionTunnel(serverSocket, clientSocket, "serverClient", proxyServer);
+
+    // Register last: the connection table, BufferAutoTuner and drain() use both directions as
+    // soon as they see the tunnel.
+    proxyServer.tunnelOpened(this);
+    FlightEvents.get().tunnelOpened(id, proxyServer.hostPort, clientAddress);
+  }
+
+  /*
+   *  TcpTunnel for a client whose first bytes we already read, for example to look at its HTTP
+   *  request.
+   *
+   *  @param  initialData    Bytes read from the client, sent to the server before anything else.
+   *  @param  initialLength  Number of valid bytes in initialData.
+   */
+  public TcpTunnel(Socket client, Socket server, Server proxyServer,
+                   byte[] initialData, int initialLength) {
+    this(client, server, proxyServer);
+    clientServer.setInitialData(initialData, initialLength);
+  }
+
+  /*
+   *  Sets the buffer size of both directions. Must be called before spawnTunnelThreads.
+   */
+  public void setBufferSize(int bytes) {
+    bufferSize = bytes;
+  }
+
+  /*
+   *  Sets what to run once both directions finished. Must be called before spawnTunnelThreads.
+   */
+  public void setCloseListener(Runnable listener) {
+    closeListener = listener;
+  }
+
+  /*
+   *  Records this tunnel with capture if it samples it. Must be called before spawnTunnelThreads.
+   */
+  public void setCapture(TrafficCapture capture) {
+    captured = capture.open(id, server.hostPort.toString(), clientAddress);
+  }
+
+  /*
+   *  Logs this tunnel to accessLog once it closed. Must be called before spawnTunnelThreads.
+   */
+  public void setAccessLog(AccessLog accessLog) {
+    this.accessLog = accessLog;
+  }
+
+  public void setConnectNanos(long nanos) {
+    connectNanos = nanos;
+  }
+
+  public long getConnectNanos() {
+    return connectNanos;
+  }
+
+  // Why the tunnel closed, one of the CLOSED_ reasons or a TunnelReaper reason, or null while
+  // it is open.
+  public String getCloseReason() {
+    return closeReason.get();
   }
 
   /*
@@ -187,4 +398,80 @@ public class TcpTunnel {
     clientServer.start();
     serverClient.start();
   }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getClientAddress() {
+    return clientAddress;
+  }
+
+  public Server getServer() {
+    return server;
+  }
+
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  public long getBytesToServer() {
+    return clientServer.bytesTransferred;
+  }
+
+  public long getBytesToClient() {
+    return serverClient.bytesTransferred;
+  }
+
+  // Bytes relayed in both directions in the last second.
+  public long getLastSecondByteRate() {
+    return clientServer.byteRateCnt.getLastSecondCnt() +
+           serverClient.byteRateCnt.getLastSecondCnt();
+  }
+
+  public long getLastActivityMillis() {
+    return Math.max(clientServer.lastActivityMillis, serverClient.lastActivityMillis);
+  }
+
+  // Wall clock time we last relayed data from the client, or created the tunnel.
+  public long getLastClientActivityMillis() {
+    return clientServer.lastActivityMillis;
+  }
+
+  // Wall clock time we last relayed data from the server, or created the tunnel.
+  public long getLastServerActivityMillis() {
+    return serverClient.lastActivityMillis;
+  }
+
+  // True once both directions finished.
+  public boolean isClosed() {
+    return 0 == runningDirections.get();
+  }
+
+  /*
+   *  Closes both sockets. Both directions then finish as if a peer had closed the connection.
+   *
+   *  @return  False if we already closed the tunnel before.
+   */
+  public boolean close() {
+    return close(CLOSED_BY_PROXY);
+  }
+
+  /*
+   *  Closes both sockets, see close().
+   *
+   *  @param reason  Why we close the tunnel, for getCloseReason.
+   */
+  public boolean close(String reason) {
+    if (!closeCalled.compareAndSet(false, true)) {
+      return false;
+    }
+    closeReason.compareAndSet(null, reason);
+    try {
+      clientServer.closeConnection();
+    } catch (IOException ioe) {
+      LOG.debug("IO exception while closing tunnel " + id + ": " + ioe.getMessage());
+    }
+    return true;
+  }
 }
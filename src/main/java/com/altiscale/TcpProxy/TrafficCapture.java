@@ -0,0 +1,382 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.Metrics;
+
+/**
+ * TrafficCapture records when a sampled subset of tunnels opened, when and how much they relayed
+ * in each direction, optionally what, and when they closed, so that TrafficReplay can play real
+ * traffic against a proxy in the lab.
+ *
+ * Relay threads only encode a record and put it in a queue, a writer thread appends the queue to
+ * the capture file. The queue holds at most maxQueuedBytes: when it is full we drop the record
+ * and stop capturing its tunnel instead of slowing down the relay, and the tunnel's close record
+ * says that it is incomplete. Once the file grew by maxFileBytes we stop capturing altogether.
+ *
+ * The file starts with MAGIC. Every proxy run appends a start record followed by the records of
+ * its tunnels. Numbers are unsigned varints, strings a varint length followed by UTF-8:
+ *
+ *   START      version, flags (FLAG_PAYLOAD), wall clock millis
+ *   OPEN       tunnel id, micros since start, server, client
+ *   TO_SERVER  tunnel id, micros since start, length, payload if FLAG_PAYLOAD
+ *   TO_CLIENT  like TO_SERVER
+ *   CLOSE      tunnel id, micros since start, bytes to server, bytes to client, 1 if complete
+ *
+ * In http mode only requests we tunnel are captured, not those answered by our caches.
+ */
+public class TrafficCapture {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final byte[] MAGIC = {'T', 'A', 'C', 'A', 'P', 'T', 'U', 'R'};
+  static final int VERSION = 1;
+  static final int FLAG_PAYLOAD = 1;
+
+  // Record types.
+  static final int START = 0;
+  static final int OPEN = 1;
+  static final int TO_SERVER = 2;
+  static final int TO_CLIENT = 3;
+  static final int CLOSE = 4;
+
+  public static final double DEFAULT_SAMPLE_RATE = 0.1;
+  public static final long DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+  public static final long DEFAULT_MAX_FILE_MB = 1024;
+
+  // How often the writer flushes the file while there is nothing to write.
+  private static final long FLUSH_MS = 1000;
+
+  // How long stop() waits for the writer to write what is queued.
+  private static final long STOP_WAIT_MS = 5000;
+
+  private final File file;
+  private final double sampleRate;
+  private final boolean payload;
+  private final long maxQueuedBytes;
+  private final long maxFileBytes;
+
+  private final LinkedBlockingQueue<Encoder> queue;
+  private final AtomicLong queuedBytes;
+  private volatile long startNanos;
+  private Thread writer;
+
+  // True between start() and stop().
+  private volatile boolean capturing;
+
+  // Set once the file grew by maxFileBytes.
+  private volatile boolean full;
+
+  // Tunnels we captured, records we wrote and dropped, and bytes we wrote.
+  public final AtomicLong tunnelCnt;
+  public final AtomicLong writtenCnt;
+  public final AtomicLong droppedCnt;
+  public final AtomicLong writtenBytesCnt;
+
+  /*
+   *  @param file            File we append the capture to.
+   *  @param sampleRate      Fraction of tunnels we capture, from 0 to 1.
+   *  @param payload         Whether we also record the bytes tunnels relay.
+   *  @param maxQueuedBytes  Most bytes of records waiting for the writer.
+   *  @param maxFileBytes    How much we write before we stop capturing.
+   */
+  public TrafficCapture(File file, double sampleRate, boolean payload, long maxQueuedBytes,
+                        long maxFileBytes) {
+    this.file = file;
+    this.sampleRate = sampleRate;
+    this.payload = payload;
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.maxFileBytes = maxFileBytes;
+    queue = new LinkedBlockingQueue<Encoder>();
+    queuedBytes = new AtomicLong(0);
+    capturing = false;
+    full = false;
+    tunnelCnt = new AtomicLong(0);
+    writtenCnt = new AtomicLong(0);
+    droppedCnt = new AtomicLong(0);
+    writtenBytesCnt = new AtomicLong(0);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public boolean isFull() {
+    return full;
+  }
+
+  /*
+   *  Opens the file and starts the writer.
+   */
+  public synchronized void start() throws IOException {
+    assert null == writer;
+    final OutputStream output = new BufferedOutputStream(new FileOutputStream(file, true));
+    try {
+      if (0 == file.length()) {
+        output.write(MAGIC);
+      }
+      startNanos = System.nanoTime();
+      Encoder start = new Encoder(30);
+      start.putVarLong(START).putVarLong(VERSION).putVarLong(payload ? FLAG_PAYLOAD : 0)
+           .putVarLong(System.currentTimeMillis());
+      start.writeTo(output);
+      output.flush();
+    } catch (IOException ioe) {
+      output.close();
+      throw ioe;
+    }
+    writer = new Thread(new Runnable() {
+      public void run() {
+        write(output);
+      }
+    }, "trafficCapture");
+    writer.setDaemon(true);
+    capturing = true;
+    writer.start();
+    LOG.info("Capturing " + sampleRate * 100 + "% of tunnels" +
+             (payload ? " with payload" : "") + " to " + file);
+  }
+
+  /*
+   *  Stops capturing, writes what is queued and closes the file.
+   */
+  public synchronized void stop() {
+    if (null == writer) {
+      return;
+    }
+    capturing = false;
+    try {
+      writer.join(STOP_WAIT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer = null;
+  }
+
+  private void write(OutputStream output) {
+    try {
+      while (true) {
+        Encoder record = queue.poll(FLUSH_MS, TimeUnit.MILLISECONDS);
+        if (null == record) {
+          output.flush();
+          if (!capturing) {
+            break;
+          }
+          continue;
+        }
+        queuedBytes.addAndGet(-record.length);
+        if (full || writtenBytesCnt.get() + record.length > maxFileBytes) {
+          if (!full) {
+            LOG.warn("Stopped capturing traffic, " + file + " grew by " + maxFileBytes +
+                     " bytes.");
+            full = true;
+          }
+          droppedCnt.incrementAndGet();
+          continue;
+        }
+        record.writeTo(output);
+        writtenCnt.incrementAndGet();
+        writtenBytesCnt.addAndGet(record.length);
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    } catch (IOException ioe) {
+      LOG.error("Stopped capturing traffic, could not write " + file + ": " + ioe.getMessage());
+      full = true;
+    } finally {
+      try {
+        output.close();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing " + file + ": " + ioe.getMessage());
+      }
+    }
+  }
+
+  // Queues record unless that would exceed maxQueuedBytes.
+  private boolean offer(Encoder record) {
+    if (queuedBytes.addAndGet(record.length) > maxQueuedBytes) {
+      queuedBytes.addAndGet(-record.length);
+      droppedCnt.incrementAndGet();
+      return false;
+    }
+    queue.offer(record);
+    return true;
+  }
+
+  // Whether we capture the tunnel with id, the same answer for the same id every time.
+  boolean isSampled(long id) {
+    // Fibonacci hashing spreads consecutive ids evenly over [0, 1).
+    double position = ((id * 0x9E3779B97F4A7C15L) >>> 11) / (double) (1L << 53);
+    return position < sampleRate;
+  }
+
+  /*
+   *  @return  Handle to capture the tunnel with, or null if we don't capture it.
+   */
+  public Tunnel open(long id, String server, String client) {
+    if (!capturing || full || !isSampled(id)) {
+      return null;
+    }
+    Tunnel tunnel = new Tunnel(id);
+    Encoder open = new Encoder(40 + 3 * (server.length() + client.length()));
+    open.putVarLong(OPEN).putVarLong(id).putVarLong(tunnel.getMicros())
+        .putString(server).putString(client);
+    if (!offer(open)) {
+      return null;
+    }
+    tunnelCnt.incrementAndGet();
+    return tunnel;
+  }
+
+  /**
+   * Tunnel captures one tunnel. Both of its directions call data() concurrently.
+   */
+  public class Tunnel {
+    private final long id;
+
+    // Set once we dropped a record of this tunnel. We capture nothing after that.
+    private final AtomicBoolean incomplete;
+
+    Tunnel(long id) {
+      this.id = id;
+      this.incomplete = new AtomicBoolean(false);
+    }
+
+    long getMicros() {
+      return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /*
+     *  Records that we relayed length bytes of buffer from offset.
+     */
+    public void data(boolean toServer, byte[] buffer, int offset, int length) {
+      if (incomplete.get() || !capturing) {
+        return;
+      }
+      Encoder data = new Encoder(31 + (payload ? length : 0));
+      data.putVarLong(toServer ? TO_SERVER : TO_CLIENT).putVarLong(id).putVarLong(getMicros())
+          .putVarLong(length);
+      if (payload) {
+        data.put(buffer, offset, length);
+      }
+      if (!offer(data)) {
+        incomplete.set(true);
+      }
+    }
+
+    public void close(long bytesToServer, long bytesToClient) {
+      if (!capturing) {
+        return;
+      }
+      Encoder close = new Encoder(42);
+      close.putVarLong(CLOSE).putVarLong(id).putVarLong(getMicros()).putVarLong(bytesToServer)
+           .putVarLong(bytesToClient).putVarLong(incomplete.get() ? 0 : 1);
+      offer(close);
+    }
+  }
+
+  /**
+   * Encoder builds one record in a byte array of the size we expect, so that relay threads
+   * allocate once per record.
+   */
+  static class Encoder {
+    private byte[] bytes;
+    int length;
+
+    Encoder(int capacity) {
+      bytes = new byte[capacity];
+      length = 0;
+    }
+
+    private void ensure(int more) {
+      if (length + more > bytes.length) {
+        byte[] larger = new byte[Math.max(2 * bytes.length, length + more)];
+        System.arraycopy(bytes, 0, larger, 0, length);
+        bytes = larger;
+      }
+    }
+
+    Encoder putVarLong(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+      return this;
+    }
+
+    Encoder put(byte[] buffer, int offset, int count) {
+      ensure(count);
+      System.arraycopy(buffer, offset, bytes, length, count);
+      length += count;
+      return this;
+    }
+
+    Encoder putString(String value) {
+      byte[] utf8;
+      try {
+        utf8 = value.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+      putVarLong(utf8.length);
+      return put(utf8, 0, utf8.length);
+    }
+
+    void writeTo(OutputStream output) throws IOException {
+      output.write(bytes, 0, length);
+    }
+  }
+
+  // Row of the capture on the /stats page.
+  void appendHtml(StringBuilder html) {
+    html.append("<tr><td>traffic capture</td><td><table><tr>")
+        .append("<td>").append(tunnelCnt.get()).append(" tunnels</td>")
+        .append("<td>").append(writtenCnt.get()).append(" records</td>")
+        .append("<td>").append(droppedCnt.get()).append(" dropped</td>")
+        .append("<td>").append(writtenBytesCnt.get()).append(" bytes")
+        .append(isFull() ? ", full" : "").append("</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Captured tunnels and records, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "capture_tunnels_total", "Tunnels we captured.", tunnelCnt.get());
+    metrics.counter(prefix + "capture_records_total",
+                    "Capture records, by whether we wrote or dropped them.",
+                    writtenCnt.get(), "result", "written");
+    metrics.counter(prefix + "capture_records_total",
+                    "Capture records, by whether we wrote or dropped them.",
+                    droppedCnt.get(), "result", "dropped");
+    metrics.counter(prefix + "capture_bytes_total", "Bytes we wrote to the capture.",
+                    writtenBytesCnt.get());
+  }
+}
@@ -0,0 +1,457 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.LogLinearHistogram;
+import com.altiscale.Util.UnixSockets;
+
+/**
+ * TrafficReplay plays a TrafficCapture back against a proxy. Every captured tunnel becomes a
+ * client that connects when the tunnel opened, sends what the tunnel sent to its server when
+ * it sent it, and closes when the tunnel closed, once it got as many bytes back as the server
+ * sent then or the server closed. Timing can be scaled, so that a capture of an hour replays in
+ * a minute, or replayed as fast as possible.
+ *
+ * Captures without payload send zeros of the captured sizes, which only suits servers that
+ * don't look at what they get, like the backends of LoopbackBenchmark. Runs of the proxy that
+ * appended to the same file replay one after the other.
+ *
+ * The summary reports how many tunnels replayed, bytes sent and received against the bytes the
+ * servers sent in the capture, and connect and first byte latency percentiles.
+ */
+public class TrafficReplay {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final double DEFAULT_SPEED = 1.0;
+
+  // How long a client waits for the rest of its answer once its tunnel closed in the capture.
+  static final long ANSWER_WAIT_MS = 5000;
+
+  // Clients send captures without payload in chunks of zeros of this size.
+  private static final int CHUNK_BYTES = 64 * 1024;
+
+  /**
+   * One relayed chunk of a captured tunnel.
+   */
+  static class Chunk {
+    long micros;
+    boolean toServer;
+    int length;
+    // Null if the capture has no payload.
+    byte[] payload;
+  }
+
+  /**
+   * A tunnel of a capture. Times are micros since the start of the capture.
+   */
+  static class CapturedTunnel {
+    String server;
+    String client;
+    long openMicros;
+    // -1 if the capture ended before the tunnel closed.
+    long closeMicros;
+    // False if the proxy dropped records of the tunnel or didn't record its close.
+    boolean complete;
+    ArrayList<Chunk> chunks;
+    long bytesToServer;
+    long bytesToClient;
+
+    CapturedTunnel() {
+      closeMicros = -1;
+      complete = false;
+      chunks = new ArrayList<Chunk>();
+    }
+
+    long getEndMicros() {
+      if (closeMicros >= 0) {
+        return closeMicros;
+      }
+      return chunks.isEmpty() ? openMicros : chunks.get(chunks.size() - 1).micros;
+    }
+  }
+
+  /**
+   * Summary of one replay.
+   */
+  public static class Result {
+    public int tunnels;
+    public int incompleteCaptures;
+    public long replayed;
+    public long failedConnects;
+    public long shortAnswers;
+    public double seconds;
+    public double capturedSeconds;
+    public double speed;
+    public long bytesSent;
+    public long bytesReceived;
+    public long bytesExpected;
+    public long p50ConnectMicros;
+    public long p99ConnectMicros;
+    public long p50FirstByteMicros;
+    public long p99FirstByteMicros;
+
+    public String toJson() {
+      return "{\"tunnels\":" + tunnels +
+             ",\"incomplete_captures\":" + incompleteCaptures +
+             ",\"replayed\":" + replayed +
+             ",\"failed_connects\":" + failedConnects +
+             ",\"short_answers\":" + shortAnswers +
+             ",\"seconds\":" + String.format("%.3f", seconds) +
+             ",\"captured_seconds\":" + String.format("%.3f", capturedSeconds) +
+             ",\"speed\":" + speed +
+             ",\"bytes_sent\":" + bytesSent +
+             ",\"bytes_received\":" + bytesReceived +
+             ",\"bytes_expected\":" + bytesExpected +
+             ",\"connect_us\":{\"p50\":" + p50ConnectMicros + ",\"p99\":" + p99ConnectMicros +
+             "}" +
+             ",\"first_byte_us\":{\"p50\":" + p50FirstByteMicros +
+             ",\"p99\":" + p99FirstByteMicros + "}}";
+    }
+  }
+
+  private final ArrayList<CapturedTunnel> tunnels;
+  private final HostPort target;
+  private final double speed;
+
+  private long startNanos;
+  private final AtomicLong replayed;
+  private final AtomicLong failedConnects;
+  private final AtomicLong shortAnswers;
+  private final AtomicLong bytesSent;
+  private final AtomicLong bytesReceived;
+  private final LogLinearHistogram connectHist;
+  private final LogLinearHistogram firstByteHist;
+
+  /*
+   *  @param tunnels  Captured tunnels, see read().
+   *  @param target   Proxy we replay against, host:port or a Unix domain socket.
+   *  @param speed    How many times as fast as captured we replay, 0 for as fast as possible.
+   */
+  public TrafficReplay(ArrayList<CapturedTunnel> tunnels, HostPort target, double speed) {
+    this.tunnels = tunnels;
+    this.target = target;
+    this.speed = speed;
+    replayed = new AtomicLong(0);
+    failedConnects = new AtomicLong(0);
+    shortAnswers = new AtomicLong(0);
+    bytesSent = new AtomicLong(0);
+    bytesReceived = new AtomicLong(0);
+    connectHist = new LogLinearHistogram();
+    firstByteHist = new LogLinearHistogram();
+  }
+
+  /*
+   *  Replays config.replayFile against config.replayTarget and prints the summary on stdout.
+   *
+   *  @return  Exit code for main.
+   */
+  public static int runAndReport(ProxyConfiguration config) {
+    try {
+      ArrayList<CapturedTunnel> tunnels = read(config.replayFile);
+      LOG.info("Replaying " + tunnels.size() + " tunnels from " + config.replayFile + " against " +
+               config.replayTarget + (0 == config.replaySpeed ? " as fast as possible."
+                                                               : " at " + config.replaySpeed +
+                                                                 " times captured speed."));
+      Result result = new TrafficReplay(tunnels, config.replayTarget, config.replaySpeed).run();
+      System.out.println(result.toJson());
+      return 0;
+    } catch (Exception e) {
+      LOG.error("Replay failed: " + e);
+      return 1;
+    }
+  }
+
+  private static long readVarLong(DataInputStream input) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = input.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if (0 == (b & 0x80)) {
+        return value;
+      }
+    }
+    throw new IOException("Bad varint in capture.");
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    byte[] utf8 = new byte[(int) readVarLong(input)];
+    input.readFully(utf8);
+    return new String(utf8, "UTF-8");
+  }
+
+  /*
+   *  Reads a capture. A record cut off at the end, because the proxy died while writing it, ends
+   *  the capture.
+   *
+   *  @return  Captured tunnels in the order they opened.
+   */
+  public static ArrayList<CapturedTunnel> read(File file) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    ArrayList<CapturedTunnel> tunnels = new ArrayList<CapturedTunnel>();
+    try {
+      byte[] magic = new byte[TrafficCapture.MAGIC.length];
+      input.readFully(magic);
+      if (!Arrays.equals(TrafficCapture.MAGIC, magic)) {
+        throw new IOException(file + " is not a traffic capture.");
+      }
+      // Tunnels of the current run by id, and where its times start on our time line.
+      HashMap<Long, CapturedTunnel> open = new HashMap<Long, CapturedTunnel>();
+      long baseMicros = 0;
+      long lastMicros = 0;
+      boolean payload = false;
+      while (true) {
+        int type = input.read();
+        if (type < 0) {
+          break;
+        }
+        try {
+          if (TrafficCapture.START == type) {
+            long version = readVarLong(input);
+            if (version != TrafficCapture.VERSION) {
+              throw new IOException("Unknown capture version " + version + " in " + file);
+            }
+            payload = 0 != (readVarLong(input) & TrafficCapture.FLAG_PAYLOAD);
+            readVarLong(input);
+            open.clear();
+            baseMicros = lastMicros;
+            continue;
+          }
+          long id = readVarLong(input);
+          long micros = baseMicros + readVarLong(input);
+          lastMicros = Math.max(lastMicros, micros);
+          CapturedTunnel tunnel = open.get(id);
+          if (TrafficCapture.OPEN == type) {
+            tunnel = new CapturedTunnel();
+            tunnel.openMicros = micros;
+            tunnel.server = readString(input);
+            tunnel.client = readString(input);
+            open.put(id, tunnel);
+            tunnels.add(tunnel);
+          } else if (TrafficCapture.TO_SERVER == type || TrafficCapture.TO_CLIENT == type) {
+            Chunk chunk = new Chunk();
+            chunk.micros = micros;
+            chunk.toServer = TrafficCapture.TO_SERVER == type;
+            chunk.length = (int) readVarLong(input);
+            if (payload) {
+              chunk.payload = new byte[chunk.length];
+              input.readFully(chunk.payload);
+            }
+            if (null != tunnel) {
+              tunnel.chunks.add(chunk);
+              if (chunk.toServer) {
+                tunnel.bytesToServer += chunk.length;
+              } else {
+                tunnel.bytesToClient += chunk.length;
+              }
+            }
+          } else if (TrafficCapture.CLOSE == type) {
+            readVarLong(input);
+            readVarLong(input);
+            boolean complete = 1 == readVarLong(input);
+            if (null != tunnel) {
+              tunnel.closeMicros = micros;
+              tunnel.complete = complete;
+              open.remove(id);
+            }
+          } else {
+            throw new IOException("Unknown record type " + type + " in " + file);
+          }
+        } catch (EOFException eofe) {
+          LOG.warn("Capture " + file + " ends with a partial record.");
+          break;
+        }
+      }
+    } finally {
+      input.close();
+    }
+    // Records of concurrent tunnels interleave, but each run writes opens in order.
+    Collections.sort(tunnels, new Comparator<CapturedTunnel>() {
+      public int compare(CapturedTunnel a, CapturedTunnel b) {
+        return a.openMicros < b.openMicros ? -1 : (a.openMicros > b.openMicros ? 1 : 0);
+      }
+    });
+    return tunnels;
+  }
+
+  public Result run() throws InterruptedException {
+    startNanos = System.nanoTime();
+    ArrayList<Thread> clients = new ArrayList<Thread>();
+    long capturedMicros = 0;
+    for (final CapturedTunnel tunnel : tunnels) {
+      capturedMicros = Math.max(capturedMicros, tunnel.getEndMicros());
+      sleepUntil(tunnel.openMicros);
+      Thread client = new Thread(new Runnable() {
+        public void run() {
+          replay(tunnel);
+        }
+      }, "replayClient");
+      client.setDaemon(true);
+      client.start();
+      clients.add(client);
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+
+    Result result = new Result();
+    result.tunnels = tunnels.size();
+    for (CapturedTunnel tunnel : tunnels) {
+      if (!tunnel.complete) {
+        result.incompleteCaptures++;
+      }
+      result.bytesExpected += tunnel.bytesToClient;
+    }
+    result.replayed = replayed.get();
+    result.failedConnects = failedConnects.get();
+    result.shortAnswers = shortAnswers.get();
+    result.seconds = (System.nanoTime() - startNanos) / 1e9;
+    result.capturedSeconds = capturedMicros / 1e6;
+    result.speed = speed;
+    result.bytesSent = bytesSent.get();
+    result.bytesReceived = bytesReceived.get();
+    LogLinearHistogram.Snapshot connect = connectHist.getSnapshot();
+    result.p50ConnectMicros = connect.getValueAtPercentile(50);
+    result.p99ConnectMicros = connect.getValueAtPercentile(99);
+    LogLinearHistogram.Snapshot firstByte = firstByteHist.getSnapshot();
+    result.p50FirstByteMicros = firstByte.getValueAtPercentile(50);
+    result.p99FirstByteMicros = firstByte.getValueAtPercentile(99);
+    return result;
+  }
+
+  // Sleeps until micros of the capture, scaled by speed, passed since we started.
+  private void sleepUntil(long micros) throws InterruptedException {
+    if (0 == speed) {
+      return;
+    }
+    long waitNanos = startNanos + (long) (micros * 1000 / speed) - System.nanoTime();
+    if (waitNanos > 0) {
+      Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+    }
+  }
+
+  private Socket connect() throws IOException {
+    if (target.isPath()) {
+      return UnixSockets.get().connect(target.path);
+    }
+    return new Socket(target.host, target.port);
+  }
+
+  private void replay(final CapturedTunnel tunnel) {
+    long connectStart = System.nanoTime();
+    final Socket socket;
+    try {
+      socket = connect();
+    } catch (IOException ioe) {
+      LOG.debug("Could not connect to " + target + ": " + ioe.getMessage());
+      failedConnects.incrementAndGet();
+      return;
+    }
+    connectHist.record((System.nanoTime() - connectStart) / 1000);
+
+    // Time we sent the first byte, for the latency of the first answer byte.
+    final AtomicLong firstSentNanos = new AtomicLong(0);
+    final AtomicLong received = new AtomicLong(0);
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        byte[] buffer = new byte[CHUNK_BYTES];
+        try {
+          InputStream input = socket.getInputStream();
+          int cnt;
+          while ((cnt = input.read(buffer)) >= 0) {
+            if (0 == received.getAndAdd(cnt) && 0 != firstSentNanos.get()) {
+              firstByteHist.record((System.nanoTime() - firstSentNanos.get()) / 1000);
+            }
+            bytesReceived.addAndGet(cnt);
+          }
+        } catch (IOException ioe) {
+          // Closed by us or by the proxy.
+        }
+      }
+    }, "replayReader");
+    reader.setDaemon(true);
+    reader.start();
+
+    try {
+      OutputStream output = socket.getOutputStream();
+      byte[] zeros = null;
+      for (Chunk chunk : tunnel.chunks) {
+        if (!chunk.toServer) {
+          continue;
+        }
+        sleepUntil(chunk.micros);
+        firstSentNanos.compareAndSet(0, System.nanoTime());
+        if (null != chunk.payload) {
+          output.write(chunk.payload);
+        } else {
+          if (null == zeros) {
+            zeros = new byte[CHUNK_BYTES];
+          }
+          for (int left = chunk.length; left > 0; left -= CHUNK_BYTES) {
+            output.write(zeros, 0, Math.min(left, CHUNK_BYTES));
+          }
+        }
+        output.flush();
+        bytesSent.addAndGet(chunk.length);
+      }
+      sleepUntil(tunnel.getEndMicros());
+      // Give the server time to send what it sent in the capture, unless it already closed.
+      long deadline = System.currentTimeMillis() + ANSWER_WAIT_MS;
+      while (received.get() < tunnel.bytesToClient && reader.isAlive() &&
+             System.currentTimeMillis() < deadline) {
+        reader.join(10);
+      }
+      replayed.incrementAndGet();
+    } catch (IOException ioe) {
+      LOG.debug("Replay of a tunnel to " + tunnel.server + " failed: " + ioe.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        socket.close();
+        reader.join();
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing replay socket: " + ioe.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (received.get() < tunnel.bytesToClient) {
+      shortAnswers.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.Metrics;
+import com.altiscale.Util.TimerWheel;
+
+/**
+ * TunnelReaper closes tunnels that are idle or too slow, so that abandoned and trickling
+ * clients don't hold two threads and two sockets forever.
+ *
+ *   idle         Nothing relayed in either direction for idleTimeoutMillis.
+ *   client_idle  Nothing from the client for clientIdleTimeoutMillis.
+ *   server_idle  Nothing from the server for serverIdleTimeoutMillis.
+ *   slow         Less than minBytesPerSecond in both directions together over the last
+ *                minRateWindowMillis. Tunnels get one full window before we judge them.
+ *
+ * A timeout of 0 switches its check off. Each tunnel has one check on a TimerWheel that runs
+ * when the earliest of its deadlines could pass and then schedules itself again, so idle
+ * tunnels cost nothing between checks. Closing the sockets wakes up the blocked reads.
+ */
+public class TunnelReaper {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final String REAP_IDLE = "idle";
+  static final String REAP_CLIENT_IDLE = "client_idle";
+  static final String REAP_SERVER_IDLE = "server_idle";
+  static final String REAP_SLOW = "slow";
+
+  static final long DEFAULT_MIN_RATE_WINDOW_MS = 30000;
+
+  // Resolution and size of the wheel. One turn is a bit over 100 seconds.
+  static final long TICK_MS = 100;
+  static final int WHEEL_SLOTS = 1024;
+
+  private final long idleTimeoutMillis;
+  private final long clientIdleTimeoutMillis;
+  private final long serverIdleTimeoutMillis;
+  private final long minBytesPerSecond;
+  private final long minRateWindowMillis;
+
+  private final TimerWheel wheel;
+
+  final AtomicLong reapedIdleCnt;
+  final AtomicLong reapedClientIdleCnt;
+  final AtomicLong reapedServerIdleCnt;
+  final AtomicLong reapedSlowCnt;
+
+  // Checks one tunnel and schedules itself again while the tunnel is open.
+  private class TunnelCheck implements Runnable {
+    private final TcpTunnel tunnel;
+
+    // Start of the current rate window and the bytes relayed by then.
+    private long windowStartMillis;
+    private long windowStartBytes;
+
+    TunnelCheck(TcpTunnel tunnel) {
+      this.tunnel = tunnel;
+      this.windowStartMillis = System.currentTimeMillis();
+      this.windowStartBytes = 0;
+    }
+
+    public void run() {
+      if (tunnel.isClosed()) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      long lastFromClient = tunnel.getLastClientActivityMillis();
+      long lastFromServer = tunnel.getLastServerActivityMillis();
+      String reason = null;
+      long nextCheck = Long.MAX_VALUE;
+
+      if (idleTimeoutMillis > 0) {
+        long deadline = Math.max(lastFromClient, lastFromServer) + idleTimeoutMillis;
+        if (now >= deadline) {
+          reason = REAP_IDLE;
+        }
+        nextCheck = Math.min(nextCheck, deadline);
+      }
+      if (clientIdleTimeoutMillis > 0) {
+        long deadline = lastFromClient + clientIdleTimeoutMillis;
+        if (now >= deadline && null == reason) {
+          reason = REAP_CLIENT_IDLE;
+        }
+        nextCheck = Math.min(nextCheck, deadline);
+      }
+      if (serverIdleTimeoutMillis > 0) {
+        long deadline = lastFromServer + serverIdleTimeoutMillis;
+        if (now >= deadline && null == reason) {
+          reason = REAP_SERVER_IDLE;
+        }
+        nextCheck = Math.min(nextCheck, deadline);
+      }
+      if (minBytesPerSecond > 0) {
+        long deadline = windowStartMillis + minRateWindowMillis;
+        if (now >= deadline) {
+          long bytes = tunnel.getBytesToServer() + tunnel.getBytesToClient();
+          long windowMillis = now - windowStartMillis;
+          if ((bytes - windowStartBytes) * 1000 < minBytesPerSecond * windowMillis &&
+              null == reason) {
+            reason = REAP_SLOW;
+          }
+          windowStartMillis = now;
+          windowStartBytes = bytes;
+          deadline = now + minRateWindowMillis;
+        }
+        nextCheck = Math.min(nextCheck, deadline);
+      }
+
+      if (null != reason) {
+        reap(tunnel, reason);
+      } else if (Long.MAX_VALUE != nextCheck) {
+        wheel.schedule(this, nextCheck - now);
+      }
+    }
+  }
+
+  /*
+   *  @param idleTimeoutMillis        Close tunnels idle in both directions this long.
+   *  @param clientIdleTimeoutMillis  Close tunnels whose client sent nothing this long.
+   *  @param serverIdleTimeoutMillis  Close tunnels whose server sent nothing this long.
+   *  @param minBytesPerSecond        Close tunnels slower than this over a window.
+   *  @param minRateWindowMillis      Length of that window.
+   */
+  public TunnelReaper(long idleTimeoutMillis, long clientIdleTimeoutMillis,
+                      long serverIdleTimeoutMillis, long minBytesPerSecond,
+                      long minRateWindowMillis) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.clientIdleTimeoutMillis = clientIdleTimeoutMillis;
+    this.serverIdleTimeoutMillis = serverIdleTimeoutMillis;
+    this.minBytesPerSecond = minBytesPerSecond;
+    this.minRateWindowMillis = minRateWindowMillis;
+    this.wheel = new TimerWheel("tunnelReaper", TICK_MS, WHEEL_SLOTS);
+    this.reapedIdleCnt = new AtomicLong(0);
+    this.reapedClientIdleCnt = new AtomicLong(0);
+    this.reapedServerIdleCnt = new AtomicLong(0);
+    this.reapedSlowCnt = new AtomicLong(0);
+  }
+
+  // True if any check is switched on.
+  public boolean isEnabled() {
+    return idleTimeoutMillis > 0 || clientIdleTimeoutMillis > 0 ||
+           serverIdleTimeoutMillis > 0 || minBytesPerSecond > 0;
+  }
+
+  public void start() {
+    wheel.start();
+  }
+
+  public void stop() {
+    wheel.stop();
+  }
+
+  /*
+   *  Starts watching a tunnel until it closes.
+   */
+  public void watch(TcpTunnel tunnel) {
+    if (isEnabled()) {
+      // The first check reschedules itself for the earliest deadline.
+      wheel.schedule(new TunnelCheck(tunnel), 0);
+    }
+  }
+
+  private void reap(TcpTunnel tunnel, String reason) {
+    if (reason.equals(REAP_IDLE)) {
+      reapedIdleCnt.incrementAndGet();
+    } else if (reason.equals(REAP_CLIENT_IDLE)) {
+      reapedClientIdleCnt.incrementAndGet();
+    } else if (reason.equals(REAP_SERVER_IDLE)) {
+      reapedServerIdleCnt.incrementAndGet();
+    } else {
+      reapedSlowCnt.incrementAndGet();
+    }
+    LOG.info("Reaping " + reason + " connection " + tunnel.getId() + " from " +
+             tunnel.getClientAddress() + " to " + tunnel.getServer().hostPort);
+    tunnel.close(reason);
+  }
+
+  // Row of the reaped tunnels on the /stats page, if we reap any.
+  void appendHtml(StringBuilder html) {
+    if (!isEnabled()) {
+      return;
+    }
+    html.append("<tr><td>reaped connections</td><td><table><tr>")
+        .append("<td>").append(reapedIdleCnt.get()).append(" idle</td>")
+        .append("<td>").append(reapedClientIdleCnt.get()).append(" client idle</td>")
+        .append("<td>").append(reapedServerIdleCnt.get()).append(" server idle</td>")
+        .append("<td>").append(reapedSlowCnt.get()).append(" slow</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Reaped tunnels by reason, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "reaped_connections_total",
+                    "Tunnels closed for being idle or too slow.",
+                    reapedIdleCnt.get(), "reason", REAP_IDLE);
+    metrics.counter(prefix + "reaped_connections_total",
+                    "Tunnels closed for being idle or too slow.",
+                    reapedClientIdleCnt.get(), "reason", REAP_CLIENT_IDLE);
+    metrics.counter(prefix + "reaped_connections_total",
+                    "Tunnels closed for being idle or too slow.",
+                    reapedServerIdleCnt.get(), "reason", REAP_SERVER_IDLE);
+    metrics.counter(prefix + "reaped_connections_total",
+                    "Tunnels closed for being idle or too slow.",
+                    reapedSlowCnt.get(), "reason", REAP_SLOW);
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.Random;
+
+/**
+ * UniformRandom sends each client to a server picked uniformly at random.
+ */
+public class UniformRandom implements LoadBalancer {
+  // One Random per thread, so threads don't contend on a shared seed.
+  private static final ThreadLocal<Random> THREAD_RANDOM = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
+  private ServerScoreboard scoreboard;
+
+  public UniformRandom(ServerScoreboard scoreboard) {
+    this.scoreboard = scoreboard;
+  }
+
+  static Random threadRandom() {
+    return THREAD_RANDOM.get();
+  }
+
+  @Override
+  public Server getServer(ConnectionContext context) {
+    return scoreboard.getServer(threadRandom().nextInt(scoreboard.size()));
+  }
+}
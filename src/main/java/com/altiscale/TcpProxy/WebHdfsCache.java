@@ -0,0 +1,375 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.Metrics;
+
+/**
+ * WebHdfsCache keeps whole responses to idempotent WebHDFS metadata requests, like LISTSTATUS
+ * and GETFILESTATUS, so that repeated requests don't pay a round trip to the namenode.
+ *
+ * Entries are keyed on the operation, the path, the user and the rest of the query string, and
+ * live for the TTL of their operation. 404s are cached for negativeTtlMillis. The cache holds at
+ * most maxBytes of responses and evicts the least recently used ones beyond that.
+ *
+ * A mutating request (MKDIRS, RENAME, DELETE, CREATE and the like) invalidates all entries for
+ * its path, the paths below it and the paths above it, since a parent's listing and content
+ * summary change too. Responses fetched while an invalidation happened are not stored, so a
+ * slow read can't bring back what a write just invalidated.
+ *
+ * Only requests that name their user in the query string with user.name, doas or a delegation
+ * token are cached. Requests with an Authorization header or a Cookie, like the hadoop.auth
+ * cookie of a client that did SPNEGO before, are never cached, because the server goes by those
+ * and we can't tell their user.
+ */
+public class WebHdfsCache {
+  public static final String WEBHDFS_PREFIX = "/webhdfs/v1";
+
+  // Operations we cache by default and their TTLs.
+  static final String DEFAULT_TTLS = "LISTSTATUS=5000,GETFILESTATUS=5000,GETCONTENTSUMMARY=10000";
+  static final long DEFAULT_NEGATIVE_TTL_MS = 2000;
+
+  // Operations that change the namespace below their path.
+  static final HashSet<String> MUTATING_OPS = new HashSet<String>(Arrays.asList(
+      "MKDIRS", "RENAME", "DELETE", "CREATE", "APPEND", "TRUNCATE", "CONCAT", "CREATESYMLINK",
+      "SETPERMISSION", "SETOWNER", "SETREPLICATION", "SETTIMES"));
+
+  // Largest share of the budget one response may take.
+  private static final int MAX_ENTRY_FRACTION = 8;
+
+  private static class Entry {
+    final String path;
+    final byte[] response;
+    final long expiresMillis;
+    final boolean negative;
+
+    Entry(String path, byte[] response, long expiresMillis, boolean negative) {
+      this.path = path;
+      this.response = response;
+      this.expiresMillis = expiresMillis;
+      this.negative = negative;
+    }
+  }
+
+  // TTL in millis by upper-case operation name.
+  private final HashMap<String, Long> ttlMillisByOp;
+  private final long negativeTtlMillis;
+  private final long maxBytes;
+
+  // Least recently used first. Guarded by this.
+  private final LinkedHashMap<String, Entry> entries;
+  private long bytes;
+
+  // Bumped on every invalidation.
+  private final AtomicLong generation;
+
+  final AtomicLong hitCnt;
+  final AtomicLong negativeHitCnt;
+  final AtomicLong missCnt;
+  final AtomicLong evictedCnt;
+  final AtomicLong invalidatedCnt;
+
+  /*
+   *  @param ttlMillisByOp      Operations to cache and how long, by upper-case name.
+   *  @param negativeTtlMillis  How long we cache 404s, 0 to not cache them.
+   *  @param maxBytes           Memory budget for responses.
+   */
+  public WebHdfsCache(Map<String, Long> ttlMillisByOp, long negativeTtlMillis, long maxBytes) {
+    this.ttlMillisByOp = new HashMap<String, Long>(ttlMillisByOp);
+    this.negativeTtlMillis = negativeTtlMillis;
+    this.maxBytes = maxBytes;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    this.bytes = 0;
+    this.generation = new AtomicLong(0);
+    this.hitCnt = new AtomicLong(0);
+    this.negativeHitCnt = new AtomicLong(0);
+    this.missCnt = new AtomicLong(0);
+    this.evictedCnt = new AtomicLong(0);
+    this.invalidatedCnt = new AtomicLong(0);
+  }
+
+  /*
+   *  Parses "OP=MILLIS,OP=MILLIS".
+   *
+   *  @throws IllegalArgumentException  If the list is malformed or a TTL isn't positive.
+   */
+  public static HashMap<String, Long> parseTtls(String ttls) {
+    HashMap<String, Long> ttlMillisByOp = new HashMap<String, Long>();
+    for (String ttl : ttls.split(",")) {
+      int equals = ttl.indexOf('=');
+      if (equals <= 0) {
+        throw new IllegalArgumentException("Expected OP=MILLIS, got " + ttl);
+      }
+      long millis = Long.parseLong(ttl.substring(equals + 1).trim());
+      if (millis < 1) {
+        throw new IllegalArgumentException("TTL must be positive: " + ttl);
+      }
+      ttlMillisByOp.put(ttl.substring(0, equals).trim().toUpperCase(), millis);
+    }
+    return ttlMillisByOp;
+  }
+
+  // Upper-case WebHDFS operation of the request, or null if it isn't a WebHDFS request.
+  static String getOp(HttpRequestHead request) {
+    String op = request.getQueryParameter("op");
+    if (null == op || !request.path.startsWith(WEBHDFS_PREFIX)) {
+      return null;
+    }
+    return op.toUpperCase();
+  }
+
+  /*
+   *  True if the query string is all the server goes by to tell the user of request, so that a
+   *  key with the whole query string can't match a request of another user. Also used by
+   *  WebHdfsContentCache and ReadAhead.
+   */
+  static boolean isUserInQuery(HttpRequestHead request) {
+    return null == request.getHeader("Authorization") && null == request.getHeader("Cookie") &&
+           (null != request.getQueryParameter("user.name") ||
+            null != request.getQueryParameter("doas") ||
+            null != request.getQueryParameter("delegation"));
+  }
+
+  public boolean isCacheable(HttpRequestHead request) {
+    String op = getOp(request);
+    return null != op && request.method.equals("GET") && ttlMillisByOp.containsKey(op) &&
+           isUserInQuery(request);
+  }
+
+  public boolean isMutating(HttpRequestHead request) {
+    String op = getOp(request);
+    return null != op && MUTATING_OPS.contains(op);
+  }
+
+  /*
+   *  Key of a cacheable request: operation, path, user and the other parameters in a fixed
+   *  order, so that equal requests get the same key however their query is written.
+   */
+  public String getKey(HttpRequestHead request) {
+    StringBuilder key = new StringBuilder();
+    key.append(getOp(request)).append(' ').append(normalize(request.path))
+       .append(" user=").append(request.getQueryParameter("user.name"));
+    ArrayList<String> names = new ArrayList<String>();
+    for (String name : request.getQueryParameters().keySet()) {
+      if (!name.equals("op") && !name.equals("user.name")) {
+        names.add(name);
+      }
+    }
+    Collections.sort(names);
+    for (String name : names) {
+      key.append(' ').append(name).append('=').append(request.getQueryParameter(name));
+    }
+    return key.toString();
+  }
+
+  // Path without trailing slashes, so "/a/" and "/a" are the same entry.
+  static String normalize(String path) {
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(0, end);
+  }
+
+  // True if one path is the other or below it.
+  static boolean isRelated(String path, String otherPath) {
+    if (path.length() > otherPath.length()) {
+      return isRelated(otherPath, path);
+    }
+    return otherPath.startsWith(path) &&
+           (otherPath.length() == path.length() || otherPath.charAt(path.length()) == '/' ||
+            path.endsWith("/"));
+  }
+
+  /*
+   *  @return  Cached response, or null if we have none that is fresh.
+   */
+  public synchronized byte[] get(String key) {
+    Entry entry = entries.get(key);
+    if (null != entry && entry.expiresMillis <= System.currentTimeMillis()) {
+      remove(key);
+      entry = null;
+    }
+    if (null == entry) {
+      missCnt.incrementAndGet();
+      return null;
+    }
+    hitCnt.incrementAndGet();
+    if (entry.negative) {
+      negativeHitCnt.incrementAndGet();
+    }
+    return entry.response;
+  }
+
+  // Generation to pass to put() for a response we are about to fetch.
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  // Largest response we keep.
+  public long getMaxEntryBytes() {
+    return maxBytes / MAX_ENTRY_FRACTION;
+  }
+
+  /*
+   *  Stores a response unless it is an error, too large, or an invalidation happened since
+   *  generation.
+   *
+   *  @param key         Key of the request.
+   *  @param request     The request.
+   *  @param response    Whole response including status line and headers.
+   *  @param generation  getGeneration() from before we sent the request.
+   */
+  public synchronized void put(String key, HttpRequestHead request, byte[] response,
+                               long generation) {
+    int status = getStatus(response);
+    long ttl;
+    if (200 == status) {
+      ttl = ttlMillisByOp.get(getOp(request));
+    } else if (404 == status && negativeTtlMillis > 0) {
+      ttl = negativeTtlMillis;
+    } else {
+      return;
+    }
+    if (response.length > getMaxEntryBytes() || generation != this.generation.get()) {
+      return;
+    }
+    remove(key);
+    entries.put(key, new Entry(normalize(request.path), response,
+                               System.currentTimeMillis() + ttl, 404 == status));
+    bytes += response.length;
+    Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+    while (bytes > maxBytes && leastRecentlyUsed.hasNext()) {
+      bytes -= leastRecentlyUsed.next().response.length;
+      leastRecentlyUsed.remove();
+      evictedCnt.incrementAndGet();
+    }
+  }
+
+  // Status code of an HTTP response, or -1 if it doesn't start with a status line.
+  static int getStatus(byte[] response) {
+    // "HTTP/1.1 200 OK"
+    if (response.length < 12 || response[0] != 'H' || response[8] != ' ') {
+      return -1;
+    }
+    int status = 0;
+    for (int i = 9; i < 12; i++) {
+      if (response[i] < '0' || response[i] > '9') {
+        return -1;
+      }
+      status = status * 10 + response[i] - '0';
+    }
+    return status;
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (null != entry) {
+      bytes -= entry.response.length;
+    }
+  }
+
+  /*
+   *  Drops entries affected by a mutating request: its path and, for RENAME, its destination.
+   */
+  public void invalidate(HttpRequestHead request) {
+    invalidate(request.path);
+    String destination = request.getQueryParameter("destination");
+    if (null != destination && getOp(request).equals("RENAME")) {
+      invalidate(WEBHDFS_PREFIX + destination);
+    }
+  }
+
+  /*
+   *  Drops entries for path, the paths below it and the paths above it.
+   */
+  public synchronized void invalidate(String path) {
+    generation.incrementAndGet();
+    String normalized = normalize(path);
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (isRelated(entry.path, normalized)) {
+        bytes -= entry.response.length;
+        iterator.remove();
+        invalidatedCnt.incrementAndGet();
+      }
+    }
+  }
+
+  public synchronized int getEntryCnt() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  // Share of lookups we answered from the cache.
+  public double getHitRatio() {
+    long hits = hitCnt.get();
+    long lookups = hits + missCnt.get();
+    return 0 == lookups ? 0 : (double) hits / lookups;
+  }
+
+  // Row of the cache on the /stats page.
+  void appendHtml(StringBuilder html) {
+    html.append("<tr><td>webhdfs cache</td><td><table><tr>")
+        .append("<td>").append(String.format("%.1f", 100 * getHitRatio()))
+        .append("% hits</td>")
+        .append("<td>").append(hitCnt.get()).append(" hits</td>")
+        .append("<td>").append(negativeHitCnt.get()).append(" of them 404</td>")
+        .append("<td>").append(missCnt.get()).append(" misses</td>")
+        .append("<td>").append(getEntryCnt()).append(" entries</td>")
+        .append("<td>").append(getBytes()).append(" of ")
+        .append(getMaxBytes()).append(" bytes</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Hit, eviction and size metrics of the cache, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "webhdfs_cache_lookups_total",
+                    "WebHDFS cache lookups.", hitCnt.get(), "result", "hit");
+    metrics.counter(prefix + "webhdfs_cache_lookups_total",
+                    "WebHDFS cache lookups.", missCnt.get(), "result", "miss");
+    metrics.counter(prefix + "webhdfs_cache_negative_hits_total",
+                    "WebHDFS cache hits on a cached 404.", negativeHitCnt.get());
+    metrics.counter(prefix + "webhdfs_cache_evictions_total",
+                    "WebHDFS cache entries evicted to stay in the memory budget.",
+                    evictedCnt.get());
+    metrics.counter(prefix + "webhdfs_cache_invalidations_total",
+                    "WebHDFS cache entries dropped because of a mutating request.",
+                    invalidatedCnt.get());
+    metrics.gauge(prefix + "webhdfs_cache_entries", "WebHDFS cache entries.", getEntryCnt());
+    metrics.gauge(prefix + "webhdfs_cache_bytes", "WebHDFS cache size in bytes.", getBytes());
+  }
+}
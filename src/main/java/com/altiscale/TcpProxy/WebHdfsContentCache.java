@@ -0,0 +1,750 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.altiscale.Util.HttpRequestHead;
+import com.altiscale.Util.Metrics;
+
+/**
+ * WebHdfsContentCache keeps files read with WebHDFS OPEN on local disk, for reference files
+ * that many jobs read over and over.
+ *
+ * Before every OPEN we ask the server for the status of the file with a GETFILESTATUS, which is
+ * cheap, and use our copy only if its length and modification time still match. GETFILESTATUS
+ * only needs access to the parent directory, so before a hit we also have the server read the
+ * first byte of the file as the same user, and serve our copy only if that works. A user gets
+ * our copy only after reading the file through the server once. Requests with a Cookie are
+ * never cached, since the server goes by the cookie and not by the user.name we key on. Hits
+ * are sent with FileChannel.transferTo. Reads of part of a file are served from a cached copy
+ * too, but only whole-file reads fill the cache.
+ *
+ * Only servers that answer OPEN with the data themselves, like HttpFS or a datanode, fill the
+ * cache. A namenode answers with a 307 redirect to a datanode, which we pass on. Once a server
+ * did that we stop asking it for GETFILESTATUS and tunnel its OPENs like any other request.
+ *
+ * Files live in dir and the index of what they hold in dir/index. We write the index to a
+ * temporary file, sync it and rename it over the old one, and a file gets into the index only
+ * once it is complete and synced, so after a crash we come back to a consistent cache. Files
+ * the index doesn't know are deleted on start. Beyond maxBytes we evict the least recently used
+ * files. Hits don't rewrite the index, so after a restart that order is the one of the last
+ * change. Changes take a snapshot of the index under the lock and write and sync it after
+ * releasing it, so lookups never wait for the disk.
+ */
+public class WebHdfsContentCache {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final long DEFAULT_MAX_MB = 10240;
+
+  static final String INDEX = "index";
+  private static final String DATA_PREFIX = "data-";
+  private static final String TEMP_PREFIX = "tmp-";
+
+  // Largest share of the budget one file may take.
+  private static final int MAX_ENTRY_FRACTION = 4;
+
+  // Largest GETFILESTATUS response and OPEN response head we read.
+  private static final int MAX_STATUS_BYTES = 64 * 1024;
+  private static final int MAX_HEAD_BYTES = 64 * 1024;
+
+  private static final Pattern LENGTH = Pattern.compile("\"length\"\\s*:\\s*(\\d+)");
+  private static final Pattern MODIFICATION_TIME =
+      Pattern.compile("\"modificationTime\"\\s*:\\s*(\\d+)");
+
+  private static class Entry {
+    final String path;
+    final long length;
+    final long modificationTime;
+    final String fileName;
+
+    // Users that read the file through a server.
+    final HashSet<String> users;
+
+    Entry(String path, long length, long modificationTime, String fileName) {
+      this.path = path;
+      this.length = length;
+      this.modificationTime = modificationTime;
+      this.fileName = fileName;
+      this.users = new HashSet<String>();
+    }
+  }
+
+  private final File dir;
+  private final long maxBytes;
+
+  // By raw request path, least recently used first. Guarded by this, like bytes and nextFileId.
+  private final LinkedHashMap<String, Entry> entries;
+  private long bytes;
+  private long nextFileId;
+
+  // Bumped by every change to entries, guarded by this.
+  private long indexVersion;
+
+  // Serializes index writes. Guards savedIndexVersion, the version of the index on disk.
+  private final Object indexLock;
+  private long savedIndexVersion;
+
+  private final AtomicLong nextTempId;
+
+  // Servers, by host:port, that answered OPEN with a redirect.
+  private final ConcurrentHashMap<String, Boolean> redirectingServers;
+
+  final AtomicLong hitCnt;
+  final AtomicLong missCnt;
+  final AtomicLong staleCnt;
+  final AtomicLong deniedCnt;
+  final AtomicLong evictedCnt;
+  final AtomicLong servedBytesCnt;
+
+  /*
+   *  Opens the cache in dir, creating dir if needed, and loads the index left there.
+   *
+   *  @param dir       Directory for the files and the index. Nothing else should be in there.
+   *  @param maxBytes  Most bytes of files we keep.
+   */
+  public WebHdfsContentCache(File dir, long maxBytes) throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    this.bytes = 0;
+    this.nextFileId = 0;
+    this.indexVersion = 0;
+    this.indexLock = new Object();
+    this.savedIndexVersion = -1;
+    this.nextTempId = new AtomicLong(0);
+    this.redirectingServers = new ConcurrentHashMap<String, Boolean>();
+    this.hitCnt = new AtomicLong(0);
+    this.missCnt = new AtomicLong(0);
+    this.staleCnt = new AtomicLong(0);
+    this.deniedCnt = new AtomicLong(0);
+    this.evictedCnt = new AtomicLong(0);
+    this.servedBytesCnt = new AtomicLong(0);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create content cache directory " + dir);
+    }
+    String index;
+    synchronized (this) {
+      loadIndex();
+      evict();
+      index = formatIndex();
+    }
+    saveIndex(indexVersion, index);
+  }
+
+  // True for OPEN requests whose user we know from user.name alone.
+  public static boolean isCacheable(HttpRequestHead request) {
+    return request.method.equals("GET") && "OPEN".equals(WebHdfsCache.getOp(request)) &&
+           null != request.getQueryParameter("user.name") &&
+           null == request.getQueryParameter("delegation") &&
+           WebHdfsCache.isUserInQuery(request);
+  }
+
+  // False for servers that answered OPEN with a redirect, so OPENs to them can't be cached.
+  public boolean canCache(Server server) {
+    return !redirectingServers.containsKey(server.hostPort.toString());
+  }
+
+  // Path as the client wrote it, which is also our key.
+  static String getRawPath(HttpRequestHead request) {
+    int question = request.uri.indexOf('?');
+    return question < 0 ? request.uri : request.uri.substring(0, question);
+  }
+
+  static String getUser(HttpRequestHead request) {
+    String doAs = request.getQueryParameter("doas");
+    return request.getQueryParameter("user.name") + (null == doAs ? "" : "/" + doAs);
+  }
+
+  /*
+   *  GETFILESTATUS for the file an OPEN request reads, as the same user.
+   */
+  static byte[] getFileStatusRequest(HttpRequestHead open) throws IOException {
+    return getRequest(open, "op=GETFILESTATUS");
+  }
+
+  /*
+   *  OPEN of the first byte of the file an OPEN request reads, as the same user, which the
+   *  server only answers with 200 if the user may read the file.
+   */
+  static byte[] getReadCheckRequest(HttpRequestHead open) throws IOException {
+    return getRequest(open, "op=OPEN&offset=0&length=1");
+  }
+
+  // GET with query for the file an OPEN request reads, as the same user.
+  private static byte[] getRequest(HttpRequestHead open, String query) throws IOException {
+    StringBuilder request = new StringBuilder();
+    request.append("GET ").append(getRawPath(open)).append('?').append(query);
+    int question = open.uri.indexOf('?');
+    for (String parameter : open.uri.substring(question + 1).split("&")) {
+      int equals = parameter.indexOf('=');
+      String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals),
+                                      "UTF-8");
+      if (name.equals("user.name") || name.equals("doas")) {
+        request.append('&').append(parameter);
+      }
+    }
+    request.append(' ').append(open.version).append("\r\n");
+    if (null != open.getHeader("Host")) {
+      request.append("Host: ").append(open.getHeader("Host")).append("\r\n");
+    }
+    request.append("Connection: close\r\n\r\n");
+    return request.toString().getBytes("ISO-8859-1");
+  }
+
+  /*
+   *  @return  Length and modification time from a GETFILESTATUS response, or null if it isn't
+   *           a successful one.
+   */
+  static long[] parseFileStatus(byte[] response) throws IOException {
+    if (200 != WebHdfsCache.getStatus(response)) {
+      return null;
+    }
+    String json = new String(response, "UTF-8");
+    Matcher length = LENGTH.matcher(json);
+    Matcher modificationTime = MODIFICATION_TIME.matcher(json);
+    if (!length.find() || !modificationTime.find()) {
+      return null;
+    }
+    return new long[] {Long.parseLong(length.group(1)),
+                       Long.parseLong(modificationTime.group(1))};
+  }
+
+  // Status code of the raw HTTP response in file, or -1.
+  private static int getStatus(File response) throws IOException {
+    byte[] statusLine = new byte[12];
+    FileInputStream input = new FileInputStream(response);
+    try {
+      int length = 0;
+      int cnt;
+      while (length < statusLine.length &&
+             (cnt = input.read(statusLine, length, statusLine.length - length)) >= 0) {
+        length += cnt;
+      }
+      return length < statusLine.length ? -1 : WebHdfsCache.getStatus(statusLine);
+    } finally {
+      input.close();
+    }
+  }
+
+  // Reads the head of an HTTP response, up to and including the empty line, or returns null.
+  private static String readHead(InputStream input) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int matched = 0;
+    while (matched < 4 && head.size() < MAX_HEAD_BYTES) {
+      int b = input.read();
+      if (b < 0) {
+        return null;
+      }
+      head.write(b);
+      matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+    }
+    return matched == 4 ? head.toString("ISO-8859-1") : null;
+  }
+
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = input.read()) >= 0 && b != '\n') {
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return b < 0 && line.length() == 0 ? null : line.toString();
+  }
+
+  // Copies count bytes, or everything if count is -1. False if the input ends first.
+  private static boolean copy(InputStream input, OutputStream output, long count)
+      throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long left = count < 0 ? Long.MAX_VALUE : count;
+    while (left > 0) {
+      int cnt = input.read(buffer, 0, (int) Math.min(buffer.length, left));
+      if (cnt < 0) {
+        return count < 0;
+      }
+      output.write(buffer, 0, cnt);
+      left -= cnt;
+    }
+    return true;
+  }
+
+  /*
+   *  Writes the body of a raw HTTP response to body, undoing chunked encoding, and syncs it.
+   *
+   *  @return  False if the response isn't a complete 200.
+   */
+  static boolean extractBody(File response, File body) throws IOException {
+    InputStream input = new BufferedInputStream(new FileInputStream(response));
+    try {
+      String head = readHead(input);
+      if (null == head || 200 != WebHdfsCache.getStatus(head.getBytes("ISO-8859-1"))) {
+        return false;
+      }
+      boolean chunked = false;
+      long contentLength = -1;
+      for (String line : head.split("\r\n")) {
+        String lower = line.toLowerCase();
+        if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+          chunked = true;
+        } else if (lower.startsWith("content-length:")) {
+          contentLength = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+        }
+      }
+      FileOutputStream file = new FileOutputStream(body);
+      try {
+        OutputStream output = new BufferedOutputStream(file);
+        boolean complete = true;
+        if (chunked) {
+          while (true) {
+            String sizeLine = readLine(input);
+            if (null == sizeLine) {
+              complete = false;
+              break;
+            }
+            int semicolon = sizeLine.indexOf(';');
+            long size = Long.parseLong(
+                (semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+            if (0 == size) {
+              break;
+            }
+            if (!copy(input, output, size) || null == readLine(input)) {
+              complete = false;
+              break;
+            }
+          }
+        } else {
+          complete = copy(input, output, contentLength);
+        }
+        output.flush();
+        file.getFD().sync();
+        return complete;
+      } finally {
+        file.close();
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    } finally {
+      input.close();
+    }
+  }
+
+  // New file name in the cache directory for a download in progress.
+  File newTempFile() {
+    return new File(dir, TEMP_PREFIX + nextTempId.incrementAndGet());
+  }
+
+  public long getMaxEntryBytes() {
+    return maxBytes / MAX_ENTRY_FRACTION;
+  }
+
+  // True if lookup() would find a copy for user, without counting it.
+  synchronized boolean contains(String path, long length, long modificationTime, String user) {
+    Entry entry = entries.get(path);
+    return null != entry && entry.length == length &&
+           entry.modificationTime == modificationTime && entry.users.contains(user);
+  }
+
+  /*
+   *  @return  Our copy of the file at path if it has this length and modification time and
+   *           user read it before, else null. Drops copies of older versions.
+   */
+  public File lookup(String path, long length, long modificationTime, String user) {
+    long version;
+    String index;
+    synchronized (this) {
+      Entry entry = entries.get(path);
+      if (null != entry &&
+          entry.length == length && entry.modificationTime == modificationTime) {
+        if (!entry.users.contains(user)) {
+          missCnt.incrementAndGet();
+          return null;
+        }
+        hitCnt.incrementAndGet();
+        return new File(dir, entry.fileName);
+      }
+      missCnt.incrementAndGet();
+      if (null == entry) {
+        return null;
+      }
+      staleCnt.incrementAndGet();
+      remove(entry);
+      version = ++indexVersion;
+      index = formatIndex();
+    }
+    saveIndexQuietly(version, index);
+    return null;
+  }
+
+  /*
+   *  Adds body, a complete and synced copy of the file at path that user read, to the cache.
+   *  Takes over body: it gets renamed into the cache or deleted.
+   */
+  public void commit(String path, long length, long modificationTime, String user, File body) {
+    long version;
+    String index;
+    synchronized (this) {
+      Entry entry = entries.get(path);
+      if (null != entry &&
+          entry.length == length && entry.modificationTime == modificationTime) {
+        // Somebody else cached the same version meanwhile.
+        body.delete();
+        if (!entry.users.add(user)) {
+          return;
+        }
+      } else {
+        if (null != entry) {
+          remove(entry);
+        }
+        entry = new Entry(path, length, modificationTime, DATA_PREFIX + nextFileId++);
+        if (!body.renameTo(new File(dir, entry.fileName))) {
+          LOG.error("Could not move " + body + " into the content cache.");
+          body.delete();
+          return;
+        }
+        entries.put(path, entry);
+        bytes += length;
+        evict();
+        entry.users.add(user);
+      }
+      version = ++indexVersion;
+      index = formatIndex();
+    }
+    saveIndexQuietly(version, index);
+  }
+
+  private void remove(Entry entry) {
+    entries.remove(entry.path);
+    bytes -= entry.length;
+    new File(dir, entry.fileName).delete();
+  }
+
+  // Evicts least recently used files until we are within maxBytes, but keeps the newest one.
+  private void evict() {
+    Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+    while (bytes > maxBytes && entries.size() > 1) {
+      Entry entry = leastRecentlyUsed.next();
+      leastRecentlyUsed.remove();
+      bytes -= entry.length;
+      new File(dir, entry.fileName).delete();
+      evictedCnt.incrementAndGet();
+    }
+  }
+
+  /*
+   *  Index lines are "fileName length modificationTime users path", tab-separated, least
+   *  recently used first. Users are URL-encoded and comma-separated, paths are raw request
+   *  paths, so neither contains tabs. Call with this held.
+   */
+  private String formatIndex() {
+    StringBuilder index = new StringBuilder();
+    try {
+      for (Entry entry : entries.values()) {
+        index.append(entry.fileName).append('\t').append(entry.length).append('\t')
+             .append(entry.modificationTime).append('\t');
+        boolean first = true;
+        for (String user : entry.users) {
+          index.append(first ? "" : ",").append(URLEncoder.encode(user, "UTF-8"));
+          first = false;
+        }
+        index.append('\t').append(entry.path).append('\n');
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return index.toString();
+  }
+
+  /*
+   *  Writes index, the snapshot of the given version, unless a newer one is on disk already.
+   *  Call without this held, writers that raced us just wait here.
+   */
+  private void saveIndex(long version, String index) throws IOException {
+    synchronized (indexLock) {
+      if (version <= savedIndexVersion) {
+        return;
+      }
+      File tmp = new File(dir, INDEX + ".tmp");
+      FileOutputStream file = new FileOutputStream(tmp);
+      try {
+        Writer writer = new OutputStreamWriter(new BufferedOutputStream(file), "UTF-8");
+        writer.write(index);
+        writer.flush();
+        file.getFD().sync();
+      } finally {
+        file.close();
+      }
+      if (!tmp.renameTo(new File(dir, INDEX))) {
+        throw new IOException("Could not rename " + tmp + " to " + INDEX);
+      }
+      savedIndexVersion = version;
+    }
+  }
+
+  private void saveIndexQuietly(long version, String index) {
+    try {
+      saveIndex(version, index);
+    } catch (IOException ioe) {
+      LOG.error("Could not save content cache index: " + ioe.getMessage());
+    }
+  }
+
+  // Loads the index, skipping entries whose file is gone, and deletes files it doesn't know.
+  private void loadIndex() throws IOException {
+    File index = new File(dir, INDEX);
+    HashSet<String> known = new HashSet<String>();
+    known.add(INDEX);
+    if (index.exists()) {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+      try {
+        String line;
+        while (null != (line = reader.readLine())) {
+          String[] fields = line.split("\t", -1);
+          try {
+            Entry entry = new Entry(fields[4], Long.parseLong(fields[1]),
+                                    Long.parseLong(fields[2]), fields[0]);
+            if (!entry.fileName.startsWith(DATA_PREFIX) ||
+                new File(dir, entry.fileName).length() != entry.length) {
+              continue;
+            }
+            for (String user : fields[3].split(",")) {
+              if (user.length() > 0) {
+                entry.users.add(URLDecoder.decode(user, "UTF-8"));
+              }
+            }
+            entries.put(entry.path, entry);
+            bytes += entry.length;
+            known.add(entry.fileName);
+            nextFileId = Math.max(nextFileId,
+                Long.parseLong(entry.fileName.substring(DATA_PREFIX.length())) + 1);
+          } catch (RuntimeException e) {
+            // Also catches NumberFormatException and ArrayIndexOutOfBoundsException.
+            LOG.warn("Skipping bad content cache index line: " + line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    File[] files = dir.listFiles();
+    for (int i = 0; null != files && i < files.length; i++) {
+      if (!known.contains(files[i].getName())) {
+        files[i].delete();
+      }
+    }
+    LOG.info("Content cache in " + dir + " has " + entries.size() + " files, " + bytes +
+             " bytes.");
+  }
+
+  /*
+   *  Sends count bytes of file from offset to the client as a 200 response.
+   */
+  void sendFile(Socket clientSocket, File file, long offset, long count) throws IOException {
+    FileInputStream input = new FileInputStream(file);
+    try {
+      FileChannel channel = input.getChannel();
+      long size = channel.size();
+      offset = Math.min(offset, size);
+      count = count < 0 ? size - offset : Math.min(count, size - offset);
+      OutputStream output = clientSocket.getOutputStream();
+      output.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n" +
+                    "Content-Length: " + count + "\r\nConnection: close\r\n\r\n")
+                   .getBytes("ISO-8859-1"));
+      // Sockets we accepted from a ServerSocket have no channel, transferTo copies then.
+      WritableByteChannel target = null != clientSocket.getChannel()
+                                   ? clientSocket.getChannel() : Channels.newChannel(output);
+      long position = offset;
+      while (position < offset + count) {
+        position += channel.transferTo(position, offset + count - position, target);
+      }
+      servedBytesCnt.addAndGet(count);
+    } finally {
+      input.close();
+    }
+  }
+
+  private static long getLongParameter(HttpRequestHead request, String name, long value) {
+    String parameter = request.getQueryParameter(name);
+    return null == parameter ? value : Long.parseLong(parameter);
+  }
+
+  /*
+   *  Answers a cacheable OPEN request through server: from our copy if it is current, else
+   *  from the server, keeping a copy if the request reads a whole file that fits.
+   *
+   *  @throws IOException  If we could not connect to server. Nothing was sent to the client
+   *                       then, so the caller can try another server.
+   */
+  public void serve(Server server, ConnectionContext context) throws IOException {
+    HttpRequestHead request = context.httpRequest;
+    ByteArrayOutputStream status = new ByteArrayOutputStream();
+    long[] lengthAndTime = null;
+    if (server.fetch(getFileStatusRequest(request), context.attempt, null, status,
+                     MAX_STATUS_BYTES)) {
+      lengthAndTime = parseFileStatus(status.toByteArray());
+    }
+    long offset = 0;
+    long length = -1;
+    try {
+      offset = getLongParameter(request, "offset", 0);
+      length = getLongParameter(request, "length", -1);
+    } catch (NumberFormatException e) {
+      // Let the server answer that.
+      lengthAndTime = null;
+    }
+
+    String path = getRawPath(request);
+    String user = getUser(request);
+    if (null != lengthAndTime && contains(path, lengthAndTime[0], lengthAndTime[1], user)) {
+      ByteArrayOutputStream readCheck = new ByteArrayOutputStream();
+      if (!server.fetch(getReadCheckRequest(request), context.attempt, null, readCheck,
+                        MAX_STATUS_BYTES) ||
+          200 != WebHdfsCache.getStatus(readCheck.toByteArray())) {
+        // The server doesn't let user read the file (anymore), let it answer the OPEN.
+        deniedCnt.incrementAndGet();
+        missCnt.incrementAndGet();
+        lengthAndTime = null;
+      }
+    }
+    if (null != lengthAndTime) {
+      File cached = lookup(path, lengthAndTime[0], lengthAndTime[1], user);
+      if (null != cached) {
+        try {
+          sendFile(context.clientSocket, cached, offset, length);
+        } catch (IOException ioe) {
+          LOG.debug("IO exception while sending cached file: " + ioe.getMessage());
+        }
+        return;
+      }
+    }
+
+    boolean keep = null != lengthAndTime && 0 == offset && -1 == length &&
+                   lengthAndTime[0] <= getMaxEntryBytes();
+    File response = keep ? newTempFile() : null;
+    OutputStream copy = keep ? new BufferedOutputStream(new FileOutputStream(response)) : null;
+    try {
+      boolean complete = server.fetch(request.getHeadWithConnectionClose(), context.attempt,
+                                      context.clientSocket.getOutputStream(), copy,
+                                      Long.MAX_VALUE);
+      if (keep) {
+        copy.close();
+        copy = null;
+        File body = newTempFile();
+        if (complete && extractBody(response, body) && body.length() == lengthAndTime[0]) {
+          commit(path, lengthAndTime[0], lengthAndTime[1], user, body);
+        } else {
+          body.delete();
+          if (307 == getStatus(response) &&
+              null == redirectingServers.putIfAbsent(server.hostPort.toString(), true)) {
+            LOG.info("Server " + server.hostPort + " redirects OPEN, not caching its files.");
+          }
+        }
+      }
+    } finally {
+      if (null != copy) {
+        copy.close();
+      }
+      if (null != response) {
+        response.delete();
+      }
+    }
+  }
+
+  public synchronized int getEntryCnt() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  // Share of lookups we answered from disk.
+  public double getHitRatio() {
+    long hits = hitCnt.get();
+    long lookups = hits + missCnt.get();
+    return 0 == lookups ? 0 : (double) hits / lookups;
+  }
+
+  // Row of the content cache on the /stats page.
+  void appendHtml(StringBuilder html) {
+    html.append("<tr><td>content cache</td><td><table><tr>")
+        .append("<td>").append(String.format("%.1f", 100 * getHitRatio()))
+        .append("% hits</td>")
+        .append("<td>").append(hitCnt.get()).append(" hits</td>")
+        .append("<td>").append(missCnt.get()).append(" misses</td>")
+        .append("<td>").append(staleCnt.get()).append(" stale</td>")
+        .append("<td>").append(deniedCnt.get()).append(" denied</td>")
+        .append("<td>").append(getEntryCnt()).append(" files</td>")
+        .append("<td>").append(getBytes()).append(" of ")
+        .append(getMaxBytes()).append(" bytes</td>")
+        .append("<td>").append(servedBytesCnt.get()).append(" bytes served</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Lookup, staleness and disk use metrics, named with prefix.
+  void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "content_cache_lookups_total",
+                    "Content cache lookups.", hitCnt.get(), "result", "hit");
+    metrics.counter(prefix + "content_cache_lookups_total",
+                    "Content cache lookups.", missCnt.get(), "result", "miss");
+    metrics.counter(prefix + "content_cache_stale_total",
+                    "Cached files dropped because the file changed on the server.", staleCnt.get());
+    metrics.counter(prefix + "content_cache_denied_total",
+                    "Cached files not served because the server didn't let the user read them.",
+                    deniedCnt.get());
+    metrics.counter(prefix + "content_cache_evictions_total",
+                    "Cached files evicted to stay in the disk budget.", evictedCnt.get());
+    metrics.counter(prefix + "content_cache_served_bytes_total",
+                    "Bytes sent to clients from the content cache.", servedBytesCnt.get());
+    metrics.gauge(prefix + "content_cache_files", "Files in the content cache.", getEntryCnt());
+    metrics.gauge(prefix + "content_cache_bytes", "Content cache size in bytes.", getBytes());
+  }
+}
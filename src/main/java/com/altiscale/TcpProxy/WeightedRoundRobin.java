@@ -0,0 +1,192 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WeightedRoundRobin is the smooth weighted round-robin used by nginx: on every pick each
+ * server's current weight grows by its effective weight, we pick the server with the highest
+ * current weight and lower it by the sum of all effective weights. Servers get picked in
+ * proportion to their weights and the picks are spread out rather than bunched together.
+ *
+ * We run that algorithm ahead of time on the sampler thread whenever the weights change and
+ * store the resulting sequence of picks in a schedule, so getServer() is just an atomic
+ * increment and an array lookup.
+ *
+ * Weights are either static (from --server_weights) or learned from the throughput each
+ * server achieved per open tunnel over the last LEARN_INTERVAL_MS. Learned weights are kept in
+ * the servers, so that the balancer a membership change creates starts from them. Only the
+ * balancer created last for a server sets its weight, the one it replaced leaves it alone.
+ */
+public class WeightedRoundRobin implements LoadBalancer, ServerScoreboard.Listener {
+  // Learned weights are in [1, MAX_LEARNED_WEIGHT].
+  static final int MAX_LEARNED_WEIGHT = 100;
+  static final long LEARN_INTERVAL_MS = 5000;
+
+  // We scale weights down if the schedule would get longer than this.
+  static final int MAX_SCHEDULE_LENGTH = 1 << 16;
+
+  private ServerScoreboard scoreboard;
+
+  // True if we learn weights from measured throughput.
+  private boolean learnWeights;
+
+  // Server indexes in the order we hand them out.
+  private volatile int[] schedule;
+
+  private AtomicInteger nextPick;
+
+  // Effective weights the schedule was built from.
+  private int[] scheduledWeights;
+
+  // How often we learn weights. Tests shorten it.
+  long learnIntervalMillis;
+
+  private long lastLearnedMillis;
+
+  // Total bytes per server at lastLearnedMillis.
+  private long[] lastTotalBytes;
+
+  /*
+   *  @param scoreboard    Servers to balance.
+   *  @param learnWeights  If false we use Server.configuredWeight as the weight of each
+   *                       server, if true we learn the weights from measured throughput.
+   */
+  public WeightedRoundRobin(ServerScoreboard scoreboard, boolean learnWeights) {
+    this.scoreboard = scoreboard;
+    this.learnWeights = learnWeights;
+    this.nextPick = new AtomicInteger(0);
+    this.learnIntervalMillis = LEARN_INTERVAL_MS;
+    this.lastTotalBytes = new long[scoreboard.size()];
+    this.lastLearnedMillis = System.currentTimeMillis();
+    for (int i = 0; i < scoreboard.size(); i++) {
+      Server server = scoreboard.getServer(i);
+      server.weightOwner = this;
+      if (!learnWeights) {
+        server.effectiveWeight = server.configuredWeight;
+      } else if (0 == server.learnedWeight) {
+        // New servers start at the top, so they get enough clients to be measured.
+        server.effectiveWeight = MAX_LEARNED_WEIGHT;
+      } else {
+        server.effectiveWeight = server.learnedWeight;
+      }
+      lastTotalBytes[i] = server.byteRateCnt.getTotalCnt();
+    }
+    buildSchedule();
+    scoreboard.addListener(this);
+  }
+
+  /*
+   *  WeightedRoundRobin with static weights from the config.
+   */
+  public WeightedRoundRobin(ServerScoreboard scoreboard) {
+    this(scoreboard, false);
+  }
+
+  /*
+   *  Updates effective weights from the bytes/sec per open tunnel each server achieved since
+   *  the last update. Servers without traffic keep their weight, so new or idle servers keep
+   *  getting a share of the clients and we measure them again.
+   */
+  private void learnWeights(long now) {
+    double[] rates = new double[scoreboard.size()];
+    double maxRate = 0;
+    double intervalSeconds = Math.max(1, now - lastLearnedMillis) / 1000.0;
+    for (int i = 0; i < scoreboard.size(); i++) {
+      Server server = scoreboard.getServer(i);
+      long totalBytes = server.byteRateCnt.getTotalCnt();
+      long bytes = totalBytes - lastTotalBytes[i];
+      lastTotalBytes[i] = totalBytes;
+      rates[i] = bytes / intervalSeconds / Math.max(1, scoreboard.getOpenTunnels(i));
+      maxRate = Math.max(maxRate, rates[i]);
+    }
+    lastLearnedMillis = now;
+    if (maxRate == 0) {
+      return;
+    }
+    for (int i = 0; i < scoreboard.size(); i++) {
+      Server server = scoreboard.getServer(i);
+      if (rates[i] > 0 && this == server.weightOwner) {
+        int sample = (int) Math.max(1, Math.round(MAX_LEARNED_WEIGHT * rates[i] / maxRate));
+        // Average with the previous weight so a single noisy interval doesn't swing it.
+        server.learnedWeight = Math.max(1, (server.effectiveWeight + sample) / 2);
+        server.effectiveWeight = server.learnedWeight;
+      }
+    }
+  }
+
+  // Runs smooth weighted round-robin for one full cycle of the current effective weights.
+  private void buildSchedule() {
+    int num = scoreboard.size();
+    int[] weights = new int[num];
+    long totalWeight = 0;
+    for (int i = 0; i < num; i++) {
+      weights[i] = scoreboard.getServer(i).effectiveWeight;
+      totalWeight += weights[i];
+    }
+    scheduledWeights = weights.clone();
+    if (totalWeight > MAX_SCHEDULE_LENGTH) {
+      long scaledTotal = 0;
+      for (int i = 0; i < num; i++) {
+        weights[i] = (int) Math.max(1, weights[i] * MAX_SCHEDULE_LENGTH / totalWeight);
+        scaledTotal += weights[i];
+      }
+      totalWeight = scaledTotal;
+    }
+
+    int[] newSchedule = new int[(int) totalWeight];
+    long[] currentWeights = new long[num];
+    for (int pick = 0; pick < newSchedule.length; pick++) {
+      int best = 0;
+      for (int i = 0; i < num; i++) {
+        currentWeights[i] += weights[i];
+        if (currentWeights[i] > currentWeights[best]) {
+          best = i;
+        }
+      }
+      currentWeights[best] -= totalWeight;
+      newSchedule[pick] = best;
+    }
+    schedule = newSchedule;
+  }
+
+  @Override
+  public void scoreboardRefreshed(ServerScoreboard scoreboard) {
+    if (!learnWeights) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastLearnedMillis < learnIntervalMillis) {
+      return;
+    }
+    learnWeights(now);
+    for (int i = 0; i < scoreboard.size(); i++) {
+      if (scoreboard.getServer(i).effectiveWeight != scheduledWeights[i]) {
+        buildSchedule();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public Server getServer(ConnectionContext context) {
+    int[] currentSchedule = schedule;
+    int pick = (nextPick.getAndIncrement() & Integer.MAX_VALUE) % currentSchedule.length;
+    return scoreboard.getServer(currentSchedule[pick]);
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  DnsCache resolves host names without making the caller wait, except for the first lookup of
+ *  a name. A refresher thread looks names up again once they are half a TTL old, so that
+ *  callers keep getting fresh addresses from memory. If a lookup fails we keep the addresses we
+ *  have and try again on the next round, so a DNS outage doesn't take servers away.
+ *
+ *  Names nobody asked for in IDLE_TTLS TTLs are dropped. The JVM caches lookups too, see the
+ *  networkaddress.cache.ttl security property, so addresses can be that much older.
+ */
+public class DnsCache {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  public static final long DEFAULT_TTL_MS = 30000;
+
+  // Names nobody asked for in this many TTLs are dropped.
+  static final int IDLE_TTLS = 10;
+
+  private static class Entry {
+    volatile InetAddress[] addresses;
+    volatile long resolvedMillis;
+    volatile long usedMillis;
+
+    Entry(InetAddress[] addresses, long nowMillis) {
+      this.addresses = addresses;
+      this.resolvedMillis = nowMillis;
+      this.usedMillis = nowMillis;
+    }
+  }
+
+  private final long ttlMillis;
+  private final ConcurrentHashMap<String, Entry> entries;
+  private Thread refresher;
+
+  // Lookups answered from memory and lookups that had to wait for DNS.
+  public final AtomicLong hitCnt;
+  public final AtomicLong missCnt;
+
+  // Lookups of the refresher, how many of them failed and how many changed the addresses.
+  public final AtomicLong refreshCnt;
+  public final AtomicLong failedRefreshCnt;
+  public final AtomicLong changedCnt;
+
+  /*
+   *  @param ttlMillis  How long we use addresses before we look them up again.
+   */
+  public DnsCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    entries = new ConcurrentHashMap<String, Entry>();
+    hitCnt = new AtomicLong(0);
+    missCnt = new AtomicLong(0);
+    refreshCnt = new AtomicLong(0);
+    failedRefreshCnt = new AtomicLong(0);
+    changedCnt = new AtomicLong(0);
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  // Names we have addresses for.
+  public int getNameCnt() {
+    return entries.size();
+  }
+
+  /*
+   *  Looks host up in DNS. Tests override it.
+   */
+  protected InetAddress[] lookup(String host) throws UnknownHostException {
+    return InetAddress.getAllByName(host);
+  }
+
+  /*
+   *  @return  All addresses of host, in the order the resolver gave them.
+   *  @throws UnknownHostException  If this is the first lookup of host and it failed.
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    long now = System.currentTimeMillis();
+    Entry entry = entries.get(host);
+    if (null != entry) {
+      entry.usedMillis = now;
+      hitCnt.incrementAndGet();
+      return entry.addresses;
+    }
+    missCnt.incrementAndGet();
+    InetAddress[] addresses = lookup(host);
+    // If another thread was quicker, its addresses are as good as ours.
+    entries.putIfAbsent(host, new Entry(addresses, now));
+    return addresses;
+  }
+
+  // First address of host, see resolve().
+  public InetAddress resolveFirst(String host) throws UnknownHostException {
+    return resolve(host)[0];
+  }
+
+  /*
+   *  Looks up names that are half a TTL old and drops names nobody asked for in a while.
+   */
+  void refresh() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> mapEntry = it.next();
+      String host = mapEntry.getKey();
+      Entry entry = mapEntry.getValue();
+      if (now - entry.usedMillis >= IDLE_TTLS * ttlMillis) {
+        it.remove();
+        continue;
+      }
+      if (now - entry.resolvedMillis < ttlMillis / 2) {
+        continue;
+      }
+      refreshCnt.incrementAndGet();
+      try {
+        InetAddress[] addresses = lookup(host);
+        if (!Arrays.equals(addresses, entry.addresses)) {
+          changedCnt.incrementAndGet();
+          LOG.info("Addresses of " + host + " changed from " + Arrays.toString(entry.addresses) +
+                   " to " + Arrays.toString(addresses));
+          entry.addresses = addresses;
+        }
+        entry.resolvedMillis = System.currentTimeMillis();
+      } catch (UnknownHostException uhe) {
+        failedRefreshCnt.incrementAndGet();
+        LOG.warn("Could not look up " + host + " again, keeping " +
+                 Arrays.toString(entry.addresses) + ": " + uhe.getMessage());
+      }
+    }
+  }
+
+  public synchronized void start() {
+    assert null == refresher;
+    refresher = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(Math.max(1, ttlMillis / 4));
+          } catch (InterruptedException e) {
+            // Stopped.
+            break;
+          }
+          refresh();
+        }
+      }
+    }, "dnsRefresher");
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  public synchronized void stop() {
+    if (null != refresher) {
+      refresher.interrupt();
+      refresher = null;
+    }
+  }
+
+  // Row of the cache on the /stats page of a proxy.
+  public void appendHtml(StringBuilder html) {
+    html.append("<tr><td>dns cache</td><td><table><tr>")
+        .append("<td>").append(getNameCnt()).append(" names</td>")
+        .append("<td>").append(hitCnt.get()).append(" hits</td>")
+        .append("<td>").append(missCnt.get()).append(" misses</td>")
+        .append("<td>").append(refreshCnt.get()).append(" refreshes</td>")
+        .append("<td>").append(failedRefreshCnt.get()).append(" failed</td>")
+        .append("<td>").append(changedCnt.get()).append(" changed</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Lookup and refresh metrics, named with prefix.
+  public void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "dns_lookups_total",
+                    "Server name lookups, and how many of them were answered from memory.",
+                    hitCnt.get(), "result", "hit");
+    metrics.counter(prefix + "dns_lookups_total",
+                    "Server name lookups, and how many of them were answered from memory.",
+                    missCnt.get(), "result", "miss");
+    metrics.counter(prefix + "dns_refreshes_total",
+                    "Server names we looked up again in the background, by result.",
+                    refreshCnt.get() - failedRefreshCnt.get(), "result", "ok");
+    metrics.counter(prefix + "dns_refreshes_total",
+                    "Server names we looked up again in the background, by result.",
+                    failedRefreshCnt.get(), "result", "failed");
+    metrics.counter(prefix + "dns_address_changes_total",
+                    "Background lookups that found different addresses.", changedCnt.get());
+  }
+}
@@ -100,11 +100,16 @@ public class ExecLoop implements Runnable {
 
     while (shouldRestart()) {
       try {
+        long startNanos = System.nanoTime();
         execProcess = Runtime.getRuntime().exec(command);
         setIsRunning(true);
         LOG.info("Executed command: [" + command + "]");
-        execProcess.waitFor();
+        int exitCode = execProcess.waitFor();
         setIsRunning(false);
+        if (shouldRestart()) {
+          restartCnt.increment();
+          FlightEvents.get().execLoopRestart(command, exitCode, System.nanoTime() - startNanos);
+        }
         TimeUnit.MILLISECONDS.sleep(waitMilliseconds);
       } catch (IOException ioe) {
         LOG.error("Failed to execute command [" + command + "]: " + ioe.getMessage());
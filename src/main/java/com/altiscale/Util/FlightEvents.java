@@ -0,0 +1,105 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+/**
+ * FlightEvents reports proxy activity as JDK Flight Recorder events.
+ *
+ * This class does nothing. When we are built on JDK 11 or newer, JfrFlightEvents from
+ * src/main/jfr overrides every method to commit a JFR event, and get() returns it. Each of its
+ * methods first checks whether its event is enabled in a running recording, so events cost
+ * close to nothing when nobody records them.
+ *
+ * Servers and clients are passed as objects and only turned into strings when we commit an
+ * event, so callers don't pay for the conversion either.
+ */
+public class FlightEvents {
+  private static final String JFR_IMPLEMENTATION = "com.altiscale.Util.JfrFlightEvents";
+
+  private static final FlightEvents instance = create();
+
+  private static FlightEvents create() {
+    try {
+      return (FlightEvents) Class.forName(JFR_IMPLEMENTATION).getDeclaredConstructor()
+          .newInstance();
+    } catch (Throwable t) {
+      // Not built with JFR support, or running on a JVM without jdk.jfr.
+      return new FlightEvents();
+    }
+  }
+
+  public static FlightEvents get() {
+    return instance;
+  }
+
+  protected FlightEvents() {
+  }
+
+  public boolean isRecordingSupported() {
+    return false;
+  }
+
+  /*
+   *  @param id      Unique id of the tunnel.
+   *  @param server  Server the tunnel goes to.
+   *  @param client  Client address.
+   */
+  public void tunnelOpened(long id, Object server, String client) {
+  }
+
+  /*
+   *  @param durationNanos  How long the tunnel was open.
+   */
+  public void tunnelClosed(long id, Object server, String client, long bytesToServer,
+                           long bytesToClient, long durationNanos) {
+  }
+
+  /*
+   *  @param attempt       Number of earlier attempts for the same client.
+   *  @param latencyNanos  How long connect took, including failed ones.
+   *  @param error         Why connect failed, or null if it succeeded.
+   */
+  public void backendConnect(Object server, int attempt, long latencyNanos, String error) {
+  }
+
+  /*
+   *  @param balancer       Name of the load balancer.
+   *  @param affinityKey    Key the balancer could use for client affinity, may be null.
+   *  @param decisionNanos  How long the balancer took to choose.
+   */
+  public void loadBalancerDecision(String balancer, Object server, int attempt,
+                                   String affinityKey, long decisionNanos) {
+  }
+
+  /*
+   *  @param exitCode     Exit code of the process that finished.
+   *  @param uptimeNanos  How long the process ran.
+   */
+  public void execLoopRestart(String command, int exitCode, long uptimeNanos) {
+  }
+
+  public void serverThroughput(Object server, long bytesLastSecond, int openTunnels,
+                               long failedLastSecond, boolean healthy) {
+  }
+
+  /*
+   *  Runs sampler once per recording period while throughput events are enabled. The sampler
+   *  should call serverThroughput for each server.
+   */
+  public void addPeriodicSampler(Runnable sampler) {
+  }
+}
@@ -15,19 +15,40 @@
 */
 package com.altiscale.Util;
 /**
- *  Utility class that holds a host and a port.
+ *  Utility class that holds a host and a port, or the path of a Unix domain socket.
  */
 public class HostPort {
+  // Prefix of Unix domain socket paths in server strings.
+  public static final String UNIX_PREFIX = "unix:";
+
   public String host;
   public int port;
 
+  // Path of a Unix domain socket, null for host and port.
+  public String path;
+
   public HostPort(String host, int port) {
     this.host = host;
     this.port = port;
+    this.path = null;
+  }
+
+  /*
+   *  @return  HostPort of the Unix domain socket at path. Its host is localhost and its port 0,
+   *           for code that only looks at those.
+   */
+  public static HostPort forPath(String path) {
+    HostPort hostPort = new HostPort("localhost", 0);
+    hostPort.path = path;
+    return hostPort;
+  }
+
+  public boolean isPath() {
+    return null != path;
   }
 
   @Override
   public String toString() {
-    return host + ":" + port;
+    return isPath() ? UNIX_PREFIX + path : host + ":" + port;
   }
 }
@@ -0,0 +1,246 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HttpRequestHead holds the request line and headers of an HTTP/1.x request. We mostly only
+ * look at requests, so the raw bytes we read from the client are kept as they are and forwarded
+ * to the server. Requests we send on a connection of their own get Connection: close.
+ */
+public class HttpRequestHead {
+  public String method;
+  public String uri;
+  public String version;
+
+  // Path part of uri without the query string.
+  public String path;
+
+  // Header names are case-insensitive.
+  private TreeMap<String, String> headers;
+
+  // Decoded query parameters. For repeated parameters we keep the first value.
+  private HashMap<String, String> queryParameters;
+
+  // Raw bytes we read from the client. Contains the head and maybe the start of the body.
+  public byte[] rawBytes;
+  public int rawLength;
+
+  // Length of the head in rawBytes, including the empty line that ends it.
+  public int headLength;
+
+  private HttpRequestHead() {
+    headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    queryParameters = new HashMap<String, String>();
+  }
+
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public String getQueryParameter(String name) {
+    return queryParameters.get(name);
+  }
+
+  public Map<String, String> getQueryParameters() {
+    return queryParameters;
+  }
+
+  /*
+   *  Request head with its Connection header replaced by "Connection: close", for a request we
+   *  send on its own connection and read the response of until the server closes it. Any bytes
+   *  after the head are left out, so this is only for requests without a body.
+   */
+  public byte[] getHeadWithConnectionClose() throws UnsupportedEncodingException {
+    String[] lines = new String(rawBytes, 0, headLength, "ISO-8859-1").split("\r\n");
+    StringBuilder head = new StringBuilder();
+    head.append(lines[0]).append("\r\n");
+    for (int i = 1; i < lines.length; i++) {
+      if (lines[i].length() > 0 && !lines[i].regionMatches(true, 0, "Connection:", 0, 11)) {
+        head.append(lines[i]).append("\r\n");
+      }
+    }
+    head.append("Connection: close\r\n\r\n");
+    return head.toString().getBytes("ISO-8859-1");
+  }
+
+  /*
+   *  Reads from the input until we have the whole request head.
+   *
+   *  @param input     Stream to read from. We may read more than the head.
+   *  @param maxBytes  Maximum head size we accept.
+   *
+   *  @return  Parsed head. Throws IOException if the stream ends first, the head is too large
+   *           or it is not HTTP.
+   */
+  public static HttpRequestHead read(InputStream input, int maxBytes) throws IOException {
+    return read(input, null, maxBytes, 0);
+  }
+
+  /*
+   *  Reads from the socket until we have the whole request head, which has to arrive within
+   *  timeoutMillis in total, however slowly the client trickles it. The socket's SO_TIMEOUT is
+   *  0 again afterwards.
+   *
+   *  @throws SocketTimeoutException  If the head took longer than timeoutMillis.
+   */
+  public static HttpRequestHead read(Socket socket, int maxBytes, long timeoutMillis)
+      throws IOException {
+    try {
+      return read(socket.getInputStream(), socket, maxBytes,
+                  System.currentTimeMillis() + timeoutMillis);
+    } finally {
+      socket.setSoTimeout(0);
+    }
+  }
+
+  /*
+   *  @param socket          Socket of input whose SO_TIMEOUT we set to what is left until
+   *                         deadlineMillis before each read, or null for no deadline.
+   *  @param deadlineMillis  Wall clock time by which we have to have the head.
+   */
+  private static HttpRequestHead read(InputStream input, Socket socket, int maxBytes,
+                                      long deadlineMillis) throws IOException {
+    byte[] buffer = new byte[Math.min(maxBytes, 4096)];
+    int length = 0;
+    int scanned = 0;
+    while (true) {
+      // Only look at what we didn't scan before, plus the 3 bytes an end could start in.
+      int headEnd = findHeadEnd(buffer, Math.max(3, scanned - 3), length);
+      if (headEnd > 0) {
+        return parse(buffer, length, headEnd);
+      }
+      scanned = length;
+      if (length == maxBytes) {
+        throw new IOException("HTTP request head larger than " + maxBytes + " bytes.");
+      }
+      if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.min(maxBytes, buffer.length * 2));
+      }
+      if (null != socket) {
+        long remainingMillis = deadlineMillis - System.currentTimeMillis();
+        if (remainingMillis <= 0) {
+          throw new SocketTimeoutException("HTTP request head took too long.");
+        }
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remainingMillis));
+      }
+      int cnt = input.read(buffer, length, buffer.length - length);
+      if (cnt < 0) {
+        throw new IOException("Connection closed before the end of the HTTP request head.");
+      }
+      length += cnt;
+    }
+  }
+
+  // Returns the offset just after the first "\r\n\r\n" ending at or after from, or -1 if
+  // there isn't one.
+  private static int findHeadEnd(byte[] buffer, int from, int length) {
+    for (int i = from; i < length; i++) {
+      if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' &&
+          buffer[i - 3] == '\r') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   *  @param buffer      Bytes read from the client.
+   *  @param length      Number of valid bytes in buffer.
+   *  @param headLength  Length of the head in buffer.
+   *
+   *  @return  Parsed head.
+   */
+  public static HttpRequestHead parse(byte[] buffer, int length, int headLength)
+      throws IOException {
+    HttpRequestHead head = new HttpRequestHead();
+    head.rawBytes = buffer;
+    head.rawLength = length;
+    head.headLength = headLength;
+
+    String[] lines = new String(buffer, 0, headLength, "ISO-8859-1").split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+      throw new IOException("Bad HTTP request line: " + lines[0]);
+    }
+    head.method = requestLine[0];
+    head.uri = requestLine[1];
+    head.version = requestLine[2];
+
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0) {
+        head.headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+      }
+    }
+
+    int question = head.uri.indexOf('?');
+    head.path = decode(question < 0 ? head.uri : head.uri.substring(0, question));
+    if (question >= 0) {
+      head.queryParameters = parseQuery(head.uri.substring(question + 1));
+    }
+    return head;
+  }
+
+  /*
+   *  Decodes a query string like "a=1&b=x%20y". For repeated parameters we keep the first value.
+   *
+   *  @param query  Query string without the leading '?', may be null.
+   *
+   *  @return  Decoded parameters, empty if there are none.
+   */
+  public static HashMap<String, String> parseQuery(String query) {
+    HashMap<String, String> parameters = new HashMap<String, String>();
+    if (null == query || query.length() == 0) {
+      return parameters;
+    }
+    for (String parameter : query.split("&")) {
+      int equals = parameter.indexOf('=');
+      String name = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+      String value = equals < 0 ? "" : decode(parameter.substring(equals + 1));
+      if (!parameters.containsKey(name)) {
+        parameters.put(name, value);
+      }
+    }
+    return parameters;
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return value;
+    } catch (IllegalArgumentException e) {
+      // Malformed %-escape, keep it as it is.
+      return value;
+    }
+  }
+}
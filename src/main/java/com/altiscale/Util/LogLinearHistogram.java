@@ -0,0 +1,167 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LogLinearHistogram counts non-negative long values in a fixed set of buckets: values below
+ * SUB_BUCKETS get a bucket each, and every power-of-two range above that is split into
+ * SUB_BUCKETS linear buckets. Percentiles we report are within 1/(2 * SUB_BUCKETS) of the real
+ * value, whatever its magnitude, and the histogram always takes NUM_BUCKETS longs of memory.
+ *
+ * record() is a single atomic increment, so it is cheap enough to call for every connection
+ * from any thread.
+ */
+public class LogLinearHistogram {
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // Values at or above 2^MAX_EXPONENT all go to the last bucket.
+  static final int MAX_EXPONENT = 48;
+
+  public static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+
+  public LogLinearHistogram() {
+    counts = new AtomicLongArray(NUM_BUCKETS);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(0, value);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+  }
+
+  // Middle of the bucket, which is what we report for values in it.
+  static long bucketMidpoint(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    return bucketLowerBound(index) + ((1L << shift) >>> 1);
+  }
+
+  public void record(long value) {
+    counts.incrementAndGet(bucketIndex(value));
+  }
+
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+  }
+
+  /*
+   *  Adds counts of this histogram to snapshot.
+   */
+  public void addTo(Snapshot snapshot) {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      long count = counts.get(i);
+      snapshot.counts[i] += count;
+      snapshot.totalCount += count;
+    }
+  }
+
+  public Snapshot getSnapshot() {
+    Snapshot snapshot = new Snapshot();
+    addTo(snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Snapshot is a plain copy of histogram counts. Snapshots of several histograms can be added
+   * together, for example to get totals over all servers.
+   */
+  public static class Snapshot {
+    long[] counts;
+    long totalCount;
+
+    public Snapshot() {
+      counts = new long[NUM_BUCKETS];
+      totalCount = 0;
+    }
+
+    public void add(Snapshot other) {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        counts[i] += other.counts[i];
+      }
+      totalCount += other.totalCount;
+    }
+
+    public long getCount() {
+      return totalCount;
+    }
+
+    /*
+     *  @param percentile  Percentile in [0, 100].
+     *
+     *  @return  Approximate value at the percentile, or 0 if the snapshot is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (totalCount == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return bucketMidpoint(i);
+        }
+      }
+      return bucketMidpoint(NUM_BUCKETS - 1);
+    }
+
+    /*
+     *  @return  Approximate sum of all values, computed from bucket midpoints.
+     */
+    public long getApproximateSum() {
+      long sum = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        if (counts[i] != 0) {
+          sum += counts[i] * bucketMidpoint(i);
+        }
+      }
+      return sum;
+    }
+
+    public long getBucketCount(int index) {
+      return counts[index];
+    }
+
+    // Values in bucket index are below this bound.
+    public static long getBucketUpperBound(int index) {
+      return index + 1 < NUM_BUCKETS ? bucketLowerBound(index + 1) : Long.MAX_VALUE;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.List;
+
+/**
+ * MaglevTable is the consistent-hash lookup table from Google's Maglev load balancer.
+ *
+ * Each entry gets a preference list over the table slots (a permutation derived from two hashes
+ * of its name) and entries take turns claiming their next preferred free slot until the table is
+ * full. Lookups are a hash and an array access. Every entry owns almost exactly the same number
+ * of slots, and when an entry is added or removed only about 1/N of the keys move.
+ */
+public class MaglevTable<T> {
+  // Default table size. It must be a prime, and much larger than the number of entries.
+  public static final int DEFAULT_SIZE = 65537;
+
+  private Object[] table;
+
+  /*
+   *  @param entries  Entries to spread over the table.
+   *  @param names    Stable names of the entries, used to compute their preference lists. An
+   *                  entry keeps most of its slots across rebuilds as long as its name stays.
+   *  @param size     Table size, a prime.
+   */
+  public MaglevTable(List<T> entries, List<String> names, int size) {
+    assert entries.size() == names.size();
+    assert entries.size() > 0;
+    table = new Object[size];
+
+    int num = entries.size();
+    long[] offset = new long[num];
+    long[] skip = new long[num];
+    long[] next = new long[num];
+    for (int i = 0; i < num; i++) {
+      long hash = hash64(names.get(i));
+      offset[i] = (hash >>> 32) % size;
+      skip[i] = (hash & 0xffffffffL) % (size - 1) + 1;
+    }
+
+    int filled = 0;
+    while (true) {
+      for (int i = 0; i < num; i++) {
+        int slot = (int) ((offset[i] + next[i] * skip[i]) % size);
+        while (null != table[slot]) {
+          next[i]++;
+          slot = (int) ((offset[i] + next[i] * skip[i]) % size);
+        }
+        table[slot] = entries.get(i);
+        next[i]++;
+        if (++filled == size) {
+          return;
+        }
+      }
+    }
+  }
+
+  public MaglevTable(List<T> entries, List<String> names) {
+    this(entries, names, DEFAULT_SIZE);
+  }
+
+  public T get(String key) {
+    return getByHash(hash64(key));
+  }
+
+  /*
+   *  Entry for key, salted so that each salt picks independently of the others. Salt 0 picks
+   *  like get(key). Allocates nothing.
+   */
+  public T get(String key, long salt) {
+    return getByHash(0 == salt ? hash64(key) : mix(hash64(key) ^ salt * 0x9e3779b97f4a7c15L));
+  }
+
+  // Entry for a well-mixed 64-bit hash.
+  @SuppressWarnings("unchecked")
+  public T getByHash(long hash) {
+    return (T) table[(int) ((hash >>> 1) % table.length)];
+  }
+
+  public int size() {
+    return table.length;
+  }
+
+  /*
+   *  64-bit FNV-1a of the UTF-16 chars of value, followed by a final mix so that similar keys
+   *  (client addresses differ only in a few characters) spread over the whole table.
+   */
+  public static long hash64(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  // Spreads the bits of hash over all 64 bits, so that close values end up far apart.
+  public static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
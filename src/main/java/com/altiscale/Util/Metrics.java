@@ -0,0 +1,243 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Metrics is a structured set of metric values a ServerWithStats exports for monitoring.
+ *
+ * Metrics are grouped into families (same name, help and type), and every value in a family is
+ * told apart by its labels, for example the server it belongs to. Metrics can be rendered in
+ * the Prometheus text format and as JSON.
+ *
+ * Histograms are exported as summaries: a value per quantile, plus count and sum of the values
+ * in the histogram.
+ */
+public class Metrics {
+  public enum Type { COUNTER, GAUGE, SUMMARY }
+
+  // Quantiles we export for histograms.
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  static class Sample {
+    String[] labels;
+    double value;
+    LogLinearHistogram.Snapshot histogram;
+    double scale;
+  }
+
+  static class Family {
+    String name;
+    String help;
+    Type type;
+    ArrayList<Sample> samples = new ArrayList<Sample>();
+  }
+
+  private LinkedHashMap<String, Family> families;
+
+  public Metrics() {
+    families = new LinkedHashMap<String, Family>();
+  }
+
+  private Sample addSample(String name, String help, Type type, String[] labels) {
+    assert labels.length % 2 == 0;
+    Family family = families.get(name);
+    if (null == family) {
+      family = new Family();
+      family.name = name;
+      family.help = help;
+      family.type = type;
+      families.put(name, family);
+    }
+    assert family.type == type;
+    Sample sample = new Sample();
+    sample.labels = labels;
+    family.samples.add(sample);
+    return sample;
+  }
+
+  /*
+   *  @param name    Metric name, for example transfer_accelerator_bytes_total.
+   *  @param help    One line description of the metric.
+   *  @param value   Value of the counter. It should only ever grow.
+   *  @param labels  Label names and values: name1, value1, name2, value2...
+   */
+  public void counter(String name, String help, double value, String... labels) {
+    addSample(name, help, Type.COUNTER, labels).value = value;
+  }
+
+  public void gauge(String name, String help, double value, String... labels) {
+    addSample(name, help, Type.GAUGE, labels).value = value;
+  }
+
+  /*
+   *  @param histogram  Snapshot of the histogram.
+   *  @param scale      Factor to multiply histogram values with, for example 1e-6 to export a
+   *                    histogram of microseconds in seconds.
+   */
+  public void histogram(String name, String help, LogLinearHistogram.Snapshot histogram,
+                        double scale, String... labels) {
+    Sample sample = addSample(name, help, Type.SUMMARY, labels);
+    sample.histogram = histogram;
+    sample.scale = scale;
+  }
+
+  public static String escape(String value) {
+    StringBuilder escaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        escaped.append('\\').append(c);
+      } else if (c == '\n') {
+        escaped.append("\\n");
+      } else if (c < 0x20) {
+        escaped.append(String.format("\\u%04x", (int) c));
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  // Whole numbers without ".0", everything else the way Double.toString() prints it.
+  private static void appendNumber(StringBuilder out, double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+  }
+
+  private static void appendPrometheusLine(StringBuilder out, String name, String[] labels,
+                                           String extraLabel, String extraValue, double value) {
+    out.append(name);
+    if (labels.length > 0 || null != extraLabel) {
+      out.append('{');
+      for (int i = 0; i < labels.length; i += 2) {
+        if (i > 0) {
+          out.append(',');
+        }
+        out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+      }
+      if (null != extraLabel) {
+        if (labels.length > 0) {
+          out.append(',');
+        }
+        out.append(extraLabel).append("=\"").append(extraValue).append('"');
+      }
+      out.append('}');
+    }
+    out.append(' ');
+    appendNumber(out, value);
+    out.append('\n');
+  }
+
+  /*
+   *  Appends all metrics in Prometheus text exposition format (version 0.0.4) to out.
+   */
+  public void writePrometheus(StringBuilder out) {
+    for (Family family : families.values()) {
+      out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(family.name).append(' ')
+         .append(family.type.name().toLowerCase()).append('\n');
+      for (Sample sample : family.samples) {
+        if (null == sample.histogram) {
+          appendPrometheusLine(out, family.name, sample.labels, null, null, sample.value);
+          continue;
+        }
+        for (double quantile : QUANTILES) {
+          appendPrometheusLine(out, family.name, sample.labels, "quantile", "" + quantile,
+              sample.histogram.getValueAtPercentile(quantile * 100) * sample.scale);
+        }
+        appendPrometheusLine(out, family.name + "_sum", sample.labels, null, null,
+                             sample.histogram.getApproximateSum() * sample.scale);
+        appendPrometheusLine(out, family.name + "_count", sample.labels, null, null,
+                             sample.histogram.getCount());
+      }
+    }
+  }
+
+  public String toPrometheus() {
+    StringBuilder out = new StringBuilder(4096);
+    writePrometheus(out);
+    return out.toString();
+  }
+
+  /*
+   *  Appends all metrics as a JSON array of families to out:
+   *  [{"name": ..., "help": ..., "type": ..., "samples": [{"labels": {...}, "value": ...}]}]
+   *  Summary samples have "count", "sum" and "quantiles" instead of "value".
+   */
+  public void writeJson(StringBuilder out) {
+    out.append('[');
+    boolean firstFamily = true;
+    for (Family family : families.values()) {
+      if (!firstFamily) {
+        out.append(',');
+      }
+      firstFamily = false;
+      out.append("\n{\"name\":\"").append(family.name)
+         .append("\",\"help\":\"").append(escape(family.help))
+         .append("\",\"type\":\"").append(family.type.name().toLowerCase())
+         .append("\",\"samples\":[");
+      for (int s = 0; s < family.samples.size(); s++) {
+        Sample sample = family.samples.get(s);
+        if (s > 0) {
+          out.append(',');
+        }
+        out.append("{\"labels\":{");
+        for (int i = 0; i < sample.labels.length; i += 2) {
+          if (i > 0) {
+            out.append(',');
+          }
+          out.append('"').append(escape(sample.labels[i])).append("\":\"")
+             .append(escape(sample.labels[i + 1])).append('"');
+        }
+        out.append('}');
+        if (null == sample.histogram) {
+          out.append(",\"value\":");
+          appendNumber(out, sample.value);
+        } else {
+          out.append(",\"count\":").append(sample.histogram.getCount());
+          out.append(",\"sum\":");
+          appendNumber(out, sample.histogram.getApproximateSum() * sample.scale);
+          out.append(",\"quantiles\":{");
+          for (int q = 0; q < QUANTILES.length; q++) {
+            if (q > 0) {
+              out.append(',');
+            }
+            out.append("\"").append(QUANTILES[q]).append("\":");
+            appendNumber(out, sample.histogram.getValueAtPercentile(QUANTILES[q] * 100) *
+                              sample.scale);
+          }
+          out.append('}');
+        }
+        out.append('}');
+      }
+      out.append("]}");
+    }
+    out.append("\n]\n");
+  }
+
+  public String toJson() {
+    StringBuilder out = new StringBuilder(4096);
+    writeJson(out);
+    return out.toString();
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeakEwma keeps an exponentially weighted moving average of latency samples that jumps up
+ * immediately on a sample higher than the current average and decays slowly otherwise.
+ *
+ * It reacts to latency spikes right away, which is what we want from a load-balancing signal,
+ * while still forgetting about them after a few decay periods. Without new samples the value
+ * decays towards zero so a server that was once slow eventually gets probed again.
+ *
+ * Updates are lock-free. Two threads racing on observe() may lose one of the samples, which is
+ * fine for an estimate like this one.
+ */
+public class PeakEwma {
+
+  // Average in nanoseconds, stored as Double bits so we can CAS it.
+  private final AtomicLong costBits;
+
+  // Time of the last update in nanoseconds (System.nanoTime() scale).
+  private volatile long stampNanos;
+
+  // Decay period in nanoseconds.
+  private final double decayNanos;
+
+  /*
+   *  @param decayNanos  Time constant for the decay, in nanoseconds. After decayNanos without
+   *                     samples the average falls to 1/e of its value.
+   *  @param nowNanos    Current time in nanoseconds.
+   */
+  public PeakEwma(long decayNanos, long nowNanos) {
+    this.decayNanos = decayNanos;
+    this.costBits = new AtomicLong(Double.doubleToLongBits(0.0));
+    this.stampNanos = nowNanos;
+  }
+
+  /*
+   *  Adds one latency sample.
+   *
+   *  @param latencyNanos  Measured latency in nanoseconds.
+   *  @param nowNanos      Current time in nanoseconds.
+   */
+  public void observe(long latencyNanos, long nowNanos) {
+    long elapsed = Math.max(0, nowNanos - stampNanos);
+    stampNanos = nowNanos;
+    double weight = Math.exp(-elapsed / decayNanos);
+    while (true) {
+      long oldBits = costBits.get();
+      double cost = Double.longBitsToDouble(oldBits);
+      double newCost = latencyNanos > cost ? latencyNanos
+                                           : cost * weight + latencyNanos * (1.0 - weight);
+      if (costBits.compareAndSet(oldBits, Double.doubleToLongBits(newCost))) {
+        return;
+      }
+    }
+  }
+
+  /*
+   *  @param nowNanos  Current time in nanoseconds.
+   *
+   *  @return  Average latency in nanoseconds, decayed by the time since the last sample.
+   */
+  public double get(long nowNanos) {
+    long elapsed = Math.max(0, nowNanos - stampNanos);
+    return Double.longBitsToDouble(costBits.get()) * Math.exp(-elapsed / decayNanos);
+  }
+}
@@ -18,13 +18,6 @@ package com.altiscale.Util;
 
 import java.util.ArrayDeque;
 
-class AltiTimer {
-  /** This class wraps System.currentTimeMillis. It's useful for testing. */
-  public long currentTimeMillis() {
-    return System.currentTimeMillis();
-  }
-}
-
 class SlidingWindowCounter {
   /** This class implements a sparse sliding window using a set of buckets kept in a Deque.
    *  @param numBuckets Number of buckets per each interval (more buckets, higher precision)
@@ -19,6 +19,11 @@ package com.altiscale.Util;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -31,28 +36,112 @@ import org.apache.log4j.Logger;
 
 /**
 * ServerStatus is a Runnable that listens on a port and returns a html page with values
-* from getServerStats on "/stats" and its health status on "/admin".
+* from getServerStats on "/stats" and its health status on "/admin". It also exports values
+* from getMetrics in Prometheus text format on "/metrics" and as JSON on "/stats.json". Servers
+* can add their own pages with addContext.
+*
+* The statistics pages are served from a StatsSnapshot that a background thread takes every
+* snapshotMillis, so fetching them never touches the server's counters directly.
 */
 public class ServerStatus implements Runnable {
 
   // log4j logger.
   private static Logger LOG = Logger.getLogger("TransferAccelerator");
 
+  // How often we take a new snapshot by default.
+  public static final long DEFAULT_SNAPSHOT_MILLIS = 1000;
+
+  // Threads and queued requests of the HttpServer executor. When both are used up, the
+  // HttpServer dispatcher thread handles requests itself, which stops it from accepting more.
+  static final int HTTP_THREADS = 2;
+  static final int HTTP_QUEUE_SIZE = 32;
+
   private ServerWithStats serverWithStats;
   private int port;
+  private long snapshotMillis;
+
+  // Latest snapshot, null until we take the first one.
+  private volatile StatsSnapshot snapshot;
+
+  private HttpServer httpServer;
+
+  // Extra pages registered by the server before we start, by path.
+  private LinkedHashMap<String, HttpHandler> extraContexts;
 
   public ServerStatus(ServerWithStats server, int port) {
+    this(server, port, DEFAULT_SNAPSHOT_MILLIS);
+  }
+
+  /*
+   *  @param server          Server we export statistics for.
+   *  @param port            Port for our HttpServer.
+   *  @param snapshotMillis  How often we take a new snapshot of the statistics.
+   */
+  public ServerStatus(ServerWithStats server, int port, long snapshotMillis) {
     this.port = port;
     this.serverWithStats = server;
+    this.snapshotMillis = snapshotMillis;
+    this.snapshot = null;
+    this.extraContexts = new LinkedHashMap<String, HttpHandler>();
+  }
+
+  /*
+   *  Registers an extra page. Unlike the statistics pages, its handler runs on the HttpServer
+   *  executor and sees live state, so it should stay cheap. Must be called before run().
+   */
+  public void addContext(String path, HttpHandler handler) {
+    extraContexts.put(path, handler);
+  }
+
+  public StatsSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  // Takes a new snapshot now. Called by the snapshot thread.
+  public void takeSnapshot() {
+    try {
+      snapshot = StatsSnapshot.take(serverWithStats);
+    } catch (Exception e) {
+      // Keep serving the previous snapshot.
+      LOG.error("Could not take stats snapshot: " + e);
+    }
+  }
+
+  private void startSnapshotThread() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(snapshotMillis);
+          } catch (InterruptedException ie) {
+            return;
+          }
+          takeSnapshot();
+        }
+      }
+    }, "statsSnapshot");
+    thread.setDaemon(true);
+    thread.start();
   }
 
   @Override
   public void run() {
+    takeSnapshot();
+    startSnapshotThread();
     try {
       InetSocketAddress addr = new InetSocketAddress(port);
-      HttpServer httpServer = HttpServer.create(addr, 0);
-      httpServer.createContext("/stats", new StatsHandler(serverWithStats));
-      httpServer.createContext("/admin", new HealthHandler(serverWithStats));
+      httpServer = HttpServer.create(addr, 0);
+      httpServer.setExecutor(new ThreadPoolExecutor(
+          HTTP_THREADS, HTTP_THREADS, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(HTTP_QUEUE_SIZE),
+          new ThreadPoolExecutor.CallerRunsPolicy()));
+      httpServer.createContext("/stats", new StatsHandler());
+      httpServer.createContext("/stats.json", new JsonStatsHandler());
+      httpServer.createContext("/metrics", new MetricsHandler());
+      httpServer.createContext("/admin", new HealthHandler());
+      for (Map.Entry<String, HttpHandler> context : extraContexts.entrySet()) {
+        httpServer.createContext(context.getKey(), context.getValue());
+      }
       httpServer.start();
       LOG.info("Started HttpServer accessible at localhost:" + port + "/stats");
     } catch (IOException e) {
@@ -61,52 +150,70 @@ public class ServerStatus implements Runnable {
     }
   }
 
-  class HealthHandler implements HttpHandler {
-    ServerWithStats serverWithStats;
+  public static void sendResponse(HttpExchange exchange, int code, String contentType,
+                           byte[] response) throws IOException {
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("Content-Type", contentType);
+    exchange.sendResponseHeaders(code, response.length);
+    OutputStream responseBody = exchange.getResponseBody();
+    responseBody.write(response);
+    responseBody.close();
+  }
 
-    public HealthHandler(ServerWithStats server) {
-      this.serverWithStats = server;
+  // Returns the latest snapshot, or sends 503 and returns null if we don't have one yet.
+  private StatsSnapshot getSnapshotOrFail(HttpExchange exchange) throws IOException {
+    StatsSnapshot current = snapshot;
+    if (null == current) {
+      sendResponse(exchange, 503, "text/plain", "No statistics yet.\n".getBytes("UTF-8"));
     }
+    return current;
+  }
 
+  class HealthHandler implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
       String requestMethod = exchange.getRequestMethod();
       if (requestMethod.equalsIgnoreCase("GET")) {
-        boolean isHealthy = serverWithStats.isHealthy();
-        Headers responseHeaders = exchange.getResponseHeaders();
-        String response = "{ \"version\" : \"" + serverWithStats.getVersion() + "\"}";
-        if (isHealthy) {
-          responseHeaders.set("Content-Type", "text/html");
-          exchange.sendResponseHeaders(200, response.getBytes().length);
-        } else {
-          responseHeaders.set("Content-Type", "text/html");
-          exchange.sendResponseHeaders(500, response.getBytes().length);
+        StatsSnapshot current = getSnapshotOrFail(exchange);
+        if (null != current) {
+          sendResponse(exchange, current.healthy ? 200 : 500, "text/html", current.health);
         }
-        OutputStream responseBody = exchange.getResponseBody();
-        Headers requestHeaders = exchange.getRequestHeaders();
-        responseBody.write(response.getBytes());
-        responseBody.close();
       }
     }
   }
 
   class StatsHandler implements HttpHandler {
-    ServerWithStats serverWithStats;
+    public void handle(HttpExchange exchange) throws IOException {
+      String requestMethod = exchange.getRequestMethod();
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        StatsSnapshot current = getSnapshotOrFail(exchange);
+        if (null != current) {
+          sendResponse(exchange, 200, "text/html", current.html);
+        }
+      }
+    }
+  }
 
-    public StatsHandler(ServerWithStats server) {
-      this.serverWithStats = server;
+  class MetricsHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      String requestMethod = exchange.getRequestMethod();
+      if (requestMethod.equalsIgnoreCase("GET")) {
+        StatsSnapshot current = getSnapshotOrFail(exchange);
+        if (null != current) {
+          sendResponse(exchange, 200, "text/plain; version=0.0.4; charset=utf-8",
+                       current.prometheus);
+        }
+      }
     }
+  }
 
+  class JsonStatsHandler implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
       String requestMethod = exchange.getRequestMethod();
       if (requestMethod.equalsIgnoreCase("GET")) {
-        String response = serverWithStats.getServerStatsHtml();
-        Headers responseHeaders = exchange.getResponseHeaders();
-        responseHeaders.set("Content-Type", "text/html");
-        exchange.sendResponseHeaders(200, response.getBytes().length);
-        OutputStream responseBody = exchange.getResponseBody();
-        Headers requestHeaders = exchange.getRequestHeaders();
-        responseBody.write(response.getBytes());
-        responseBody.close();
+        StatsSnapshot current = getSnapshotOrFail(exchange);
+        if (null != current) {
+          sendResponse(exchange, 200, "application/json", current.json);
+        }
       }
     }
   }
@@ -21,6 +21,8 @@ package com.altiscale.Util;
 */
 public interface ServerWithStats {
   public String getServerStatsHtml();
+  // Same statistics as getServerStatsHtml() in a structured form, for monitoring systems.
+  public Metrics getMetrics();
   public boolean isHealthy();
   public String getServerName();
   public String getVersion();
@@ -0,0 +1,103 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SlidingWindowHistogram is a LogLinearHistogram over a sliding time window. The window is split
+ * into numSlots slots, each with its own histogram; a slot gets cleared when we first record into
+ * it in a new period. Snapshots merge the slots that are still within the window, so they cover
+ * between (numSlots - 1) and numSlots slot periods.
+ *
+ * Like LogLinearHistogram it is lock-free. A value recorded by another thread while a slot is
+ * being cleared may get lost, which is fine for statistics.
+ */
+public class SlidingWindowHistogram {
+  private final LogLinearHistogram[] slots;
+
+  // Period number (time / slotMillis) each slot holds values for.
+  private final AtomicLongArray slotPeriods;
+
+  private final long slotMillis;
+  private final AltiTimer timer;
+  private final String name;
+
+  /*
+   *  @param name        Human-readable name for this histogram.
+   *  @param numSlots    Number of slots in the window. More slots, smoother window.
+   *  @param slotMillis  Length of one slot in milliseconds.
+   */
+  public SlidingWindowHistogram(String name, int numSlots, long slotMillis) {
+    this(new AltiTimer(), name, numSlots, slotMillis);
+  }
+
+  /*
+   *  Handy constructor to use in tests when we want to use custom timer.
+   */
+  public SlidingWindowHistogram(AltiTimer timer, String name, int numSlots, long slotMillis) {
+    this.timer = timer;
+    this.name = name;
+    this.slotMillis = slotMillis;
+    this.slots = new LogLinearHistogram[numSlots];
+    this.slotPeriods = new AtomicLongArray(numSlots);
+    for (int i = 0; i < numSlots; i++) {
+      slots[i] = new LogLinearHistogram();
+      slotPeriods.set(i, -1);
+    }
+  }
+
+  /*
+   *  SlidingWindowHistogram over the last minute, in six 10-second slots.
+   */
+  public static SlidingWindowHistogram lastMinute(String name) {
+    return new SlidingWindowHistogram(name, 6, 10 * 1000);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void record(long value) {
+    long period = timer.currentTimeMillis() / slotMillis;
+    int slot = (int) (period % slots.length);
+    long slotPeriod = slotPeriods.get(slot);
+    if (slotPeriod != period && slotPeriods.compareAndSet(slot, slotPeriod, period)) {
+      slots[slot].reset();
+    }
+    slots[slot].record(value);
+  }
+
+  /*
+   *  Adds all values within the window to snapshot.
+   */
+  public void addTo(LogLinearHistogram.Snapshot snapshot) {
+    long period = timer.currentTimeMillis() / slotMillis;
+    for (int i = 0; i < slots.length; i++) {
+      long slotPeriod = slotPeriods.get(i);
+      if (slotPeriod > period - slots.length && slotPeriod <= period) {
+        slots[i].addTo(snapshot);
+      }
+    }
+  }
+
+  public LogLinearHistogram.Snapshot getSnapshot() {
+    LogLinearHistogram.Snapshot snapshot = new LogLinearHistogram.Snapshot();
+    addTo(snapshot);
+    return snapshot;
+  }
+}
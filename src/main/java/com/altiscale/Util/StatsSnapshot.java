@@ -0,0 +1,64 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * StatsSnapshot holds every status page of a ServerWithStats rendered at one point in time.
+ *
+ * Rendering reads counters that the tunnel threads update under their locks, so we render on
+ * one background thread at a fixed rate and status requests just copy out the bytes of the
+ * latest snapshot. However often the pages are fetched, the tunnels see the same small load.
+ */
+public class StatsSnapshot {
+  public final long takenMillis;
+  public final boolean healthy;
+  public final byte[] html;
+  public final byte[] health;
+  public final byte[] prometheus;
+  public final byte[] json;
+
+  private StatsSnapshot(long takenMillis, boolean healthy, String html, String health,
+                        String prometheus, String json) throws UnsupportedEncodingException {
+    this.takenMillis = takenMillis;
+    this.healthy = healthy;
+    this.html = html.getBytes("UTF-8");
+    this.health = health.getBytes("UTF-8");
+    this.prometheus = prometheus.getBytes("UTF-8");
+    this.json = json.getBytes("UTF-8");
+  }
+
+  public static StatsSnapshot take(ServerWithStats server) throws UnsupportedEncodingException {
+    long now = System.currentTimeMillis();
+    boolean healthy = server.isHealthy();
+    Metrics metrics = server.getMetrics();
+
+    StringBuilder json = new StringBuilder(16 * 1024);
+    json.append("{\"name\":\"").append(server.getServerName())
+        .append("\",\"version\":\"").append(server.getVersion())
+        .append("\",\"healthy\":").append(healthy)
+        .append(",\"timestamp\":").append(now)
+        .append(",\"metrics\":");
+    metrics.writeJson(json);
+    json.append("}\n");
+
+    return new StatsSnapshot(now, healthy, server.getServerStatsHtml(),
+                             "{ \"version\" : \"" + server.getVersion() + "\"}",
+                             metrics.toPrometheus(), json.toString());
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TimerWheel runs many coarse timeouts on one thread, for example one idle check per connection.
+ *
+ * Time is cut into ticks of tickMillis and tasks go into one of numSlots slots by the tick
+ * they are due in, so a tick only looks at one slot, however many tasks are pending. Tasks
+ * further out than one turn of the wheel wait in their slot for more turns. Tasks run up to one
+ * tick late and never early.
+ *
+ * schedule() is lock-free and can be called from any thread. New tasks go through a queue and
+ * only the wheel thread touches the slots. There is no cancel: a task that is no longer needed
+ * should just return when it runs.
+ */
+public class TimerWheel {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  private static class Timeout {
+    final Runnable task;
+    final long deadlineMillis;
+
+    Timeout(Runnable task, long deadlineMillis) {
+      this.task = task;
+      this.deadlineMillis = deadlineMillis;
+    }
+
+    // First tick that starts at or after the deadline.
+    long dueTick(long tickMillis) {
+      return (deadlineMillis + tickMillis - 1) / tickMillis;
+    }
+  }
+
+  private final String name;
+  private final long tickMillis;
+  private final ArrayList<ArrayList<Timeout>> slots;
+
+  // Tasks scheduled since the last tick.
+  private final ConcurrentLinkedQueue<Timeout> newTimeouts;
+
+  private final AltiTimer timer;
+
+  // Number of the last tick we processed, time / tickMillis.
+  private long lastTick;
+
+  private Thread wheelThread;
+
+  /*
+   *  @param name        Name of the wheel thread.
+   *  @param tickMillis  Resolution of the wheel.
+   *  @param numSlots    Slots in the wheel. Tasks due within numSlots ticks cost nothing until
+   *                     their tick.
+   */
+  public TimerWheel(String name, long tickMillis, int numSlots) {
+    this(new AltiTimer(), name, tickMillis, numSlots);
+  }
+
+  /*
+   *  Handy constructor to use in tests when we want to use custom timer.
+   */
+  TimerWheel(AltiTimer timer, String name, long tickMillis, int numSlots) {
+    assert tickMillis > 0 && numSlots > 0;
+    this.timer = timer;
+    this.name = name;
+    this.tickMillis = tickMillis;
+    this.slots = new ArrayList<ArrayList<Timeout>>(numSlots);
+    for (int i = 0; i < numSlots; i++) {
+      slots.add(new ArrayList<Timeout>());
+    }
+    this.newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    this.lastTick = timer.currentTimeMillis() / tickMillis;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  /*
+   *  Runs task on the wheel thread in delayMillis, give or take a tick.
+   */
+  public void schedule(Runnable task, long delayMillis) {
+    newTimeouts.add(new Timeout(task, timer.currentTimeMillis() + Math.max(0, delayMillis)));
+  }
+
+  /*
+   *  Moves new tasks into their slots and runs the tasks of all ticks up to now. Called by the
+   *  wheel thread, or directly in tests.
+   */
+  synchronized void advance() {
+    long now = timer.currentTimeMillis();
+    long currentTick = now / tickMillis;
+    Timeout timeout;
+    while (null != (timeout = newTimeouts.poll())) {
+      // Tasks due in a tick we already passed go into the current one.
+      long tick = Math.max(timeout.dueTick(tickMillis), lastTick + 1);
+      slots.get((int) (tick % slots.size())).add(timeout);
+    }
+
+    // After a long pause, one turn of the wheel already covers every slot.
+    long firstTick = Math.max(lastTick + 1, currentTick - slots.size() + 1);
+    ArrayList<Timeout> due = new ArrayList<Timeout>();
+    for (long tick = firstTick; tick <= currentTick; tick++) {
+      Iterator<Timeout> slot = slots.get((int) (tick % slots.size())).iterator();
+      while (slot.hasNext()) {
+        timeout = slot.next();
+        if (timeout.dueTick(tickMillis) <= currentTick) {
+          due.add(timeout);
+          slot.remove();
+        }
+      }
+    }
+    lastTick = Math.max(lastTick, currentTick);
+
+    for (Timeout dueTimeout : due) {
+      try {
+        dueTimeout.task.run();
+      } catch (RuntimeException e) {
+        LOG.error("Exception in " + name + " task: " + e.getMessage());
+      }
+    }
+  }
+
+  // Number of tasks waiting to run.
+  public synchronized int size() {
+    int size = newTimeouts.size();
+    for (ArrayList<Timeout> slot : slots) {
+      size += slot.size();
+    }
+    return size;
+  }
+
+  /*
+   *  Starts a daemon thread that advances the wheel every tick until stop().
+   */
+  public synchronized void start() {
+    assert null == wheelThread;
+    wheelThread = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(tickMillis);
+          } catch (InterruptedException ie) {
+            break;
+          }
+          advance();
+        }
+      }
+    }, name);
+    wheelThread.setDaemon(true);
+    wheelThread.start();
+  }
+
+  public synchronized void stop() {
+    if (null != wheelThread) {
+      wheelThread.interrupt();
+      wheelThread = null;
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  Utility class that holds the TLS setup for connections between two TransferAccelerators,
+ *  an alternative to ssh tunnels via JumpHost. The near proxy connects to the far proxy with
+ *  wrapClient() and the far proxy wraps the clients it accepts with wrapServer().
+ *
+ *  Reconnects are cheap because both sides cache sessions: TLS 1.3 resumes them with session
+ *  tickets, TLS 1.2 with session ids, and a resumed handshake skips the certificates and their
+ *  signatures. The near side checks that the far side's certificate names the host it
+ *  connected to, like an HTTPS client would. We prefer AES-GCM cipher suites, which the JVM
+ *  runs with AES-NI and carry-less multiply instructions where the CPU has them.
+ */
+public class TlsTransport {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Cipher suites we enable by default, best first. We drop those the JVM doesn't support.
+  public static final String DEFAULT_CIPHERS =
+      "TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384," +
+      "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256," +
+      "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384";
+
+  // Protocols we enable, if the JVM has them.
+  static final String PROTOCOLS = "TLSv1.3,TLSv1.2";
+
+  // How many sessions we keep for resumption, and for how long.
+  static final int SESSION_CACHE_SIZE = 10000;
+  static final int SESSION_TIMEOUT_SECONDS = 24 * 3600;
+
+  // How long wrapClient() waits for the far side during the handshake by default.
+  public static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+  /*
+   *  Turns on stateless session tickets, so that the far side needs no session cache of its
+   *  own to resume sessions. They are on by default since JDK 13, older JDKs have to be asked
+   *  before their TLS code starts, so call this before the first TlsTransport. We leave
+   *  settings the user made with -D alone. The properties are JVM-wide.
+   */
+  public static void enableSessionTickets() {
+    for (String side : new String[] {"client", "server"}) {
+      String property = "jdk.tls." + side + ".enableSessionTicketExtension";
+      if (null == System.getProperty(property)) {
+        System.setProperty(property, "true");
+        LOG.info("Set " + property + "=true for TLS session resumption.");
+      }
+    }
+  }
+
+  private SSLSocketFactory factory;
+  private String[] ciphers;
+  private String[] protocols;
+
+  // Whether the far side asks clients for a certificate it trusts.
+  private boolean needClientAuth;
+
+  // How long wrapClient() waits for the far side during the handshake.
+  int handshakeTimeoutMs;
+
+  // Handshakes that completed, how many of them resumed a session, and how many of those we
+  // started in wrapClient() failed.
+  public final AtomicLong handshakeCnt;
+  public final AtomicLong resumedCnt;
+  public final AtomicLong failedHandshakeCnt;
+
+  // Total time of the handshakes we started ourselves in wrapClient().
+  public final AtomicLong clientHandshakeNanos;
+  public final AtomicLong clientHandshakeCnt;
+
+  /*  @param keyStore            Optional path to a keystore with our key and certificate. The
+   *                             far side needs one, the near side only if the far side wants
+   *                             to see a client certificate.
+   *  @param keyStorePassword    Password of keyStore and of the key in it.
+   *  @param trustStore          Optional path to a keystore with the certificates we trust.
+   *                             Without it the near side trusts the JVM default CAs. With it
+   *                             the far side only accepts clients with a certificate from it.
+   *  @param trustStorePassword  Password of trustStore.
+   *  @param ciphers             Comma separated cipher suites, or null for DEFAULT_CIPHERS.
+   */
+  public TlsTransport(String keyStore,
+                      String keyStorePassword,
+                      String trustStore,
+                      String trustStorePassword,
+                      String ciphers) throws IOException, GeneralSecurityException {
+    KeyManager[] keyManagers = null;
+    if (null != keyStore) {
+      KeyManagerFactory keyManagerFactory =
+          KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(loadKeyStore(keyStore, keyStorePassword),
+                             toChars(keyStorePassword));
+      keyManagers = keyManagerFactory.getKeyManagers();
+    }
+    TrustManager[] trustManagers = null;
+    if (null != trustStore) {
+      TrustManagerFactory trustManagerFactory =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(loadKeyStore(trustStore, trustStorePassword));
+      trustManagers = trustManagerFactory.getTrustManagers();
+    }
+    needClientAuth = null != trustStore;
+    handshakeTimeoutMs = HANDSHAKE_TIMEOUT_MS;
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagers, trustManagers, null);
+    context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+    context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+    context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    factory = context.getSocketFactory();
+
+    this.ciphers = supported(null == ciphers ? DEFAULT_CIPHERS : ciphers,
+                             factory.getSupportedCipherSuites());
+    if (0 == this.ciphers.length) {
+      throw new IllegalArgumentException("None of the cipher suites " +
+                                         (null == ciphers ? DEFAULT_CIPHERS : ciphers) +
+                                         " is supported.");
+    }
+    SSLSocket probe = (SSLSocket) factory.createSocket();
+    try {
+      protocols = supported(PROTOCOLS, probe.getSupportedProtocols());
+    } finally {
+      probe.close();
+    }
+
+    handshakeCnt = new AtomicLong(0);
+    resumedCnt = new AtomicLong(0);
+    failedHandshakeCnt = new AtomicLong(0);
+    clientHandshakeNanos = new AtomicLong(0);
+    clientHandshakeCnt = new AtomicLong(0);
+  }
+
+  private static KeyStore loadKeyStore(String path, String password)
+      throws IOException, GeneralSecurityException {
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    FileInputStream input = new FileInputStream(path);
+    try {
+      keyStore.load(input, toChars(password));
+    } finally {
+      input.close();
+    }
+    return keyStore;
+  }
+
+  private static char[] toChars(String password) {
+    return null == password ? null : password.toCharArray();
+  }
+
+  // The names in wanted, in their order, that are also in available.
+  static String[] supported(String wanted, String[] available) {
+    HashSet<String> availableSet = new HashSet<String>(Arrays.asList(available));
+    ArrayList<String> result = new ArrayList<String>();
+    for (String name : wanted.split(",")) {
+      name = name.trim();
+      if (availableSet.contains(name) && !result.contains(name)) {
+        result.add(name);
+      }
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  public String[] getCiphers() {
+    return ciphers.clone();
+  }
+
+  private SSLSocket configure(SSLSocket socket, boolean clientMode) throws IOException {
+    // Handshake messages go out in several small writes per flight, which Nagle's algorithm
+    // would hold back until the peer's delayed ACK.
+    socket.setTcpNoDelay(true);
+    socket.setUseClientMode(clientMode);
+    socket.setEnabledCipherSuites(ciphers);
+    socket.setEnabledProtocols(protocols);
+    if (!clientMode) {
+      socket.setNeedClientAuth(needClientAuth);
+    }
+    return socket;
+  }
+
+  /*
+   *  Counts the handshake of socket once it completes. A session created before the handshake
+   *  started was resumed.
+   */
+  private void countHandshakes(SSLSocket socket) {
+    final long startMillis = System.currentTimeMillis();
+    socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+      public void handshakeCompleted(HandshakeCompletedEvent event) {
+        handshakeCnt.incrementAndGet();
+        if (event.getSession().getCreationTime() < startMillis) {
+          resumedCnt.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  /*
+   *  Starts TLS on a connection we opened to the far side and completes the handshake, so that
+   *  a failure shows up as a failed connect. A far side that stalls for handshakeTimeoutMs
+   *  fails it too. Afterwards the socket has the read timeout of connected again.
+   *
+   *  @param connected  Connected socket, closed along with the returned one.
+   *  @param hostPort   Far side we connected to. Sessions are resumed per host and port, and
+   *                    the far side's certificate has to name the host. Unix domain sockets
+   *                    have no host to check.
+   */
+  public Socket wrapClient(Socket connected, HostPort hostPort) throws IOException {
+    SSLSocket socket = configure((SSLSocket) factory.createSocket(connected, hostPort.host,
+                                                                  hostPort.port, true), true);
+    if (!hostPort.isPath()) {
+      SSLParameters parameters = socket.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      socket.setSSLParameters(parameters);
+    }
+    countHandshakes(socket);
+    long startNanos = System.nanoTime();
+    try {
+      int soTimeout = connected.getSoTimeout();
+      socket.setSoTimeout(handshakeTimeoutMs);
+      socket.startHandshake();
+      socket.setSoTimeout(soTimeout);
+    } catch (IOException ioe) {
+      failedHandshakeCnt.incrementAndGet();
+      socket.close();
+      throw ioe;
+    }
+    clientHandshakeNanos.addAndGet(System.nanoTime() - startNanos);
+    clientHandshakeCnt.incrementAndGet();
+    return socket;
+  }
+
+  /*
+   *  Starts TLS on a client we accepted. The handshake happens on the first read or write, so
+   *  that a slow client doesn't hold up the accept loop.
+   *
+   *  @param accepted  Accepted socket, closed along with the returned one.
+   */
+  public Socket wrapServer(Socket accepted) throws IOException {
+    SSLSocket socket = configure((SSLSocket) factory.createSocket(
+        accepted, accepted.getInetAddress().getHostAddress(), accepted.getPort(), true), false);
+    countHandshakes(socket);
+    return socket;
+  }
+
+  // Mean time of the handshakes in wrapClient() in microseconds, 0 before the first one.
+  public long getMeanClientHandshakeMicros() {
+    long cnt = clientHandshakeCnt.get();
+    return 0 == cnt ? 0 : clientHandshakeNanos.get() / cnt / 1000;
+  }
+
+  // Fraction of completed handshakes that resumed a session.
+  public double getResumedRatio() {
+    long cnt = handshakeCnt.get();
+    return 0 == cnt ? 0.0 : (double) resumedCnt.get() / cnt;
+  }
+
+  // Row of the handshakes on the /stats page of a proxy.
+  public void appendHtml(StringBuilder html) {
+    html.append("<tr><td>tls</td><td><table><tr>")
+        .append("<td>").append(handshakeCnt.get()).append(" handshakes</td>")
+        .append("<td>").append(String.format("%.1f", 100 * getResumedRatio()))
+        .append("% resumed</td>")
+        .append("<td>").append(failedHandshakeCnt.get()).append(" failed</td>")
+        .append("<td>").append(getMeanClientHandshakeMicros())
+        .append(" us per handshake to servers</td>")
+        .append("</tr></table></td></tr>\r\n");
+  }
+
+  // Handshake metrics, named with prefix.
+  public void addMetrics(Metrics metrics, String prefix) {
+    metrics.counter(prefix + "tls_handshakes_total",
+                    "Completed TLS handshakes, and how many of them resumed a session.",
+                    resumedCnt.get(), "result", "resumed");
+    metrics.counter(prefix + "tls_handshakes_total",
+                    "Completed TLS handshakes, and how many of them resumed a session.",
+                    handshakeCnt.get() - resumedCnt.get(), "result", "full");
+    metrics.counter(prefix + "tls_failed_handshakes_total",
+                    "TLS handshakes with servers that failed.", failedHandshakeCnt.get());
+    metrics.counter(prefix + "tls_server_handshake_seconds_total",
+                    "Time spent in TLS handshakes with servers.", clientHandshakeNanos.get() / 1e9);
+  }
+}
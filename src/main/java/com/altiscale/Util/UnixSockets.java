@@ -0,0 +1,76 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * UnixSockets opens Unix domain sockets for clients and servers that run on the same machine as
+ * the proxy. They skip the TCP/IP stack, which saves latency on small requests and CPU on bulk
+ * transfers compared to loopback TCP.
+ *
+ * This class refuses every path. When we are built on JDK 16 or newer, ChannelUnixSockets from
+ * src/main/uds overrides it with sockets on top of UNIX socket channels, and get() returns it.
+ * Those sockets are plain Sockets and ServerSockets to the rest of the proxy.
+ */
+public class UnixSockets {
+  private static final String UDS_IMPLEMENTATION = "com.altiscale.Util.ChannelUnixSockets";
+
+  private static final UnixSockets instance = create();
+
+  private static UnixSockets create() {
+    try {
+      return (UnixSockets) Class.forName(UDS_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+    } catch (Throwable t) {
+      // Not built with Unix domain socket support, or running on a JVM older than 16.
+      return new UnixSockets();
+    }
+  }
+
+  public static UnixSockets get() {
+    return instance;
+  }
+
+  protected UnixSockets() {
+  }
+
+  public boolean isSupported() {
+    return false;
+  }
+
+  /*
+   *  @return  Socket connected to the Unix domain socket at path.
+   */
+  public Socket connect(String path) throws IOException {
+    throw unsupported(path);
+  }
+
+  /*
+   *  @return  ServerSocket listening on a Unix domain socket at path. A socket file left behind
+   *           at path by an earlier run is replaced, and the file goes away on close().
+   */
+  public ServerSocket createServerSocket(String path, int backlog) throws IOException {
+    throw unsupported(path);
+  }
+
+  private static IOException unsupported(String path) {
+    return new IOException("Can't use Unix domain socket " + path +
+                           ": it needs a build and JVM of Java 16 or newer.");
+  }
+}
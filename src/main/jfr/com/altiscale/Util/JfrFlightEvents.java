@@ -0,0 +1,268 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JfrFlightEvents commits JDK Flight Recorder events for FlightEvents. It is only built on
+ * JDK 11 and newer, see the jfr profile in pom.xml.
+ *
+ * Every event is in the "TransferAccelerator" category and recorded by any running recording,
+ * for example one started with
+ *
+ *   java -XX:StartFlightRecording:filename=proxy.jfr,settings=profile ...
+ *
+ * except LoadBalancerDecision, which happens for every connection attempt and has to be enabled
+ * explicitly in the recording settings.
+ */
+public class JfrFlightEvents extends FlightEvents {
+
+  static final String PREFIX = "com.altiscale.TransferAccelerator.";
+
+  @Name(PREFIX + "TunnelOpened")
+  @Label("Tunnel Opened")
+  @Category({"TransferAccelerator", "Tunnel"})
+  @StackTrace(false)
+  static class TunnelOpenedEvent extends Event {
+    @Label("Tunnel Id")
+    long id;
+
+    @Label("Server")
+    String server;
+
+    @Label("Client")
+    String client;
+  }
+
+  @Name(PREFIX + "TunnelClosed")
+  @Label("Tunnel Closed")
+  @Category({"TransferAccelerator", "Tunnel"})
+  @StackTrace(false)
+  static class TunnelClosedEvent extends Event {
+    @Label("Tunnel Id")
+    long id;
+
+    @Label("Server")
+    String server;
+
+    @Label("Client")
+    String client;
+
+    @Label("Bytes To Server")
+    @DataAmount
+    long bytesToServer;
+
+    @Label("Bytes To Client")
+    @DataAmount
+    long bytesToClient;
+
+    @Label("Tunnel Duration")
+    @Timespan
+    long tunnelDuration;
+  }
+
+  @Name(PREFIX + "BackendConnect")
+  @Label("Backend Connect")
+  @Category({"TransferAccelerator", "Backend"})
+  @StackTrace(false)
+  static class BackendConnectEvent extends Event {
+    @Label("Server")
+    String server;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Latency")
+    @Timespan
+    long latency;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Error")
+    String error;
+  }
+
+  @Name(PREFIX + "LoadBalancerDecision")
+  @Label("Load Balancer Decision")
+  @Category({"TransferAccelerator", "Load Balancer"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class LoadBalancerDecisionEvent extends Event {
+    @Label("Load Balancer")
+    String balancer;
+
+    @Label("Server")
+    String server;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Affinity Key")
+    String affinityKey;
+
+    @Label("Decision Time")
+    @Timespan
+    long decisionTime;
+  }
+
+  @Name(PREFIX + "ExecLoopRestart")
+  @Label("ExecLoop Restart")
+  @Description("A process run by ExecLoop, like an ssh tunnel, finished and will be restarted.")
+  @Category({"TransferAccelerator", "Backend"})
+  @StackTrace(false)
+  static class ExecLoopRestartEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Exit Code")
+    int exitCode;
+
+    @Label("Uptime")
+    @Timespan
+    long uptime;
+  }
+
+  @Name(PREFIX + "ServerThroughput")
+  @Label("Server Throughput")
+  @Category({"TransferAccelerator", "Backend"})
+  @Period("1 s")
+  @StackTrace(false)
+  static class ServerThroughputEvent extends Event {
+    @Label("Server")
+    String server;
+
+    @Label("Bytes Last Second")
+    @DataAmount
+    long bytesLastSecond;
+
+    @Label("Open Tunnels")
+    int openTunnels;
+
+    @Label("Failed Connections Last Second")
+    long failedLastSecond;
+
+    @Label("Healthy")
+    boolean healthy;
+  }
+
+  public JfrFlightEvents() {
+    // Fail here, so that FlightEvents falls back to the no-op version, if this JVM was built
+    // without Flight Recorder.
+    FlightRecorder.isAvailable();
+  }
+
+  @Override
+  public boolean isRecordingSupported() {
+    return FlightRecorder.isAvailable();
+  }
+
+  @Override
+  public void tunnelOpened(long id, Object server, String client) {
+    TunnelOpenedEvent event = new TunnelOpenedEvent();
+    if (event.isEnabled()) {
+      event.id = id;
+      event.server = String.valueOf(server);
+      event.client = client;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void tunnelClosed(long id, Object server, String client, long bytesToServer,
+                           long bytesToClient, long durationNanos) {
+    TunnelClosedEvent event = new TunnelClosedEvent();
+    if (event.isEnabled()) {
+      event.id = id;
+      event.server = String.valueOf(server);
+      event.client = client;
+      event.bytesToServer = bytesToServer;
+      event.bytesToClient = bytesToClient;
+      event.tunnelDuration = durationNanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void backendConnect(Object server, int attempt, long latencyNanos, String error) {
+    BackendConnectEvent event = new BackendConnectEvent();
+    if (event.isEnabled()) {
+      event.server = String.valueOf(server);
+      event.attempt = attempt;
+      event.latency = latencyNanos;
+      event.success = null == error;
+      event.error = error;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void loadBalancerDecision(String balancer, Object server, int attempt,
+                                   String affinityKey, long decisionNanos) {
+    LoadBalancerDecisionEvent event = new LoadBalancerDecisionEvent();
+    if (event.isEnabled()) {
+      event.balancer = balancer;
+      event.server = String.valueOf(server);
+      event.attempt = attempt;
+      event.affinityKey = affinityKey;
+      event.decisionTime = decisionNanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void execLoopRestart(String command, int exitCode, long uptimeNanos) {
+    ExecLoopRestartEvent event = new ExecLoopRestartEvent();
+    if (event.isEnabled()) {
+      event.command = command;
+      event.exitCode = exitCode;
+      event.uptime = uptimeNanos;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void serverThroughput(Object server, long bytesLastSecond, int openTunnels,
+                               long failedLastSecond, boolean healthy) {
+    ServerThroughputEvent event = new ServerThroughputEvent();
+    if (event.isEnabled()) {
+      event.server = String.valueOf(server);
+      event.bytesLastSecond = bytesLastSecond;
+      event.openTunnels = openTunnels;
+      event.failedLastSecond = failedLastSecond;
+      event.healthy = healthy;
+      event.commit();
+    }
+  }
+
+  @Override
+  public void addPeriodicSampler(Runnable sampler) {
+    // Flight Recorder only calls sampler while ServerThroughput is enabled.
+    FlightRecorder.addPeriodicEvent(ServerThroughputEvent.class, sampler);
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ChannelUnixSockets opens Unix domain sockets for UnixSockets on top of UNIX socket channels.
+ * It is only built on JDK 16 and newer, see the uds profile in pom.xml.
+ */
+public class ChannelUnixSockets extends UnixSockets {
+
+  public ChannelUnixSockets() {
+  }
+
+  @Override
+  public boolean isSupported() {
+    return true;
+  }
+
+  @Override
+  public Socket connect(String path) throws IOException {
+    // Connecting to a local socket never waits for a handshake, so a blocking connect is fine.
+    SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+    try {
+      return new UnixDomainSocket(channel, path);
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
+    }
+  }
+
+  @Override
+  public ServerSocket createServerSocket(String path, int backlog) throws IOException {
+    return new UnixDomainServerSocket(path, backlog);
+  }
+}
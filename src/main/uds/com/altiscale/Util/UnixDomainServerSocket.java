@@ -0,0 +1,118 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * UnixDomainServerSocket is a ServerSocket that listens on a Unix domain socket and accepts
+ * UnixDomainSockets. Accepting blocks, like it does for TCP.
+ */
+class UnixDomainServerSocket extends ServerSocket {
+  private final String path;
+  private final ServerSocketChannel channel;
+
+  UnixDomainServerSocket(String path, int backlog) throws IOException {
+    this.path = path;
+    removeStaleSocket(new File(path));
+    channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    try {
+      channel.bind(UnixDomainSocketAddress.of(path), backlog);
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
+    }
+  }
+
+  /*
+   *  Binding fails while a socket file exists, and a proxy that was killed leaves one behind.
+   *  We only remove sockets, never regular files someone put at our path by mistake.
+   */
+  private static void removeStaleSocket(File file) throws IOException {
+    if (file.exists() &&
+        Files.readAttributes(file.toPath(), BasicFileAttributes.class).isOther()) {
+      Files.delete(file.toPath());
+    }
+  }
+
+  @Override
+  public Socket accept() throws IOException {
+    return new UnixDomainSocket(channel.accept(), path);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel.isOpen()) {
+      channel.close();
+      new File(path).delete();
+    }
+  }
+
+  @Override
+  public boolean isClosed() {
+    return !channel.isOpen();
+  }
+
+  @Override
+  public boolean isBound() {
+    return true;
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public int getLocalPort() {
+    return -1;
+  }
+
+  @Override
+  public synchronized void setReceiveBufferSize(int size) throws SocketException {
+    try {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+    } catch (IOException ioe) {
+      throw new SocketException(ioe.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized int getReceiveBufferSize() throws SocketException {
+    try {
+      return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    } catch (IOException ioe) {
+      throw new SocketException(ioe.getMessage());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "UnixDomainServerSocket[" + path + "]";
+  }
+}
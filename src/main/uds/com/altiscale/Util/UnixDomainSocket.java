@@ -0,0 +1,351 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * UnixDomainSocket is a Socket on top of a connected UNIX socket channel, so that tunnels,
+ * TLS and fetches work on it unchanged.
+ *
+ * Socket streams of a blocking channel can't time out and block writes while a read is waiting,
+ * so the channel is non-blocking and each direction waits on a selector of its own. Reads honor
+ * setSoTimeout() like TCP sockets do. Options that only mean something for TCP are ignored, and
+ * the peer shows up as a loopback address without a port.
+ */
+class UnixDomainSocket extends Socket {
+  private final SocketChannel channel;
+  private final String path;
+  private final InputStream input;
+  private final OutputStream output;
+
+  // Selectors we wait on for reads and writes, created on the first wait.
+  private Selector readSelector;
+  private Selector writeSelector;
+
+  private volatile int soTimeout;
+  private volatile boolean closed;
+
+  UnixDomainSocket(SocketChannel channel, String path) throws IOException {
+    this.channel = channel;
+    this.path = path;
+    channel.configureBlocking(false);
+    input = new ChannelInputStream();
+    output = new ChannelOutputStream();
+  }
+
+  private synchronized Selector getSelector(int op) throws IOException {
+    if (closed) {
+      throw new SocketException("Socket is closed");
+    }
+    if (SelectionKey.OP_READ == op) {
+      if (null == readSelector) {
+        readSelector = Selector.open();
+        channel.register(readSelector, op);
+      }
+      return readSelector;
+    }
+    if (null == writeSelector) {
+      writeSelector = Selector.open();
+      channel.register(writeSelector, op);
+    }
+    return writeSelector;
+  }
+
+  /*
+   *  Waits until the channel is ready for op.
+   *
+   *  @param deadlineMillis  When we give up with a SocketTimeoutException, 0 to wait forever.
+   */
+  private void await(int op, long deadlineMillis) throws IOException {
+    Selector selector = getSelector(op);
+    long waitMillis = 0;
+    if (0 != deadlineMillis) {
+      waitMillis = deadlineMillis - System.currentTimeMillis();
+      if (waitMillis <= 0) {
+        throw new SocketTimeoutException("Read timed out");
+      }
+    }
+    try {
+      selector.select(waitMillis);
+      selector.selectedKeys().clear();
+    } catch (ClosedSelectorException cse) {
+      throw new SocketException("Socket closed");
+    }
+  }
+
+  private class ChannelInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return -1 == read(b, 0, 1) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (0 == len) {
+        return 0;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      int timeout = soTimeout;
+      long deadlineMillis = 0 == timeout ? 0 : System.currentTimeMillis() + timeout;
+      while (true) {
+        int cnt = channel.read(buffer);
+        if (0 != cnt) {
+          return cnt;
+        }
+        await(SelectionKey.OP_READ, deadlineMillis);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      UnixDomainSocket.this.close();
+    }
+  }
+
+  private class ChannelOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        if (0 == channel.write(buffer)) {
+          await(SelectionKey.OP_WRITE, 0);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      UnixDomainSocket.this.close();
+    }
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    if (closed) {
+      throw new SocketException("Socket is closed");
+    }
+    return input;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    if (closed) {
+      throw new SocketException("Socket is closed");
+    }
+    return output;
+  }
+
+  @Override
+  public void close() throws IOException {
+    Selector read;
+    Selector write;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      read = readSelector;
+      write = writeSelector;
+    }
+    try {
+      channel.close();
+    } finally {
+      // Closing the selectors wakes up threads that wait on them.
+      if (null != read) {
+        read.close();
+      }
+      if (null != write) {
+        write.close();
+      }
+    }
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public boolean isBound() {
+    return true;
+  }
+
+  @Override
+  public void shutdownInput() throws IOException {
+    channel.shutdownInput();
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    channel.shutdownOutput();
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public InetAddress getLocalAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public int getPort() {
+    return 0;
+  }
+
+  @Override
+  public int getLocalPort() {
+    return -1;
+  }
+
+  @Override
+  public SocketAddress getRemoteSocketAddress() {
+    try {
+      return channel.getRemoteAddress();
+    } catch (IOException ioe) {
+      return null;
+    }
+  }
+
+  @Override
+  public SocketAddress getLocalSocketAddress() {
+    try {
+      return channel.getLocalAddress();
+    } catch (IOException ioe) {
+      return null;
+    }
+  }
+
+  @Override
+  public void setSoTimeout(int timeout) throws SocketException {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout can't be negative");
+    }
+    soTimeout = timeout;
+  }
+
+  @Override
+  public int getSoTimeout() {
+    return soTimeout;
+  }
+
+  // There is no Nagle's algorithm, no keepalive probes and no linger on Unix domain sockets.
+  @Override
+  public void setTcpNoDelay(boolean on) {
+  }
+
+  @Override
+  public boolean getTcpNoDelay() {
+    return false;
+  }
+
+  @Override
+  public void setKeepAlive(boolean on) {
+  }
+
+  @Override
+  public boolean getKeepAlive() {
+    return false;
+  }
+
+  @Override
+  public void setSoLinger(boolean on, int linger) {
+  }
+
+  @Override
+  public int getSoLinger() {
+    return -1;
+  }
+
+  @Override
+  public synchronized void setSendBufferSize(int size) throws SocketException {
+    try {
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+    } catch (IOException ioe) {
+      throw new SocketException(ioe.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized int getSendBufferSize() throws SocketException {
+    try {
+      return channel.getOption(StandardSocketOptions.SO_SNDBUF);
+    } catch (IOException ioe) {
+      throw new SocketException(ioe.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized void setReceiveBufferSize(int size) throws SocketException {
+    try {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+    } catch (IOException ioe) {
+      throw new SocketException(ioe.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized int getReceiveBufferSize() throws SocketException {
+    try {
+      return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    } catch (IOException ioe) {
+      throw new SocketException(ioe.getMessage());
+    }
+  }
+
+  @Override
+  public void connect(SocketAddress endpoint, int timeout) throws IOException {
+    throw new SocketException("Already connected to " + path);
+  }
+
+  @Override
+  public void bind(SocketAddress bindpoint) throws IOException {
+    throw new SocketException("Already bound");
+  }
+
+  @Override
+  public String toString() {
+    return "UnixDomainSocket[" + path + "]";
+  }
+}
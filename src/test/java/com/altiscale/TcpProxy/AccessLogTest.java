@@ -0,0 +1,208 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* AccessLog unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for AccessLog.
+ */
+public class AccessLogTest extends TestCase {
+  private File dir;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public AccessLogTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(AccessLogTest.class);
+  }
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("accessLog", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  protected void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static AccessLog.Record record(long id) {
+    AccessLog.Record record = new AccessLog.Record();
+    record.id = id;
+    return record;
+  }
+
+  private static ArrayList<String> readLines(File file) throws IOException {
+    ArrayList<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while (null != (line = reader.readLine())) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  public void testRingBuffer() {
+    AccessLog log = new AccessLog(new File(dir, "access.csv"), 3, 1024, 0);
+    assertEquals(4, log.getCapacity());
+    for (int id = 0; id < 5; id++) {
+      assertEquals(id < 4, log.offer(record(id)));
+    }
+    assertEquals(1, log.droppedCnt.get());
+    assertEquals(4, log.getBufferedCnt());
+    assertEquals(0, log.poll().id);
+    assertEquals(1, log.poll().id);
+
+    // Taking records makes room again, and the ring wraps around.
+    assertTrue(log.offer(record(5)));
+    assertTrue(log.offer(record(6)));
+    assertFalse(log.offer(record(7)));
+    long[] expected = {2, 3, 5, 6};
+    for (long id : expected) {
+      assertEquals(id, log.poll().id);
+    }
+    assertNull(log.poll());
+    assertEquals(0, log.getBufferedCnt());
+  }
+
+  public void testConcurrentOffers() throws Exception {
+    final AccessLog log = new AccessLog(new File(dir, "access.csv"), 256, 1024, 0);
+    final AtomicLong nextId = new AtomicLong(0);
+    final AtomicLong accepted = new AtomicLong(0);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 20000; j++) {
+            if (log.offer(record(nextId.getAndIncrement()))) {
+              accepted.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    HashSet<Long> polled = new HashSet<Long>();
+    boolean running = true;
+    while (running || 0 != log.getBufferedCnt()) {
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+      AccessLog.Record record;
+      while (null != (record = log.poll())) {
+        assertTrue(polled.add(record.id));
+      }
+    }
+    assertEquals(accepted.get(), polled.size());
+    assertEquals(80000, accepted.get() + log.droppedCnt.get());
+  }
+
+  public void testFormat() {
+    AccessLog.Record record = record(7);
+    record.startMillis = 1000;
+    record.durationMicros = 2500;
+    record.client = "10.0.0.1:5000";
+    record.server = "unix:/tmp/a,b \"c\".sock";
+    record.bytesToServer = 10;
+    record.bytesToClient = 20;
+    record.closeReason = TcpTunnel.CLOSED_BY_CLIENT;
+    record.connectMicros = 300;
+    StringBuilder line = new StringBuilder();
+    AccessLog.format(record, line);
+    assertEquals("1000,2500,10.0.0.1:5000,\"unix:/tmp/a,b \"\"c\"\".sock\",10,20,client,300,7\n",
+                 line.toString());
+  }
+
+  public void testTunnelsAndRotation() throws Exception {
+    File file = new File(dir, "access.csv");
+    // Room for the header and about two lines per file.
+    AccessLog log = new AccessLog(file, AccessLog.DEFAULT_CAPACITY, 200, 2);
+    log.start();
+
+    ServerSocket serverSocket = new ServerSocket(0);
+    Server proxyServer = new Server(new HostPort("localhost", serverSocket.getLocalPort()));
+    for (int i = 0; i < 10; i++) {
+      Socket clientEnd = new Socket("localhost", serverSocket.getLocalPort());
+      Socket client = serverSocket.accept();
+      Socket serverEnd = new Socket("localhost", serverSocket.getLocalPort());
+      Socket server = serverSocket.accept();
+      TcpTunnel tunnel = new TcpTunnel(client, server, proxyServer);
+      tunnel.setConnectNanos(42000);
+      tunnel.setAccessLog(log);
+      tunnel.spawnTunnelThreads();
+      clientEnd.getOutputStream().write("hello".getBytes());
+      serverEnd.getInputStream().read(new byte[5]);
+      clientEnd.close();
+      while (!tunnel.isClosed()) {
+        Thread.yield();
+      }
+      serverEnd.close();
+    }
+    serverSocket.close();
+    log.stop();
+
+    assertEquals(10, log.writtenCnt.get());
+    assertEquals(0, log.droppedCnt.get());
+    assertTrue(log.rotationCnt.get() >= 2);
+    assertTrue(new File(dir, "access.csv.1").exists());
+    assertTrue(new File(dir, "access.csv.2").exists());
+    assertFalse(new File(dir, "access.csv.3").exists());
+
+    ArrayList<String> lines = readLines(new File(dir, "access.csv.1"));
+    assertEquals(AccessLog.HEADER, lines.get(0));
+    String[] fields = lines.get(1).split(",");
+    assertEquals(9, fields.length);
+    assertEquals("localhost:" + proxyServer.hostPort.port, fields[3]);
+    assertEquals("5", fields[4]);
+    assertEquals("0", fields[5]);
+    assertEquals(TcpTunnel.CLOSED_BY_CLIENT, fields[6]);
+    assertEquals("42", fields[7]);
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* AdminAccess unittests. */
+package com.altiscale.TcpProxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for AdminAccess.
+ */
+public class AdminAccessTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public AdminAccessTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(AdminAccessTest.class);
+  }
+
+  private static InetSocketAddress address(int a, int b, int c, int d) throws Exception {
+    return new InetSocketAddress(
+        InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d}), 40000);
+  }
+
+  public void testLoopbackOnlyWithoutToken() throws Exception {
+    AdminAccess access = new AdminAccess(null);
+    assertTrue(access.isAllowed(address(127, 0, 0, 1), null));
+    assertTrue(access.isAllowed(
+        new InetSocketAddress(InetAddress.getByName("::1"), 40000), null));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), null));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), "Bearer "));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), "Bearer anything"));
+    assertFalse(access.isAllowed(null, null));
+    assertFalse(access.getDeniedJson().contains("token"));
+  }
+
+  public void testToken() throws Exception {
+    AdminAccess access = new AdminAccess("s3cret");
+    assertTrue(access.isAllowed(address(127, 0, 0, 1), null));
+    assertTrue(access.isAllowed(address(10, 1, 2, 3), "Bearer s3cret"));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), null));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), "Bearer s3cre"));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), "Bearer s3cret2"));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), "Basic s3cret"));
+    assertFalse(access.isAllowed(address(10, 1, 2, 3), "s3cret"));
+    assertTrue(access.getDeniedJson().contains("token"));
+  }
+}
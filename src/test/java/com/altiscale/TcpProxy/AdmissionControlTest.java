@@ -0,0 +1,127 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* AdmissionControl unittests. */
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.Metrics;
+
+/**
+ * Unittests for AdmissionControl.
+ */
+public class AdmissionControlTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public AdmissionControlTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(AdmissionControlTest.class);
+  }
+
+  public void testUnlimited() {
+    AdmissionControl admission = new AdmissionControl();
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(admission.tryAdmit());
+    }
+    assertEquals(1000, admission.admittedCnt.get());
+    assertEquals(0, admission.getActiveTunnels());
+  }
+
+  public void testQueueFullAndTimeout() {
+    AdmissionControl admission = new AdmissionControl(2, 1, 50);
+    assertTrue(admission.tryAdmit());
+    assertTrue(admission.admit());
+    assertEquals(2, admission.getActiveTunnels());
+    assertFalse(admission.tryAdmit());
+
+    // One client may wait, the next one is shed right away.
+    assertTrue(admission.enqueue());
+    assertEquals(1, admission.getQueueDepth());
+    assertFalse(admission.enqueue());
+    assertEquals(1, admission.shedQueueFullCnt.get());
+
+    long start = System.currentTimeMillis();
+    assertFalse(admission.awaitAdmission());
+    assertTrue(System.currentTimeMillis() - start >= 40);
+    assertEquals(0, admission.getQueueDepth());
+    assertEquals(1, admission.shedTimeoutCnt.get());
+    assertEquals(2, admission.shedCnt.getTotalCnt());
+
+    admission.release();
+    assertEquals(1, admission.getActiveTunnels());
+    assertTrue(admission.tryAdmit());
+  }
+
+  public void testStats() {
+    AdmissionControl admission = new AdmissionControl(2, 0, 0);
+    assertTrue(admission.tryAdmit());
+    assertFalse(admission.enqueue());
+
+    StringBuilder html = new StringBuilder();
+    admission.appendHtml(html);
+    assertTrue(html.toString(), html.toString().contains("admitted tunnels</td><td>1 of 2<"));
+    assertTrue(html.toString().contains("admission queue</td><td>0 of 0<"));
+
+    Metrics metrics = new Metrics();
+    admission.addMetrics(metrics, "ta_");
+    String text = metrics.toPrometheus();
+    assertTrue(text, text.contains("ta_admission_active_tunnels 1\n"));
+    assertTrue(text.contains("ta_shed_total{reason=\"queue_full\"} 1\n"));
+    assertTrue(text.contains("ta_shed_total{reason=\"timeout\"} 0\n"));
+
+    // Without a limit there is nothing but shed clients to show.
+    html = new StringBuilder();
+    new AdmissionControl().appendHtml(html);
+    assertFalse(html.toString().contains("admitted tunnels"));
+    assertTrue(html.toString().contains("shed clients"));
+  }
+
+  public void testQueuedClientGetsReleasedSlot() throws Exception {
+    final AdmissionControl admission = new AdmissionControl(1, 4, 5000);
+    assertTrue(admission.tryAdmit());
+    assertTrue(admission.enqueue());
+    final AtomicBoolean admitted = new AtomicBoolean(false);
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        admitted.set(admission.awaitAdmission());
+      }
+    });
+    waiter.start();
+    Thread.sleep(50);
+    // Newcomers don't get ahead of the queue.
+    assertFalse(admission.tryAdmit());
+    admission.release();
+    waiter.join(5000);
+    assertTrue(admitted.get());
+    assertEquals(1, admission.getActiveTunnels());
+    assertEquals(1, admission.queuedCnt.get());
+    assertEquals(1, admission.queueWaitHist.getSnapshot().getCount());
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* Load balancer simulation. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.PeakEwma;
+
+/**
+ * Discrete-event simulation that compares tail latency of load balancers on a set of servers
+ * where a few replicas are much slower than the rest. Time is virtual, so it runs in well under
+ * a second no matter how long the simulated period is.
+ */
+public class LoadBalancerSimulationTest extends TestCase {
+  static final long MS = 1000L * 1000;
+
+  static final int NUM_FAST_SERVERS = 8;
+  static final int NUM_SLOW_SERVERS = 2;
+  static final long FAST_SERVICE_NANOS = 10 * MS;
+  static final long SLOW_SERVICE_NANOS = 200 * MS;
+  static final int WORKERS_PER_SERVER = 4;
+  static final int RESPONSE_BYTES = 64 * 1024;
+
+  static final int NUM_REQUESTS = 30000;
+  static final double REQUESTS_PER_SECOND = 1500;
+
+  // Virtual time in nanoseconds.
+  long now;
+
+  class Completion implements Comparable<Completion> {
+    long finishNanos;
+    long latencyNanos;
+    Server server;
+
+    public Completion(long finishNanos, long latencyNanos, Server server) {
+      this.finishNanos = finishNanos;
+      this.latencyNanos = latencyNanos;
+      this.server = server;
+    }
+
+    public int compareTo(Completion other) {
+      return finishNanos < other.finishNanos ? -1 : (finishNanos > other.finishNanos ? 1 : 0);
+    }
+  }
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LoadBalancerSimulationTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LoadBalancerSimulationTest.class);
+  }
+
+  ArrayList<Server> createServers() {
+    ArrayList<Server> servers = new ArrayList<Server>();
+    for (int i = 0; i < NUM_FAST_SERVERS + NUM_SLOW_SERVERS; i++) {
+      Server server = new Server(new HostPort("sim", i));
+      server.latencyEwma = new PeakEwma(Server.LATENCY_DECAY_NANOS, 0);
+      servers.add(server);
+    }
+    return servers;
+  }
+
+  long serviceNanos(ArrayList<Server> servers, Server server) {
+    return servers.indexOf(server) < NUM_FAST_SERVERS ? FAST_SERVICE_NANOS : SLOW_SERVICE_NANOS;
+  }
+
+  void complete(Completion completion) {
+    completion.server.latencyEwma.observe(completion.latencyNanos, completion.finishNanos);
+    completion.server.incrementByteRateBy(RESPONSE_BYTES);
+    completion.server.openTunnelCnt.decrementAndGet();
+  }
+
+  /*
+   *  Runs the simulation and returns sorted request latencies in nanoseconds.
+   */
+  long[] simulate(LoadBalancer loadBalancer, ServerScoreboard scoreboard,
+                  ArrayList<Server> servers) {
+    Random random = new Random(42);
+    long[][] workerFreeAt = new long[servers.size()][WORKERS_PER_SERVER];
+    PriorityQueue<Completion> completions = new PriorityQueue<Completion>();
+    long[] latencies = new long[NUM_REQUESTS];
+    long nextRefresh = 0;
+    now = 0;
+
+    for (int i = 0; i < NUM_REQUESTS; i++) {
+      now += (long) (-Math.log(1.0 - random.nextDouble()) * 1e9 / REQUESTS_PER_SECOND);
+      while (!completions.isEmpty() && completions.peek().finishNanos <= now) {
+        complete(completions.poll());
+      }
+      if (now >= nextRefresh) {
+        scoreboard.refresh();
+        nextRefresh = now + ServerScoreboard.SAMPLE_PERIOD_MS * MS;
+      }
+
+      Server server = loadBalancer.getServer(null);
+      server.openTunnelCnt.incrementAndGet();
+
+      // Queue the request on the worker of this server that frees up first.
+      long[] workers = workerFreeAt[servers.indexOf(server)];
+      int worker = 0;
+      for (int w = 1; w < workers.length; w++) {
+        if (workers[w] < workers[worker]) {
+          worker = w;
+        }
+      }
+      long start = Math.max(now, workers[worker]);
+      long service = (long) (-Math.log(1.0 - random.nextDouble()) *
+                             serviceNanos(servers, server));
+      workers[worker] = start + service;
+      latencies[i] = workers[worker] - now;
+      completions.add(new Completion(workers[worker], latencies[i], server));
+    }
+    Arrays.sort(latencies);
+    return latencies;
+  }
+
+  long percentile(long[] sortedLatencies, double percentile) {
+    return sortedLatencies[(int) (percentile * (sortedLatencies.length - 1))];
+  }
+
+  void report(String name, long[] latencies) {
+    System.out.println(name +
+                       " p50: " + percentile(latencies, 0.5) / MS + " ms" +
+                       " p99: " + percentile(latencies, 0.99) / MS + " ms" +
+                       " p999: " + percentile(latencies, 0.999) / MS + " ms");
+  }
+
+  public void testPowerOfTwoChoicesBeatsLeastUsedTail() {
+    ArrayList<Server> leastUsedServers = createServers();
+    ServerScoreboard leastUsedScoreboard = new ServerScoreboard(leastUsedServers);
+    long[] leastUsed = simulate(new LeastUsed(leastUsedScoreboard), leastUsedScoreboard,
+                                leastUsedServers);
+    report("LeastUsed", leastUsed);
+
+    ArrayList<Server> roundRobinServers = createServers();
+    ServerScoreboard roundRobinScoreboard = new ServerScoreboard(roundRobinServers);
+    long[] roundRobin = simulate(new RoundRobin(roundRobinScoreboard), roundRobinScoreboard,
+                                 roundRobinServers);
+    report("RoundRobin", roundRobin);
+
+    ArrayList<Server> p2cServers = createServers();
+    ServerScoreboard p2cScoreboard = new ServerScoreboard(p2cServers);
+    LoadBalancer p2cBalancer = new PowerOfTwoChoices(p2cScoreboard, new Random(7)) {
+      @Override
+      protected long nanoTime() {
+        return now;
+      }
+    };
+    long[] p2c = simulate(p2cBalancer, p2cScoreboard, p2cServers);
+    report("PowerOfTwoChoices", p2c);
+
+    assert percentile(p2c, 0.99) < percentile(leastUsed, 0.99);
+    assert percentile(p2c, 0.99) < percentile(roundRobin, 0.99);
+  }
+}
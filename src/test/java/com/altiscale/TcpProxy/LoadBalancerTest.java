@@ -0,0 +1,238 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* Load balancer unittests. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for load balancers.
+ */
+public class LoadBalancerTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LoadBalancerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LoadBalancerTest.class);
+  }
+
+  ArrayList<Server> createServers(int num) {
+    ArrayList<Server> servers = new ArrayList<Server>();
+    for (int i = 0; i < num; i++) {
+      servers.add(new Server(new HostPort("server" + i, 1000 + i)));
+    }
+    return servers;
+  }
+
+  public void testWeightedRoundRobinIsSmooth() {
+    ArrayList<Server> servers = createServers(3);
+    servers.get(0).configuredWeight = 5;
+    servers.get(1).configuredWeight = 1;
+    servers.get(2).configuredWeight = 1;
+    LoadBalancer balancer = new WeightedRoundRobin(new ServerScoreboard(servers), false);
+
+    // Same sequence as nginx for weights {5, 1, 1}.
+    int[] expected = {0, 0, 1, 0, 2, 0, 0};
+    for (int i = 0; i < expected.length; i++) {
+      assert balancer.getServer(null) == servers.get(expected[i]);
+    }
+  }
+
+  public void testWeightedRoundRobinProportions() {
+    ArrayList<Server> servers = createServers(3);
+    servers.get(0).configuredWeight = 3;
+    servers.get(1).configuredWeight = 2;
+    servers.get(2).configuredWeight = 1;
+    LoadBalancer balancer = new WeightedRoundRobin(new ServerScoreboard(servers), false);
+
+    int[] picks = new int[3];
+    for (int i = 0; i < 600; i++) {
+      picks[servers.indexOf(balancer.getServer(null))]++;
+    }
+    assert picks[0] == 300;
+    assert picks[1] == 200;
+    assert picks[2] == 100;
+  }
+
+  public void testMaglevAffinity() {
+    ArrayList<Server> servers = createServers(5);
+    LoadBalancer balancer = new Maglev(new ServerScoreboard(servers));
+
+    int[] picks = new int[5];
+    int movedOnRetry = 0;
+    for (int i = 0; i < 1000; i++) {
+      ConnectionContext context = new ConnectionContext(null);
+      context.affinityKey = "user" + i;
+      Server server = balancer.getServer(context);
+      assert server == balancer.getServer(context);
+      picks[servers.indexOf(server)]++;
+
+      context.attempt = 1;
+      if (server != balancer.getServer(context)) {
+        movedOnRetry++;
+      }
+    }
+    for (int i = 0; i < picks.length; i++) {
+      assert picks[i] > 100;
+    }
+    // A retry lands on another server unless it hashes to the same one by chance (1 in 5).
+    assert movedOnRetry > 700;
+  }
+
+  public void testMaglevWithoutKey() {
+    ArrayList<Server> servers = createServers(5);
+    LoadBalancer balancer = new Maglev(new ServerScoreboard(servers));
+
+    // No context and no key both spread over all servers.
+    int[] picks = new int[5];
+    for (int i = 0; i < 1000; i++) {
+      ConnectionContext context = i % 2 == 0 ? null : new ConnectionContext(null);
+      picks[servers.indexOf(balancer.getServer(context))]++;
+    }
+    for (int i = 0; i < picks.length; i++) {
+      assert picks[i] > 100;
+    }
+  }
+
+  public void testRoundRobin() {
+    ArrayList<Server> servers = createServers(3);
+    LoadBalancer balancer = new RoundRobin(new ServerScoreboard(servers));
+    Server first = balancer.getServer(null);
+    assert balancer.getServer(null) != first;
+    assert balancer.getServer(null) != first;
+    assert balancer.getServer(null) == first;
+  }
+
+  public void testLeastUsedSkipsFailedServers() {
+    ArrayList<Server> servers = createServers(3);
+    ServerScoreboard scoreboard = new ServerScoreboard(servers);
+    LoadBalancer balancer = new LeastUsed(scoreboard);
+    servers.get(0).incrementByteRateBy(1000);
+    servers.get(1).incrementFailedConn();
+    servers.get(2).incrementByteRateBy(2000);
+    scoreboard.refresh();
+    assert balancer.getServer(null) == servers.get(0);
+  }
+
+  public void testLeastUsedSpreadsPicksBetweenSamples() {
+    ArrayList<Server> servers = createServers(3);
+    ServerScoreboard scoreboard = new ServerScoreboard(servers);
+    LoadBalancer balancer = new LeastUsed(scoreboard);
+    // Ten tunnels of 1000 bytes each.
+    servers.get(0).incrementByteRateBy(0);
+    servers.get(1).incrementByteRateBy(2000);
+    servers.get(2).incrementByteRateBy(8000);
+    for (int i = 0; i < 10; i++) {
+      servers.get(i % 3).incrementOpenedConn();
+    }
+    scoreboard.refresh();
+
+    // The idle server catches up with the second one, both with the third, then all take turns.
+    int[] expected = {0, 0, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 2, 0, 1, 2};
+    for (int i = 0; i < expected.length; i++) {
+      assert balancer.getServer(null) == servers.get(expected[i]) : "pick " + i;
+    }
+
+    // A refresh starts over from what the servers moved.
+    scoreboard.refresh();
+    assert balancer.getServer(null) == servers.get(0);
+  }
+
+  public void testPowerOfTwoChoicesAvoidsBusyServer() {
+    ArrayList<Server> servers = createServers(2);
+    ServerScoreboard scoreboard = new ServerScoreboard(servers);
+    LoadBalancer balancer = new PowerOfTwoChoices(scoreboard);
+    servers.get(0).openTunnelCnt.incrementAndGet();
+    for (int i = 0; i < 10; i++) {
+      assert balancer.getServer(null) == servers.get(1);
+    }
+  }
+
+  public void testWeightedRoundRobinLearnsWeights() {
+    ArrayList<Server> servers = createServers(2);
+    ServerScoreboard scoreboard = new ServerScoreboard(servers);
+    WeightedRoundRobin balancer = new WeightedRoundRobin(scoreboard, true);
+    assert servers.get(0).effectiveWeight == servers.get(1).effectiveWeight;
+
+    // Same number of tunnels, but the first server moves four times more data.
+    servers.get(0).incrementByteRateBy(400000);
+    servers.get(1).incrementByteRateBy(100000);
+    balancer.learnIntervalMillis = 0;
+    scoreboard.refresh();
+    assert servers.get(0).effectiveWeight == WeightedRoundRobin.MAX_LEARNED_WEIGHT;
+    assert servers.get(1).effectiveWeight < servers.get(0).effectiveWeight * 2 / 3;
+
+    int[] picks = new int[2];
+    for (int i = 0; i < 1000; i++) {
+      picks[servers.indexOf(balancer.getServer(null))]++;
+    }
+    assert picks[0] > picks[1];
+  }
+
+  public void testWeightedRoundRobinKeepsLearnedWeights() {
+    ArrayList<Server> servers = createServers(2);
+    ServerScoreboard scoreboard = new ServerScoreboard(servers);
+    WeightedRoundRobin balancer = new WeightedRoundRobin(scoreboard, true);
+    servers.get(0).incrementByteRateBy(400000);
+    servers.get(1).incrementByteRateBy(100000);
+    balancer.learnIntervalMillis = 0;
+    scoreboard.refresh();
+    int learned = servers.get(1).effectiveWeight;
+    assertTrue(learned < WeightedRoundRobin.MAX_LEARNED_WEIGHT);
+
+    // A membership change builds a new balancer for the same servers plus a new one.
+    ArrayList<Server> more = new ArrayList<Server>(servers);
+    more.addAll(createServers(1));
+    ServerScoreboard newScoreboard = new ServerScoreboard(more);
+    WeightedRoundRobin newBalancer = new WeightedRoundRobin(newScoreboard, true);
+    assertEquals(learned, servers.get(1).effectiveWeight);
+    assertEquals(WeightedRoundRobin.MAX_LEARNED_WEIGHT, more.get(2).effectiveWeight);
+
+    // The old balancer's sampler may still run until it is stopped, but changes nothing.
+    servers.get(0).incrementByteRateBy(100);
+    servers.get(1).incrementByteRateBy(400000);
+    scoreboard.refresh();
+    assertEquals(learned, servers.get(1).effectiveWeight);
+
+    // Static weights don't overwrite what was learned.
+    new WeightedRoundRobin(newScoreboard, false);
+    assertEquals(1, servers.get(1).effectiveWeight);
+    assertEquals(learned, servers.get(1).learnedWeight);
+  }
+
+  public void testCreateLoadBalancerFromClassName() throws Exception {
+    ServerScoreboard scoreboard = new ServerScoreboard(createServers(2));
+    assert TcpProxyServer.createLoadBalancer("com.altiscale.TcpProxy.UniformRandom",
+                                             scoreboard, false) instanceof UniformRandom;
+    assert TcpProxyServer.createLoadBalancer("Maglev", scoreboard, false) instanceof Maglev;
+  }
+}
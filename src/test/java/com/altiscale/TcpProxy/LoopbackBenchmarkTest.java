@@ -0,0 +1,72 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* LoopbackBenchmark unittests. */
+package com.altiscale.TcpProxy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for LoopbackBenchmark.
+ */
+public class LoopbackBenchmarkTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LoopbackBenchmarkTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LoopbackBenchmarkTest.class);
+  }
+
+  public void testMixedWorkload() throws Exception {
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.listeningPort = 48994;
+    config.statusPort = 48995;
+    config.benchWorkload = LoopbackBenchmark.MIXED;
+    config.benchBackends = 2;
+    config.benchClients = 2 * LoopbackBenchmark.MIXED_BULK_EVERY;
+    config.benchSeconds = 1;
+    config.benchIdleConnections = 20;
+
+    TcpProxyServer proxy = new TcpProxyServer("TransferAccelerator");
+    LoopbackBenchmark.Result result = new LoopbackBenchmark(proxy, config).run();
+
+    assertEquals(2, proxy.getServerList().size());
+    // Small clients make requests, bulk clients move most of the bytes.
+    assertTrue(result.requests > 2 * LoopbackBenchmark.MIXED_BULK_EVERY);
+    assertTrue(result.bytes > result.requests * LoopbackBenchmark.RESPONSE_BYTES);
+    assertTrue(result.gbps > 0);
+    assertTrue(result.p99LatencyMicros >= result.p50LatencyMicros);
+    assertTrue(result.p50LatencyMicros > 0);
+    assertTrue(result.peakOpenConnections > 0);
+    assertEquals(20, result.idleConnectionsOpened);
+    assertTrue(result.peakThreads > config.benchClients);
+
+    String json = result.toJson();
+    assertTrue(json, json.startsWith("{\"workload\":\"mixed\",\"backends\":2,"));
+    assertTrue(json, json.contains("\"idle_connections_opened\":20,"));
+  }
+}
@@ -0,0 +1,338 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* MultipartUpload unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpRequestHead;
+
+/**
+ * Unittests for MultipartUpload.
+ */
+public class MultipartUploadTest extends TestCase {
+  // Files of the stand-in HDFS by path.
+  private HashMap<String, byte[]> files;
+
+  // Paths the stand-in HDFS was asked to delete.
+  private ArrayList<String> deletedPaths;
+
+  private ArrayList<ServerSocket> webHdfsServers;
+  private LoadBalancer balancer;
+  private File spillDir;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public MultipartUploadTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(MultipartUploadTest.class);
+  }
+
+  /*
+   *  Two stand-in HttpFS servers for the same files, and one that is down, so that some parts
+   *  have to be tried again.
+   */
+  protected void setUp() throws IOException {
+    files = new HashMap<String, byte[]>();
+    deletedPaths = new ArrayList<String>();
+    webHdfsServers = new ArrayList<ServerSocket>();
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(new Server(new HostPort("127.0.0.1", startWebHdfsServer())));
+    ServerSocket down = new ServerSocket(0);
+    servers.add(new Server(new HostPort("127.0.0.1", down.getLocalPort())));
+    down.close();
+    servers.add(new Server(new HostPort("127.0.0.1", startWebHdfsServer())));
+    balancer = new RoundRobin(new ServerScoreboard(servers));
+    spillDir = File.createTempFile("spill", "");
+    spillDir.delete();
+  }
+
+  protected void tearDown() throws IOException {
+    for (ServerSocket server : webHdfsServers) {
+      server.close();
+    }
+    File[] spilled = spillDir.listFiles();
+    assertEquals(0, null == spilled ? 0 : spilled.length);
+    spillDir.delete();
+  }
+
+  private int startWebHdfsServer() throws IOException {
+    final ServerSocket server = new ServerSocket(0);
+    webHdfsServers.add(server);
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (!server.isClosed()) {
+          try {
+            final Socket socket = server.accept();
+            new Thread(new Runnable() {
+              public void run() {
+                serveWebHdfs(socket);
+              }
+            }, "webHdfs").start();
+          } catch (IOException ioe) {
+            // Closed in tearDown.
+          }
+        }
+      }
+    }, "webHdfsAcceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return server.getLocalPort();
+  }
+
+  /*
+   *  Just enough of HttpFS: CREATE with data, CONCAT, RENAME (also with renameoptions) and
+   *  DELETE. Parts named *.part2 of files named *broken* can't be written.
+   */
+  private void serveWebHdfs(Socket socket) {
+    try {
+      InputStream input = socket.getInputStream();
+      HttpRequestHead request = HttpRequestHead.read(input, 64 * 1024);
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      body.write(request.rawBytes, request.headLength, request.rawLength - request.headLength);
+      long length = Long.parseLong(request.getHeader("Content-Length"));
+      byte[] buffer = new byte[4096];
+      int cnt;
+      while (body.size() < length && (cnt = input.read(buffer)) >= 0) {
+        body.write(buffer, 0, cnt);
+      }
+
+      String path = request.path.substring(WebHdfsCache.WEBHDFS_PREFIX.length());
+      String op = request.getQueryParameter("op");
+      String status = "200 OK";
+      String json = "";
+      synchronized (files) {
+        if (op.equals("CREATE")) {
+          assertEquals("true", request.getQueryParameter("data"));
+          assertEquals("wile", request.getQueryParameter("user.name"));
+          if (path.contains("broken") && path.endsWith(".part2")) {
+            status = "500 Internal Server Error";
+          } else {
+            files.put(path, body.toByteArray());
+            status = "201 Created";
+          }
+        } else if (op.equals("CONCAT")) {
+          ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+          concatenated.write(files.get(path));
+          for (String source : request.getQueryParameter("sources").split(",")) {
+            concatenated.write(files.remove(source));
+          }
+          files.put(path, concatenated.toByteArray());
+        } else if (op.equals("RENAME")) {
+          String destination = request.getQueryParameter("destination");
+          boolean overwrite = "OVERWRITE".equals(request.getQueryParameter("renameoptions"));
+          boolean renamed = (overwrite || !files.containsKey(destination)) &&
+                            files.containsKey(path);
+          if (renamed) {
+            files.put(destination, files.remove(path));
+          }
+          if (!overwrite) {
+            json = "{\"boolean\":" + renamed + "}";
+          } else if (!renamed) {
+            status = "404 Not Found";
+          }
+        } else if (op.equals("DELETE")) {
+          deletedPaths.add(path);
+          json = "{\"boolean\":" + (null != files.remove(path)) + "}";
+        }
+      }
+      socket.getOutputStream().write(("HTTP/1.1 " + status + "\r\nContent-Length: " +
+                                      json.length() + "\r\nConnection: close\r\n\r\n" + json)
+                                     .getBytes("ISO-8859-1"));
+      socket.close();
+    } catch (IOException ioe) {
+      // The test fails on the missing file.
+    }
+  }
+
+  private static byte[] content(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 7);
+    }
+    return content;
+  }
+
+  /*
+   *  Uploads content to uri through the MultipartUpload like a client of the proxy would.
+   *
+   *  @return  Response of the proxy.
+   */
+  private String upload(MultipartUpload multipartUpload, String uri, final byte[] content)
+      throws Exception {
+    ServerSocket proxy = new ServerSocket(0);
+    final Socket client = new Socket("127.0.0.1", proxy.getLocalPort());
+    Socket clientSocket = proxy.accept();
+    proxy.close();
+
+    final byte[] head = ("PUT " + uri + " HTTP/1.1\r\nHost: httpfs:14000\r\n" +
+                         "Content-Length: " + content.length + "\r\n" +
+                         "Expect: 100-continue\r\n\r\n").getBytes("ISO-8859-1");
+    Thread sender = new Thread(new Runnable() {
+      public void run() {
+        try {
+          OutputStream output = client.getOutputStream();
+          output.write(head);
+          // Like curl, wait for the go-ahead before sending the body.
+          byte[] continued = new byte[25];
+          for (int i = 0; i < continued.length; i++) {
+            continued[i] = (byte) client.getInputStream().read();
+          }
+          output.write(content);
+        } catch (IOException ioe) {
+          // The test fails on the response.
+        }
+      }
+    }, "uploadClient");
+    sender.start();
+
+    ConnectionContext context = new ConnectionContext(clientSocket);
+    context.httpRequest = HttpRequestHead.read(clientSocket.getInputStream(), 64 * 1024);
+    final AtomicInteger closedCnt = new AtomicInteger(0);
+    context.onTunnelClosed = new Runnable() {
+      public void run() {
+        closedCnt.incrementAndGet();
+      }
+    };
+    assertTrue(multipartUpload.isCandidate(context.httpRequest));
+    multipartUpload.upload(balancer, context);
+    sender.join();
+    assertEquals(1, closedCnt.get());
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int cnt;
+    while ((cnt = client.getInputStream().read(buffer)) >= 0) {
+      response.write(buffer, 0, cnt);
+    }
+    client.close();
+    return response.toString("ISO-8859-1");
+  }
+
+  public void testUpload() throws Exception {
+    MultipartUpload multipartUpload = new MultipartUpload(spillDir, 1000, 2, 3);
+    byte[] content = content(3500);
+    String response = upload(multipartUpload,
+        "/webhdfs/v1/user/wile/big?op=CREATE&user.name=wile&data=true&permission=644", content);
+    assertTrue(response, response.startsWith("HTTP/1.1 201 Created\r\n"));
+    assertTrue(response.contains("Location: http://httpfs:14000/webhdfs/v1/user/wile/big\r\n"));
+    // Only the stitched file is left.
+    assertEquals(1, files.size());
+    assertTrue(Arrays.equals(content, files.get("/user/wile/big")));
+    assertEquals(4, multipartUpload.partCnt.get());
+    assertTrue(multipartUpload.retriedPartCnt.get() > 0);
+    assertEquals(3500, multipartUpload.uploadedBytesCnt.get());
+
+    // The file exists now, so it takes overwrite=true to write it again.
+    response = upload(multipartUpload,
+        "/webhdfs/v1/user/wile/big?op=CREATE&user.name=wile&data=true", content(2500));
+    assertTrue(response, response.startsWith("HTTP/1.1 403 Forbidden\r\n"));
+    assertTrue(response.contains("FileAlreadyExistsException"));
+    assertEquals(1, files.size());
+    assertEquals(3500, files.get("/user/wile/big").length);
+
+    response = upload(multipartUpload,
+        "/webhdfs/v1/user/wile/big?op=CREATE&user.name=wile&data=true&overwrite=true",
+        content(2500));
+    assertTrue(response, response.startsWith("HTTP/1.1 201 Created\r\n"));
+    assertEquals(1, files.size());
+    assertEquals(2500, files.get("/user/wile/big").length);
+    // Replaced by the RENAME, never deleted.
+    assertFalse(deletedPaths.contains("/user/wile/big"));
+    assertEquals(1, multipartUpload.failedUploadCnt.get());
+  }
+
+  public void testFailedPart() throws Exception {
+    MultipartUpload multipartUpload = new MultipartUpload(spillDir, 1000, 2, 3);
+    String response = upload(multipartUpload,
+        "/webhdfs/v1/user/wile/broken?op=CREATE&user.name=wile&data=true", content(3500));
+    assertTrue(response, response.startsWith("HTTP/1.1 502 "));
+    // The parts that made it are gone again and nothing appeared under the name.
+    assertEquals(0, files.size());
+    assertEquals(1, multipartUpload.failedUploadCnt.get());
+  }
+
+  public void testSharedWriters() throws Exception {
+    final MultipartUpload multipartUpload = new MultipartUpload(spillDir, 1000, 2, 1);
+    final String[] responses = new String[3];
+    Thread[] uploaders = new Thread[responses.length];
+    for (int i = 0; i < uploaders.length; i++) {
+      final int n = i;
+      uploaders[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            responses[n] = upload(multipartUpload, "/webhdfs/v1/user/wile/shared" + n +
+                                  "?op=CREATE&user.name=wile&data=true", content(3500));
+          } catch (Exception e) {
+            responses[n] = e.toString();
+          }
+        }
+      }, "uploader");
+      uploaders[i].start();
+    }
+    for (int i = 0; i < uploaders.length; i++) {
+      uploaders[i].join();
+      assertTrue(responses[i], responses[i].startsWith("HTTP/1.1 201 Created\r\n"));
+      assertTrue(Arrays.equals(content(3500), files.get("/user/wile/shared" + i)));
+    }
+    // All parts of all uploads went through the one writer.
+    assertEquals(1, multipartUpload.writers.getLargestPoolSize());
+    assertEquals(12, multipartUpload.partCnt.get());
+  }
+
+  public void testCandidates() throws Exception {
+    MultipartUpload multipartUpload = new MultipartUpload(spillDir, 1000, 2, 3);
+    String[] heads = {
+      "PUT /webhdfs/v1/a?op=CREATE&data=true HTTP/1.1\r\nContent-Length: 1001\r\n\r\n",
+      "PUT /webhdfs/v1/a?op=CREATE&data=true HTTP/1.1\r\nContent-Length: 1000\r\n\r\n",
+      "PUT /webhdfs/v1/a?op=APPEND&data=true HTTP/1.1\r\nContent-Length: 5000\r\n\r\n",
+      "PUT /webhdfs/v1/a,b?op=CREATE HTTP/1.1\r\nContent-Length: 5000\r\n\r\n",
+      "PUT /webhdfs/v1/a?op=CREATE HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n",
+      "PUT /webhdfs/v1/a?op=CREATE HTTP/1.1\r\nContent-Length: 5000\r\n" +
+          "Authorization: Negotiate abc\r\n\r\n"};
+    for (int i = 0; i < heads.length; i++) {
+      byte[] bytes = heads[i].getBytes("ISO-8859-1");
+      assertEquals(heads[i], 0 == i,
+                   multipartUpload.isCandidate(HttpRequestHead.parse(bytes, bytes.length,
+                                                                     bytes.length)));
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* ReadAhead unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpRequestHead;
+
+/**
+ * Unittests for ReadAhead.
+ */
+public class ReadAheadTest extends TestCase {
+  private static final int FILE_BYTES = 100000;
+
+  private ServerSocket webHdfsServer;
+  private Server server;
+  private LoadBalancer balancer;
+
+  // Requests the stand-in server got.
+  private AtomicInteger requestCnt;
+
+  // If set, the stand-in server redirects OPEN like a namenode.
+  private volatile boolean redirect;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ReadAheadTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ReadAheadTest.class);
+  }
+
+  private static byte fileByte(long offset) {
+    return (byte) (offset * 13);
+  }
+
+  // A stand-in WebHDFS server with one file of FILE_BYTES that answers OPEN with a range.
+  protected void setUp() throws IOException {
+    requestCnt = new AtomicInteger(0);
+    webHdfsServer = new ServerSocket(0);
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (!webHdfsServer.isClosed()) {
+          try {
+            Socket socket = webHdfsServer.accept();
+            requestCnt.incrementAndGet();
+            HttpRequestHead request = HttpRequestHead.read(socket.getInputStream(), 64 * 1024);
+            int offset = Integer.parseInt(request.getQueryParameter("offset"));
+            int length = Math.min(Integer.parseInt(request.getQueryParameter("length")),
+                                  FILE_BYTES - offset);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            if (redirect) {
+              response.write(("HTTP/1.1 307 Temporary Redirect\r\nLocation: http://dn/\r\n" +
+                              "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                             .getBytes("ISO-8859-1"));
+              socket.getOutputStream().write(response.toByteArray());
+              socket.close();
+              continue;
+            }
+            response.write(("HTTP/1.1 200 OK\r\nContent-Length: " + length +
+                            "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            for (int i = offset; i < offset + length; i++) {
+              response.write(fileByte(i));
+            }
+            socket.getOutputStream().write(response.toByteArray());
+            socket.close();
+          } catch (IOException ioe) {
+            // Closed in tearDown.
+          }
+        }
+      }
+    }, "webHdfs");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    server = new Server(new HostPort("127.0.0.1", webHdfsServer.getLocalPort()));
+    ArrayList<Server> servers = new ArrayList<Server>();
+    servers.add(server);
+    balancer = new RoundRobin(new ServerScoreboard(servers));
+  }
+
+  protected void tearDown() throws IOException {
+    webHdfsServer.close();
+  }
+
+  private static HttpRequestHead get(String uri) throws IOException {
+    byte[] bytes = ("GET " + uri + " HTTP/1.1\r\nHost: nn\r\n\r\n").getBytes("ISO-8859-1");
+    return HttpRequestHead.parse(bytes, bytes.length, bytes.length);
+  }
+
+  /*
+   *  Reads a range like the proxy does: from read-ahead if we have it, else from the server.
+   *  Checks what the client gets.
+   */
+  private void read(ReadAhead readAhead, String user, int offset, int length) throws Exception {
+    ServerSocket proxy = new ServerSocket(0);
+    Socket client = new Socket("127.0.0.1", proxy.getLocalPort());
+    Socket clientSocket = proxy.accept();
+    proxy.close();
+
+    ConnectionContext context = new ConnectionContext(clientSocket);
+    context.httpRequest = get("/webhdfs/v1/f?op=OPEN&user.name=" + user + "&offset=" + offset +
+                              "&length=" + length);
+    assertTrue(readAhead.isRangeRead(context.httpRequest));
+    if (!readAhead.serve(context, balancer)) {
+      server.fetch(context, 0);
+      clientSocket.close();
+    }
+
+    InputStream input = client.getInputStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int cnt;
+    while ((cnt = input.read(buffer)) >= 0) {
+      response.write(buffer, 0, cnt);
+    }
+    client.close();
+    byte[] bytes = response.toByteArray();
+    String head = new String(bytes, 0, Math.min(bytes.length, 100), "ISO-8859-1");
+    assertTrue(head, head.startsWith("HTTP/1.1 200 OK\r\n"));
+    int bodyStart = head.indexOf("\r\n\r\n") + 4;
+    assertEquals(length, bytes.length - bodyStart);
+    for (int i = 0; i < length; i++) {
+      assertEquals(fileByte(offset + i), bytes[bodyStart + i]);
+    }
+  }
+
+  public void testSequentialReads() throws Exception {
+    ReadAhead readAhead = new ReadAhead(1024 * 1024, 4);
+    readAhead.start();
+    try {
+      // The second read in sequence starts fetching, every hit fetches one more.
+      for (int i = 0; i < 10; i++) {
+        read(readAhead, "wile", i * 1000, 1000);
+      }
+      assertEquals(10, readAhead.rangeReadCnt.get());
+      assertEquals(8, readAhead.hitCnt.get());
+      // Ranges 10 to 13 are on their way or there.
+      assertEquals(4, readAhead.getRangeCnt());
+
+      // Another user doesn't get them, and reading elsewhere starts a new stream.
+      read(readAhead, "coyote", 10000, 1000);
+      read(readAhead, "wile", 50000, 1000);
+      assertEquals(8, readAhead.hitCnt.get());
+      assertEquals(0.0, readAhead.getWasteRatio());
+
+      // A write drops what we fetched, and that is waste.
+      while (readAhead.fetchedCnt.get() < 12) {
+        Thread.sleep(10);
+      }
+      readAhead.invalidate("/webhdfs/v1/f");
+      assertEquals(0, readAhead.getRangeCnt());
+      assertEquals(0, readAhead.getBytes());
+      assertEquals(4, readAhead.wastedCnt.get());
+      assertEquals(4.0 / 12, readAhead.getWasteRatio(), 0.001);
+      assertEquals(2 + 2 + 12, requestCnt.get());
+    } finally {
+      readAhead.stop();
+    }
+  }
+
+  public void testBudget() throws Exception {
+    // Room for one range and its head, so we fetch one range ahead.
+    ReadAhead readAhead = new ReadAhead(64 * 1024 + 1000, 4);
+    readAhead.start();
+    try {
+      for (int i = 0; i < 5; i++) {
+        read(readAhead, "wile", i * 1000, 1000);
+      }
+      assertEquals(3, readAhead.hitCnt.get());
+      assertEquals(1, readAhead.getRangeCnt());
+    } finally {
+      readAhead.stop();
+    }
+  }
+
+  public void testRedirectingServer() throws Exception {
+    ReadAhead readAhead = new ReadAhead(1024 * 1024, 4);
+    readAhead.start();
+    try {
+      read(readAhead, "wile", 0, 1000);
+      redirect = true;
+      // Starts fetching ranges 2 to 5, which all get redirected.
+      readAhead.serve(readContext("wile", 1000, 1000), balancer);
+      while (readAhead.fetchedCnt.get() < 4) {
+        Thread.sleep(10);
+      }
+      assertTrue(readAhead.isRedirected());
+      assertEquals(0, readAhead.fetchedBytesCnt.get());
+
+      // The next reads in sequence fetch nothing more.
+      int requests = requestCnt.get();
+      for (int i = 2; i < 6; i++) {
+        readAhead.serve(readContext("wile", i * 1000, 1000), balancer);
+      }
+      assertEquals(4, readAhead.fetchedCnt.get());
+      assertEquals(requests, requestCnt.get());
+    } finally {
+      readAhead.stop();
+    }
+  }
+
+  // Context of a range read whose client we don't answer.
+  private ConnectionContext readContext(String user, int offset, int length) throws Exception {
+    ConnectionContext context = new ConnectionContext(null);
+    context.httpRequest = get("/webhdfs/v1/f?op=OPEN&user.name=" + user + "&offset=" + offset +
+                              "&length=" + length);
+    return context;
+  }
+
+  public void testRequests() throws Exception {
+    ReadAhead readAhead = new ReadAhead(1024 * 1024, 4);
+    HttpRequestHead request =
+        get("/webhdfs/v1/a%20b?op=OPEN&offset=100&user.name=wile&length=50&buffersize=4096");
+    String streamKey = ReadAhead.getStreamKey(request);
+    assertEquals("/webhdfs/v1/a%20b?op=OPEN&user.name=wile&buffersize=4096", streamKey);
+    assertEquals("GET /webhdfs/v1/a%20b?op=OPEN&user.name=wile&buffersize=4096&offset=150" +
+                 "&length=50 HTTP/1.1\r\nHost: nn\r\nConnection: close\r\n\r\n",
+                 new String(ReadAhead.getRangeRequest(request, streamKey, 150, 50),
+                            "ISO-8859-1"));
+
+    assertFalse(readAhead.isRangeRead(get("/webhdfs/v1/a?op=OPEN&offset=100")));
+    assertFalse(readAhead.isRangeRead(get("/webhdfs/v1/a?op=OPEN&offset=x&length=5")));
+    assertFalse(readAhead.isRangeRead(get("/webhdfs/v1/a?op=GETFILESTATUS&offset=0&length=5")));
+    assertTrue(readAhead.isRangeRead(get("/webhdfs/v1/a?op=open&offset=0&length=5")));
+
+    // Users the stream key doesn't show.
+    byte[] bytes = ("GET /webhdfs/v1/a?op=OPEN&offset=0&length=5 HTTP/1.1\r\nHost: nn\r\n" +
+                    "Cookie: hadoop.auth=\"u=wile&t=kerberos\"\r\n\r\n").getBytes("ISO-8859-1");
+    assertFalse(readAhead.isRangeRead(HttpRequestHead.parse(bytes, bytes.length, bytes.length)));
+    bytes = ("GET /webhdfs/v1/a?op=OPEN&offset=0&length=5 HTTP/1.1\r\nHost: nn\r\n" +
+             "Authorization: Negotiate abc\r\n\r\n").getBytes("ISO-8859-1");
+    assertFalse(readAhead.isRangeRead(HttpRequestHead.parse(bytes, bytes.length, bytes.length)));
+  }
+}
@@ -0,0 +1,447 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* ServerMembership and MembershipFile unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.DnsCache;
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for ServerMembership and MembershipFile.
+ */
+public class ServerMembershipTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ServerMembershipTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ServerMembershipTest.class);
+  }
+
+  private TcpProxyServer proxy;
+  private ServerMembership membership;
+
+  // Listener and client and server ends of the tunnels we open, closed in tearDown.
+  private ServerSocket listener;
+  private ArrayList<Socket> sockets;
+
+  @Override
+  protected void setUp() throws Exception {
+    listener = null;
+    sockets = new ArrayList<Socket>();
+    proxy = new TcpProxyServer("test");
+    for (int i = 0; i < 3; i++) {
+      proxy.getServerList().add(new Server(new HostPort("server" + i, 1234)));
+    }
+    membership = new ServerMembership(proxy, null, "RoundRobin", true);
+    membership.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    if (null != listener) {
+      listener.close();
+    }
+  }
+
+  // Tunnel through server between a client and a server that are just sockets we hold. The
+  // client end is the first socket added to sockets.
+  private TcpTunnel openTunnel(Server server) throws Exception {
+    if (null == listener) {
+      listener = new ServerSocket(0);
+    }
+    Socket clientEnd = new Socket("localhost", listener.getLocalPort());
+    Socket client = listener.accept();
+    Socket serverEnd = new Socket("localhost", listener.getLocalPort());
+    Socket serverSide = listener.accept();
+    sockets.add(clientEnd);
+    sockets.add(serverEnd);
+    TcpTunnel tunnel = new TcpTunnel(client, serverSide, server);
+    tunnel.spawnTunnelThreads();
+    return tunnel;
+  }
+
+  private static void waitForClose(TcpTunnel tunnel) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!tunnel.isClosed() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  // Names of the servers the load balancer hands out in picks picks.
+  private HashSet<String> pickedServers(int picks) {
+    HashSet<String> names = new HashSet<String>();
+    LoadBalancer balancer = proxy.getLoadBalancer();
+    for (int i = 0; i < picks; i++) {
+      names.add(balancer.getServer(new ConnectionContext(null)).hostPort.toString());
+    }
+    return names;
+  }
+
+  public void testDrainAndUndrain() throws Exception {
+    assertEquals(3, pickedServers(30).size());
+    membership.setDraining("server1:1234", true);
+    HashSet<String> picked = pickedServers(30);
+    assertEquals(2, picked.size());
+    assertFalse(picked.contains("server1:1234"));
+    // Draining servers stay in the list for stats.
+    assertEquals(3, proxy.getServerList().size());
+    assertEquals(Server.STATE_DRAINING, proxy.getServerList().get(1).getState());
+
+    membership.setDraining("server1:1234", false);
+    assertEquals(3, pickedServers(30).size());
+  }
+
+  public void testLastRoutableServer() throws Exception {
+    membership.setDraining("server0:1234", true);
+    membership.setDraining("server1:1234", true);
+    try {
+      membership.setDraining("server2:1234", true);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertTrue(proxy.getServerList().get(2).isRoutable());
+    assertEquals(1, pickedServers(10).size());
+
+    // A failed remove leaves the server as it was.
+    Server server = proxy.getServerList().get(2);
+    try {
+      membership.removeServer("server2:1234", false);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertEquals(Server.STATE_ACTIVE, server.getState());
+    assertEquals(0, server.removedMillis);
+  }
+
+  public void testPickFromOldLoadBalancer() throws Exception {
+    LoadBalancer old = proxy.getLoadBalancer();
+    membership.removeServer("server0:1234", false);
+    membership.setDraining("server1:1234", true);
+    // The old balancer still hands out all three servers, but we only get the routable one.
+    for (int i = 0; i < 10; i++) {
+      assertEquals("server2:1234",
+                   proxy.pickRoutableServer(old, new ConnectionContext(null)).hostPort.toString());
+    }
+  }
+
+  public void testAddAndRemove() throws Exception {
+    membership.addServer(new HostPort("server3", 1234), null, SocketProfile.BULK);
+    assertEquals(4, proxy.getServerList().size());
+    assertEquals(4, pickedServers(40).size());
+    assertEquals(SocketProfile.BULK, proxy.getServerList().get(3).socketProfile.name);
+
+    // A server with an open tunnel stays until the tunnel is gone.
+    Server server = proxy.getServerList().get(0);
+    server.openTunnelCnt.incrementAndGet();
+    membership.removeServer("server0:1234", false);
+    assertFalse(pickedServers(40).contains("server0:1234"));
+    assertEquals(4, proxy.getServerList().size());
+    assertEquals(Server.STATE_REMOVING, server.getState());
+
+    server.openTunnelCnt.decrementAndGet();
+    membership.reapRemovedServers();
+    assertEquals(3, proxy.getServerList().size());
+    assertNull(ServerMembership.findServer(proxy.getServerList(), "server0:1234"));
+
+    try {
+      membership.removeServer("server0:1234", false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testWeightsAndLoadBalancer() throws Exception {
+    membership.setLoadBalancer("WeightedRoundRobin");
+    assertTrue(proxy.getLoadBalancer() instanceof WeightedRoundRobin);
+    assertTrue(membership.getLearnWeights());
+
+    membership.setWeight("server0:1234", 8);
+    assertFalse(membership.getLearnWeights());
+    int server0Picks = 0;
+    LoadBalancer balancer = proxy.getLoadBalancer();
+    for (int i = 0; i < 100; i++) {
+      if (balancer.getServer(new ConnectionContext(null)) == proxy.getServerList().get(0)) {
+        server0Picks++;
+      }
+    }
+    // Weights 8:1:1.
+    assertEquals(80, server0Picks);
+
+    try {
+      membership.setLoadBalancer("NoSuchBalancer");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertEquals("WeightedRoundRobin", membership.getLoadBalancerName());
+  }
+
+  public void testParseFile() throws Exception {
+    MembershipFile file = MembershipFile.parse(new StringReader(
+        "# Replicas\n" +
+        "load_balancer=LeastUsed\n" +
+        "server0:1234 weight=3\n" +
+        "\n" +
+        "server4:1234 profile=latency drain  # new one\n"));
+    assertEquals("LeastUsed", file.loadBalancer);
+    assertEquals(2, file.entries.size());
+    assertEquals(3, file.entries.get(0).weight.intValue());
+    assertNull(file.entries.get(1).weight);
+    assertEquals("latency", file.entries.get(1).profile);
+    assertTrue(file.entries.get(1).drain);
+    assertTrue(file.hasWeights());
+
+    String[] badFiles = {"server0\n", "server0:1234 weight=0\n", "server0:1234 fast\n",
+                         "server0:1234 profile=fast\n", "server0:1234\nserver0:1234\n"};
+    for (String badFile : badFiles) {
+      try {
+        MembershipFile.parse(new StringReader(badFile));
+        fail("Expected IOException for " + badFile);
+      } catch (IOException e) {
+        assertTrue(e.getMessage().startsWith("Line "));
+      }
+    }
+  }
+
+  public void testApplyFile() throws Exception {
+    membership.apply(MembershipFile.parse(new StringReader(
+        "load_balancer=LeastUsed\n" +
+        "server0:1234 weight=3\n" +
+        "server4:1234 drain\n")));
+    assertEquals("LeastUsed", membership.getLoadBalancerName());
+    assertFalse(membership.getLearnWeights());
+    // server1 and server2 had no tunnels and are gone, server4 is new but draining.
+    assertEquals(2, proxy.getServerList().size());
+    assertEquals(3, proxy.getServerList().get(0).configuredWeight);
+    assertEquals(Server.STATE_DRAINING, proxy.getServerList().get(1).getState());
+    HashSet<String> picked = pickedServers(10);
+    assertEquals(1, picked.size());
+    assertTrue(picked.contains("server0:1234"));
+
+    try {
+      membership.apply(MembershipFile.parse(new StringReader("server0:1234 drain\n")));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertEquals(2, proxy.getServerList().size());
+  }
+
+  // A load balancer that passes checkLoadBalancerName but fails to build.
+  public static class BrokenBalancer implements LoadBalancer {
+    public BrokenBalancer(ServerScoreboard scoreboard) {
+      throw new IllegalStateException("broken");
+    }
+
+    public Server getServer(ConnectionContext context) {
+      return null;
+    }
+  }
+
+  // A load balancer without the constructor we need.
+  public static class NoScoreboardBalancer implements LoadBalancer {
+    public Server getServer(ConnectionContext context) {
+      return null;
+    }
+  }
+
+  public void testFailedApplyChangesNothing() throws Exception {
+    Server server1 = proxy.getServerList().get(1);
+    LoadBalancer balancer = proxy.getLoadBalancer();
+    try {
+      membership.apply(MembershipFile.parse(new StringReader(
+          "load_balancer=" + BrokenBalancer.class.getName() + "\n" +
+          "server0:1234 weight=3 profile=bulk\n" +
+          "server4:1234 drain\n")));
+      fail("Expected an exception from BrokenBalancer");
+    } catch (Exception e) {
+      // Expected.
+    }
+    assertSame(balancer, proxy.getLoadBalancer());
+    assertEquals(3, proxy.getServerList().size());
+    assertNull(ServerMembership.findServer(proxy.getServerList(), "server4:1234"));
+    assertFalse(server1.removed);
+    assertEquals(0, server1.removedMillis);
+    Server server0 = proxy.getServerList().get(0);
+    assertEquals(SocketProfile.DEFAULT, server0.getSocketProfile().name);
+    assertTrue(membership.getLearnWeights());
+    assertEquals(3, pickedServers(30).size());
+
+    int weight = server0.configuredWeight;
+    try {
+      membership.setLoadBalancer(BrokenBalancer.class.getName());
+      fail("Expected an exception from BrokenBalancer");
+    } catch (Exception e) {
+      // Expected.
+    }
+    try {
+      membership.setLoadBalancer(NoScoreboardBalancer.class.getName());
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertEquals(weight, server0.configuredWeight);
+  }
+
+  public void testRemovedServerDrainTimeout() throws Exception {
+    membership.setDrainTimeout(300);
+    TcpTunnel tunnel = openTunnel(proxy.getServerList().get(0));
+    membership.removeServer("server0:1234", false);
+    assertFalse(tunnel.isClosed());
+    assertEquals(3, proxy.getServerList().size());
+
+    // Scoreboard refreshes close the tunnel once the timeout passed and then drop the server.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (null != ServerMembership.findServer(proxy.getServerList(), "server0:1234") &&
+           System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(tunnel.isClosed());
+    assertEquals(1, membership.drainTimeoutClosedCnt.get());
+    assertEquals(2, proxy.getServerList().size());
+  }
+
+  public void testDrainOnShutdown() throws Exception {
+    TcpTunnel finishing = openTunnel(proxy.getServerList().get(0));
+    final Socket finishingClient = sockets.get(0);
+    TcpTunnel stuck = openTunnel(proxy.getServerList().get(1));
+    assertTrue(proxy.isHealthy());
+
+    // One client hangs up during the drain, the other one is still there at the deadline.
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+          finishingClient.close();
+        } catch (Exception e) {
+          // The test fails on the count below.
+        }
+      }
+    }).start();
+    long start = System.currentTimeMillis();
+    assertEquals(1, proxy.drain(500));
+    assertTrue(System.currentTimeMillis() - start >= 500);
+    assertTrue(finishing.isClosed());
+
+    waitForClose(stuck);
+    assertTrue(stuck.isClosed());
+    assertTrue(proxy.isDraining());
+    assertFalse(proxy.isHealthy());
+    assertEquals(Server.STATE_DRAINING, proxy.getServerList().get(1).getState());
+  }
+
+  // A DnsCache with names we set instead of DNS.
+  private static class FakeDnsCache extends DnsCache {
+    final HashMap<String, InetAddress[]> records = new HashMap<String, InetAddress[]>();
+
+    FakeDnsCache() {
+      super(DnsCache.DEFAULT_TTL_MS);
+    }
+
+    @Override
+    public synchronized InetAddress[] resolve(String host) throws UnknownHostException {
+      InetAddress[] addresses = records.get(host);
+      if (null == addresses) {
+        throw new UnknownHostException(host);
+      }
+      return addresses;
+    }
+
+    synchronized void set(String host, int... lastBytes) throws UnknownHostException {
+      InetAddress[] addresses = new InetAddress[lastBytes.length];
+      for (int i = 0; i < lastBytes.length; i++) {
+        addresses[i] = InetAddress.getByAddress(host, new byte[] {10, 0, 0, (byte) lastBytes[i]});
+      }
+      records.put(host, addresses);
+    }
+  }
+
+  public void testExpandDns() throws Exception {
+    FakeDnsCache dnsCache = new FakeDnsCache();
+    dnsCache.set("replicas", 1, 2);
+    proxy = new TcpProxyServer("test");
+    for (HostPort hostPort : ServerMembership.expand(dnsCache, new HostPort("replicas", 1234))) {
+      Server server = new Server(hostPort);
+      server.dnsName = new HostPort("replicas", 1234);
+      proxy.getServerList().add(server);
+    }
+    membership = new ServerMembership(proxy, null, "RoundRobin", true);
+    membership.setDnsCache(dnsCache, true);
+    membership.start();
+    HashSet<String> picked = pickedServers(20);
+    assertEquals(2, picked.size());
+    assertTrue(picked.contains("10.0.0.1:1234"));
+
+    // One address goes, one comes, and the new server takes the weight of its name.
+    membership.setWeight("replicas:1234", 5);
+    dnsCache.set("replicas", 2, 3);
+    membership.refreshExpandedServers();
+    assertEquals(2, proxy.getServerList().size());
+    picked = pickedServers(20);
+    assertEquals(2, picked.size());
+    assertTrue(picked.contains("10.0.0.3:1234"));
+    assertEquals(5, ServerMembership.findServer(proxy.getServerList(),
+                                                "10.0.0.3:1234").configuredWeight);
+
+    // Names that don't resolve keep their servers.
+    dnsCache.records.remove("replicas");
+    membership.refreshExpandedServers();
+    assertEquals(2, pickedServers(20).size());
+
+    // Names added at runtime are expanded too, and work for draining and removal.
+    dnsCache.set("more", 7, 8);
+    membership.addServer(new HostPort("more", 1234), null, null);
+    assertEquals(4, pickedServers(40).size());
+    membership.setDraining("more:1234", true);
+    assertEquals(2, pickedServers(40).size());
+    membership.setDraining("more:1234", false);
+    membership.removeServer("replicas:1234", false);
+    picked = pickedServers(40);
+    assertEquals(2, picked.size());
+    assertTrue(picked.contains("10.0.0.8:1234"));
+    assertEquals(2, proxy.getServerList().size());
+  }
+}
@@ -136,4 +136,29 @@ public class ServerTest extends TestCase {
     assert sshCommand.equals(
         "ssh -o StrictHostKeyChecking=no -n -N -L 12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
   }
+
+  public void testSshTunnelCommandSocketPath() throws Exception {
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.parseServerStringAndAdd("unix:/run/proxy/server.sock");
+    HostPort hostPort = config.serverHostPortList.get(0);
+    assertTrue(hostPort.isPath());
+    assertEquals("unix:/run/proxy/server.sock", hostPort.toString());
+
+    JumpHost jumphost = new JumpHost(new HostPort("acme-secret-lab", 22),
+                                     new HostPort("acme-supersecret-server", 14000),
+                                     "wileEcoyote",
+                                     null,
+                                     false,
+                                     null,
+                                     null,
+                                     true);
+    Server server = new Server(hostPort, jumphost);
+    String sshCommand = server.sshJumphostCommand();
+    System.out.println(sshCommand);
+    // Sockets are local only, so openInterfaces doesn't matter.
+    assertEquals(
+        "ssh -o StrictHostKeyChecking=no -o StreamLocalBindUnlink=yes -n -N -L " +
+        "/run/proxy/server.sock:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab",
+        sshCommand);
+  }
 }
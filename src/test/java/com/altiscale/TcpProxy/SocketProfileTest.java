@@ -0,0 +1,114 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* SocketProfile and BufferAutoTuner unittests. */
+package com.altiscale.TcpProxy;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for SocketProfile and BufferAutoTuner.
+ */
+public class SocketProfileTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SocketProfileTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SocketProfileTest.class);
+  }
+
+  public void testForName() {
+    assertEquals(SocketProfile.LATENCY, SocketProfile.forName("latency").name);
+    assertTrue(SocketProfile.forName("auto").autoTune);
+    assertFalse(SocketProfile.exists("fast"));
+    try {
+      SocketProfile.forName("fast");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("latency"));
+    }
+  }
+
+  public void testApply() throws Exception {
+    ServerSocket listener = SocketProfile.forName(SocketProfile.LATENCY).createServerSocket(0);
+    Socket socket = new Socket();
+    SocketProfile.forName(SocketProfile.LATENCY).apply(socket);
+    socket.connect(listener.getLocalSocketAddress());
+    assertTrue(socket.getTcpNoDelay());
+    assertTrue(socket.getKeepAlive());
+    // The OS may round buffer sizes, but never below what latency asks for.
+    assertTrue(socket.getReceiveBufferSize() >= 64 * 1024);
+    assertTrue(SocketProfile.describe(socket).startsWith("nodelay=true keepalive=true"));
+    socket.close();
+    listener.close();
+  }
+
+  public void testBufferBytesFor() {
+    // No traffic yet.
+    assertEquals(BufferAutoTuner.MIN_BUFFER_BYTES, BufferAutoTuner.bufferBytesFor(1000, 0));
+    // 100 MB/s at 10ms is 1 MB in flight, we want twice that.
+    assertEquals(2 * 1024 * 1024, BufferAutoTuner.bufferBytesFor(10000, 100 * 1000 * 1000));
+    // 10 GB/s at 100ms is capped.
+    assertEquals(BufferAutoTuner.MAX_BUFFER_BYTES,
+                 BufferAutoTuner.bufferBytesFor(100000, 10L * 1000 * 1000 * 1000));
+  }
+
+  public void testAutoTuner() {
+    ArrayList<Server> servers = new ArrayList<Server>();
+    for (int i = 0; i < 2; i++) {
+      Server server = new Server(new HostPort("backend" + i, 14000));
+      // A 20ms TCP handshake, and 80ms more for TLS.
+      server.tcpConnectLatencyHist.record(20L * 1000);
+      server.recordConnectLatency(100L * 1000 * 1000);
+      servers.add(server);
+    }
+    servers.get(0).setSocketProfile(SocketProfile.forName(SocketProfile.AUTO));
+    ServerScoreboard scoreboard = new ServerScoreboard(servers);
+    BufferAutoTuner tuner = new BufferAutoTuner(scoreboard);
+
+    tuner.tune(servers.get(0));
+    assertTrue(servers.get(0).estimatedRttMicros >= 16000);
+    assertTrue(servers.get(0).estimatedRttMicros <= 24000);
+    assertEquals(BufferAutoTuner.MIN_BUFFER_BYTES, servers.get(0).getSocketBufferBytes());
+    assertEquals(0, servers.get(1).getSocketBufferBytes());
+  }
+
+  public void testAutoTunerSkipsUnixSockets() {
+    Server server = new Server(HostPort.forPath("/tmp/backend.sock"));
+    server.setSocketProfile(SocketProfile.forName(SocketProfile.AUTO));
+    server.autoBufferBytes = 4 * 1024 * 1024;
+    assertFalse(server.canAutoTune());
+    // The profile's starting size, whatever the tuner had set.
+    assertEquals(BufferAutoTuner.MIN_BUFFER_BYTES, server.getSocketBufferBytes());
+  }
+}
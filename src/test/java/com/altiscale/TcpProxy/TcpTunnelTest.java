@@ -144,4 +144,42 @@ public class TcpTunnelTest extends TestCase {
       assert false;
     }
   }
+
+  public void testTunnelRegistryAndClose() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(8788);
+    Socket clientEnd = new Socket("localhost", 8788);
+    Socket client = serverSocket.accept();
+    Socket serverEnd = new Socket("localhost", 8788);
+    Socket server = serverSocket.accept();
+
+    Server proxyServer = new Server(new HostPort("host", 1111));
+    TcpTunnel tunnel = new TcpTunnel(client, server, proxyServer);
+    assertEquals(1, proxyServer.getTunnels().size());
+    assertSame(tunnel, proxyServer.tunnels.get(tunnel.getId()));
+    assertEquals(clientEnd.getLocalPort(), Integer.parseInt(
+        tunnel.getClientAddress().substring(tunnel.getClientAddress().lastIndexOf(':') + 1)));
+    tunnel.spawnTunnelThreads();
+
+    clientEnd.getOutputStream().write("hello".getBytes());
+    byte[] buffer = new byte[5];
+    new DataInputStream(serverEnd.getInputStream()).readFully(buffer);
+    assertEquals("hello", new String(buffer));
+    while (tunnel.getBytesToServer() < 5) {
+      Thread.yield();
+    }
+    assertEquals(0, tunnel.getBytesToClient());
+
+    // Closing all tunnels to the server unregisters ours once both directions finish.
+    assertEquals(1, proxyServer.closeAllTunnels());
+    while (!proxyServer.getTunnels().isEmpty()) {
+      Thread.yield();
+    }
+    assertEquals(0, proxyServer.openTunnelCnt.get());
+    assertEquals(-1, clientEnd.getInputStream().read());
+    assertEquals(TcpTunnel.CLOSED_BY_PROXY, tunnel.getCloseReason());
+
+    clientEnd.close();
+    serverEnd.close();
+    serverSocket.close();
+  }
 }
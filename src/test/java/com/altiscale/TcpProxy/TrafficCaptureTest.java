@@ -0,0 +1,214 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* TrafficCapture and TrafficReplay unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for TrafficCapture and TrafficReplay.
+ */
+public class TrafficCaptureTest extends TestCase {
+  private File file;
+  private ServerSocket echoServer;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TrafficCaptureTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TrafficCaptureTest.class);
+  }
+
+  protected void setUp() throws IOException {
+    file = File.createTempFile("capture", ".bin");
+    file.delete();
+  }
+
+  protected void tearDown() throws IOException {
+    if (null != echoServer) {
+      echoServer.close();
+    }
+    file.delete();
+  }
+
+  // A server that answers every client with what it sent.
+  private void startEchoServer() throws IOException {
+    echoServer = new ServerSocket(0);
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (!echoServer.isClosed()) {
+          try {
+            final Socket socket = echoServer.accept();
+            Thread echo = new Thread(new Runnable() {
+              public void run() {
+                try {
+                  InputStream input = socket.getInputStream();
+                  OutputStream output = socket.getOutputStream();
+                  byte[] buffer = new byte[4096];
+                  int cnt;
+                  while ((cnt = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, cnt);
+                  }
+                  socket.close();
+                } catch (IOException ioe) {
+                  // Client went away.
+                }
+              }
+            }, "echo");
+            echo.setDaemon(true);
+            echo.start();
+          } catch (IOException ioe) {
+            // Closed in tearDown.
+          }
+        }
+      }
+    }, "echoServer");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  // Captures tunnels 0 to cnt - 1, each relaying "hello" to the server and back.
+  private TrafficCapture capture(int cnt, boolean payload) throws Exception {
+    TrafficCapture capture = new TrafficCapture(file, 1.0, payload,
+                                                TrafficCapture.DEFAULT_MAX_QUEUED_BYTES,
+                                                TrafficCapture.DEFAULT_MAX_FILE_MB << 20);
+    capture.start();
+    byte[] hello = "hello".getBytes();
+    for (int id = 0; id < cnt; id++) {
+      TrafficCapture.Tunnel tunnel = capture.open(id, "server:" + id, "client");
+      assertNotNull(tunnel);
+      tunnel.data(true, hello, 0, hello.length);
+      Thread.sleep(2);
+      tunnel.data(false, hello, 0, hello.length);
+      tunnel.close(hello.length, hello.length);
+    }
+    capture.stop();
+    return capture;
+  }
+
+  public void testReadBack() throws Exception {
+    TrafficCapture capture = capture(3, true);
+    assertEquals(3, capture.tunnelCnt.get());
+    assertEquals(12, capture.writtenCnt.get());
+    assertEquals(0, capture.droppedCnt.get());
+    // The file also holds the magic and the start record.
+    assertTrue(file.length() > capture.writtenBytesCnt.get());
+
+    ArrayList<TrafficReplay.CapturedTunnel> tunnels = TrafficReplay.read(file);
+    assertEquals(3, tunnels.size());
+    for (int i = 0; i < tunnels.size(); i++) {
+      TrafficReplay.CapturedTunnel tunnel = tunnels.get(i);
+      assertEquals("server:" + i, tunnel.server);
+      assertEquals("client", tunnel.client);
+      assertTrue(tunnel.complete);
+      assertEquals(5, tunnel.bytesToServer);
+      assertEquals(5, tunnel.bytesToClient);
+      assertEquals(2, tunnel.chunks.size());
+      assertTrue(tunnel.chunks.get(0).toServer);
+      assertFalse(tunnel.chunks.get(1).toServer);
+      assertTrue(Arrays.equals("hello".getBytes(), tunnel.chunks.get(0).payload));
+      assertTrue(tunnel.openMicros <= tunnel.chunks.get(0).micros);
+      assertTrue(tunnel.chunks.get(1).micros <= tunnel.closeMicros);
+    }
+
+    // A second capture appends to the file, and a record cut short at its end is ignored.
+    capture(1, false);
+    RandomAccessFile cut = new RandomAccessFile(file, "rw");
+    cut.setLength(file.length() - 1);
+    cut.close();
+    tunnels = TrafficReplay.read(file);
+    assertEquals(4, tunnels.size());
+    TrafficReplay.CapturedTunnel last = tunnels.get(3);
+    assertNull(last.chunks.get(0).payload);
+    assertEquals(-1, last.closeMicros);
+    assertFalse(last.complete);
+  }
+
+  public void testSampling() throws Exception {
+    TrafficCapture capture = new TrafficCapture(file, 0.25, false,
+                                                TrafficCapture.DEFAULT_MAX_QUEUED_BYTES,
+                                                TrafficCapture.DEFAULT_MAX_FILE_MB << 20);
+    int sampled = 0;
+    for (long id = 0; id < 10000; id++) {
+      if (capture.isSampled(id)) {
+        sampled++;
+      }
+      assertEquals(capture.isSampled(id), capture.isSampled(id));
+    }
+    assertTrue("sampled " + sampled, sampled > 2400 && sampled < 2600);
+  }
+
+  public void testDropsWhenQueueIsFull() throws Exception {
+    // Room for the open record but not for the data.
+    TrafficCapture capture = new TrafficCapture(file, 1.0, true, 64,
+                                                TrafficCapture.DEFAULT_MAX_FILE_MB << 20);
+    capture.start();
+    try {
+      TrafficCapture.Tunnel tunnel = capture.open(1, "server", "client");
+      assertNotNull(tunnel);
+      byte[] big = new byte[1000];
+      tunnel.data(true, big, 0, big.length);
+      tunnel.data(true, big, 0, 1);
+      tunnel.close(1001, 0);
+    } finally {
+      capture.stop();
+    }
+    assertTrue(capture.droppedCnt.get() >= 1);
+    ArrayList<TrafficReplay.CapturedTunnel> tunnels = TrafficReplay.read(file);
+    assertEquals(1, tunnels.size());
+    assertFalse(tunnels.get(0).complete);
+  }
+
+  public void testReplay() throws Exception {
+    capture(4, true);
+    startEchoServer();
+    TrafficReplay.Result result =
+        new TrafficReplay(TrafficReplay.read(file),
+                          new HostPort("localhost", echoServer.getLocalPort()), 0).run();
+    assertEquals(4, result.tunnels);
+    assertEquals(4, result.replayed);
+    assertEquals(0, result.failedConnects);
+    assertEquals(0, result.shortAnswers);
+    assertEquals(20, result.bytesSent);
+    assertEquals(20, result.bytesExpected);
+    assertEquals(20, result.bytesReceived);
+    assertTrue(result.toJson().startsWith("{"));
+  }
+}
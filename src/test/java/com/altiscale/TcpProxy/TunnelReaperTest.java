@@ -0,0 +1,138 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* TunnelReaper unittests. */
+package com.altiscale.TcpProxy;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for TunnelReaper.
+ */
+public class TunnelReaperTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TunnelReaperTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TunnelReaperTest.class);
+  }
+
+  private ServerSocket listener;
+  private Socket clientEnd;
+  private Socket serverEnd;
+
+  @Override
+  protected void setUp() throws Exception {
+    listener = new ServerSocket(0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    clientEnd.close();
+    serverEnd.close();
+    listener.close();
+  }
+
+  // Tunnel between a client and a server that are both just sockets we hold.
+  private TcpTunnel openTunnel() throws Exception {
+    clientEnd = new Socket("localhost", listener.getLocalPort());
+    Socket client = listener.accept();
+    serverEnd = new Socket("localhost", listener.getLocalPort());
+    Socket server = listener.accept();
+    TcpTunnel tunnel = new TcpTunnel(client, server, new Server(new HostPort("host", 1111)));
+    tunnel.spawnTunnelThreads();
+    return tunnel;
+  }
+
+  private static void waitForClose(TcpTunnel tunnel) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!tunnel.isClosed() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  public void testIdleTunnelIsReaped() throws Exception {
+    TunnelReaper reaper = new TunnelReaper(300, 0, 0, 0, 1000);
+    reaper.start();
+    TcpTunnel tunnel = openTunnel();
+    reaper.watch(tunnel);
+
+    // Traffic keeps it open past its idle timeout.
+    for (int i = 0; i < 5; i++) {
+      clientEnd.getOutputStream().write('x');
+      Thread.sleep(100);
+    }
+    assertFalse(tunnel.isClosed());
+
+    waitForClose(tunnel);
+    assertTrue(tunnel.isClosed());
+    assertEquals(1, reaper.reapedIdleCnt.get());
+    assertEquals(TunnelReaper.REAP_IDLE, tunnel.getCloseReason());
+    assertEquals(-1, clientEnd.getInputStream().read());
+    reaper.stop();
+  }
+
+  public void testServerIdleTunnelIsReaped() throws Exception {
+    TunnelReaper reaper = new TunnelReaper(0, 0, 300, 0, 1000);
+    reaper.start();
+    TcpTunnel tunnel = openTunnel();
+    reaper.watch(tunnel);
+
+    // A chatty client doesn't help if the server is silent.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!tunnel.isClosed() && System.currentTimeMillis() < deadline) {
+      clientEnd.getOutputStream().write('x');
+      Thread.sleep(50);
+    }
+    assertTrue(tunnel.isClosed());
+    assertEquals(1, reaper.reapedServerIdleCnt.get());
+    assertEquals(0, reaper.reapedIdleCnt.get());
+    reaper.stop();
+  }
+
+  public void testSlowTunnelIsReaped() throws Exception {
+    // Needs 1000 B/s, the client trickles about 20 B/s.
+    TunnelReaper reaper = new TunnelReaper(0, 0, 0, 1000, 300);
+    reaper.start();
+    TcpTunnel tunnel = openTunnel();
+    reaper.watch(tunnel);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!tunnel.isClosed() && System.currentTimeMillis() < deadline) {
+      clientEnd.getOutputStream().write('x');
+      Thread.sleep(50);
+    }
+    assertTrue(tunnel.isClosed());
+    assertEquals(1, reaper.reapedSlowCnt.get());
+    reaper.stop();
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* WebHdfsCache unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HttpRequestHead;
+
+/**
+ * Unittests for WebHdfsCache.
+ */
+public class WebHdfsCacheTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public WebHdfsCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(WebHdfsCacheTest.class);
+  }
+
+  private static HttpRequestHead request(String method, String uri, String headers)
+      throws IOException {
+    byte[] bytes = (method + " " + uri + " HTTP/1.1\r\nHost: nn\r\n" + headers + "\r\n")
+        .getBytes("ISO-8859-1");
+    return HttpRequestHead.parse(bytes, bytes.length, bytes.length);
+  }
+
+  private static HttpRequestHead get(String uri) throws IOException {
+    return request("GET", uri, "");
+  }
+
+  // Response with the given status and a body that makes it length bytes long.
+  private static byte[] response(int status, int length) {
+    String head = "HTTP/1.1 " + status + " X\r\n\r\n";
+    return (head + new String(new char[length - head.length()]).replace('\0', 'x')).getBytes();
+  }
+
+  // Puts a 200 response for uri.
+  private static void put(WebHdfsCache cache, String uri, int length) throws IOException {
+    HttpRequestHead request = get(uri);
+    cache.put(cache.getKey(request), request, response(200, length), cache.getGeneration());
+  }
+
+  private static boolean isCached(WebHdfsCache cache, String uri) throws IOException {
+    return null != cache.get(cache.getKey(get(uri)));
+  }
+
+  public void testHitsAndTtl() throws Exception {
+    WebHdfsCache cache = new WebHdfsCache(
+        WebHdfsCache.parseTtls("liststatus=200,GETFILESTATUS=5000"), 0, 1024 * 1024);
+    put(cache, "/webhdfs/v1/a?op=LISTSTATUS&user.name=wile", 100);
+    put(cache, "/webhdfs/v1/a?op=GETFILESTATUS&user.name=wile", 100);
+    assertTrue(isCached(cache, "/webhdfs/v1/a/?user.name=wile&op=liststatus"));
+    assertFalse(isCached(cache, "/webhdfs/v1/a?op=LISTSTATUS&user.name=coyote"));
+    assertFalse(isCached(cache, "/webhdfs/v1/a?op=LISTSTATUS&user.name=wile&doas=coyote"));
+    assertEquals(1, cache.hitCnt.get());
+    assertEquals(2, cache.missCnt.get());
+
+    Thread.sleep(300);
+    assertFalse(isCached(cache, "/webhdfs/v1/a?op=LISTSTATUS&user.name=wile"));
+    assertTrue(isCached(cache, "/webhdfs/v1/a?op=GETFILESTATUS&user.name=wile"));
+    assertEquals(1, cache.getEntryCnt());
+
+    assertTrue(cache.isCacheable(get("/webhdfs/v1/a?op=LISTSTATUS&user.name=wile")));
+    assertTrue(cache.isCacheable(get("/webhdfs/v1/a?op=LISTSTATUS&delegation=abc")));
+    // Without a user in the query we can't tell whose answer it is.
+    assertFalse(cache.isCacheable(get("/webhdfs/v1/a?op=LISTSTATUS")));
+    assertFalse(cache.isCacheable(get("/webhdfs/v1/a?op=GETCONTENTSUMMARY&user.name=wile")));
+    assertFalse(cache.isCacheable(get("/other/a?op=LISTSTATUS&user.name=wile")));
+    assertFalse(cache.isCacheable(request("PUT", "/webhdfs/v1/a?op=LISTSTATUS&user.name=wile",
+                                          "")));
+    assertFalse(cache.isCacheable(request("GET", "/webhdfs/v1/a?op=LISTSTATUS&user.name=wile",
+                                          "Authorization: Negotiate abc\r\n")));
+  }
+
+  /*
+   *  After SPNEGO clients send the hadoop.auth cookie, and the server goes by it, not by the
+   *  user.name they put in the query.
+   */
+  public void testCookiesAreNotCached() throws Exception {
+    WebHdfsCache cache = new WebHdfsCache(WebHdfsCache.parseTtls("LISTSTATUS=5000"), 0,
+                                          1024 * 1024);
+    HttpRequestHead wile = request("GET", "/webhdfs/v1/secret?op=LISTSTATUS&user.name=wile",
+                                   "Cookie: hadoop.auth=\"u=wile&t=kerberos\"\r\n");
+    HttpRequestHead coyote = request("GET", "/webhdfs/v1/secret?op=LISTSTATUS&user.name=wile",
+                                     "Cookie: hadoop.auth=\"u=coyote&t=kerberos\"\r\n");
+    assertFalse(cache.isCacheable(wile));
+    assertFalse(cache.isCacheable(coyote));
+    assertFalse(cache.isCacheable(request("GET", "/webhdfs/v1/secret?op=LISTSTATUS",
+                                          "Cookie: hadoop.auth=\"u=wile&t=kerberos\"\r\n")));
+  }
+
+  public void testStatusCodes() throws Exception {
+    WebHdfsCache cache = new WebHdfsCache(WebHdfsCache.parseTtls("GETFILESTATUS=5000"), 5000,
+                                          1024 * 1024);
+    String[] uris = {"/webhdfs/v1/missing?op=GETFILESTATUS", "/webhdfs/v1/bad?op=GETFILESTATUS"};
+    int[] statuses = {404, 500};
+    for (int i = 0; i < uris.length; i++) {
+      HttpRequestHead request = get(uris[i]);
+      cache.put(cache.getKey(request), request, response(statuses[i], 100),
+                cache.getGeneration());
+    }
+    assertTrue(isCached(cache, uris[0]));
+    assertFalse(isCached(cache, uris[1]));
+    assertEquals(1, cache.negativeHitCnt.get());
+
+    // Without a negative TTL 404s aren't cached.
+    cache = new WebHdfsCache(WebHdfsCache.parseTtls("GETFILESTATUS=5000"), 0, 1024 * 1024);
+    HttpRequestHead request = get(uris[0]);
+    cache.put(cache.getKey(request), request, response(404, 100), cache.getGeneration());
+    assertFalse(isCached(cache, uris[0]));
+  }
+
+  public void testLruEviction() throws Exception {
+    // Room for 8 responses of 100 bytes, and no single one larger than 100 bytes.
+    WebHdfsCache cache = new WebHdfsCache(WebHdfsCache.parseTtls("GETFILESTATUS=5000"), 0, 800);
+    for (int i = 0; i < 8; i++) {
+      put(cache, "/webhdfs/v1/f" + i + "?op=GETFILESTATUS", 100);
+    }
+    // Using f0 makes f1 the least recently used.
+    assertTrue(isCached(cache, "/webhdfs/v1/f0?op=GETFILESTATUS"));
+    put(cache, "/webhdfs/v1/f8?op=GETFILESTATUS", 100);
+    assertEquals(1, cache.evictedCnt.get());
+    assertFalse(isCached(cache, "/webhdfs/v1/f1?op=GETFILESTATUS"));
+    assertTrue(isCached(cache, "/webhdfs/v1/f0?op=GETFILESTATUS"));
+    assertEquals(800, cache.getBytes());
+
+    put(cache, "/webhdfs/v1/large?op=GETFILESTATUS", 101);
+    assertFalse(isCached(cache, "/webhdfs/v1/large?op=GETFILESTATUS"));
+    assertEquals(8, cache.getEntryCnt());
+  }
+
+  public void testInvalidation() throws Exception {
+    WebHdfsCache cache = new WebHdfsCache(WebHdfsCache.parseTtls("LISTSTATUS=5000"), 0,
+                                          1024 * 1024);
+    String[] paths = {"", "/a", "/a/b", "/a/b/c/d", "/ab", "/x", "/y/z"};
+    for (String path : paths) {
+      put(cache, "/webhdfs/v1" + path + "?op=LISTSTATUS", 100);
+    }
+    assertTrue(cache.isMutating(request("PUT", "/webhdfs/v1/a/b/c?op=MKDIRS", "")));
+    assertFalse(cache.isMutating(get("/webhdfs/v1/a/b/c?op=LISTSTATUS")));
+
+    // Ancestors and descendants go, siblings like /ab stay.
+    cache.invalidate(request("PUT", "/webhdfs/v1/a/b/c?op=MKDIRS", ""));
+    assertEquals(4, cache.invalidatedCnt.get());
+    assertTrue(isCached(cache, "/webhdfs/v1/ab?op=LISTSTATUS"));
+    assertTrue(isCached(cache, "/webhdfs/v1/x?op=LISTSTATUS"));
+    assertFalse(isCached(cache, "/webhdfs/v1/a?op=LISTSTATUS"));
+    assertFalse(isCached(cache, "/webhdfs/v1?op=LISTSTATUS"));
+
+    // A rename also invalidates its destination.
+    cache.invalidate(request("PUT", "/webhdfs/v1/x?op=RENAME&destination=/y/z", ""));
+    assertFalse(isCached(cache, "/webhdfs/v1/y/z?op=LISTSTATUS"));
+    assertEquals(1, cache.getEntryCnt());
+
+    // A read that started before an invalidation isn't stored.
+    HttpRequestHead read = get("/webhdfs/v1/x?op=LISTSTATUS");
+    long generation = cache.getGeneration();
+    cache.invalidate("/webhdfs/v1/x");
+    cache.put(cache.getKey(read), read, response(200, 100), generation);
+    assertFalse(isCached(cache, "/webhdfs/v1/x?op=LISTSTATUS"));
+  }
+}
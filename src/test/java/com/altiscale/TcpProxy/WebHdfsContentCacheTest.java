@@ -0,0 +1,312 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* WebHdfsContentCache unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.HttpRequestHead;
+
+/**
+ * Unittests for WebHdfsContentCache.
+ */
+public class WebHdfsContentCacheTest extends TestCase {
+  private File dir;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public WebHdfsContentCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(WebHdfsContentCacheTest.class);
+  }
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("contentcache", "");
+    dir.delete();
+  }
+
+  protected void tearDown() {
+    File[] files = dir.listFiles();
+    for (int i = 0; null != files && i < files.length; i++) {
+      files[i].delete();
+    }
+    dir.delete();
+  }
+
+  private static HttpRequestHead get(String uri, String headers) throws IOException {
+    byte[] bytes = ("GET " + uri + " HTTP/1.1\r\nHost: nn:50070\r\n" + headers + "\r\n")
+        .getBytes("ISO-8859-1");
+    return HttpRequestHead.parse(bytes, bytes.length, bytes.length);
+  }
+
+  private static File write(File file, String content) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    output.write(content.getBytes("ISO-8859-1"));
+    output.close();
+    return file;
+  }
+
+  // Commits a file of length bytes read by user.
+  private static void commit(WebHdfsContentCache cache, String path, int length, long time,
+                             String user) throws IOException {
+    File body = write(cache.newTempFile(), new String(new char[length]).replace('\0', 'x'));
+    cache.commit(path, length, time, user, body);
+  }
+
+  public void testLookupAndEviction() throws Exception {
+    WebHdfsContentCache cache = new WebHdfsContentCache(dir, 400);
+    commit(cache, "/webhdfs/v1/a", 100, 1, "wile");
+    assertNotNull(cache.lookup("/webhdfs/v1/a", 100, 1, "wile"));
+    // Other users have to read the file through a server first.
+    assertNull(cache.lookup("/webhdfs/v1/a", 100, 1, "coyote"));
+    commit(cache, "/webhdfs/v1/a", 100, 1, "coyote");
+    assertNotNull(cache.lookup("/webhdfs/v1/a", 100, 1, "coyote"));
+    assertEquals(1, cache.getEntryCnt());
+
+    // A newer version on the server drops ours.
+    assertNull(cache.lookup("/webhdfs/v1/a", 100, 2, "wile"));
+    assertEquals(1, cache.staleCnt.get());
+    assertEquals(0, cache.getEntryCnt());
+
+    for (int i = 0; i < 4; i++) {
+      commit(cache, "/webhdfs/v1/f" + i, 100, 1, "wile");
+    }
+    // Using f0 makes f1 the least recently used.
+    assertNotNull(cache.lookup("/webhdfs/v1/f0", 100, 1, "wile"));
+    commit(cache, "/webhdfs/v1/f4", 100, 1, "wile");
+    assertEquals(1, cache.evictedCnt.get());
+    assertNull(cache.lookup("/webhdfs/v1/f1", 100, 1, "wile"));
+    assertNotNull(cache.lookup("/webhdfs/v1/f0", 100, 1, "wile"));
+    assertEquals(400, cache.getBytes());
+    // Index plus four files.
+    assertEquals(5, dir.listFiles().length);
+  }
+
+  public void testIndexSurvivesRestart() throws Exception {
+    WebHdfsContentCache cache = new WebHdfsContentCache(dir, 1000);
+    commit(cache, "/webhdfs/v1/a", 100, 1, "wile");
+    commit(cache, "/webhdfs/v1/b", 200, 2, "wile/co yote");
+    commit(cache, "/webhdfs/v1/c", 300, 3, "wile");
+    // Leftovers of a crash: a download in progress and a file that never got into the index.
+    write(cache.newTempFile(), "partial");
+    write(new File(dir, "data-99"), "orphan");
+    // And a cached file that got truncated.
+    File c = cache.lookup("/webhdfs/v1/c", 300, 3, "wile");
+    RandomAccessFile truncated = new RandomAccessFile(c, "rw");
+    truncated.setLength(10);
+    truncated.close();
+
+    cache = new WebHdfsContentCache(dir, 1000);
+    assertEquals(2, cache.getEntryCnt());
+    assertEquals(300, cache.getBytes());
+    assertNotNull(cache.lookup("/webhdfs/v1/a", 100, 1, "wile"));
+    assertNotNull(cache.lookup("/webhdfs/v1/b", 200, 2, "wile/co yote"));
+    assertNull(cache.lookup("/webhdfs/v1/c", 300, 3, "wile"));
+    // Index plus a and b.
+    assertEquals(3, dir.listFiles().length);
+
+    // New files don't reuse names of old ones.
+    commit(cache, "/webhdfs/v1/d", 100, 1, "wile");
+    assertNotNull(cache.lookup("/webhdfs/v1/d", 100, 1, "wile"));
+    assertNotNull(cache.lookup("/webhdfs/v1/a", 100, 1, "wile"));
+
+    // A smaller budget evicts on start, in the order of the last commit since hits don't
+    // rewrite the index.
+    cache = new WebHdfsContentCache(dir, 300);
+    assertEquals(2, cache.getEntryCnt());
+    assertNull(cache.lookup("/webhdfs/v1/a", 100, 1, "wile"));
+    assertNotNull(cache.lookup("/webhdfs/v1/d", 100, 1, "wile"));
+  }
+
+  public void testConcurrentCommitsKeepNewestIndex() throws Exception {
+    final WebHdfsContentCache cache = new WebHdfsContentCache(dir, 100000);
+    Thread[] threads = new Thread[4];
+    final IOException[] failure = new IOException[1];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int i = 0; i < 10; i++) {
+              commit(cache, "/webhdfs/v1/t" + thread + "-" + i, 10, 1, "wile");
+            }
+          } catch (IOException ioe) {
+            failure[0] = ioe;
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    assertNull(failure[0]);
+    // The index written last holds every commit, whichever thread wrote it.
+    WebHdfsContentCache restarted = new WebHdfsContentCache(dir, 100000);
+    assertEquals(40, restarted.getEntryCnt());
+    assertNotNull(restarted.lookup("/webhdfs/v1/t3-9", 10, 1, "wile"));
+  }
+
+  public void testExtractBody() throws Exception {
+    dir.mkdirs();
+    File response = new File(dir, "response");
+    File body = new File(dir, "body");
+
+    write(response, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+    assertTrue(WebHdfsContentCache.extractBody(response, body));
+    assertEquals(5, body.length());
+
+    write(response, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                    "5;x=y\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+    assertTrue(WebHdfsContentCache.extractBody(response, body));
+    assertEquals(11, body.length());
+
+    // Cut short, or not a 200.
+    write(response, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello");
+    assertFalse(WebHdfsContentCache.extractBody(response, body));
+    write(response, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhel");
+    assertFalse(WebHdfsContentCache.extractBody(response, body));
+    write(response, "HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n");
+    assertFalse(WebHdfsContentCache.extractBody(response, body));
+  }
+
+  public void testFileStatus() throws Exception {
+    HttpRequestHead open =
+        get("/webhdfs/v1/a%20b?op=OPEN&user.name=wile&doas=coyote&buffersize=4096", "");
+    assertTrue(WebHdfsContentCache.isCacheable(open));
+    assertEquals("/webhdfs/v1/a%20b", WebHdfsContentCache.getRawPath(open));
+    assertEquals("wile/coyote", WebHdfsContentCache.getUser(open));
+    assertEquals("GET /webhdfs/v1/a%20b?op=GETFILESTATUS&user.name=wile&doas=coyote HTTP/1.1\r\n" +
+                 "Host: nn:50070\r\nConnection: close\r\n\r\n",
+                 new String(WebHdfsContentCache.getFileStatusRequest(open), "ISO-8859-1"));
+    assertEquals("GET /webhdfs/v1/a%20b?op=OPEN&offset=0&length=1&user.name=wile&doas=coyote " +
+                 "HTTP/1.1\r\nHost: nn:50070\r\nConnection: close\r\n\r\n",
+                 new String(WebHdfsContentCache.getReadCheckRequest(open), "ISO-8859-1"));
+
+    assertFalse(WebHdfsContentCache.isCacheable(get("/webhdfs/v1/a?op=OPEN", "")));
+    assertFalse(WebHdfsContentCache.isCacheable(
+        get("/webhdfs/v1/a?op=OPEN&user.name=wile&delegation=abc", "")));
+    assertFalse(WebHdfsContentCache.isCacheable(
+        get("/webhdfs/v1/a?op=OPEN&user.name=wile", "Authorization: Negotiate abc\r\n")));
+    // The server goes by the cookie, not by user.name.
+    assertFalse(WebHdfsContentCache.isCacheable(
+        get("/webhdfs/v1/a?op=OPEN&user.name=wile", "Cookie: hadoop.auth=\"u=coyote\"\r\n")));
+    assertFalse(WebHdfsContentCache.isCacheable(
+        get("/webhdfs/v1/a?op=GETFILESTATUS&user.name=wile", "")));
+
+    long[] status = WebHdfsContentCache.parseFileStatus(
+        ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n" +
+         "{\"FileStatus\":{\"accessTime\":1,\"blockSize\":134217728,\"length\":24930," +
+         "\"modificationTime\":1320173277227,\"type\":\"FILE\"}}").getBytes("UTF-8"));
+    assertEquals(24930, status[0]);
+    assertEquals(1320173277227L, status[1]);
+    assertNull(WebHdfsContentCache.parseFileStatus(
+        "HTTP/1.1 404 Not Found\r\n\r\n{}".getBytes("UTF-8")));
+  }
+
+  // Reads everything until the other side closes.
+  private static String readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int cnt;
+    while ((cnt = input.read(buffer)) >= 0) {
+      all.write(buffer, 0, cnt);
+    }
+    return all.toString("ISO-8859-1");
+  }
+
+  /*
+   *  A namenode answers OPEN with a redirect to a datanode. We pass that on and stop asking the
+   *  namenode for GETFILESTATUS.
+   */
+  public void testRedirectingServer() throws Exception {
+    final ServerSocket namenode = new ServerSocket(0);
+    final AtomicInteger fileStatusCnt = new AtomicInteger(0);
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            Socket socket = namenode.accept();
+            HttpRequestHead request = HttpRequestHead.read(socket.getInputStream(), 64 * 1024);
+            String response;
+            if ("GETFILESTATUS".equals(request.getQueryParameter("op"))) {
+              fileStatusCnt.incrementAndGet();
+              String json = "{\"FileStatus\":{\"length\":5,\"modificationTime\":1}}";
+              response = "HTTP/1.1 200 OK\r\nContent-Length: " + json.length() + "\r\n\r\n" +
+                         json;
+            } else {
+              response = "HTTP/1.1 307 Temporary Redirect\r\n" +
+                         "Location: http://dn:50075/webhdfs/v1/a?op=OPEN\r\n" +
+                         "Content-Length: 0\r\n\r\n";
+            }
+            socket.getOutputStream().write(response.getBytes("ISO-8859-1"));
+            socket.close();
+          } catch (IOException ioe) {
+            // Closed at the end of the test.
+            return;
+          }
+        }
+      }
+    }, "namenode");
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    ServerSocket proxy = new ServerSocket(0);
+    try {
+      WebHdfsContentCache cache = new WebHdfsContentCache(dir, 1000);
+      Server server = new Server(new HostPort("127.0.0.1", namenode.getLocalPort()));
+      assertTrue(cache.canCache(server));
+
+      Socket client = new Socket("127.0.0.1", proxy.getLocalPort());
+      ConnectionContext context = new ConnectionContext(proxy.accept());
+      context.httpRequest = get("/webhdfs/v1/a?op=OPEN&user.name=wile", "");
+      cache.serve(server, context);
+      context.clientSocket.close();
+      assertTrue(readAll(client.getInputStream()).startsWith("HTTP/1.1 307 "));
+      client.close();
+
+      assertEquals(1, fileStatusCnt.get());
+      assertEquals(0, cache.getEntryCnt());
+      assertFalse(cache.canCache(server));
+    } finally {
+      proxy.close();
+      namenode.close();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* DnsCache unittests. */
+package com.altiscale.Util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for DnsCache.
+ */
+public class DnsCacheTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public DnsCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(DnsCacheTest.class);
+  }
+
+  // A DnsCache that looks names up in a map instead of DNS and counts the lookups.
+  private static class FakeDnsCache extends DnsCache {
+    final HashMap<String, InetAddress[]> records = new HashMap<String, InetAddress[]>();
+    final AtomicInteger lookupCnt = new AtomicInteger(0);
+
+    FakeDnsCache(long ttlMillis) {
+      super(ttlMillis);
+    }
+
+    @Override
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+      lookupCnt.incrementAndGet();
+      synchronized (records) {
+        InetAddress[] addresses = records.get(host);
+        if (null == addresses) {
+          throw new UnknownHostException(host);
+        }
+        return addresses;
+      }
+    }
+
+    void set(String host, int... lastBytes) throws UnknownHostException {
+      InetAddress[] addresses = new InetAddress[lastBytes.length];
+      for (int i = 0; i < lastBytes.length; i++) {
+        addresses[i] = InetAddress.getByAddress(host, new byte[] {10, 0, 0, (byte) lastBytes[i]});
+      }
+      synchronized (records) {
+        records.put(host, addresses);
+      }
+    }
+
+    void unset(String host) {
+      synchronized (records) {
+        records.remove(host);
+      }
+    }
+  }
+
+  private static String lastBytes(InetAddress[] addresses) {
+    int[] bytes = new int[addresses.length];
+    for (int i = 0; i < addresses.length; i++) {
+      bytes[i] = addresses[i].getAddress()[3];
+    }
+    return Arrays.toString(bytes);
+  }
+
+  public void testResolve() throws Exception {
+    FakeDnsCache cache = new FakeDnsCache(DnsCache.DEFAULT_TTL_MS);
+    cache.set("replicas", 1, 2, 3);
+    assertEquals("[1, 2, 3]", lastBytes(cache.resolve("replicas")));
+    assertEquals(1, cache.resolveFirst("replicas").getAddress()[3]);
+    assertEquals(1, cache.lookupCnt.get());
+    assertEquals(1, cache.missCnt.get());
+    assertEquals(1, cache.hitCnt.get());
+    assertEquals(1, cache.getNameCnt());
+
+    // A fresh name we can't resolve fails and isn't remembered.
+    try {
+      cache.resolve("nowhere");
+      fail("Resolved an unknown name.");
+    } catch (UnknownHostException uhe) {
+      // Expected.
+    }
+    assertEquals(1, cache.getNameCnt());
+
+    // Fresh names aren't looked up again.
+    cache.refresh();
+    assertEquals(2, cache.lookupCnt.get());
+  }
+
+  public void testRefresh() throws Exception {
+    FakeDnsCache cache = new FakeDnsCache(40);
+    cache.set("replicas", 1, 2);
+    cache.resolve("replicas");
+    Thread.sleep(30);
+    cache.set("replicas", 2, 3);
+    cache.refresh();
+    assertEquals(1, cache.refreshCnt.get());
+    assertEquals(1, cache.changedCnt.get());
+    assertEquals("[2, 3]", lastBytes(cache.resolve("replicas")));
+
+    // While DNS fails we keep the addresses we have.
+    Thread.sleep(30);
+    cache.unset("replicas");
+    cache.refresh();
+    assertEquals(1, cache.failedRefreshCnt.get());
+    assertEquals("[2, 3]", lastBytes(cache.resolve("replicas")));
+    assertEquals(2, cache.hitCnt.get());
+
+    // Names nobody asks for go.
+    Thread.sleep(DnsCache.IDLE_TTLS * 40);
+    cache.refresh();
+    assertEquals(0, cache.getNameCnt());
+  }
+
+  public void testRefresher() throws Exception {
+    FakeDnsCache cache = new FakeDnsCache(20);
+    cache.set("replicas", 1);
+    assertEquals("[1]", lastBytes(cache.resolve("replicas")));
+    cache.set("replicas", 4);
+    cache.start();
+    try {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!"[4]".equals(lastBytes(cache.resolve("replicas"))) &&
+             System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertEquals("[4]", lastBytes(cache.resolve("replicas")));
+      // Callers never waited for DNS again.
+      assertEquals(1, cache.missCnt.get());
+    } finally {
+      cache.stop();
+    }
+  }
+}
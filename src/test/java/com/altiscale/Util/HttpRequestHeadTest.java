@@ -0,0 +1,160 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* HttpRequestHead unittests. */
+package com.altiscale.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for HttpRequestHead.
+ */
+public class HttpRequestHeadTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HttpRequestHeadTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HttpRequestHeadTest.class);
+  }
+
+  public void testParseWebHdfsRequest() throws IOException {
+    String request = "GET /webhdfs/v1/user/wile%20e?op=LISTSTATUS&user.name=wile HTTP/1.1\r\n" +
+                     "Host: localhost:14000\r\n" +
+                     "X-Session: acme\r\n" +
+                     "\r\n" +
+                     "body";
+    HttpRequestHead head = HttpRequestHead.read(
+        new ByteArrayInputStream(request.getBytes("ISO-8859-1")), 1024);
+    assert head.method.equals("GET");
+    assert head.path.equals("/webhdfs/v1/user/wile e");
+    assert head.version.equals("HTTP/1.1");
+    assert head.getQueryParameter("op").equals("LISTSTATUS");
+    assert head.getQueryParameter("user.name").equals("wile");
+    assert head.getHeader("x-session").equals("acme");
+    assert head.rawLength == request.length();
+    assert head.headLength == request.length() - "body".length();
+  }
+
+  public void testConnectionClose() throws IOException {
+    String request = "GET /webhdfs/v1/tmp?op=GETFILESTATUS HTTP/1.1\r\n" +
+                     "Host: localhost:14000\r\n" +
+                     "connection: keep-alive\r\n" +
+                     "\r\n" +
+                     "GET /next HTTP/1.1\r\n";
+    HttpRequestHead head = HttpRequestHead.read(
+        new ByteArrayInputStream(request.getBytes("ISO-8859-1")), 1024);
+    String rewritten = new String(head.getHeadWithConnectionClose(), "ISO-8859-1");
+    assert rewritten.equals("GET /webhdfs/v1/tmp?op=GETFILESTATUS HTTP/1.1\r\n" +
+                            "Host: localhost:14000\r\n" +
+                            "Connection: close\r\n" +
+                            "\r\n");
+  }
+
+  public void testTruncatedRequest() {
+    String request = "GET / HTTP/1.1\r\nHost: localhost\r\n";
+    try {
+      HttpRequestHead.read(new ByteArrayInputStream(request.getBytes()), 1024);
+      assert false;
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  public void testTooLargeRequest() {
+    String request = "GET /" + new String(new char[2048]).replace('\0', 'a') + " HTTP/1.1\r\n\r\n";
+    try {
+      HttpRequestHead.read(new ByteArrayInputStream(request.getBytes()), 1024);
+      assert false;
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  public void testTrickledRequest() throws IOException {
+    final byte[] request = ("GET /webhdfs/v1/tmp?op=OPEN HTTP/1.1\r\n" +
+                            "Host: localhost:14000\r\n\r\n").getBytes("ISO-8859-1");
+    // A client that sends one byte per read, so the end of the head spans four reads.
+    InputStream trickle = new InputStream() {
+      int next = 0;
+
+      public int read() {
+        return next < request.length ? request[next++] : -1;
+      }
+
+      public int read(byte[] buffer, int offset, int length) {
+        if (next == request.length) {
+          return -1;
+        }
+        buffer[offset] = request[next++];
+        return 1;
+      }
+    };
+    HttpRequestHead head = HttpRequestHead.read(trickle, 1024);
+    assert head.getQueryParameter("op").equals("OPEN");
+    assert head.headLength == request.length;
+  }
+
+  public void testHeadDeadline() throws Exception {
+    ServerSocket listener = new ServerSocket(0);
+    final Socket client = new Socket("localhost", listener.getLocalPort());
+    Socket socket = listener.accept();
+    // A client that keeps every single read within the timeout but never finishes its head.
+    Thread slowloris = new Thread(new Runnable() {
+      public void run() {
+        try {
+          for (int i = 0; i < 50; i++) {
+            client.getOutputStream().write('a');
+            Thread.sleep(50);
+          }
+        } catch (Exception e) {
+          // Closed.
+        }
+      }
+    });
+    slowloris.start();
+    long start = System.currentTimeMillis();
+    try {
+      HttpRequestHead.read(socket, 1024, 300);
+      assert false;
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    assertEquals(0, socket.getSoTimeout());
+    client.close();
+    socket.close();
+    listener.close();
+    slowloris.join();
+  }
+}
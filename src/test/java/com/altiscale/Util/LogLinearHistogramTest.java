@@ -0,0 +1,110 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* LogLinearHistogram and SlidingWindowHistogram unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for LogLinearHistogram and SlidingWindowHistogram.
+ */
+public class LogLinearHistogramTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LogLinearHistogramTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LogLinearHistogramTest.class);
+  }
+
+  public void testBucketsCoverAllValues() {
+    assert LogLinearHistogram.bucketIndex(0) == 0;
+    assert LogLinearHistogram.bucketIndex(-5) == 0;
+    assert LogLinearHistogram.bucketIndex(Long.MAX_VALUE) == LogLinearHistogram.NUM_BUCKETS - 1;
+    for (int i = 0; i < LogLinearHistogram.NUM_BUCKETS; i++) {
+      long lower = LogLinearHistogram.bucketLowerBound(i);
+      assert LogLinearHistogram.bucketIndex(lower) == i;
+      assert LogLinearHistogram.bucketIndex(lower - 1) == Math.max(0, i - 1);
+      assert LogLinearHistogram.bucketMidpoint(i) >= lower;
+    }
+  }
+
+  public void testPercentilesWithinError() {
+    LogLinearHistogram histogram = new LogLinearHistogram();
+    for (long value = 1; value <= 100000; value++) {
+      histogram.record(value);
+    }
+    LogLinearHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assert snapshot.getCount() == 100000;
+    double[] percentiles = {50, 90, 99, 99.9};
+    for (double percentile : percentiles) {
+      double expected = percentile * 1000;
+      double error = Math.abs(snapshot.getValueAtPercentile(percentile) - expected) / expected;
+      assert error <= 1.0 / (2 * LogLinearHistogram.SUB_BUCKETS);
+    }
+  }
+
+  public void testEmptySnapshot() {
+    assert new LogLinearHistogram().getSnapshot().getValueAtPercentile(99) == 0;
+  }
+
+  public void testSnapshotsAdd() {
+    LogLinearHistogram fast = new LogLinearHistogram();
+    LogLinearHistogram slow = new LogLinearHistogram();
+    for (int i = 0; i < 99; i++) {
+      fast.record(3);
+    }
+    slow.record(5);
+    LogLinearHistogram.Snapshot total = fast.getSnapshot();
+    total.add(slow.getSnapshot());
+    assert total.getCount() == 100;
+    assert total.getValueAtPercentile(99) == 3;
+    assert total.getValueAtPercentile(100) == 5;
+  }
+
+  public void testSlidingWindowExpires() {
+    TestTimer timer = new TestTimer(0);
+    SlidingWindowHistogram histogram = new SlidingWindowHistogram(timer, "test", 6, 10000);
+
+    histogram.record(7);
+    timer.setTime(30000);
+    histogram.record(7);
+    assert histogram.getSnapshot().getCount() == 2;
+
+    // First slot is out of the window.
+    timer.setTime(60000);
+    assert histogram.getSnapshot().getCount() == 1;
+
+    // Same slot in a later period gets cleared before we record into it.
+    timer.setTime(90000);
+    histogram.record(7);
+    assert histogram.getSnapshot().getCount() == 1;
+
+    timer.setTime(150000);
+    assert histogram.getSnapshot().getCount() == 0;
+  }
+}
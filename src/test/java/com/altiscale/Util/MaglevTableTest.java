@@ -0,0 +1,102 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* MaglevTable unittests. */
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for MaglevTable.
+ */
+public class MaglevTableTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public MaglevTableTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(MaglevTableTest.class);
+  }
+
+  ArrayList<String> createNames(int num) {
+    ArrayList<String> names = new ArrayList<String>();
+    for (int i = 0; i < num; i++) {
+      names.add("localhost:" + (48139 + i));
+    }
+    return names;
+  }
+
+  public void testEvenSpread() {
+    ArrayList<String> names = createNames(7);
+    MaglevTable<String> table = new MaglevTable<String>(names, names);
+    HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    for (int i = 0; i < 70000; i++) {
+      String entry = table.get("10.0.0." + (i % 256) + ":" + i);
+      Integer count = counts.get(entry);
+      counts.put(entry, null == count ? 1 : count + 1);
+    }
+    assert counts.size() == 7;
+    for (Integer count : counts.values()) {
+      assert count > 9000 && count < 11000;
+    }
+  }
+
+  public void testSameKeySameEntry() {
+    ArrayList<String> names = createNames(5);
+    MaglevTable<String> table = new MaglevTable<String>(names, names);
+    MaglevTable<String> rebuilt = new MaglevTable<String>(names, names);
+    for (int i = 0; i < 1000; i++) {
+      assert table.get("user" + i).equals(table.get("user" + i));
+      assert table.get("user" + i).equals(rebuilt.get("user" + i));
+      assert table.get("user" + i).equals(table.get("user" + i, 0));
+      assert table.get("user" + i, 1).equals(rebuilt.get("user" + i, 1));
+    }
+  }
+
+  public void testRemovingEntryMovesFewKeys() {
+    ArrayList<String> names = createNames(10);
+    MaglevTable<String> before = new MaglevTable<String>(names, names);
+    String removed = names.remove(3);
+    MaglevTable<String> after = new MaglevTable<String>(names, names);
+
+    int numKeys = 10000;
+    int moved = 0;
+    for (int i = 0; i < numKeys; i++) {
+      String key = "10.1." + (i / 256) + "." + (i % 256);
+      String oldEntry = before.get(key);
+      String newEntry = after.get(key);
+      assert !newEntry.equals(removed);
+      if (!oldEntry.equals(removed) && !oldEntry.equals(newEntry)) {
+        moved++;
+      }
+    }
+    // Keys of the removed entry have to move, only a few others should.
+    assert moved < numKeys / 20;
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* Metrics unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for Metrics.
+ */
+public class MetricsTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public MetricsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(MetricsTest.class);
+  }
+
+  Metrics createMetrics() {
+    Metrics metrics = new Metrics();
+    metrics.counter("ta_bytes_total", "Bytes.", 42, "server", "a:1");
+    metrics.gauge("ta_open", "Open.", 0.5, "server", "a:1");
+    metrics.counter("ta_bytes_total", "Bytes.", 7, "server", "b\"2");
+    LogLinearHistogram histogram = new LogLinearHistogram();
+    histogram.record(4);
+    metrics.histogram("ta_latency_seconds", "Latency.", histogram.getSnapshot(), 0.5);
+    return metrics;
+  }
+
+  public void testPrometheus() {
+    String text = createMetrics().toPrometheus();
+    System.out.println(text);
+    assert text.equals(
+        "# HELP ta_bytes_total Bytes.\n" +
+        "# TYPE ta_bytes_total counter\n" +
+        "ta_bytes_total{server=\"a:1\"} 42\n" +
+        "ta_bytes_total{server=\"b\\\"2\"} 7\n" +
+        "# HELP ta_open Open.\n" +
+        "# TYPE ta_open gauge\n" +
+        "ta_open{server=\"a:1\"} 0.5\n" +
+        "# HELP ta_latency_seconds Latency.\n" +
+        "# TYPE ta_latency_seconds summary\n" +
+        "ta_latency_seconds{quantile=\"0.5\"} 2\n" +
+        "ta_latency_seconds{quantile=\"0.9\"} 2\n" +
+        "ta_latency_seconds{quantile=\"0.99\"} 2\n" +
+        "ta_latency_seconds{quantile=\"0.999\"} 2\n" +
+        "ta_latency_seconds_sum 2\n" +
+        "ta_latency_seconds_count 1\n");
+  }
+
+  public void testJson() {
+    String json = createMetrics().toJson();
+    System.out.println(json);
+    assert json.contains(
+        "{\"name\":\"ta_bytes_total\",\"help\":\"Bytes.\",\"type\":\"counter\",\"samples\":[" +
+        "{\"labels\":{\"server\":\"a:1\"},\"value\":42}," +
+        "{\"labels\":{\"server\":\"b\\\"2\"},\"value\":7}]}");
+    assert json.contains(
+        "\"samples\":[{\"labels\":{},\"count\":1,\"sum\":2," +
+        "\"quantiles\":{\"0.5\":2,\"0.9\":2,\"0.99\":2,\"0.999\":2}}]}");
+  }
+}
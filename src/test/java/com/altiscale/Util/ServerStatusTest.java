@@ -0,0 +1,113 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* ServerStatus unittests. */
+package com.altiscale.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for ServerStatus.
+ */
+public class ServerStatusTest extends TestCase {
+  class FakeServer implements ServerWithStats {
+    int statsCalls = 0;
+    boolean healthy = true;
+
+    public String getServerStatsHtml() {
+      statsCalls++;
+      return "stats " + statsCalls;
+    }
+
+    public Metrics getMetrics() {
+      Metrics metrics = new Metrics();
+      metrics.counter("fake_calls_total", "Calls.", statsCalls);
+      return metrics;
+    }
+
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    public String getServerName() {
+      return "Fake";
+    }
+
+    public String getVersion() {
+      return "1.0";
+    }
+
+    public void setVersion(String version) {
+    }
+  }
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ServerStatusTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ServerStatusTest.class);
+  }
+
+  String fetch(int port, String path) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    InputStream input = connection.getResponseCode() < 400 ? connection.getInputStream()
+                                                            : connection.getErrorStream();
+    byte[] buffer = new byte[4096];
+    int length = 0;
+    int cnt = 0;
+    while ((cnt = input.read(buffer, length, buffer.length - length)) > 0) {
+      length += cnt;
+    }
+    input.close();
+    return connection.getResponseCode() + " " + new String(buffer, 0, length, "UTF-8");
+  }
+
+  public void testPagesServedFromSnapshot() throws IOException {
+    FakeServer server = new FakeServer();
+    int port = 48991;
+    // Long snapshot period, so only the snapshots we take ourselves count.
+    ServerStatus status = new ServerStatus(server, port, 3600 * 1000);
+    status.run();
+
+    assert fetch(port, "/stats").equals("200 stats 1");
+    assert fetch(port, "/stats").equals("200 stats 1");
+    assert fetch(port, "/metrics").contains("# TYPE fake_calls_total counter\n");
+    assert fetch(port, "/stats.json").contains("\"name\":\"Fake\"");
+    assert server.statsCalls == 1;
+
+    server.healthy = false;
+    status.takeSnapshot();
+    assert fetch(port, "/stats").equals("200 stats 2");
+    assert fetch(port, "/admin").startsWith("500 ");
+  }
+}
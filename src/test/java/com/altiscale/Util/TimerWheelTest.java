@@ -0,0 +1,121 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* TimerWheel unittests. */
+package com.altiscale.Util;
+
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for TimerWheel.
+ */
+public class TimerWheelTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TimerWheelTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TimerWheelTest.class);
+  }
+
+  private static Runnable record(final ArrayList<String> ran, final String name) {
+    return new Runnable() {
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+
+  public void testRunsTasksWhenDue() {
+    TestTimer timer = new TestTimer(10000);
+    TimerWheel wheel = new TimerWheel(timer, "test", 100, 8);
+    ArrayList<String> ran = new ArrayList<String>();
+    wheel.schedule(record(ran, "soon"), 150);
+    // Several turns of the wheel away.
+    wheel.schedule(record(ran, "later"), 2500);
+    wheel.schedule(record(ran, "now"), 0);
+    assertEquals(3, wheel.size());
+
+    timer.setTime(10100);
+    wheel.advance();
+    assertEquals("[now]", ran.toString());
+
+    timer.setTime(10200);
+    wheel.advance();
+    assertEquals("[now, soon]", ran.toString());
+
+    // "later" shares a slot with earlier ticks, but waits for its own.
+    for (long time = 10300; time < 12500; time += 100) {
+      timer.setTime(time);
+      wheel.advance();
+      assertEquals(2, ran.size());
+    }
+    timer.setTime(12500);
+    wheel.advance();
+    assertEquals("[now, soon, later]", ran.toString());
+    assertEquals(0, wheel.size());
+  }
+
+  public void testCatchesUpAfterPause() {
+    TestTimer timer = new TestTimer(0);
+    TimerWheel wheel = new TimerWheel(timer, "test", 100, 4);
+    final ArrayList<String> ran = new ArrayList<String>();
+    for (int i = 0; i < 10; i++) {
+      wheel.schedule(record(ran, "task" + i), i * 100);
+    }
+    wheel.advance();
+    timer.setTime(5000);
+    wheel.advance();
+    assertEquals(10, ran.size());
+  }
+
+  public void testTaskCanReschedule() throws Exception {
+    final TimerWheel wheel = new TimerWheel("test", 10, 16);
+    final ArrayList<String> ran = new ArrayList<String>();
+    wheel.schedule(new Runnable() {
+      public void run() {
+        synchronized (ran) {
+          ran.add("run");
+          if (ran.size() < 3) {
+            wheel.schedule(this, 20);
+          }
+          ran.notifyAll();
+        }
+      }
+    }, 20);
+    wheel.start();
+    synchronized (ran) {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (ran.size() < 3 && System.currentTimeMillis() < deadline) {
+        ran.wait(100);
+      }
+    }
+    wheel.stop();
+    assertEquals(3, ran.size());
+  }
+}
@@ -0,0 +1,236 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* TlsTransport unittests. */
+package com.altiscale.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for TlsTransport.
+ */
+public class TlsTransportTest extends TestCase {
+  private static final String PASSWORD = "secret";
+
+  private File keyStore;
+  private ServerSocket farSide;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TlsTransportTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TlsTransportTest.class);
+  }
+
+  // A keystore with a self-signed certificate for localhost, made with the keytool of the JDK
+  // we run on.
+  protected void setUp() throws Exception {
+    keyStore = File.createTempFile("tls", ".p12");
+    keyStore.delete();
+    String keytool = System.getProperty("java.home") + File.separator + "bin" +
+                     File.separator + "keytool";
+    Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "far",
+                                         "-keyalg", "EC", "-keysize", "256",
+                                         "-dname", "CN=localhost", "-validity", "1",
+                                         "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                                         "-storetype", "PKCS12",
+                                         "-keystore", keyStore.getPath(),
+                                         "-storepass", PASSWORD, "-keypass", PASSWORD)
+        .redirectErrorStream(true).start();
+    process.getInputStream().close();
+    assertEquals(0, process.waitFor());
+  }
+
+  protected void tearDown() throws IOException {
+    if (null != farSide) {
+      farSide.close();
+    }
+    keyStore.delete();
+  }
+
+  // A far side that wraps its clients with tls and answers every byte with the byte plus one.
+  private void startFarSide(final TlsTransport tls) throws IOException {
+    farSide = new ServerSocket(0);
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (!farSide.isClosed()) {
+          try {
+            Socket socket = tls.wrapServer(farSide.accept());
+            try {
+              int b;
+              while ((b = socket.getInputStream().read()) >= 0) {
+                socket.getOutputStream().write(b + 1);
+              }
+            } catch (IOException ioe) {
+              // Failed handshakes end up here.
+            } finally {
+              socket.close();
+            }
+          } catch (IOException ioe) {
+            // Closed in tearDown.
+          }
+        }
+      }
+    }, "farSide");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private Socket connect(TlsTransport tls) throws IOException {
+    return connect(tls, "127.0.0.1");
+  }
+
+  // Connects to the far side on loopback, telling tls we connected to host.
+  private Socket connect(TlsTransport tls, String host) throws IOException {
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress("127.0.0.1", farSide.getLocalPort()));
+    return tls.wrapClient(socket, new HostPort(host, farSide.getLocalPort()));
+  }
+
+  public void testReconnectsResume() throws Exception {
+    TlsTransport far = new TlsTransport(keyStore.getPath(), PASSWORD, null, null, null);
+    TlsTransport near = new TlsTransport(null, null, keyStore.getPath(), PASSWORD, null);
+    startFarSide(far);
+
+    for (int i = 0; i < 3; i++) {
+      Socket socket = connect(near);
+      socket.getOutputStream().write(41);
+      assertEquals(42, socket.getInputStream().read());
+      socket.close();
+    }
+    assertEquals(3, near.handshakeCnt.get());
+    assertEquals(3, near.clientHandshakeCnt.get());
+    // Only the first handshake was a full one.
+    assertEquals(2, near.resumedCnt.get());
+    assertEquals(2.0 / 3, near.getResumedRatio(), 0.001);
+    assertTrue(near.getMeanClientHandshakeMicros() > 0);
+    assertEquals(0, near.failedHandshakeCnt.get());
+  }
+
+  public void testUntrustedServer() throws Exception {
+    TlsTransport far = new TlsTransport(keyStore.getPath(), PASSWORD, null, null, null);
+    // The JVM's CAs didn't sign our self-signed certificate.
+    TlsTransport near = new TlsTransport(null, null, null, null, null);
+    startFarSide(far);
+    try {
+      connect(near);
+      fail("Connected to an untrusted server.");
+    } catch (IOException ioe) {
+      // Expected.
+    }
+    assertEquals(1, near.failedHandshakeCnt.get());
+    assertEquals(0, near.handshakeCnt.get());
+  }
+
+  public void testWrongHostName() throws Exception {
+    TlsTransport far = new TlsTransport(keyStore.getPath(), PASSWORD, null, null, null);
+    TlsTransport near = new TlsTransport(null, null, keyStore.getPath(), PASSWORD, null);
+    startFarSide(far);
+    connect(near, "localhost").close();
+    try {
+      // A trusted certificate, but for another host.
+      connect(near, "far-proxy.example.com");
+      fail("Connected to a server with a certificate for another host.");
+    } catch (IOException ioe) {
+      // Expected.
+    }
+    assertEquals(1, near.failedHandshakeCnt.get());
+  }
+
+  public void testHandshakeTimeout() throws Exception {
+    // A far side that accepts but never answers the handshake.
+    farSide = new ServerSocket(0);
+    TlsTransport near = new TlsTransport(null, null, keyStore.getPath(), PASSWORD, null);
+    near.handshakeTimeoutMs = 200;
+    long startMillis = System.currentTimeMillis();
+    try {
+      connect(near);
+      fail("Handshake with a silent server completed.");
+    } catch (IOException ioe) {
+      // Expected.
+    }
+    assertTrue(System.currentTimeMillis() - startMillis < 5000);
+    assertEquals(1, near.failedHandshakeCnt.get());
+  }
+
+  public void testReadTimeoutRestored() throws Exception {
+    TlsTransport far = new TlsTransport(keyStore.getPath(), PASSWORD, null, null, null);
+    TlsTransport near = new TlsTransport(null, null, keyStore.getPath(), PASSWORD, null);
+    startFarSide(far);
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress("127.0.0.1", farSide.getLocalPort()));
+    socket.setSoTimeout(1234);
+    socket = near.wrapClient(socket, new HostPort("127.0.0.1", farSide.getLocalPort()));
+    assertEquals(1234, socket.getSoTimeout());
+    socket.close();
+  }
+
+  public void testClientCertificate() throws Exception {
+    // With a truststore the far side wants a client certificate from it.
+    TlsTransport far = new TlsTransport(keyStore.getPath(), PASSWORD, keyStore.getPath(),
+                                        PASSWORD, null);
+    TlsTransport near = new TlsTransport(keyStore.getPath(), PASSWORD, keyStore.getPath(),
+                                         PASSWORD, null);
+    startFarSide(far);
+    Socket socket = connect(near);
+    socket.getOutputStream().write(1);
+    assertEquals(2, socket.getInputStream().read());
+    socket.close();
+
+    TlsTransport anonymous = new TlsTransport(null, null, keyStore.getPath(), PASSWORD, null);
+    try {
+      // TLS 1.3 clients finish their handshake before the far side checks their certificate,
+      // so we may only find out on the first read.
+      socket = connect(anonymous);
+      socket.getOutputStream().write(1);
+      assertEquals(-1, socket.getInputStream().read());
+    } catch (IOException ioe) {
+      // Expected.
+    }
+  }
+
+  public void testCiphers() throws Exception {
+    TlsTransport tls = new TlsTransport(null, null, null, null,
+                                        "TLS_NO_SUCH_CIPHER, TLS_AES_128_GCM_SHA256");
+    assertTrue(Arrays.equals(new String[] {"TLS_AES_128_GCM_SHA256"}, tls.getCiphers()));
+    assertTrue(Arrays.equals(new String[] {"b", "a"},
+                             TlsTransport.supported("c,b,a,b", new String[] {"a", "b"})));
+    try {
+      new TlsTransport(null, null, null, null, "TLS_NO_SUCH_CIPHER");
+      fail("Accepted no cipher suites.");
+    } catch (IllegalArgumentException iae) {
+      // Expected.
+    }
+  }
+}
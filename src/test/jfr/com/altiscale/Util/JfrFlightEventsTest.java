@@ -0,0 +1,101 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* JfrFlightEvents unittests. */
+package com.altiscale.Util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for JfrFlightEvents. Only built on JDK 11 and newer, like JfrFlightEvents itself.
+ */
+public class JfrFlightEventsTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public JfrFlightEventsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(JfrFlightEventsTest.class);
+  }
+
+  public void testUsesFlightRecorder() {
+    assertTrue(FlightEvents.get() instanceof JfrFlightEvents);
+    assertTrue(FlightEvents.get().isRecordingSupported());
+  }
+
+  public void testRecordsEnabledEventsOnly() throws Exception {
+    FlightEvents events = FlightEvents.get();
+    HostPort server = new HostPort("backend", 1234);
+
+    // Nothing is recording, so these must not show up anywhere.
+    events.tunnelOpened(1, server, "10.0.0.1:5000");
+
+    // TunnelOpened is on by default, LoadBalancerDecision off.
+    Recording recording = new Recording();
+    recording.disable(JfrFlightEvents.PREFIX + "TunnelOpened");
+    recording.start();
+    events.tunnelOpened(2, server, "10.0.0.1:5001");
+    events.loadBalancerDecision("RoundRobin", server, 0, null, 1000);
+    events.tunnelClosed(2, server, "10.0.0.1:5001", 100, 2000, 5000000L);
+    events.backendConnect(server, 1, 300000L, "java.net.ConnectException: refused");
+    recording.stop();
+
+    File file = File.createTempFile("flightEvents", ".jfr");
+    try {
+      recording.dump(file.toPath());
+      recording.close();
+      // Tunnels of other tests may still be closing, only look at ours.
+      List<RecordedEvent> recorded = new ArrayList<RecordedEvent>();
+      for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+        if ("backend:1234".equals(event.getString("server"))) {
+          recorded.add(event);
+        }
+      }
+      assertEquals(2, recorded.size());
+      for (RecordedEvent event : recorded) {
+        if (event.getEventType().getName().endsWith("TunnelClosed")) {
+          assertEquals(2, event.getLong("id"));
+          assertEquals(100, event.getLong("bytesToServer"));
+          assertEquals(2000, event.getLong("bytesToClient"));
+          assertEquals(5, event.getDuration("tunnelDuration").toMillis());
+        } else {
+          assertEquals(1, event.getInt("attempt"));
+          assertFalse(event.getBoolean("success"));
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* ConnectionContext and TcpTunnel unittests over Unix domain sockets. */
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.UnixSockets;
+
+/**
+ * Unittests for the client address of clients accepted on a Unix domain socket. Only built on
+ * JDK 16 and newer.
+ */
+public class UnixConnectionContextTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public UnixConnectionContextTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(UnixConnectionContextTest.class);
+  }
+
+  public void testAcceptedClient() throws Exception {
+    File path = File.createTempFile("uds", ".sock");
+    path.delete();
+    ServerSocket listener = UnixSockets.get().createServerSocket(path.getPath(), 10);
+    Socket client = UnixSockets.get().connect(path.getPath());
+    Socket accepted = listener.accept();
+    Socket server = UnixSockets.get().connect(path.getPath());
+    Socket serverSide = listener.accept();
+    try {
+      String expected = HostPort.UNIX_PREFIX + path.getPath();
+      ConnectionContext context = new ConnectionContext(accepted);
+      assertEquals(expected, context.affinityKey);
+
+      TcpTunnel tunnel =
+          new TcpTunnel(accepted, server, new Server(HostPort.forPath(path.getPath())));
+      assertEquals(expected, tunnel.getClientAddress());
+    } finally {
+      client.close();
+      accepted.close();
+      server.close();
+      serverSide.close();
+      listener.close();
+    }
+  }
+
+  public void testTcpClient() throws Exception {
+    ServerSocket listener = new ServerSocket(0);
+    Socket client = new Socket("127.0.0.1", listener.getLocalPort());
+    Socket accepted = listener.accept();
+    try {
+      assertEquals("127.0.0.1", new ConnectionContext(accepted).affinityKey);
+      assertEquals("127.0.0.1:" + client.getLocalPort(),
+                   ConnectionContext.getClientAddress(accepted, true));
+    } finally {
+      client.close();
+      accepted.close();
+      listener.close();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* LoopbackBenchmark unittests over Unix domain sockets. */
+package com.altiscale.TcpProxy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for LoopbackBenchmark with Unix domain sockets, which also run the proxy's
+ * listener and server connections over them. Only built on JDK 16 and newer.
+ */
+public class UnixLoopbackBenchmarkTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public UnixLoopbackBenchmarkTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(UnixLoopbackBenchmarkTest.class);
+  }
+
+  public void testMixedWorkload() throws Exception {
+    ProxyConfiguration config = new ProxyConfiguration();
+    config.statusPort = 48996;
+    config.benchWorkload = LoopbackBenchmark.MIXED;
+    config.benchBackends = 2;
+    config.benchClients = LoopbackBenchmark.MIXED_BULK_EVERY;
+    config.benchSeconds = 1;
+    config.benchIdleConnections = 20;
+    config.benchUnix = true;
+
+    TcpProxyServer proxy = new TcpProxyServer("TransferAccelerator");
+    LoopbackBenchmark.Result result = new LoopbackBenchmark(proxy, config).run();
+
+    assertEquals(2, proxy.getServerList().size());
+    for (Server server : proxy.getServerList()) {
+      assertTrue(server.hostPort.isPath());
+    }
+    assertTrue(result.requests > LoopbackBenchmark.MIXED_BULK_EVERY);
+    assertTrue(result.bytes > result.requests * LoopbackBenchmark.RESPONSE_BYTES);
+    assertEquals(0, result.errors);
+    assertEquals(20, result.idleConnectionsOpened);
+
+    String json = result.toJson();
+    assertTrue(json, json.contains("\"transport\":\"unix\""));
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* UnixSockets unittests. */
+package com.altiscale.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for UnixSockets. Only built on JDK 16 and newer, like ChannelUnixSockets.
+ */
+public class UnixSocketsTest extends TestCase {
+  private File dir;
+  private ServerSocket farSide;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public UnixSocketsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(UnixSocketsTest.class);
+  }
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("uds", ".test");
+    dir.delete();
+    assertTrue(dir.mkdir());
+  }
+
+  protected void tearDown() throws IOException {
+    if (null != farSide) {
+      farSide.close();
+    }
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private String path(String name) {
+    return new File(dir, name).getPath();
+  }
+
+  // A far side that answers every byte with the byte plus one, and says nothing to a zero.
+  private void startFarSide(String path) throws IOException {
+    farSide = UnixSockets.get().createServerSocket(path, 10);
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (!farSide.isClosed()) {
+          try {
+            final Socket socket = farSide.accept();
+            Thread handler = new Thread(new Runnable() {
+              public void run() {
+                try {
+                  byte[] buffer = new byte[8192];
+                  int cnt;
+                  while ((cnt = socket.getInputStream().read(buffer)) >= 0) {
+                    int answerCnt = 0;
+                    for (int i = 0; i < cnt; i++) {
+                      if (0 != buffer[i]) {
+                        buffer[answerCnt++] = (byte) (buffer[i] + 1);
+                      }
+                    }
+                    socket.getOutputStream().write(buffer, 0, answerCnt);
+                  }
+                  socket.close();
+                } catch (IOException ioe) {
+                  // Client went away.
+                }
+              }
+            }, "farSideHandler");
+            handler.setDaemon(true);
+            handler.start();
+          } catch (IOException ioe) {
+            // Closed in tearDown.
+          }
+        }
+      }
+    }, "farSide");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public void testSupported() {
+    assertTrue(UnixSockets.get() instanceof ChannelUnixSockets);
+    assertTrue(UnixSockets.get().isSupported());
+  }
+
+  public void testRoundTrip() throws Exception {
+    startFarSide(path("far.sock"));
+    Socket socket = UnixSockets.get().connect(path("far.sock"));
+    assertTrue(socket.isConnected());
+    assertEquals("127.0.0.1", socket.getInetAddress().getHostAddress());
+    // More than the socket buffers hold, so that both sides wait for writes.
+    final byte[] bulk = new byte[1024 * 1024];
+    for (int i = 0; i < bulk.length; i++) {
+      bulk[i] = 41;
+    }
+    final Socket writerSocket = socket;
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          writerSocket.getOutputStream().write(bulk);
+        } catch (IOException ioe) {
+          // Shows up as a short answer.
+        }
+      }
+    });
+    writer.start();
+    byte[] answer = new byte[bulk.length];
+    int read = 0;
+    while (read < answer.length) {
+      int cnt = socket.getInputStream().read(answer, read, answer.length - read);
+      assertTrue(cnt > 0);
+      read += cnt;
+    }
+    assertEquals(42, answer[answer.length - 1]);
+    writer.join();
+
+    socket.setSendBufferSize(64 * 1024);
+    assertTrue(socket.getSendBufferSize() > 0);
+    socket.close();
+    assertTrue(socket.isClosed());
+  }
+
+  public void testReadTimeout() throws Exception {
+    startFarSide(path("far.sock"));
+    Socket socket = UnixSockets.get().connect(path("far.sock"));
+    socket.setSoTimeout(50);
+    socket.getOutputStream().write(0);
+    long startMillis = System.currentTimeMillis();
+    try {
+      socket.getInputStream().read();
+      fail("Read without an answer.");
+    } catch (SocketTimeoutException ste) {
+      // Expected.
+    }
+    assertTrue(System.currentTimeMillis() - startMillis >= 50);
+    // The socket still works after a timeout, like a TCP socket.
+    socket.getOutputStream().write(1);
+    assertEquals(2, socket.getInputStream().read());
+    socket.close();
+  }
+
+  public void testCloseWakesReader() throws Exception {
+    startFarSide(path("far.sock"));
+    final Socket socket = UnixSockets.get().connect(path("far.sock"));
+    final IOException[] failure = new IOException[1];
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          socket.getInputStream().read();
+        } catch (IOException ioe) {
+          failure[0] = ioe;
+        }
+      }
+    });
+    reader.start();
+    Thread.sleep(50);
+    socket.close();
+    reader.join(5000);
+    assertFalse(reader.isAlive());
+    assertNotNull(failure[0]);
+  }
+
+  public void testStaleSocketFile() throws Exception {
+    // A socket file left behind by a killed proxy is replaced.
+    ServerSocket first = UnixSockets.get().createServerSocket(path("far.sock"), 10);
+    assertTrue(new File(path("far.sock")).exists());
+    startFarSide(path("far.sock"));
+    Socket socket = UnixSockets.get().connect(path("far.sock"));
+    socket.getOutputStream().write(1);
+    assertEquals(2, socket.getInputStream().read());
+    socket.close();
+
+    // Closing removes the file, regular files are never replaced.
+    farSide.close();
+    assertFalse(new File(path("far.sock")).exists());
+    first.close();
+    new FileOutputStream(path("file")).close();
+    try {
+      UnixSockets.get().createServerSocket(path("file"), 10);
+      fail("Replaced a regular file.");
+    } catch (IOException ioe) {
+      // Expected.
+    }
+    assertTrue(new File(path("file")).exists());
+  }
+}